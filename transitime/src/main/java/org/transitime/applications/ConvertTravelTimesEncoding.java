@@ -0,0 +1,165 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ * 
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.applications;
+
+import java.util.List;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.type.BinaryType;
+import org.hibernate.type.IntegerType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.config.ConfigFileReader;
+import org.transitime.configData.AgencyConfig;
+import org.transitime.db.hibernate.HibernateUtils;
+import org.transitime.db.hibernate.PackedIntArrayType;
+import org.transitime.utils.IntervalTimer;
+
+/**
+ * Converts the travel times of the TravelTimesForStopPaths table from the
+ * old format, a Java serialized List of Integers, to the compact encoding of
+ * PackedIntArrayType. The old format can still be read so running this
+ * isn't required, but converting makes the table much smaller and makes
+ * reading in the travel times faster. Rows already using the new encoding
+ * are left alone so it is safe to run this multiple times.
+ * <p>
+ * The rows are read and updated using SQL instead of as
+ * TravelTimesForStopPath objects since Hibernate wouldn't consider the
+ * objects to be modified and so wouldn't write them out again. The rows are
+ * processed in batches by id so that don't need to read the whole table
+ * into memory.
+ * 
+ */
+public class ConvertTravelTimesEncoding {
+
+	// Read in configuration files. This should be done statically before
+	// the logback LoggerFactory.getLogger() is called so that logback can
+	// also be configured using a transitime config file. The files are
+	// specified using the java system property -Dtransitime.configFiles .
+	static {
+		ConfigFileReader.processConfig();
+	}
+	
+	// How many rows to read and convert per transaction
+	private static final int BATCH_SIZE = 1000;
+	
+	private static final Logger logger = 
+			LoggerFactory.getLogger(ConvertTravelTimesEncoding.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Converts the rows with an id greater than afterId, up to BATCH_SIZE of
+	 * them.
+	 * 
+	 * @param session
+	 * @param afterId
+	 *            Only rows with a greater id are converted
+	 * @param counts
+	 *            Incremented with number of rows read and converted
+	 * @return the largest id read, or null if there were no more rows
+	 */
+	private static Integer convertBatch(Session session, int afterId,
+			long[] counts) {
+		// Table name is case sensitive!
+		@SuppressWarnings("unchecked")
+		List<Object[]> rows = session.createSQLQuery(
+				"SELECT id, travelTimesMsec FROM TravelTimesForStopPaths "
+						+ "WHERE id > :afterId ORDER BY id")
+				.addScalar("id", IntegerType.INSTANCE)
+				.addScalar("travelTimesMsec", BinaryType.INSTANCE)
+				.setInteger("afterId", afterId)
+				.setMaxResults(BATCH_SIZE)
+				.list();
+		if (rows.isEmpty())
+			return null;
+		
+		Integer lastId = null;
+		for (Object[] row : rows) {
+			lastId = (Integer) row[0];
+			byte[] bytes = (byte[]) row[1];
+			++counts[0];
+			if (bytes == null || !PackedIntArrayType.isJavaSerialized(bytes))
+				continue;
+			
+			byte[] encoded = 
+					PackedIntArrayType.encode(PackedIntArrayType.decode(bytes));
+			session.createSQLQuery("UPDATE TravelTimesForStopPaths "
+					+ "SET travelTimesMsec = :travelTimesMsec WHERE id = :id")
+					.setParameter("travelTimesMsec", encoded, 
+							BinaryType.INSTANCE)
+					.setInteger("id", lastId)
+					.executeUpdate();
+			++counts[1];
+			counts[2] += bytes.length - encoded.length;
+		}
+		return lastId;
+	}
+	
+	/**
+	 * Converts all of the rows of the TravelTimesForStopPaths table, using a
+	 * separate transaction for each batch.
+	 * 
+	 * @param agencyId
+	 */
+	private static void convert(String agencyId) {
+		IntervalTimer timer = new IntervalTimer();
+		
+		// Number of rows read, number of rows converted, and bytes saved
+		long[] counts = new long[3];
+		
+		Session session = HibernateUtils.getSession(agencyId);
+		try {
+			Integer lastId = Integer.MIN_VALUE;
+			while (lastId != null) {
+				Transaction tx = session.beginTransaction();
+				try {
+					lastId = convertBatch(session, lastId, counts);
+					tx.commit();
+				} catch (RuntimeException e) {
+					tx.rollback();
+					throw e;
+				}
+				logger.info("Read {} rows so far and converted {} of them",
+						counts[0], counts[1]);
+			}
+		} catch (RuntimeException e) {
+			logger.error("Unexpected exception occurred", e);
+			throw e;
+		} finally {
+			session.close();
+		}
+		
+		logger.info("Done converting travel times. Read {} rows, converted "
+				+ "{} of them, saving {} bytes. Took {} msec.", 
+				counts[0], counts[1], counts[2], timer.elapsedMsec());
+	}
+	
+	/**
+	 * Converts the travel times for the agency specified by the
+	 * transitime.core.agencyId property. No arguments are used.
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		convert(AgencyConfig.getAgencyId());
+		
+		// Make sure program exits even if there are other threads running
+		System.exit(0);
+	}
+}
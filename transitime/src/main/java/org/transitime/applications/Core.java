@@ -20,6 +20,8 @@ import java.io.PrintWriter;
 import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
@@ -35,6 +37,7 @@ import org.transitime.configData.AgencyConfig;
 import org.transitime.configData.CoreConfig;
 import org.transitime.core.ServiceUtils;
 import org.transitime.core.TimeoutHandlerModule;
+import org.transitime.core.SpatialCandidatesCache;
 import org.transitime.core.dataCache.PredictionDataCache;
 import org.transitime.core.dataCache.VehicleDataCache;
 import org.transitime.db.hibernate.DataDbLogger;
@@ -49,6 +52,7 @@ import org.transitime.ipc.servers.ServerStatusServer;
 import org.transitime.ipc.servers.VehiclesServer;
 import org.transitime.modules.Module;
 import org.transitime.monitoring.PidFile;
+import org.transitime.utils.PlanarProjection;
 import org.transitime.utils.SettableSystemTime;
 import org.transitime.utils.SystemTime;
 import org.transitime.utils.SystemCurrentTime;
@@ -65,16 +69,21 @@ public class Core {
 	
 	private static Core singleton = null;
 	
-	// Contains the configuration data read from database
-	private final DbConfig configData;
+	// Contains the configuration data read from database along with the
+	// ServiceUtils and Time objects that use it. Volatile since a new
+	// configuration can be switched in while running.
+	private volatile Configuration configuration;
+	
+	// Read lock is held while an AVL report is processed. The write lock is
+	// held while switching in a new configuration so that the switch happens
+	// between AVL reports.
+	private final ReentrantReadWriteLock configLock = 
+			new ReentrantReadWriteLock();
 	
 	// For logging data such as AVL reports and arrival times to database
 	private final DataDbLogger dataDbLogger;
 
 	private final TimeoutHandlerModule timeoutHandlerModule;
-	
-	private final ServiceUtils service;
-	private final Time time;
 
 	// So that can access the current time, even when in playback mode
 	private SystemTime systemTime = new SystemCurrentTime();
@@ -93,6 +102,23 @@ public class Core {
 	private static final Logger logger = 
 			LoggerFactory.getLogger(Core.class);
 	
+	/**
+	 * The configuration data and the objects that depend on it. Immutable so
+	 * that they can be switched together atomically.
+	 */
+	private static class Configuration {
+		private final DbConfig dbConfig;
+		private final ServiceUtils service;
+		private final Time time;
+		
+		private Configuration(DbConfig dbConfig, ServiceUtils service,
+				Time time) {
+			this.dbConfig = dbConfig;
+			this.service = service;
+			this.time = time;
+		}
+	}
+	
 	/********************** Member Functions **************************/
 
 	/**
@@ -144,8 +170,10 @@ public class Core {
 		HibernateUtils.clearSessionFactory();
 		
 		// Read in all GTFS based config data from the database
-		configData = new DbConfig(agencyId);
+		DbConfig configData = new DbConfig(agencyId);
 		configData.read(configRev);
+		configuration = new Configuration(configData, 
+				new ServiceUtils(configData), new Time(configData));
 		
 		// Create the DataDBLogger so that generated data can be stored
 		// to database via a robust queue. But don't actually log data
@@ -164,9 +192,6 @@ public class Core {
 		// Start mandatory modules
 		timeoutHandlerModule = new TimeoutHandlerModule(AgencyConfig.getAgencyId());
 		timeoutHandlerModule.start();
-		
-		service = new ServiceUtils(configData);
-		time = new Time(configData);
 	}
 	
 	/**
@@ -232,7 +257,7 @@ public class Core {
 	 * @return
 	 */
 	public DbConfig getDbConfig() {
-		return configData;
+		return configuration.dbConfig;
 	}
 	
 	/**
@@ -240,7 +265,7 @@ public class Core {
 	 * @return
 	 */
 	public ServiceUtils getServiceUtils() {
-		return service;
+		return configuration.service;
 	}
 	
 	/**
@@ -250,7 +275,51 @@ public class Core {
 	 * @return
 	 */
 	public Time getTime() {
-		return time;
+		return configuration.time;
+	}
+	
+	/**
+	 * Returns the lock for switching in a new configuration. The read lock
+	 * should be held while processing an AVL report so that the
+	 * configuration, and the blocks that the vehicles are assigned to, don't
+	 * change in the middle of the processing. The write lock must be held
+	 * when calling setConfig().
+	 * 
+	 * @return the configuration lock
+	 */
+	public ReadWriteLock getConfigLock() {
+		return configLock;
+	}
+	
+	/**
+	 * Switches in a new configuration that was read in using
+	 * DbConfig.readInBackground(). Makes its planar projection the current
+	 * one and clears the spatial candidates cache. The caller must hold the
+	 * write lock of getConfigLock() and, while still holding it, needs to
+	 * update the vehicles so that they use the blocks of the new
+	 * configuration.
+	 * 
+	 * @param newDbConfig
+	 *            The new configuration
+	 * @param newService
+	 *            ServiceUtils for the new configuration. Passed in so that
+	 *            it can be created before the write lock is taken.
+	 * @param newTime
+	 *            Time for the new configuration
+	 */
+	public void setConfig(DbConfig newDbConfig, ServiceUtils newService,
+			Time newTime) {
+		if (!configLock.isWriteLockedByCurrentThread())
+			throw new IllegalStateException("Write lock of config lock must "
+					+ "be held when calling setConfig()");
+
+		logger.info("Switching from configRev={} to configRev={}", 
+				configuration.dbConfig.getConfigRev(), 
+				newDbConfig.getConfigRev());
+		
+		configuration = new Configuration(newDbConfig, newService, newTime);
+		PlanarProjection.setCurrent(newDbConfig.getPlanarProjection());
+		SpatialCandidatesCache.getInstance().clear();
 	}
 	
 	/**
@@ -35,6 +35,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.config.ConfigFileReader;
 import org.transitime.configData.AgencyConfig;
+import org.transitime.gtfs.DbConfigSnapshot;
 import org.transitime.gtfs.GtfsData;
 import org.transitime.gtfs.HttpGetGtfsFile;
 import org.transitime.gtfs.TitleFormatter;
@@ -300,6 +301,14 @@ public class GtfsFileProcessor {
 		
 		gtfsData.processData();
 		
+		// Write a snapshot of the new config data so that the core can
+		// start up quickly
+		if (DbConfigSnapshot.isEnabled()) {
+			DbConfigSnapshot.writeFromDb(AgencyConfig.getAgencyId(), 
+					gtfsData.getRevs().getConfigRev(), 
+					gtfsData.getRevs().getTravelTimesRev());
+		}
+		
 		// Log possibly useful info
 		titleFormatter.logRegexesThatDidNotMakeDifference();
 
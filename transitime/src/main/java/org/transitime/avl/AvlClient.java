@@ -16,7 +16,9 @@
  */
 package org.transitime.avl;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,11 +41,12 @@ public class AvlClient implements Runnable {
 	// The AVL report being processed
 	private final AvlReport avlReport;
 
-	// List of current AVL reports by vehicle. Useful for determining last
-	// report so can filter out new report if the same as the old one.
-	// Keyed on vehicle ID.
-	private static HashMap<String, AvlReport> avlReports =
-			new HashMap<String, AvlReport>();
+	// List of last accepted AVL reports by vehicle. Useful for determining
+	// last report so can filter out new report if the same as the old one.
+	// Keyed on vehicle ID. The AtomicReference for a vehicle is only updated
+	// using compare-and-set so that no global lock is needed.
+	private static ConcurrentMap<String, AtomicReference<AvlReport>> avlReports =
+			new ConcurrentHashMap<String, AtomicReference<AvlReport>>();
 	
 	private static final Logger logger= 
 			LoggerFactory.getLogger(AvlClient.class);	
@@ -88,73 +91,8 @@ public class AvlClient implements Runnable {
 			}
 
 			// See if should filter out report
-			synchronized (avlReports) {
-				AvlReport previousReportForVehicle =
-						avlReports.get(avlReport.getVehicleId());
-
-				// If report the same time or older then don't need to process
-				// it
-				if (previousReportForVehicle != null
-						&& avlReport.getTime() <= previousReportForVehicle
-								.getTime()) {
-					logger.warn("Throwing away AVL report because it is same time "
-							+ "or older than the previous AVL report for the "
-							+ "vehicle. New AVL report is {}. Previous valid AVL "
-							+ "report is {}", avlReport,
-							previousReportForVehicle);
-					return;
-				}
-
-				// If previous report happened too recently then don't want to
-				// process it. This is important for when get AVL data for a
-				// vehicle
-				// more frequently than is worthwhile, like every couple of
-				// seconds.
-				if (previousReportForVehicle != null) {
-					long timeBetweenReportsSecs =
-							(avlReport.getTime() - previousReportForVehicle
-									.getTime()) / Time.MS_PER_SEC;
-					if (timeBetweenReportsSecs < AvlConfig
-							.getMinTimeBetweenAvlReportsSecs()) {
-						// Log this but. Since this can happen very frequently
-						// (VTA has hundreds of vehicles reporting every
-						// second!)
-						// separated the logging into two statements in case
-						// want
-						// to make the first shorter one a warn message but keep
-						// the
-						// second more verbose one a debug statement.
-						logger.debug("AVL report for vehicleId={} for time {} is "
-								+ "only {} seconds old which is too recent to "
-								+ "previous report so not fully processing it. "
-								+ "Just updating the vehicle's location in cache.",
-								avlReport.getVehicleId(), avlReport.getTime(),
-								timeBetweenReportsSecs);
-						logger.debug("Not processing AVL report because the new "
-								+ "report is too close in time to the previous AVL "
-								+ "report for the vehicle. "
-								+ "transitime.avl.minTimeBetweenAvlReportsSecs={} "
-								+ "secs. New AVL report is {}. Previous valid AVL "
-								+ "report is {}",
-								AvlConfig.getMinTimeBetweenAvlReportsSecs(),
-								avlReport, previousReportForVehicle);
-
-						// But still want to update the vehicle cache with the
-						// latest report because doing so is cheap and it allows
-						// vehicles to move on map smoothly
-						AvlProcessor.getInstance()
-								.cacheAvlReportWithoutProcessing(avlReport);
-
-						// Done here since not processing this AVL report
-						return;
-					}
-				}
-
-				// Should handle the AVL report. Remember it so can possibly
-				// filter
-				// the next one
-				avlReports.put(avlReport.getVehicleId(), avlReport);
-			}
+			if (!shouldProcess())
+				return;
 
 			// Process the report
 			logger.info("Thread={} AvlClient processing AVL data {}", 
@@ -170,4 +108,128 @@ public class AvlClient implements Runnable {
 		}
 	}
 	
+	/**
+	 * Determines whether the AVL report should be processed. Filters out
+	 * the report if it is the same time or older than the previously
+	 * accepted report for the vehicle, or if it is too close in time to the
+	 * previous one. If the report is to be processed then it is recorded as
+	 * the last accepted report for the vehicle.
+	 * <p>
+	 * Doesn't lock. The last accepted report for a vehicle is only replaced
+	 * using compare-and-set so that reports for different vehicles never
+	 * block each other. If another thread accepted a report for the same
+	 * vehicle in the meantime then the checks are simply redone against
+	 * that report.
+	 * 
+	 * @return true if the AVL report should be processed
+	 */
+	boolean shouldProcess() {
+		AtomicReference<AvlReport> lastAcceptedReportRef =
+				getLastAcceptedReportRef(avlReport.getVehicleId());
+		
+		while (true) {
+			AvlReport previousReportForVehicle = lastAcceptedReportRef.get();
+
+			// If report the same time or older then don't need to process it
+			if (previousReportForVehicle != null
+					&& avlReport.getTime() <= previousReportForVehicle
+							.getTime()) {
+				logger.warn("Throwing away AVL report because it is same time "
+						+ "or older than the previous AVL report for the "
+						+ "vehicle. New AVL report is {}. Previous valid AVL "
+						+ "report is {}", avlReport,
+						previousReportForVehicle);
+				return false;
+			}
+
+			// If previous report happened too recently then don't want to
+			// process it. This is important for when get AVL data for a
+			// vehicle more frequently than is worthwhile, like every couple
+			// of seconds.
+			if (previousReportForVehicle != null) {
+				long timeBetweenReportsSecs =
+						(avlReport.getTime() - previousReportForVehicle
+								.getTime()) / Time.MS_PER_SEC;
+				if (timeBetweenReportsSecs < AvlConfig
+						.getMinTimeBetweenAvlReportsSecs()) {
+					// Log this but. Since this can happen very frequently
+					// (VTA has hundreds of vehicles reporting every second!)
+					// separated the logging into two statements in case want
+					// to make the first shorter one a warn message but keep
+					// the second more verbose one a debug statement.
+					logger.debug("AVL report for vehicleId={} for time {} is "
+							+ "only {} seconds old which is too recent to "
+							+ "previous report so not fully processing it. "
+							+ "Just updating the vehicle's location in cache.",
+							avlReport.getVehicleId(), avlReport.getTime(),
+							timeBetweenReportsSecs);
+					logger.debug("Not processing AVL report because the new "
+							+ "report is too close in time to the previous AVL "
+							+ "report for the vehicle. "
+							+ "transitime.avl.minTimeBetweenAvlReportsSecs={} "
+							+ "secs. New AVL report is {}. Previous valid AVL "
+							+ "report is {}",
+							AvlConfig.getMinTimeBetweenAvlReportsSecs(),
+							avlReport, previousReportForVehicle);
+
+					// But still want to update the vehicle cache with the
+					// latest report because doing so is cheap and it allows
+					// vehicles to move on map smoothly
+					AvlProcessor.getInstance()
+							.cacheAvlReportWithoutProcessing(avlReport);
+
+					// Done here since not processing this AVL report
+					return false;
+				}
+			}
+
+			// Should handle the AVL report. Remember it so can possibly
+			// filter the next one. If another thread changed the last
+			// accepted report in the meantime then need to check again.
+			if (lastAcceptedReportRef.compareAndSet(previousReportForVehicle,
+					avlReport))
+				return true;
+		}
+	}
+	
+	/**
+	 * Returns true if the AVL report is the same time or older than the last
+	 * AVL report accepted for the vehicle and would therefore be filtered
+	 * out. Useful for letting the sender of the data know that it is
+	 * sending stale data.
+	 * 
+	 * @param avlReport
+	 * @return true if the AVL report is stale
+	 */
+	public static boolean isStale(AvlReport avlReport) {
+		AtomicReference<AvlReport> lastAcceptedReportRef =
+				avlReports.get(avlReport.getVehicleId());
+		if (lastAcceptedReportRef == null)
+			return false;
+		
+		AvlReport previousReportForVehicle = lastAcceptedReportRef.get();
+		return previousReportForVehicle != null
+				&& avlReport.getTime() <= previousReportForVehicle.getTime();
+	}
+	
+	/**
+	 * Returns the holder of the last accepted AVL report for the vehicle,
+	 * creating it if it doesn't yet exist.
+	 * 
+	 * @param vehicleId
+	 * @return holder of the last accepted AVL report for the vehicle
+	 */
+	private static AtomicReference<AvlReport> getLastAcceptedReportRef(
+			String vehicleId) {
+		AtomicReference<AvlReport> ref = avlReports.get(vehicleId);
+		if (ref == null) {
+			AtomicReference<AvlReport> newRef = 
+					new AtomicReference<AvlReport>();
+			ref = avlReports.putIfAbsent(vehicleId, newRef);
+			if (ref == null)
+				ref = newRef;
+		}
+		return ref;
+	}
+	
 }
@@ -16,8 +16,11 @@
  */
 package org.transitime.avl;
 
-import java.util.concurrent.BlockingQueue;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -27,6 +30,7 @@ import org.transitime.config.IntegerConfigValue;
 import org.transitime.configData.AgencyConfig;
 import org.transitime.db.structs.AvlReport;
 import org.transitime.logging.Markers;
+import org.transitime.utils.StringUtils;
 import org.transitime.utils.Time;
 import org.transitime.utils.threading.NamedThreadFactory;
 
@@ -37,6 +41,15 @@ import org.transitime.utils.threading.NamedThreadFactory;
  * of threads is specified using the Java property transitime.avl.numThreads .
  * The queue size is set using the Java property transitime.avl.queueSize .
  * <p>
+ * The executor is partitioned into lanes, one per thread. Each lane has its
+ * own bounded AvlQueue and a single worker thread. The lane for an AVL report
+ * is determined by hashing the vehicle ID so that all reports for a vehicle
+ * are always handled by the same thread. This way the reports for a vehicle
+ * are processed in order and AVL threads don't contend with each other for
+ * the same vehicle, yet the processing can still be spread across the cores.
+ * Each lane keeps track of how many reports it processed and how long that
+ * took so that hot partitions can be identified.
+ * <p>
  * Causes AvlClient.run() to be called on each AvlReport, unless using test
  * executor, in which case the AvlClientTester() is called.
  * 
@@ -45,8 +58,8 @@ import org.transitime.utils.threading.NamedThreadFactory;
  */
 public class AvlExecutor {
 	
-	// The actual executor
-	ThreadPoolExecutor avlClientExecutor = null;
+	// The lanes. A vehicle is always assigned to the same lane.
+	private final Lane[] lanes;
 	
 	// Singleton class
 	private static AvlExecutor singleton;
@@ -59,12 +72,15 @@ public class AvlExecutor {
 	
 	private static IntegerConfigValue avlQueueSize = 
 			new IntegerConfigValue("transitime.avl.queueSize", 2000,
-					"How many items to go into the blocking AVL queue "
-					+ "before need to wait for queue to have space. Should "
-					+ "be approximately 50% more than the number of reports "
-					+ "that will be read during a single AVL polling cycle. "
-					+ "If too big then wasteful. If too small then not all the "
-					+ "data will be rejected by the ThreadPoolExecutor. ");
+					"How many vehicles can have an AVL report waiting in "
+					+ "each AVL queue before need to wait for queue to have "
+					+ "space. There is a separate queue for each AVL thread. "
+					+ "Since a queue holds at most one report per vehicle, "
+					+ "with a newer report replacing an older one, this "
+					+ "only needs to be somewhat larger than the number of "
+					+ "vehicles handled by an AVL thread. If too small then "
+					+ "not all the data will be processed since some will be "
+					+ "rejected by the ThreadPoolExecutor. ");
 
 	private static IntegerConfigValue numAvlThreads = 
 			new IntegerConfigValue("transitime.avl.numThreads", 1,
@@ -74,7 +90,9 @@ public class AvlExecutor {
 					"since the messages will not be interleaved. But for " +
 					"large systems with lots of vehicles then should use " +
 					"multiple threads, such as 3-15 so that more of the cores " +
-					"are used.");
+					"are used. Each thread has its own queue and the AVL " +
+					"reports for a vehicle are always handled by the same " +
+					"thread.");
 	
 	private static final Logger logger= 
 			LoggerFactory.getLogger(AvlExecutor.class);	
@@ -104,25 +122,19 @@ public class AvlExecutor {
 		}
 
 		logger.info("Starting AvlExecutor for directly handling AVL reports " +
-				"via a queue instead of JMS. maxAVLQueueSize={} and "
+				"via a queue instead of JMS. maxAVLQueueSize={} per lane and "
 				+ "numberThreads={}", 
 				maxAVLQueueSize, numberThreads);
 
-		// Start up the ThreadPoolExecutor
-		int corePoolSize = 1;
-		int maximumPoolSize = numberThreads;
-		long keepAliveTime = 1; /* 1 hour */
-		BlockingQueue<Runnable> workQueue = new AvlQueue(maxAVLQueueSize);
-		NamedThreadFactory avlClientThreadFactory =
-				new NamedThreadFactory("avlClient");
-		// Called when queue fills up
+		// Called when queue for a lane fills up
 		RejectedExecutionHandler rejectedHandler = new RejectedExecutionHandler() {
 			@Override
 			public void	rejectedExecution(Runnable arg0, ThreadPoolExecutor arg1) {
 				String message = "Rejected AVL report in AvlExecutor for agencyId=" 
 						+ AgencyConfig.getAgencyId() + ". The work "
-						+ "queue with capacity " + maxAVLQueueSize 
-						+ " must be full. " + ((AvlClient) arg0).getAvlReport();
+						+ "queue for lane " + ((Lane) arg1).getLaneIndex() 
+						+ " with capacity of " + maxAVLQueueSize 
+						+ " vehicles must be full. " + ((AvlClient) arg0).getAvlReport();
 				// If first one then send out an e-mail message since this can 
 				// be a serious issue indicating that system is locked up. This
 				// actually happened once when couldn't read from db due to a
@@ -135,11 +147,14 @@ public class AvlExecutor {
 				}
 			}};
 		
-		avlClientExecutor =
-				new ThreadPoolExecutor(corePoolSize, maximumPoolSize,
-						keepAliveTime, TimeUnit.HOURS, workQueue,
-						avlClientThreadFactory,
-						rejectedHandler);
+		// Start up a single threaded executor for each lane
+		NamedThreadFactory avlClientThreadFactory =
+				new NamedThreadFactory("avlClient");
+		lanes = new Lane[numberThreads];
+		for (int i = 0; i < numberThreads; ++i) {
+			lanes[i] = new Lane(i, maxAVLQueueSize, avlClientThreadFactory,
+					rejectedHandler);
+		}
 	}
 	
 	/**
@@ -156,6 +171,17 @@ public class AvlExecutor {
 		return singleton;
 	}
 	
+	/**
+	 * Returns true if the singleton AvlExecutor has already been created.
+	 * Useful for monitoring since don't want to create the executor if AVL
+	 * data is not being handled by it, such as when using JMS.
+	 * 
+	 * @return true if AvlExecutor is in use
+	 */
+	public static boolean isRunning() {
+		return singleton != null;
+	}
+	
 	/**
 	 * Instead of writing AVL report to JMS topic this method directly processes
 	 * it. By doing this one can bypass the need for a JMS server. Uses a thread
@@ -164,11 +190,14 @@ public class AvlExecutor {
 	 * polling a feed or from an AVL feed hitting the Transitime web server and
 	 * the AVL data getting then pushed to the core system in batches.
 	 * <p>
+	 * The AVL report is put into the lane for its vehicle so that all reports
+	 * for a vehicle are handled sequentially by the same thread.
+	 * <p>
 	 * Uses a queue so that if system gets behind in processing AVL data then
 	 * AVL data is written to a queue that keeps track of the latest AVL report
-	 * per vehicle. If another AVL report is to be added to the queue then the
-	 * previous one is removed since there is no point processing an old AVL
-	 * report for a vehicle when new data is available.
+	 * per vehicle. If another AVL report is to be added to the queue then it
+	 * replaces the previous one in place since there is no point processing
+	 * an old AVL report for a vehicle when new data is available.
 	 * <p>
 	 * Causes AvlClient.run() to be called on each AvlReport, unless using test
 	 * executor, in which case the AvlClientTester() is called.
@@ -185,9 +214,141 @@ public class AvlExecutor {
 		Runnable avlClient = !testing ? 
 				new AvlClient(newAvlReport) : new AvlClientTester(newAvlReport);
 
-		avlClientExecutor.execute(avlClient);		
+		getLane(newAvlReport.getVehicleId()).execute(avlClient);		
 	}
 
+	/**
+	 * Returns the lane that handles the specified vehicle. Always returns the
+	 * same lane for a vehicle.
+	 * 
+	 * @param vehicleId
+	 * @return the lane for the vehicle
+	 */
+	private Lane getLane(String vehicleId) {
+		int hash = vehicleId != null ? vehicleId.hashCode() : 0;
+		return lanes[(hash & Integer.MAX_VALUE) % lanes.length];
+	}
+	
+	/**
+	 * Returns the lanes of the executor so that can monitor queue depth and
+	 * processing time per lane.
+	 * 
+	 * @return unmodifiable list of the lanes
+	 */
+	public List<Lane> getLanes() {
+		return Collections.unmodifiableList(Arrays.asList(lanes));
+	}
+	
+	/**
+	 * A single threaded executor with its own AvlQueue. Keeps track of number
+	 * of AVL reports processed and how long the processing took so that can
+	 * determine if a lane is getting backed up.
+	 */
+	public static class Lane extends ThreadPoolExecutor {
+		private final int laneIndex;
+		private final int queueCapacity;
+		
+		// Only the single worker thread of the lane writes these so they 
+		// don't need to be atomic, but they are read by monitoring threads
+		// so need to be volatile.
+		private volatile long processedCount = 0;
+		private volatile long totalProcessingNanos = 0;
+		private volatile long maxProcessingNanos = 0;
+		
+		// Start time of the report currently being processed. Only accessed
+		// by the single worker thread of the lane.
+		private long startNanos;
+		
+		private Lane(int laneIndex, int queueCapacity,
+				ThreadFactory threadFactory,
+				RejectedExecutionHandler rejectedHandler) {
+			super(1, 1, 1, TimeUnit.HOURS, new AvlQueue(queueCapacity),
+					threadFactory, rejectedHandler);
+			this.laneIndex = laneIndex;
+			this.queueCapacity = queueCapacity;
+		}
+		
+		@Override
+		protected void beforeExecute(Thread t, Runnable r) {
+			super.beforeExecute(t, r);
+			startNanos = System.nanoTime();
+		}
+		
+		@Override
+		protected void afterExecute(Runnable r, Throwable t) {
+			long elapsedNanos = System.nanoTime() - startNanos;
+			processedCount++;
+			totalProcessingNanos += elapsedNanos;
+			if (elapsedNanos > maxProcessingNanos)
+				maxProcessingNanos = elapsedNanos;
+			super.afterExecute(r, t);
+		}
+		
+		public int getLaneIndex() {
+			return laneIndex;
+		}
+		
+		/**
+		 * @return Number of AVL reports currently waiting in queue for lane
+		 */
+		public int getQueueDepth() {
+			return getQueue().size();
+		}
+		
+		/**
+		 * @return Number of AVL reports that replaced an older report for the
+		 *         same vehicle while waiting in the queue for the lane
+		 */
+		public long getCoalescedCount() {
+			return ((AvlQueue) getQueue()).getCoalescedCount();
+		}
+		
+		/**
+		 * @return Fraction 0.0 - 1.0 of how full the queue for the lane is
+		 */
+		public double getQueueLevel() {
+			return (double) getQueueDepth() / queueCapacity;
+		}
+		
+		/**
+		 * @return Number of AVL reports processed by the lane
+		 */
+		public long getProcessedCount() {
+			return processedCount;
+		}
+		
+		/**
+		 * @return Average time in msec for processing an AVL report in lane
+		 */
+		public double getAvgProcessingMsec() {
+			long count = processedCount;
+			if (count == 0)
+				return 0.0;
+			return (double) totalProcessingNanos / count / Time.NSEC_PER_MSEC;
+		}
+		
+		/**
+		 * @return Max time in msec for processing an AVL report in lane
+		 */
+		public double getMaxProcessingMsec() {
+			return (double) maxProcessingNanos / Time.NSEC_PER_MSEC;
+		}
+		
+		@Override
+		public String toString() {
+			return "Lane [" 
+					+ "laneIndex=" + laneIndex 
+					+ ", queueDepth=" + getQueueDepth()
+					+ ", processedCount=" + processedCount
+					+ ", coalescedCount=" + getCoalescedCount()
+					+ ", avgProcessingMsec=" 
+						+ StringUtils.twoDigitFormat(getAvgProcessingMsec())
+					+ ", maxProcessingMsec=" 
+						+ StringUtils.twoDigitFormat(getMaxProcessingMsec())
+					+ "]";
+		}
+	}
+	
 	/**
 	 * Separate executor, just for testing. The run method simply sleeps for a
 	 * while so can verify that the queuing works when system getting behind in
@@ -17,11 +17,16 @@
  
 package org.transitime.avl;
 
+import java.io.IOException;
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
+import javax.jms.BytesMessage;
 import javax.jms.JMSException;
+import javax.jms.Message;
 import javax.jms.MessageConsumer;
+import javax.jms.ObjectMessage;
 import javax.naming.NamingException;
 
 import org.slf4j.Logger;
@@ -180,6 +185,24 @@ public class AvlJmsClientModule extends Module {
 		}
 	}
 	
+	/**
+	 * Has another thread actually process the AVL data using the AvlClient
+	 * class. This way can use multiple threads to simultaneously process the
+	 * data.
+	 * 
+	 * @param avlReport
+	 * @throws InterruptedException
+	 */
+	private void processAvlReport(AvlReport avlReport) 
+			throws InterruptedException {
+		// Log the AVL report				
+		logger.debug("Thread={} Processing AVL report: {}",
+				Thread.currentThread().getName(), avlReport);
+
+		Runnable avlClient = new AvlClient(avlReport);
+		avlClientExecutor.execute(avlClient);								
+	}
+	
 	/**
 	 * Infinite loop that actually processes the AVL data
 	 * by reading it from the JMS topic. Intended to only be
@@ -189,21 +212,28 @@ public class AvlJmsClientModule extends Module {
 		// Loop forever processing AVL data
 		while (true) {
 			try {
-				// Read in AVL report from JMS. Block until an AVL report is available.
+				// Read in AVL data from JMS. Block until AVL data is available.
 				logger.debug("Thread={} About to read AVL data from JMS topic",
 						Thread.currentThread().getName());
-				AvlReport avlReport = 
-						(AvlReport) JMSWrapper.receiveObjectMessage(msgConsumer);
+				Message message = JMSWrapper.receiveMessage(msgConsumer);
 				
-				// Log the AVL report				
-				logger.debug("Thread={} Processing AVL report: {}",
-						Thread.currentThread().getName(), avlReport);
-
-				// Have another thread actually process the AVL data
-				// using the AvlClient class. This way can use multiple
-				// threads to simultaneously process the data.
-				Runnable avlClient = new AvlClient(avlReport);
-				avlClientExecutor.execute(avlClient);								
+				if (message instanceof BytesMessage) {
+					// A batch of AVL reports sent by a BatchingMessageProducer
+					byte[] bytes = 
+							JMSWrapper.getBytes((BytesMessage) message);
+					List<AvlReport> avlReports = 
+							AvlReportBatchCodec.decode(bytes);
+					logger.debug("Thread={} Processing batch of {} AVL "
+							+ "reports from {} bytes",
+							Thread.currentThread().getName(), 
+							avlReports.size(), bytes.length);
+					for (AvlReport avlReport : avlReports)
+						processAvlReport(avlReport);
+				} else {
+					// A single serialized AvlReport
+					processAvlReport((AvlReport) 
+							((ObjectMessage) message).getObject());
+				}
 			} catch (JMSException e) {
 				// This kind of exception can happen when there is a problem
 				// with JMS such as "Consumer is closed". When this happens
@@ -221,6 +251,9 @@ public class AvlJmsClientModule extends Module {
 				createMessageConsumer();
 			} catch (ClassCastException e) {
 				logger.error("AVL Client received an object that was not an AvlReport", e);
+			} catch (IOException e) {
+				logger.error("AVL Client received a malformed batch of AVL "
+						+ "reports", e);
 			} catch (InterruptedException e) {
 				logger.error("Exception when processing AVL data", e);
 			}
@@ -21,8 +21,10 @@ import javax.jms.JMSException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitime.config.IntegerConfigValue;
 import org.transitime.configData.AvlConfig;
 import org.transitime.db.structs.AvlReport;
+import org.transitime.ipc.jms.BatchingMessageProducer;
 import org.transitime.ipc.jms.JMSWrapper;
 import org.transitime.ipc.jms.RestartableMessageProducer;
 import org.transitime.modules.Module;
@@ -38,6 +40,26 @@ import org.transitime.modules.Module;
 public abstract class AvlModule extends Module {
 	// For writing the AVL data to the JMS topic
 	protected RestartableMessageProducer jmsMsgProducer = null; 
+	
+	// For writing batches of AVL data to the JMS topic. Only used if 
+	// batching is enabled.
+	protected BatchingMessageProducer<AvlReport> jmsBatchProducer = null;
+	
+	private static IntegerConfigValue jmsMaxBatchSize =
+			new IntegerConfigValue("transitime.avl.jmsMaxBatchSize", 1,
+					"When using JMS the maximum number of AVL reports to "
+					+ "send as a single compact binary message. Batching "
+					+ "greatly reduces the load on the JMS server for large "
+					+ "systems. A value of 1 means that each AVL report is "
+					+ "sent as a separate serialized object, which is how "
+					+ "it was done before batching was supported.");
+	
+	private static IntegerConfigValue jmsMaxBatchDelayMsec =
+			new IntegerConfigValue("transitime.avl.jmsMaxBatchDelayMsec", 
+					500,
+					"When batching AVL reports for JMS, the maximum time in "
+					+ "msec that an AVL report can wait in a batch before "
+					+ "the batch is sent.");
 
 	private static final Logger logger = 
 			LoggerFactory.getLogger(AvlModule.class);	
@@ -59,7 +81,7 @@ public abstract class AvlModule extends Module {
 	 */
 	private void initializeJmsIfNeedTo() {
 		// If JMS already initialized then can return
-		if (jmsMsgProducer != null)
+		if (jmsMsgProducer != null || jmsBatchProducer != null)
 			return;
 		
 		// JMS not already initialized so create the MessageProducer 
@@ -67,13 +89,48 @@ public abstract class AvlModule extends Module {
 		try {
 			String jmsTopicName = AvlJmsClientModule.getTopicName(agencyId);
 			JMSWrapper jmsWrapper = JMSWrapper.getJMSWrapper();
-			jmsMsgProducer = jmsWrapper.createTopicProducer(jmsTopicName);
+			if (jmsMaxBatchSize.getValue() > 1) {
+				jmsBatchProducer = jmsWrapper.createBatchingTopicProducer(
+						jmsTopicName, new AvlReportBatchCodec(),
+						jmsMaxBatchSize.getValue(),
+						jmsMaxBatchDelayMsec.getValue());
+				
+				// Make sure that the last partial batch is not lost when
+				// the process exits
+				Runtime.getRuntime().addShutdownHook(
+						new Thread("avlJmsBatchClose") {
+							@Override
+							public void run() {
+								closeJms();
+							}
+						});
+			} else {
+				jmsMsgProducer = jmsWrapper.createTopicProducer(jmsTopicName);
+			}
 		} catch (Exception e) {
 			logger.error("Problem when setting up JMSWrapper for the AVL feed", e);			
 		}
 
 	}
 	
+	/**
+	 * Sends any AVL reports still waiting in a JMS batch and stops the batch
+	 * flush thread. Called on shutdown but subclasses that finish reading
+	 * their feed can call it directly.
+	 */
+	protected void closeJms() {
+		BatchingMessageProducer<AvlReport> producer = jmsBatchProducer;
+		if (producer == null)
+			return;
+		
+		try {
+			producer.close();
+		} catch (Exception e) {
+			logger.error("Problem closing JMS batch producer for the AVL "
+					+ "feed", e);
+		}
+	}
+	
 	/**
 	 * Processes AVL report read from feed. To be called from the subclass for
 	 * each AVL report. Can use JMS or bypass it, depending on how configured.
@@ -105,7 +162,7 @@ public abstract class AvlModule extends Module {
 	private void processAvlReportUsingJms(AvlReport avlReport) {
 		// Make sure the JMS stuff setup successfully
 		initializeJmsIfNeedTo();
-		if (jmsMsgProducer == null) {
+		if (jmsMsgProducer == null && jmsBatchProducer == null) {
 			logger.error("Cannot write AvlReport to JMS because JMS tools " + 
 					"were not initialized successfully.");
 			return;
@@ -113,7 +170,10 @@ public abstract class AvlModule extends Module {
 			
 		// Send the AVL report to the JMS topic
 		try {
-			jmsMsgProducer.sendObjectMessage(avlReport);
+			if (jmsBatchProducer != null)
+				jmsBatchProducer.send(avlReport);
+			else
+				jmsMsgProducer.sendObjectMessage(avlReport);
 		} catch (JMSException e) {
 			logger.error("Problem sending AvlReport to the JMS topic", e);
 		}		
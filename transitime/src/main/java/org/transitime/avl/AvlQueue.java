@@ -5,21 +5,27 @@
  * it under the terms of the GNU General Public License (GPL) as published by
  * the Free Software Foundation, either version 3 of the License, or
  * any later version.
- *
+ * 
  * Transitime.org is distributed in the hope that it will be useful,
  * but WITHOUT ANY WARRANTY; without even the implied warranty of
  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
  * GNU General Public License for more details.
- *
+ * 
  * You should have received a copy of the GNU General Public License
  * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
  */
 package org.transitime.avl;
 
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,30 +33,46 @@ import org.transitime.db.structs.AvlReport;
 
 /**
  * A queue of AvlClient runnables that can be used with a ThreadPoolExecutor.
- * Implements by subclassing a ArrayBlockingQueue<Runnable> where the Runnable
- * is an AvlClient. Also keeps track of the last AVL report per vehicle. When
- * getting data from queue, if the data is obsolete (a new AVL report has been
- * received for the vehicle) then that element from the queue is thrown out and
- * the next item is retrieved until a non-obsolete one is found.
+ * The queue coalesces AVL reports per vehicle: there is at most one pending
+ * slot per vehicle. If a new AVL report is added for a vehicle that already
+ * has a report waiting in the queue then the newer report replaces the older
+ * one in place, keeping the position of the slot in the queue. This way an
+ * obsolete report for a vehicle is never processed and it doesn't use up
+ * space in the queue. The memory used by the queue is therefore bounded by
+ * the number of vehicles instead of by the size of a burst of AVL data.
  * <p>
- * Extended ArrayBlockingQueue class so that don't have to create a blocking
- * queue from scratch.
+ * The capacity limits the number of vehicles that can have a report waiting
+ * in the queue. Adding a report for a vehicle that already has a slot always
+ * succeeds, even if the queue is full.
  * <p>
- * Note: wanted to extend from ArrayBlockingQueue<AvlClient> but that didn't
- * work for the ThreadPoolExecutor which expects a BlockingQueue<Runnable>. So
+ * Note: wanted to implement BlockingQueue<AvlClient> but that doesn't work
+ * for the ThreadPoolExecutor which expects a BlockingQueue<Runnable>. So
  * had to resort to doing ugly casts.
  * 
  * @author SkiBu Smith
- *
+ * 
  */
-public class AvlQueue extends ArrayBlockingQueue<Runnable> {
+public class AvlQueue extends AbstractQueue<Runnable>
+	implements BlockingQueue<Runnable> {
 
-	// For keeping track of the last AVL report for each vehicle. Used to
-	// determine if AVL report from queue is obsolete.
-	ConcurrentMap<String, AvlReport> avlDataPerVehicleMap =
-			new ConcurrentHashMap<String, AvlReport>();
+	// The pending AvlClients, one slot per vehicle. Keyed on vehicle ID.
+	// A LinkedHashMap is used so that slots are handled in the order that
+	// they were created and so that replacing the AvlClient for a vehicle
+	// keeps the position of the slot.
+	private final LinkedHashMap<String, Runnable> slotsByVehicle =
+			new LinkedHashMap<String, Runnable>();
 
-	private static final long serialVersionUID = 6587642826604552096L;
+	// Max number of slots
+	private final int capacity;
+
+	// Number of AVL reports that were coalesced into an existing slot
+	private long coalescedCount = 0;
+
+	// For accessing slotsByVehicle and waiting for changes. Same approach as
+	// used by ArrayBlockingQueue.
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
 
 	private static final Logger logger = LoggerFactory
 			.getLogger(AvlQueue.class);
@@ -61,160 +83,328 @@ public class AvlQueue extends ArrayBlockingQueue<Runnable> {
 	 * Constructs the queue to have specified size.
 	 * 
 	 * @param queueSize
-	 *            How many AVL elements can be put into the queue before it
-	 *            blocks.
+	 *            How many vehicles can have an AVL report in the queue before
+	 *            it blocks.
 	 */
 	public AvlQueue(int queueSize) {
-		super(queueSize);
+		if (queueSize <= 0)
+			throw new IllegalArgumentException("queueSize must be positive.");
+		this.capacity = queueSize;
 	}
 
 	/**
-	 * Adds the AVL report to the map of last AVL report for each vehicle
+	 * Returns the AVL report of the AvlClient.
 	 * 
 	 * @param runnable the AvlClient
+	 * @return the AVL report
 	 */
-	private void addToAvlDataPerVehicleMap(Runnable runnable) {
+	private static AvlReport getAvlReport(Runnable runnable) {
 		if (!(runnable instanceof AvlClient))
 			throw new IllegalArgumentException("Runnable must be AvlClient.");
-		
-		AvlReport avlReport = ((AvlClient) runnable).getAvlReport();
-		avlDataPerVehicleMap.put(avlReport.getVehicleId(), avlReport);
+
+		return ((AvlClient) runnable).getAvlReport();
 	}
 
 	/**
-	 * Returns true if the AVL report is older than the latest one for the
-	 * vehicle and is therefore obsolete and doesn't need to be processed.
+	 * Tries to put the AvlClient into the queue. If there already is a slot
+	 * for the vehicle then the newer of the two AVL reports is kept in that
+	 * slot. Otherwise a new slot is added if there is room. Must be called
+	 * while holding the lock.
 	 * 
-	 * @param avlReportFromQueue
-	 *            AvlClient from the queue containing an AvlReport
-	 * @return true of obsolete
+	 * @param runnable the AvlClient
+	 * @return true if the AvlClient was coalesced or added, false if the
+	 *         queue is full
 	 */
-	private boolean isObsolete(Runnable runnableFromQueue) {
-		if (!(runnableFromQueue instanceof AvlClient))
-			throw new IllegalArgumentException("Runnable must be AvlClient.");
+	private boolean insert(Runnable runnable) {
+		AvlReport avlReport = getAvlReport(runnable);
+		String vehicleId = avlReport.getVehicleId();
 
-		AvlReport avlReportFromQueue =
-				((AvlClient) runnableFromQueue).getAvlReport();
-		
-		AvlReport lastAvlReportForVehicle =
-				avlDataPerVehicleMap.get(avlReportFromQueue.getVehicleId());
-		boolean obsolete =
-				lastAvlReportForVehicle != null
-						&& avlReportFromQueue.getTime() < lastAvlReportForVehicle
-								.getTime();
-		if (obsolete) {
-			logger.debug("AVL report from queue is obsolete (there is a newer "
-					+ "one for the vehicle). Therefore ignoring this report so "
-					+ "can move on to next valid report for another vehicle. "
-					+ "From queue {}. Last AVL report in map {}. Size of queue "
-					+ "is {}",	
-					avlReportFromQueue, lastAvlReportForVehicle, size());
+		Runnable pending = slotsByVehicle.get(vehicleId);
+		if (pending != null) {
+			++coalescedCount;
+			AvlReport pendingAvlReport = getAvlReport(pending);
+			if (avlReport.getTime() < pendingAvlReport.getTime()) {
+				logger.debug("AVL report is obsolete since there is a newer "
+						+ "one for the vehicle already in the queue. "
+						+ "Therefore ignoring it. New {}. Pending {}. "
+						+ "Size of queue is {}",
+						avlReport, pendingAvlReport, slotsByVehicle.size());
+			} else {
+				logger.debug("Replacing obsolete AVL report in queue with "
+						+ "newer one for the vehicle. Pending {}. New {}. "
+						+ "Size of queue is {}",
+						pendingAvlReport, avlReport, slotsByVehicle.size());
+				// Replacing value of existing key keeps position of slot
+				slotsByVehicle.put(vehicleId, runnable);
+			}
+			return true;
 		}
-		return obsolete;
-	}
-	
-	/**
-	 * Calls superclass add() method but also updates the AVL data per vehicle
-	 * map. Doesn't seem to be used by ThreadPoolExecutor but still included
-	 * for completeness.
-	 */
-	@Override
-	public boolean add(Runnable runnable) {
-		addToAvlDataPerVehicleMap(runnable);
-		return super.add(runnable);
+
+		if (slotsByVehicle.size() >= capacity)
+			return false;
+
+		slotsByVehicle.put(vehicleId, runnable);
+		notEmpty.signal();
+		return true;
 	}
 
 	/**
-	 * Calls superclass put() method but also updates the AVL data per vehicle
-	 * map. Doesn't seem to be used by ThreadPoolExecutor but still included
-	 * for completeness.
+	 * Removes and returns the oldest slot. Must be called while holding the
+	 * lock and when the queue is not empty.
+	 * 
+	 * @return the AvlClient of the oldest slot
 	 */
-	@Override
-	public void put(Runnable runnable) throws InterruptedException {
-		super.put(runnable);
-		addToAvlDataPerVehicleMap(runnable);
+	private Runnable extract() {
+		Iterator<Runnable> iterator = slotsByVehicle.values().iterator();
+		Runnable runnable = iterator.next();
+		iterator.remove();
+		notFull.signal();
+		return runnable;
 	}
 
 	/**
-	 * Calls superclass offer() method but also updates the AVL data per vehicle
-	 * map. Used by ThreadPoolExecutor.
+	 * Coalesces or adds the AvlClient. Used by ThreadPoolExecutor.
 	 */
 	@Override
 	public boolean offer(Runnable runnable) {
-		AvlReport avlReport = ((AvlClient)runnable).getAvlReport();
-		logger.debug("offer() remainingCapacity={} {}", 
-				remainingCapacity(), avlReport);
-
-		boolean successful = super.offer(runnable);
-		if (successful)
-			addToAvlDataPerVehicleMap(runnable);
-		
-		logger.debug("offer() returned {} for {}", 
-				successful, avlReport);
-		return successful;
+		lock.lock();
+		try {
+			boolean successful = insert(runnable);
+			logger.debug("offer() returned {} for {}",
+					successful, getAvlReport(runnable));
+			return successful;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
-	 * Calls superclass offer(timeout, unit) method but also updates the AVL
-	 * data per vehicle map. Doesn't seem to be used by ThreadPoolExecutor but
+	 * Coalesces or adds the AvlClient, waiting up to the timeout for a slot
+	 * to become available. Doesn't seem to be used by ThreadPoolExecutor but
 	 * still included for completeness.
 	 */
 	@Override
 	public boolean offer(Runnable runnable, long timeout, TimeUnit unit)
 			throws InterruptedException {
-		boolean successful = super.offer(runnable, timeout, unit);
-		if (successful)
-			addToAvlDataPerVehicleMap(runnable);
-		
-		return successful; 
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (!insert(runnable)) {
+				if (nanos <= 0)
+					return false;
+				nanos = notFull.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
-	 * Calls superclass poll() method until it gets AVL data that is not
-	 * obsolete. Doesn't seem to be used by ThreadPoolExecutor but still
+	 * Coalesces or adds the AvlClient, waiting for a slot to become
+	 * available. Doesn't seem to be used by ThreadPoolExecutor but still
 	 * included for completeness.
 	 */
 	@Override
+	public void put(Runnable runnable) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (!insert(runnable))
+				notFull.await();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the oldest slot, or null if queue is empty. Doesn't seem to be
+	 * used by ThreadPoolExecutor but still included for completeness.
+	 */
+	@Override
 	public Runnable poll() {
-		Runnable runnable;
-		do {
-			runnable = super.poll();
-		} while (isObsolete(runnable));
-		return runnable;
+		lock.lock();
+		try {
+			return slotsByVehicle.isEmpty() ? null : extract();
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
-	 * Calls superclass poll(timeout, unit) method until it gets AVL data that
-	 * is not obsolete. Used by ThreadPoolExecutor.
+	 * Returns the oldest slot, waiting up to the timeout if queue is empty.
+	 * Used by ThreadPoolExecutor.
 	 */
 	@Override
 	public Runnable poll(long timeout, TimeUnit unit)
 			throws InterruptedException {
 		logger.debug("In poll(t,u) timeout={} units={}", timeout, unit);
 
-		Runnable runnable;
-		do {
-			runnable = super.poll(timeout, unit);
-		} while (runnable != null && isObsolete(runnable));
-
-		if (runnable != null) {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (slotsByVehicle.isEmpty()) {
+				if (nanos <= 0)
+					return null;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			Runnable runnable = extract();
 			logger.debug("poll(t,u) in AvlQueue returned {}",
-					((AvlClient) runnable).getAvlReport());
+					getAvlReport(runnable));
+			return runnable;
+		} finally {
+			lock.unlock();
 		}
-		return runnable;
 	}
 
 	/**
-	 * Calls superclass take() method until it gets AVL data that is not
-	 * obsolete. Doesn't seem to be used by ThreadPoolExecutor but
-	 * still included for completeness.
+	 * Returns the oldest slot, waiting if queue is empty. Used by
+	 * ThreadPoolExecutor.
 	 */
 	@Override
 	public Runnable take() throws InterruptedException {
-		Runnable runnable;
-		do {
-			runnable = super.take();
-		} while (isObsolete(runnable));
-		return runnable;
+		lock.lockInterruptibly();
+		try {
+			while (slotsByVehicle.isEmpty())
+				notEmpty.await();
+			return extract();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable peek() {
+		lock.lock();
+		try {
+			return slotsByVehicle.isEmpty() ?
+					null : slotsByVehicle.values().iterator().next();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the AvlClient from the queue. Used by ThreadPoolExecutor
+	 * when removing a task.
+	 */
+	@Override
+	public boolean remove(Object o) {
+		if (!(o instanceof AvlClient))
+			return false;
+
+		lock.lock();
+		try {
+			String vehicleId = ((AvlClient) o).getAvlReport().getVehicleId();
+			if (slotsByVehicle.get(vehicleId) != o)
+				return false;
+			slotsByVehicle.remove(vehicleId);
+			notFull.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns number of vehicles with an AVL report waiting in the queue.
+	 */
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return slotsByVehicle.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity() {
+		lock.lock();
+		try {
+			return capacity - slotsByVehicle.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns how many AVL reports were coalesced into an already pending
+	 * slot for the vehicle instead of using up space in the queue.
+	 * 
+	 * @return number of coalesced AVL reports
+	 */
+	public long getCoalescedCount() {
+		lock.lock();
+		try {
+			return coalescedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Used by ThreadPoolExecutor when shutting down.
+	 */
+	@Override
+	public int drainTo(Collection<? super Runnable> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super Runnable> c, int maxElements) {
+		if (c == this)
+			throw new IllegalArgumentException();
+
+		lock.lock();
+		try {
+			int count = 0;
+			while (count < maxElements && !slotsByVehicle.isEmpty()) {
+				c.add(extract());
+				++count;
+			}
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns an iterator over a snapshot of the queue. Removing an element
+	 * via the iterator removes it from the queue.
+	 */
+	@Override
+	public Iterator<Runnable> iterator() {
+		final List<Runnable> snapshot;
+		lock.lock();
+		try {
+			snapshot = new ArrayList<Runnable>(slotsByVehicle.values());
+		} finally {
+			lock.unlock();
+		}
+
+		final Iterator<Runnable> snapshotIterator = snapshot.iterator();
+		return new Iterator<Runnable>() {
+			private Runnable last = null;
+
+			@Override
+			public boolean hasNext() {
+				return snapshotIterator.hasNext();
+			}
+
+			@Override
+			public Runnable next() {
+				last = snapshotIterator.next();
+				return last;
+			}
+
+			@Override
+			public void remove() {
+				if (last == null)
+					throw new IllegalStateException();
+				AvlQueue.this.remove(last);
+				last = null;
+			}
+		};
 	}
 }
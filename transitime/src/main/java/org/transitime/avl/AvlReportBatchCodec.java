@@ -0,0 +1,324 @@
+/* 
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.avl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.transitime.db.structs.AvlReport;
+import org.transitime.db.structs.AvlReport.AssignmentType;
+import org.transitime.ipc.jms.BatchingMessageProducer;
+
+/**
+ * Compact binary encoding of a batch of AVL reports so that many reports can
+ * be sent as a single JMS BytesMessage instead of as one Java serialized
+ * ObjectMessage per report. The encoding uses:
+ * <ul>
+ * <li>A string table so that vehicle IDs, sources, assignment IDs etc are
+ * only written once per batch and are then referred to by index</li>
+ * <li>Times and coordinates that are delta encoded against the previous
+ * report in the batch and written as variable length integers. Coordinates
+ * are stored in units of 1e-7 degrees, which is about a centimeter.</li>
+ * <li>A bit set of flags so that optional members that aren't set don't
+ * take any space</li>
+ * </ul>
+ * The time processed is not encoded since it is set when the report is
+ * actually processed.
+ *
+ */
+public class AvlReportBatchCodec 
+	implements BatchingMessageProducer.Encoder<AvlReport> {
+
+	// So that the format can be changed in the future
+	private static final int VERSION = 2;
+	
+	// For converting coordinates to ints
+	private static final double COORDINATE_SCALE = 1e7;
+	
+	// Flags for the optional members of an AvlReport
+	private static final int SPEED = 1;
+	private static final int HEADING = 1 << 1;
+	private static final int ASSIGNMENT = 1 << 2;
+	private static final int LEAD_VEHICLE = 1 << 3;
+	private static final int DRIVER = 1 << 4;
+	private static final int LICENSE_PLATE = 1 << 5;
+	private static final int PASSENGER_COUNT = 1 << 6;
+	private static final int PASSENGER_FULLNESS = 1 << 7;
+	private static final int FIELD1 = 1 << 8;
+	private static final int SOURCE = 1 << 9;
+	
+	/********************** Member Functions **************************/
+
+	/**
+	 * Used while encoding a batch so that each string is only written once
+	 */
+	private static class StringTable {
+		private final Map<String, Integer> indexByString = 
+				new HashMap<String, Integer>();
+		private final List<String> strings = new ArrayList<String>();
+		
+		private int indexOf(String str) {
+			Integer index = indexByString.get(str);
+			if (index == null) {
+				index = strings.size();
+				indexByString.put(str, index);
+				strings.add(str);
+			}
+			return index;
+		}
+	}
+	
+	/**
+	 * Writes an unsigned variable length long. Seven bits are written per
+	 * byte with the high bit indicating that more bytes follow.
+	 * 
+	 * @param out
+	 * @param value
+	 * @throws IOException
+	 */
+	private static void writeVarLong(DataOutputStream out, long value) 
+			throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+	
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed variable length integer");
+	}
+	
+	/**
+	 * Writes a signed variable length long using zig-zag encoding so that
+	 * small negative deltas are also small.
+	 * 
+	 * @param out
+	 * @param value
+	 * @throws IOException
+	 */
+	private static void writeSignedVarLong(DataOutputStream out, long value)
+			throws IOException {
+		writeVarLong(out, (value << 1) ^ (value >> 63));
+	}
+	
+	private static long readSignedVarLong(DataInputStream in) 
+			throws IOException {
+		long value = readVarLong(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	private static long toFixed(double coordinate) {
+		return Math.round(coordinate * COORDINATE_SCALE);
+	}
+	
+	/**
+	 * Encodes the AVL reports into a byte array.
+	 * 
+	 * @param avlReports
+	 * @return the encoded batch
+	 */
+	@Override
+	public byte[] encode(List<AvlReport> avlReports) {
+		try {
+			// Write the reports first so that the string table is known
+			StringTable stringTable = new StringTable();
+			ByteArrayOutputStream reportBytes = 
+					new ByteArrayOutputStream(avlReports.size() * 24);
+			DataOutputStream out = new DataOutputStream(reportBytes);
+			long previousTime = 0;
+			long previousLat = 0;
+			long previousLon = 0;
+			for (AvlReport avlReport : avlReports) {
+				int flags = 0;
+				if (!Float.isNaN(avlReport.getSpeed()))
+					flags |= SPEED;
+				if (!Float.isNaN(avlReport.getHeading()))
+					flags |= HEADING;
+				if (avlReport.getAssignmentId() != null)
+					flags |= ASSIGNMENT;
+				if (avlReport.getLeadVehicleId() != null)
+					flags |= LEAD_VEHICLE;
+				if (avlReport.getDriverId() != null)
+					flags |= DRIVER;
+				if (avlReport.getLicensePlate() != null)
+					flags |= LICENSE_PLATE;
+				if (avlReport.isPassengerCountValid())
+					flags |= PASSENGER_COUNT;
+				if (avlReport.isPassengerFullnessValid())
+					flags |= PASSENGER_FULLNESS;
+				if (avlReport.getField1Name() != null)
+					flags |= FIELD1;
+				if (avlReport.getSource() != null)
+					flags |= SOURCE;
+				writeVarLong(out, flags);
+				
+				writeVarLong(out, 
+						stringTable.indexOf(avlReport.getVehicleId()));
+				writeSignedVarLong(out, avlReport.getTime() - previousTime);
+				previousTime = avlReport.getTime();
+				long lat = toFixed(avlReport.getLat());
+				long lon = toFixed(avlReport.getLon());
+				writeSignedVarLong(out, lat - previousLat);
+				writeSignedVarLong(out, lon - previousLon);
+				previousLat = lat;
+				previousLon = lon;
+				if ((flags & SOURCE) != 0)
+					writeVarLong(out, 
+							stringTable.indexOf(avlReport.getSource()));
+				
+				if ((flags & SPEED) != 0)
+					out.writeFloat(avlReport.getSpeed());
+				if ((flags & HEADING) != 0)
+					out.writeFloat(avlReport.getHeading());
+				if ((flags & ASSIGNMENT) != 0) {
+					writeVarLong(out, 
+							stringTable.indexOf(avlReport.getAssignmentId()));
+					writeVarLong(out, 
+							avlReport.getAssignmentType().ordinal());
+				}
+				if ((flags & LEAD_VEHICLE) != 0)
+					writeVarLong(out, 
+							stringTable.indexOf(avlReport.getLeadVehicleId()));
+				if ((flags & DRIVER) != 0)
+					writeVarLong(out, 
+							stringTable.indexOf(avlReport.getDriverId()));
+				if ((flags & LICENSE_PLATE) != 0)
+					writeVarLong(out, 
+							stringTable.indexOf(avlReport.getLicensePlate()));
+				if ((flags & PASSENGER_COUNT) != 0)
+					writeVarLong(out, avlReport.getPassengerCount());
+				if ((flags & PASSENGER_FULLNESS) != 0)
+					out.writeFloat(avlReport.getPassengerFullness());
+				if ((flags & FIELD1) != 0) {
+					writeVarLong(out, 
+							stringTable.indexOf(avlReport.getField1Name()));
+					writeVarLong(out, stringTable.indexOf(
+							avlReport.getField1Value() != null ? 
+									avlReport.getField1Value() : ""));
+				}
+			}
+			out.flush();
+			
+			// Now write out the header, string table, and then the reports
+			ByteArrayOutputStream batchBytes = 
+					new ByteArrayOutputStream(reportBytes.size() 
+							+ stringTable.strings.size() * 12 + 8);
+			DataOutputStream batchOut = new DataOutputStream(batchBytes);
+			batchOut.writeByte(VERSION);
+			writeVarLong(batchOut, stringTable.strings.size());
+			for (String str : stringTable.strings)
+				batchOut.writeUTF(str);
+			writeVarLong(batchOut, avlReports.size());
+			reportBytes.writeTo(batchOut);
+			batchOut.flush();
+			
+			return batchBytes.toByteArray();
+		} catch (IOException e) {
+			// Can't happen when writing to a ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Decodes a batch of AVL reports that was encoded using encode().
+	 * 
+	 * @param bytes
+	 * @return the AVL reports
+	 * @throws IOException
+	 *             if the data is malformed
+	 */
+	public static List<AvlReport> decode(byte[] bytes) throws IOException {
+		DataInputStream in = 
+				new DataInputStream(new ByteArrayInputStream(bytes));
+		
+		int version = in.readUnsignedByte();
+		if (version != VERSION)
+			throw new IOException("Unsupported AVL batch version " + version);
+		
+		int numStrings = (int) readVarLong(in);
+		String[] strings = new String[numStrings];
+		for (int i = 0; i < numStrings; ++i)
+			strings[i] = in.readUTF();
+		
+		AssignmentType[] assignmentTypes = AssignmentType.values();
+		int numReports = (int) readVarLong(in);
+		List<AvlReport> avlReports = new ArrayList<AvlReport>(numReports);
+		long time = 0;
+		long lat = 0;
+		long lon = 0;
+		for (int i = 0; i < numReports; ++i) {
+			int flags = (int) readVarLong(in);
+			String vehicleId = strings[(int) readVarLong(in)];
+			time += readSignedVarLong(in);
+			lat += readSignedVarLong(in);
+			lon += readSignedVarLong(in);
+			String source = (flags & SOURCE) != 0 ? 
+					strings[(int) readVarLong(in)] : null;
+			
+			float speed = (flags & SPEED) != 0 ? in.readFloat() : Float.NaN;
+			float heading = 
+					(flags & HEADING) != 0 ? in.readFloat() : Float.NaN;
+			String assignmentId = null;
+			AssignmentType assignmentType = null;
+			if ((flags & ASSIGNMENT) != 0) {
+				assignmentId = strings[(int) readVarLong(in)];
+				assignmentType = assignmentTypes[(int) readVarLong(in)];
+			}
+			String leadVehicleId = (flags & LEAD_VEHICLE) != 0 ? 
+					strings[(int) readVarLong(in)] : null;
+			String driverId = (flags & DRIVER) != 0 ? 
+					strings[(int) readVarLong(in)] : null;
+			String licensePlate = (flags & LICENSE_PLATE) != 0 ? 
+					strings[(int) readVarLong(in)] : null;
+			Integer passengerCount = (flags & PASSENGER_COUNT) != 0 ? 
+					(int) readVarLong(in) : null;
+			float passengerFullness = (flags & PASSENGER_FULLNESS) != 0 ? 
+					in.readFloat() : Float.NaN;
+			
+			AvlReport avlReport = new AvlReport(vehicleId, time, 
+					lat / COORDINATE_SCALE, lon / COORDINATE_SCALE, speed, 
+					heading, source, leadVehicleId, driverId, licensePlate, 
+					passengerCount, passengerFullness);
+			if (assignmentId != null)
+				avlReport.setAssignment(assignmentId, assignmentType);
+			if ((flags & FIELD1) != 0) {
+				String field1Name = strings[(int) readVarLong(in)];
+				String field1Value = strings[(int) readVarLong(in)];
+				avlReport.setField1(field1Name, field1Value);
+			}
+			
+			avlReports.add(avlReport);
+		}
+		
+		return avlReports;
+	}
+}
@@ -0,0 +1,199 @@
+/* 
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.avl;
+
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.StatelessSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.configData.DbSetupConfig;
+import org.transitime.db.hibernate.HibernateUtils;
+import org.transitime.db.structs.AvlReport;
+import org.transitime.utils.threading.NamedThreadFactory;
+
+/**
+ * Streams AVL reports from the database in time order using a forward only
+ * cursor. A separate thread reads from the cursor into a bounded queue so
+ * that reading from the database overlaps with processing the reports.
+ * A StatelessSession is used so that the reports read in are not all
+ * cached by the session, which would use up a huge amount of memory when
+ * reading in a whole day of data for all vehicles.
+ *
+ */
+public class AvlReportReadAhead {
+
+	private final Date beginTime;
+	private final Date endTime;
+	private final String vehicleId;
+	private final int fetchSize;
+	
+	private final BlockingQueue<Object> queue;
+	
+	// Put into the queue to indicate that all reports have been read
+	private static final Object END_OF_DATA = new Object();
+	
+	// Set if reading from the db failed so that next() can report the
+	// problem instead of making it look like all the data was read
+	private volatile Exception readException = null;
+	
+	// For determining how long reading from the database took
+	private volatile long readNanos = 0;
+	private volatile long readCount = 0;
+	
+	private static final Logger logger = 
+			LoggerFactory.getLogger(AvlReportReadAhead.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates the read ahead and starts the thread that reads from the db.
+	 * 
+	 * @param beginTime
+	 * @param endTime
+	 * @param vehicleId
+	 *            If null then reports for all vehicles are read
+	 * @param fetchSize
+	 *            How many rows the JDBC driver should fetch at once
+	 * @param readAheadSize
+	 *            How many reports can be read ahead of being processed
+	 */
+	public AvlReportReadAhead(Date beginTime, Date endTime, String vehicleId,
+			int fetchSize, int readAheadSize) {
+		this.beginTime = beginTime;
+		this.endTime = endTime;
+		this.vehicleId = vehicleId;
+		this.fetchSize = fetchSize;
+		this.queue = new ArrayBlockingQueue<Object>(readAheadSize);
+		
+		new NamedThreadFactory("avlReadAhead").newThread(new Runnable() {
+			@Override
+			public void run() {
+				readFromDb();
+			}
+		}).start();
+	}
+	
+	/**
+	 * Reads all of the AVL reports from the db and puts them into the queue.
+	 * Always puts END_OF_DATA into the queue when done, even if there is
+	 * an exception. If there is an exception it is first stored in
+	 * readException so that next() can rethrow it.
+	 */
+	private void readFromDb() {
+		StatelessSession session = null;
+		ScrollableResults results = null;
+		try {
+			session = HibernateUtils.getSessionFactory(
+					DbSetupConfig.getDbName()).openStatelessSession();
+			
+			// Create the query. Table name is case sensitive!
+			String hql = "FROM AvlReport " +
+					"    WHERE time >= :beginDate " +
+					"      AND time < :endDate"; 
+			if (vehicleId != null)
+				hql += " AND vehicleId=:vehicleId";
+			hql += " ORDER BY time";
+			Query query = session.createQuery(hql);
+			if (vehicleId != null)
+				query.setString("vehicleId", vehicleId);
+			query.setTimestamp("beginDate", beginTime);
+			query.setTimestamp("endDate", endTime);
+			query.setFetchSize(fetchSize);
+			query.setReadOnly(true);
+			
+			results = query.scroll(ScrollMode.FORWARD_ONLY);
+			long start = System.nanoTime();
+			while (results.next()) {
+				AvlReport avlReport = (AvlReport) results.get(0);
+				readNanos += System.nanoTime() - start;
+				++readCount;
+				
+				queue.put(avlReport);
+				start = System.nanoTime();
+			}
+			readNanos += System.nanoTime() - start;
+		} catch (InterruptedException e) {
+			logger.error("Interrupted when reading AVL reports from db", e);
+			readException = e;
+		} catch (Exception e) {
+			logger.error("Exception when reading AVL reports from db", e);
+			readException = e;
+		} finally {
+			if (results != null)
+				results.close();
+			if (session != null)
+				session.close();
+			
+			// Let the reader know there is no more data
+			try {
+				queue.put(END_OF_DATA);
+			} catch (InterruptedException e) {
+				logger.error("Interrupted when ending read ahead", e);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the next AVL report, blocking until it has been read from the
+	 * database.
+	 * 
+	 * @return the next AVL report or null if there are no more
+	 * @throws InterruptedException
+	 * @throws HibernateException
+	 *             if reading from the database failed before all of the
+	 *             reports were read
+	 */
+	public AvlReport next() throws InterruptedException {
+		Object next = queue.take();
+		if (next == END_OF_DATA) {
+			// So that subsequent calls also return null or throw
+			queue.put(END_OF_DATA);
+			if (readException != null)
+				throw new HibernateException("Reading AVL reports from db "
+						+ "failed after " + readCount + " reports", 
+						readException);
+			return null;
+		}
+		
+		return (AvlReport) next;
+	}
+	
+	/**
+	 * Returns how many reports have been read from the database so far
+	 * 
+	 * @return number of reports read
+	 */
+	public long getReadCount() {
+		return readCount;
+	}
+	
+	/**
+	 * Returns the total time spent reading from the database cursor so far
+	 * 
+	 * @return total read time in nanoseconds
+	 */
+	public long getReadNanos() {
+		return readNanos;
+	}
+}
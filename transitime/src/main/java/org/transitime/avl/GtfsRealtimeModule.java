@@ -18,7 +18,10 @@ package org.transitime.avl;
 
 import java.io.InputStream;
 import java.util.Collection;
+
+import org.transitime.config.BooleanConfigValue;
 import org.transitime.db.structs.AvlReport;
+import org.transitime.feed.gtfsRt.DifferentialGtfsRtVehiclePositionsReader;
 import org.transitime.feed.gtfsRt.GtfsRtVehiclePositionsReader;
 import org.transitime.modules.Module;
 
@@ -31,6 +34,19 @@ import org.transitime.modules.Module;
  */
 public class GtfsRealtimeModule extends PollUrlAvlModule {
 
+	// For only processing the vehicles that changed since the previous poll
+	private final DifferentialGtfsRtVehiclePositionsReader differentialReader =
+			new DifferentialGtfsRtVehiclePositionsReader();
+	
+	private static BooleanConfigValue onlyChangedVehicles =
+			new BooleanConfigValue("transitime.avl.gtfsRtOnlyChangedVehicles",
+					false,
+					"If true then only the vehicles whose GPS time or "
+					+ "position changed since the previous poll of the "
+					+ "GTFS-realtime feed are processed. Reduces CPU usage "
+					+ "when the feed is polled more frequently than the "
+					+ "vehicles report. Also honors DIFFERENTIAL feeds.");
+	
 	/********************** Member Functions **************************/
 
 	/**
@@ -50,6 +66,9 @@ public class GtfsRealtimeModule extends PollUrlAvlModule {
 	@Override
 	protected Collection<AvlReport> processData(InputStream inputStream)
 			throws Exception {
+		if (onlyChangedVehicles.getValue())
+			return differentialReader.process(inputStream);
+		
 		Collection<AvlReport> avlReports =
 				GtfsRtVehiclePositionsReader.process(inputStream);
 
@@ -236,10 +236,15 @@ public class NmeaGpsLocation {
 		long timeOfDayMsec = ((hours * 60 + minutes) * 60 + seconds) * 1000 + msec; 
 		
 		// Determine epoch time for beginning of date from the date component
-		// of the NMEA string
+		// of the NMEA string. Since DateFormat is not thread safe need to
+		// synchronize on it, since NMEA strings can be parsed by multiple
+		// threads, such as by the event loops of the AVL socket gateway.
 		String dateStr = nmeaComponents[DATE];
-		dateFormatter.setTimeZone(gmtTimeZone);
-		Date date = dateFormatter.parse(dateStr);
+		Date date;
+		synchronized (dateFormatter) {
+			dateFormatter.setTimeZone(gmtTimeZone);
+			date = dateFormatter.parse(dateStr);
+		}
 		
 		return date.getTime() + timeOfDayMsec;
 	}
@@ -17,15 +17,18 @@
 package org.transitime.avl;
 
 import java.util.Date;
-import java.util.List;
 
+import org.hibernate.HibernateException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.applications.Core;
+import org.transitime.config.DoubleConfigValue;
+import org.transitime.config.IntegerConfigValue;
 import org.transitime.config.StringConfigValue;
 import org.transitime.core.AvlProcessor;
 import org.transitime.db.structs.AvlReport;
 import org.transitime.modules.Module;
+import org.transitime.utils.StringUtils;
 import org.transitime.utils.Time;
 
 /**
@@ -33,17 +36,27 @@ import org.transitime.utils.Time;
  * database instead of from a realtime AVL feed. Useful for debugging the system
  * software because can easily debug what is happening for a particular vehicle
  * at a particular time.
+ * <p>
+ * If a vehicle ID is not specified then the AVL data for all vehicles is
+ * played back, in time order. This way whole service days can be replayed
+ * to regression test changes and to measure capacity. The AVL reports are
+ * streamed from the database using a read ahead cursor so that the data
+ * doesn't need to all be in memory and so that reading from the db overlaps
+ * with processing.
+ * <p>
+ * The Core system time is driven by a virtual clock. By default the data is
+ * played back as fast as possible. If transitime.avl.playbackSpeed is set
+ * then the virtual clock runs at that multiple of real time. When done the
+ * throughput and the latency of each stage of the playback is logged.
  * 
  * @author SkiBu Smith
  *
  */
 public class PlaybackModule extends Module {
 
-	// Get 5 minutes worth of AVL data at a time
-	private final static long DB_POLLING_TIME_MSEC = 5 * Time.MS_PER_MIN;
-	
-	// For keeping track of beginning of timespan for doing query
-	private long dbReadBeginTime;
+	// For keeping track of beginning and end of timespan for doing query
+	private final long dbReadBeginTime;
+	private final long dbReadEndTime;
 		
 	/*********** Configurable Parameters for this module ***********/
 	private static String getPlaybackVehicleId() {
@@ -52,7 +65,8 @@ public class PlaybackModule extends Module {
 	private static StringConfigValue playbackVehicleId =
 			new StringConfigValue("transitime.avl.playbackVehicleId", 
 					"",
-					"ID of vehicle to playback.");
+					"ID of vehicle to playback. If not set then all "
+					+ "vehicles are played back.");
 
 	private static String getPlaybackStartTimeStr() {
 		return playbackStartTimeStr.getValue();
@@ -62,12 +76,101 @@ public class PlaybackModule extends Module {
 					"",
 					"Date and time of when to start the playback.");
 
+	private static StringConfigValue playbackEndTimeStr =
+			new StringConfigValue("transitime.avl.playbackEndTime", 
+					"",
+					"Date and time of when to end the playback. If not set "
+					+ "then plays back all the way to the current time.");
+
+	private static DoubleConfigValue playbackSpeed =
+			new DoubleConfigValue("transitime.avl.playbackSpeed", 
+					0.0,
+					"How many times faster than real time the virtual clock "
+					+ "should run for playback. A value of 0.0 means play "
+					+ "back the data as fast as possible.");
+
+	private static IntegerConfigValue playbackReadAheadSize =
+			new IntegerConfigValue("transitime.avl.playbackReadAheadSize", 
+					10000,
+					"How many AVL reports can be read from the database "
+					+ "ahead of being processed during playback.");
+
+	private static IntegerConfigValue playbackFetchSize =
+			new IntegerConfigValue("transitime.avl.playbackFetchSize", 
+					1000,
+					"How many AVL report rows the JDBC driver should fetch "
+					+ "at a time during playback.");
+
+	// How often to log progress
+	private static final int PROGRESS_LOGGING_INTERVAL = 10000;
 	
 	/********************* Logging **************************/
 	private static final Logger logger = 
 			LoggerFactory.getLogger(PlaybackModule.class);
 
-
+	/**
+	 * For keeping track of the latency of a stage of the playback. Keeps a
+	 * histogram with buckets that are powers of two of microseconds so that
+	 * percentiles can be determined without storing every value.
+	 */
+	private static class LatencyStats {
+		private final String name;
+		private final long[] buckets = new long[40];
+		private long count = 0;
+		private long totalNanos = 0;
+		private long maxNanos = 0;
+		
+		private LatencyStats(String name) {
+			this.name = name;
+		}
+		
+		private void add(long nanos) {
+			++count;
+			totalNanos += nanos;
+			if (nanos > maxNanos)
+				maxNanos = nanos;
+			long micros = nanos / 1000;
+			int bucket = 64 - Long.numberOfLeadingZeros(micros);
+			++buckets[Math.min(bucket, buckets.length - 1)];
+		}
+		
+		/**
+		 * Returns upper bound of the bucket containing the percentile, in
+		 * msec.
+		 */
+		private double percentileMsec(double percentile) {
+			long threshold = (long) Math.ceil(count * percentile);
+			long sum = 0;
+			for (int i = 0; i < buckets.length; ++i) {
+				sum += buckets[i];
+				if (sum >= threshold)
+					return (1L << i) / 1000.0;
+			}
+			return maxNanos / 1000000.0;
+		}
+		
+		@Override
+		public String toString() {
+			if (count == 0)
+				return name + ": no data";
+			
+			return name + ": count=" + count 
+					+ " totalMsec=" + totalNanos / Time.NSEC_PER_MSEC
+					+ " avgMsec=" 
+					+ StringUtils.threeDigitFormat(
+							(double) totalNanos / count / Time.NSEC_PER_MSEC)
+					+ " p50Msec<=" 
+					+ StringUtils.threeDigitFormat(percentileMsec(0.50))
+					+ " p95Msec<=" 
+					+ StringUtils.threeDigitFormat(percentileMsec(0.95))
+					+ " p99Msec<=" 
+					+ StringUtils.threeDigitFormat(percentileMsec(0.99))
+					+ " maxMsec=" 
+					+ StringUtils.threeDigitFormat(
+							(double) maxNanos / Time.NSEC_PER_MSEC);
+		}
+	}
+	
 	/********************** Member Functions **************************/
 
 	/**
@@ -77,16 +180,15 @@ public class PlaybackModule extends Module {
 		super(agencyId);
 		
 		// Make sure params are set
-		if (getPlaybackVehicleId() == null 
-				|| getPlaybackVehicleId().isEmpty()
-				|| getPlaybackStartTimeStr() == null
+		if (getPlaybackStartTimeStr() == null
 				|| getPlaybackStartTimeStr().isEmpty()) {
 			System.err.println("Parameters not set. See log file for details. Exiting.");
 			System.exit(-1);
 		}
 		
-		// Initialize the dbReadBeingTime member
+		// Initialize the dbReadBeingTime and dbReadEndTime members
 		this.dbReadBeginTime = parsePlaybackStartTime(getPlaybackStartTimeStr());
+		this.dbReadEndTime = parsePlaybackEndTime(playbackEndTimeStr.getValue());
 	}
 	
 	private static long parsePlaybackStartTime(String playbackStartTimeStr) {
@@ -116,36 +218,24 @@ public class PlaybackModule extends Module {
 		}
 	}
 	
-	/**
-	 * Gets a batch of AVl data from the database
-	 * @return
-	 */
-	private List<AvlReport> getBatchOfAvlReportsFromDb() {
-		// The times that should be reading data for
-		long start = dbReadBeginTime;
-		long end = dbReadBeginTime + DB_POLLING_TIME_MSEC;
-				
-		logger.info("PlaybackModule getting batch of AVLReports for " +
-				"between beginTime={} and endTime={} " +
-				"and vehicleId={}", 
-				Time.dateTimeStr(start),
-				Time.dateTimeStr(end),
-				playbackVehicleId);
-		
-		List<AvlReport> avlReports = 
-				AvlReport.getAvlReportsFromDb(
-						new Date(start), 
-						new Date(end), 
-						getPlaybackVehicleId(),
-						"ORDER BY time");
-		
-		logger.info("PlaybackModule read {} AVLReports.", avlReports.size());
-
-		// For next time this method is called
-		dbReadBeginTime = end;
+	private static long parsePlaybackEndTime(String playbackEndTimeStr) {
+		// If end time not set then play back up to the current time
+		if (playbackEndTimeStr == null || playbackEndTimeStr.isEmpty())
+			return System.currentTimeMillis();
 		
-		// Return results
-		return avlReports;
+		try {
+			return Time.parse(playbackEndTimeStr).getTime();
+		} catch (java.text.ParseException e) {
+			logger.error("Playback end time \"{}\" specified by " +
+					"transitime.avl.playbackEndTime parameter could not " +
+					"be parsed. Format must be \"MM-dd-yyyy HH:mm:ss\"",
+					playbackEndTimeStr);
+			System.exit(-1);
+			
+			// Will never be reached because the above state exits program but
+			// needed so compiler doesn't complain.
+			return -1;
+		}
 	}
 	
 	/* Reads AVL data from db and processes it
@@ -154,26 +244,110 @@ public class PlaybackModule extends Module {
 	 */
 	@Override
 	public void run() {
-		// Keep running as long as not trying to access in the future.
-		while (dbReadBeginTime < System.currentTimeMillis()) {
-			List<AvlReport> avlReports = getBatchOfAvlReportsFromDb();
-			
-			// Process the AVL Reports read in.
-			for (AvlReport avlReport : avlReports) {
-				logger.info("Processing avlReport={}", avlReport);
+		String vehicleId = getPlaybackVehicleId();
+		if (vehicleId != null && vehicleId.isEmpty())
+			vehicleId = null;
+		double speed = playbackSpeed.getValue();
+		
+		logger.info("PlaybackModule playing back AVL reports between "
+				+ "beginTime={} and endTime={} for vehicleId={} at speed={}",
+				Time.dateTimeStr(dbReadBeginTime),
+				Time.dateTimeStr(dbReadEndTime), 
+				vehicleId != null ? vehicleId : "all vehicles",
+				speed > 0.0 ? speed + "x" : "as fast as possible");
+		
+		AvlReportReadAhead readAhead = new AvlReportReadAhead(
+				new Date(dbReadBeginTime), new Date(dbReadEndTime), vehicleId,
+				playbackFetchSize.getValue(), 
+				playbackReadAheadSize.getValue());
+		
+		LatencyStats waitForDbStats = new LatencyStats("waitForDb");
+		LatencyStats virtualClockStats = new LatencyStats("virtualClock");
+		LatencyStats processStats = new LatencyStats("process");
+		
+		long wallStartNanos = System.nanoTime();
+		long clockStartNanos = 0;
+		long firstAvlTime = 0;
+		long lastAvlTime = 0;
+		long count = 0;
+		boolean failed = false;
+		try {
+			while (true) {
+				// Get the next AVL report from the read ahead
+				long start = System.nanoTime();
+				AvlReport avlReport = readAhead.next();
+				if (avlReport == null)
+					break;
+				waitForDbStats.add(System.nanoTime() - start);
+				
+				// Virtual clock starts at time of first AVL report
+				if (count == 0) {
+					firstAvlTime = avlReport.getTime();
+					clockStartNanos = System.nanoTime();
+				}
+				lastAvlTime = avlReport.getTime();
+				++count;
+				
+				// If running at a specified speed then wait until the 
+				// virtual clock reaches the time of the AVL report
+				start = System.nanoTime();
+				if (speed > 0.0) {
+					long virtualElapsedMsec = 
+							(long) ((System.nanoTime() - clockStartNanos) 
+									/ Time.NSEC_PER_MSEC * speed);
+					long waitMsec = (long) ((avlReport.getTime() 
+							- firstAvlTime - virtualElapsedMsec) / speed);
+					if (waitMsec > 0)
+						Time.sleep(waitMsec);
+				}
+				virtualClockStats.add(System.nanoTime() - start);
+				
+				logger.debug("Processing avlReport={}", avlReport);
 				
 				// Update the Core SystemTime to use this AVL time
 				Core.getInstance().setSystemTime(avlReport.getTime());
 				
 				// Do the actual processing of the AVL data
+				start = System.nanoTime();
 				AvlProcessor.getInstance().processAvlReport(avlReport);
+				processStats.add(System.nanoTime() - start);
+				
+				if (count % PROGRESS_LOGGING_INTERVAL == 0) {
+					logger.info("PlaybackModule processed {} AVL reports. "
+							+ "Virtual time is {}", 
+							count, Time.dateTimeStr(lastAvlTime));
+				}
 			}
+		} catch (InterruptedException e) {
+			logger.error("PlaybackModule interrupted", e);
+			failed = true;
+		} catch (HibernateException e) {
+			logger.error("PlaybackModule could not read all of the AVL "
+					+ "reports from the db", e);
+			failed = true;
 		}
 		
-		logger.info("Read in AVL in playback mode all the way up to current " +
-				"time so done. Exiting.");
-		System.exit(0);
+		// Log the throughput and the latency of each stage
+		double wallSecs = 
+				(System.nanoTime() - wallStartNanos) / 1000000000.0;
+		double avlSecs = (lastAvlTime - firstAvlTime) / (double) Time.MS_PER_SEC;
+		logger.info("Read in AVL in playback mode all the way up to end " +
+				"time so done. Processed {} AVL reports in {} secs. " + 
+				"Throughput={} reports/sec. Played back {} secs of AVL data " +
+				"which is {} times real time.",
+				count, StringUtils.twoDigitFormat(wallSecs),
+				StringUtils.twoDigitFormat(count / wallSecs),
+				StringUtils.twoDigitFormat(avlSecs),
+				StringUtils.twoDigitFormat(avlSecs / wallSecs));
+		logger.info("dbRead: count={} totalMsec={}", readAhead.getReadCount(),
+				readAhead.getReadNanos() / Time.NSEC_PER_MSEC);
+		logger.info("{}", waitForDbStats);
+		logger.info("{}", virtualClockStats);
+		logger.info("{}", processStats);
 		
+		// Exit with an error code if the playback did not make it through
+		// all of the data so that scripts running it can tell
+		System.exit(failed ? -1 : 0);
 	}
 	
 }
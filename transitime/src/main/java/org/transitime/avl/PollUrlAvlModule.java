@@ -18,14 +18,20 @@
 package org.transitime.avl;
 
 import java.io.BufferedReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.apache.commons.codec.binary.Base64;
 import org.json.JSONException;
@@ -75,11 +81,40 @@ public abstract class PollUrlAvlModule extends AvlModule {
 					+ "so that predictions and such are generated. But if "
 					+ "debugging then can set this param to false.");
 	
+	private static BooleanConfigValue useConditionalGet = 
+			new BooleanConfigValue("transitime.avl.useConditionalGet", 
+					true,
+					"If true then the ETag and Last-Modified headers returned "
+					+ "by the feed are sent back as If-None-Match and "
+					+ "If-Modified-Since when polling the same URL again. If "
+					+ "the feed hasn't changed the server can then respond "
+					+ "with a 304 Not Modified and the feed doesn't need to "
+					+ "be read or parsed.");
+	
 	// Usually want to use compression when reading data but for some AVL
 	// feeds might be binary where don't want additional compression. A
 	// superclass can override this value.
 	protected boolean useCompression = true;
 	
+	// For conditional GET. The validators returned for the last URL polled. 
+	// Only used if the same URL is polled again since some feeds encode a 
+	// time in the URL.
+	private String lastUrl = null;
+	private String lastETag = null;
+	private String lastModified = null;
+	
+	// GPS time of the last report accepted for each vehicle. So that 
+	// reports that were already processed are not processed again.
+	private final Map<String, Long> lastTimeByVehicle = 
+			new HashMap<String, Long>();
+
+	// Metrics for the feed
+	private long pollCount = 0;
+	private long notModifiedCount = 0;
+	private long bytesFetched = 0;
+	private long reportsReadIn = 0;
+	private long reportsAccepted = 0;
+	
 	private static final Logger logger = LoggerFactory
 			.getLogger(PollUrlAvlModule.class);
 
@@ -128,6 +163,129 @@ public abstract class PollUrlAvlModule extends AvlModule {
 	protected abstract Collection<AvlReport> processData(InputStream in)
 			throws Exception;
 	
+	/**
+	 * For counting how many bytes were actually read from the network, 
+	 * before any decompression.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		private long count = 0;
+		
+		private CountingInputStream(InputStream in) {
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0)
+				++count;
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int bytesRead = super.read(b, off, len);
+			if (bytesRead > 0)
+				count += bytesRead;
+			return bytesRead;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+		
+		/**
+		 * Reads and discards whatever was not yet read and closes the 
+		 * stream. Reading the rest of the stream allows the underlying
+		 * HTTP keep-alive connection to be reused for the next poll.
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				byte[] discard = new byte[4096];
+				while (read(discard, 0, discard.length) >= 0);
+			} finally {
+				super.close();
+			}
+		}
+	}
+	
+	/**
+	 * Removes AVL reports that are not newer than the last report accepted
+	 * for the vehicle. When a feed is polled more frequently than the 
+	 * vehicles report most of the reports are duplicates and there is no 
+	 * need to send them on to be processed.
+	 * 
+	 * @param avlReports
+	 *            The AVL reports read from the feed
+	 * @return The new AVL reports
+	 */
+	private Collection<AvlReport> filterAccepted(
+			Collection<AvlReport> avlReports) {
+		Collection<AvlReport> accepted = 
+				new ArrayList<AvlReport>(avlReports.size());
+		for (AvlReport avlReport : avlReports) {
+			Long lastTime = lastTimeByVehicle.get(avlReport.getVehicleId());
+			if (lastTime != null && avlReport.getTime() <= lastTime)
+				continue;
+			
+			lastTimeByVehicle.put(avlReport.getVehicleId(), 
+					avlReport.getTime());
+			accepted.add(avlReport);
+		}
+		return accepted;
+	}
+	
+	/**
+	 * Returns number of times the feed has been polled.
+	 * 
+	 * @return number of polls
+	 */
+	public long getPollCount() {
+		return pollCount;
+	}
+	
+	/**
+	 * Returns number of polls where the server indicated via a 304 that the
+	 * feed was not modified.
+	 * 
+	 * @return number of not modified polls
+	 */
+	public long getNotModifiedCount() {
+		return notModifiedCount;
+	}
+	
+	/**
+	 * Returns number of bytes fetched from the feed, before decompression.
+	 * 
+	 * @return number of bytes fetched
+	 */
+	public long getBytesFetched() {
+		return bytesFetched;
+	}
+	
+	/**
+	 * Returns number of AVL reports read in from the feed.
+	 * 
+	 * @return number of AVL reports read in
+	 */
+	public long getReportsReadIn() {
+		return reportsReadIn;
+	}
+	
+	/**
+	 * Returns number of AVL reports read in that were new and therefore
+	 * processed.
+	 * 
+	 * @return number of AVL reports accepted
+	 */
+	public long getReportsAccepted() {
+		return reportsAccepted;
+	}
+	
 	/**
 	 * Converts the input stream into a JSON string. Useful for when processing
 	 * a JSON feed.
@@ -157,6 +315,11 @@ public abstract class PollUrlAvlModule extends AvlModule {
 	 * specified by getUrl() and then reading the contents. Calls the abstract
 	 * method processData() to actually process the input stream.
 	 * <p>
+	 * If the same URL was polled before then a conditional GET is done so
+	 * that if the feed hasn't changed the server can simply return a 304 Not
+	 * Modified. Only the AVL reports that are newer than the previously
+	 * accepted report for the vehicle are then processed.
+	 * <p>
 	 * This method needs to be overwritten if not real data from a URL
 	 * 
 	 * @throws Exception
@@ -204,29 +367,95 @@ public abstract class PollUrlAvlModule extends AvlModule {
 		// Set any additional AVL feed specific request headers
 		setRequestHeaders(con);
 		
+		// If polling same URL as before then only want the data if it has
+		// changed
+		boolean sameUrl = fullUrl.equals(lastUrl);
+		if (useConditionalGet.getValue() && sameUrl) {
+			if (lastETag != null)
+				con.setRequestProperty("If-None-Match", lastETag);
+			if (lastModified != null)
+				con.setRequestProperty("If-Modified-Since", lastModified);
+		}
+		
+		++pollCount;
+		
+		// If the feed hasn't changed then done. The stream is closed so
+		// that the keep-alive connection can be reused.
+		if (con instanceof HttpURLConnection 
+				&& ((HttpURLConnection) con).getResponseCode() 
+					== HttpURLConnection.HTTP_NOT_MODIFIED) {
+			++notModifiedCount;
+			InputStream errorStream = ((HttpURLConnection) con).getErrorStream();
+			if (errorStream != null)
+				new CountingInputStream(errorStream).close();
+			logger.info("Feed not modified since last poll so not processing "
+					+ "it. {} of {} polls were not modified.", 
+					notModifiedCount, pollCount);
+			return;
+		}
+		
 		// Create appropriate input stream depending on whether content is 
-		// compressed or not
-		InputStream in = con.getInputStream();
-		if ("gzip".equals(con.getContentEncoding())) {
-		    in = new GZIPInputStream(in);
-		    logger.debug("Returned data is compressed");
-		} else {
-		    logger.debug("Returned data is NOT compressed");			
+		// compressed or not. The raw stream is wrapped so that can count
+		// the number of bytes actually fetched.
+		CountingInputStream countingIn = 
+				new CountingInputStream(con.getInputStream());
+		InputStream in = countingIn;
+		Collection<AvlReport> avlReportsReadIn;
+		try {
+			String contentEncoding = con.getContentEncoding();
+			if ("gzip".equals(contentEncoding) 
+					|| "x-gzip".equals(contentEncoding)) {
+			    in = new GZIPInputStream(in);
+			    logger.debug("Returned data is compressed");
+			} else if ("deflate".equals(contentEncoding)) {
+			    in = new InflaterInputStream(in);
+			    logger.debug("Returned data is compressed using deflate");
+			} else {
+			    logger.debug("Returned data is NOT compressed");			
+			}
+	
+			// For debugging
+			logger.debug("Time to access inputstream {} msec", 
+					timer.elapsedMsec());
+					
+			// Call the abstract method to actually process the data
+			timer.resetTimer();
+			avlReportsReadIn = processData(in);
+		} finally {
+			// Closing the outermost stream releases the native Inflater of 
+			// a decompressing stream. It also closes the counting stream, 
+			// which reads whatever the parser didn't so that the connection
+			// can be reused.
+			in.close();
 		}
-
-		// For debugging
-		logger.debug("Time to access inputstream {} msec", 
-				timer.elapsedMsec());
-				
-		// Call the abstract method to actually process the data
-		timer.resetTimer();
-		Collection<AvlReport> avlReportsReadIn = processData(in);		
-		in.close();
 		logger.debug("Time to parse document {} msec", timer.elapsedMsec());
 		
-		// Process all the reports read in
+		// Remember the validators so can do a conditional GET next time.
+		// Only done once the data has been successfully processed since
+		// otherwise the next poll would get a 304 and the data would never
+		// be processed.
+		lastUrl = fullUrl;
+		lastETag = con.getHeaderField("ETag");
+		lastModified = con.getHeaderField("Last-Modified");
+		
+		// Only need to process the reports that are new
+		Collection<AvlReport> avlReportsAccepted = 
+				filterAccepted(avlReportsReadIn);
+		
+		// Update and log metrics for the feed
+		bytesFetched += countingIn.count;
+		reportsReadIn += avlReportsReadIn.size();
+		reportsAccepted += avlReportsAccepted.size();
+		logger.info("Fetched {} bytes containing {} AVL reports of which {} "
+				+ "were new. Totals for feed: polls={} notModified={} "
+				+ "bytesFetched={} reportsReadIn={} reportsAccepted={}",
+				countingIn.count, avlReportsReadIn.size(), 
+				avlReportsAccepted.size(), pollCount, notModifiedCount, 
+				bytesFetched, reportsReadIn, reportsAccepted);
+		
+		// Process all the new reports read in
 		if (shouldProcessAvl.getValue())
-			processAvlReports(avlReportsReadIn);
+			processAvlReports(avlReportsAccepted);
 	}
 	
 	/** 
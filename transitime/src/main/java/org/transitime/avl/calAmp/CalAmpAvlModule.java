@@ -1,8 +1,9 @@
 package org.transitime.avl.calAmp;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,6 +17,26 @@ public class CalAmpAvlModule extends AvlModule {
 			"The port number for the UDP socket connection for the "
 					+ "CalAmp GPS tracker feed.");
 
+	private static IntegerConfigValue calAmpNumThreads = 
+			new IntegerConfigValue("transitime.avl.calAmpNumThreads", 2,
+					"Number of threads used for decoding and processing "
+					+ "the CalAmp UDP packets. The packets are received on "
+					+ "a separate thread so that slow processing doesn't "
+					+ "cause the socket buffer to overflow.");
+
+	private static IntegerConfigValue calAmpQueueSize = 
+			new IntegerConfigValue("transitime.avl.calAmpQueueSize", 10000,
+					"How many received CalAmp packets can wait to be decoded "
+					+ "before additional packets are dropped.");
+
+	private static IntegerConfigValue calAmpReceiveBufferSize = 
+			new IntegerConfigValue("transitime.avl.calAmpReceiveBufferSize", 
+					4 * 1024 * 1024,
+					"Size in bytes of the socket receive buffer for the "
+					+ "CalAmp UDP feed. A large buffer allows bursts of "
+					+ "packets to be handled without the operating system "
+					+ "dropping them.");
+
 	private static final Logger logger = 
 			LoggerFactory.getLogger(CalAmpAvlModule.class);
 
@@ -30,28 +51,15 @@ public class CalAmpAvlModule extends AvlModule {
 		super(agencyId);
 	}
 
-	private void processPackets(DatagramSocket socket) {
-		// Read from the socket
+	private void processPackets(DatagramChannel channel,
+			CalAmpPacketReceiver receiver) {
+		// Read from the channel. The receiver hands the packets to worker
+		// threads for decoding and processing.
 		try {
-			// Create the DatagramPacket that data is read into
-			byte[] buf = new byte[256];
-			DatagramPacket packet = new DatagramPacket(buf, buf.length);
-
-			while (true) {
-				// Get the bytes containing the report via UDP
-				socket.receive(packet);
-				
-				// Convert the bytes into a report
-				Report report = Report.parseReport(packet);
-				
-				// Actually process the report. Creates an AvlReport and 
-				// processes it
-				if (report != null)
-					report.process();
-			}
+			receiver.receive(channel);
 		} catch (Exception e) {
-			logger.error("Exception while parsing CalAmp message. {}", 
-					e.getMessage(), e);
+			logger.error("Exception while receiving CalAmp message. {}. {}", 
+					e.getMessage(), receiver, e);
 		}		
 	}
 	
@@ -64,28 +72,37 @@ public class CalAmpAvlModule extends AvlModule {
 		logger.info("Started module {} for agencyId={}", getClass().getName(),
 				getAgencyId());
 
+		// The receiver, with its worker threads and buffers, is reused if
+		// the channel needs to be reopened
+		CalAmpPacketReceiver receiver = new CalAmpPacketReceiver(
+				calAmpNumThreads.getValue(), calAmpQueueSize.getValue());
+		
 		while (true) {
-			logger.info("Starting DatagramSocket on port {}",
+			logger.info("Starting DatagramChannel on port {}",
 					calAmpFeedPort.getValue());
 
 			try {
-				// Open up the DatagramSocket
-				DatagramSocket socket = null;
+				// Open up the DatagramChannel
+				DatagramChannel channel = null;
 				try {
-					socket = new DatagramSocket(calAmpFeedPort.getValue());
-				} catch (SocketException e1) {
-					logger.error("Exception occurred opening DatagramSocket "
+					channel = DatagramChannel.open();
+					channel.setOption(StandardSocketOptions.SO_RCVBUF,
+							calAmpReceiveBufferSize.getValue());
+					channel.bind(
+							new InetSocketAddress(calAmpFeedPort.getValue()));
+				} catch (IOException e1) {
+					logger.error("Exception occurred opening DatagramChannel "
 							+ "on port {}. {}", calAmpFeedPort.getValue(),
 							e1.getMessage(), e1);
 					System.exit(-1);
 				}
 
-				// Process the data from the socket
-				processPackets(socket);
+				// Process the data from the channel
+				processPackets(channel, receiver);
 
 				// If made it here something went wrong so close up
-				// DatagramSocket and try again.
-				socket.close();
+				// DatagramChannel and try again.
+				channel.close();
 			} catch (Exception e) {
 				logger.error("Unexpected exception {}", e.getMessage(), e);
 			}
@@ -0,0 +1,242 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.avl.calAmp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.utils.Time;
+import org.transitime.utils.threading.NamedThreadFactory;
+
+/**
+ * Receives CalAmp UDP packets from a DatagramChannel and hands them to a pool
+ * of worker threads that decode and process them. The receiving thread only
+ * reads packets into preallocated direct ByteBuffers and queues them, so it
+ * can keep draining the socket even if processing is slow. The workers decode
+ * the reports straight from the direct ByteBuffers without copying the data.
+ * <p>
+ * If all the buffers are in use, meaning that the queue of packets for the
+ * workers is full, then the packet is still read from the socket but is
+ * dropped. Counters are kept for the number of packets received, queued,
+ * decoded and dropped so that can tell if the workers are keeping up.
+ *
+ */
+public class CalAmpPacketReceiver {
+
+	// Executor for decoding and processing the packets
+	private final ThreadPoolExecutor decodeExecutor;
+	
+	// Direct buffers that are available for receiving packets into. There
+	// is one buffer for each queue slot and one for each worker so that a
+	// buffer is available as long as the queue is not full.
+	private final BlockingQueue<ByteBuffer> freeBuffers;
+	
+	// For draining a packet from the socket when it has to be dropped
+	private final ByteBuffer discardBuffer;
+	
+	private final AtomicLong packetsReceived = new AtomicLong();
+	private final AtomicLong packetsQueued = new AtomicLong();
+	private final AtomicLong packetsDecoded = new AtomicLong();
+	private final AtomicLong packetsDropped = new AtomicLong();
+	
+	// CalAmp messages are small so this is plenty
+	private static final int MAX_PACKET_SIZE = 512;
+	
+	// How frequently the counters should be logged
+	private static final long STATS_LOGGING_INTERVAL_MSEC = 
+			1 * Time.MS_PER_MIN;
+
+	private static final Logger logger = 
+			LoggerFactory.getLogger(CalAmpPacketReceiver.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates the worker threads and the buffers.
+	 * 
+	 * @param numThreads
+	 *            Number of worker threads for decoding and processing packets
+	 * @param queueSize
+	 *            How many received packets can wait to be decoded before
+	 *            packets are dropped
+	 */
+	public CalAmpPacketReceiver(int numThreads, int queueSize) {
+		decodeExecutor = new ThreadPoolExecutor(numThreads, numThreads, 
+				1, TimeUnit.HOURS, 
+				new ArrayBlockingQueue<Runnable>(queueSize),
+				new NamedThreadFactory("calAmpDecode"));
+		
+		int numBuffers = queueSize + numThreads;
+		freeBuffers = new ArrayBlockingQueue<ByteBuffer>(numBuffers);
+		for (int i = 0; i < numBuffers; ++i)
+			freeBuffers.add(ByteBuffer.allocateDirect(MAX_PACKET_SIZE));
+		discardBuffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+	}
+	
+	/**
+	 * Decodes and processes a packet that was received into a direct buffer.
+	 * Returns the buffer to the free list once the report has been decoded.
+	 */
+	private class DecodeTask implements Runnable {
+		private final ByteBuffer buffer;
+		
+		private DecodeTask(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+		
+		@Override
+		public void run() {
+			Report report;
+			try {
+				report = Report.parseReport(buffer);
+			} finally {
+				releaseBuffer(buffer);
+			}
+			
+			// Actually process the report. Creates an AvlReport and 
+			// processes it. Catch exceptions so that worker thread isn't
+			// killed due to an unexpected problem.
+			if (report != null) {
+				packetsDecoded.incrementAndGet();
+				try {
+					report.process();
+				} catch (Exception e) {
+					logger.error("Exception while processing CalAmp "
+							+ "report {}. {}", report, e.getMessage(), e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Makes the buffer available for receiving another packet.
+	 * 
+	 * @param buffer
+	 */
+	private void releaseBuffer(ByteBuffer buffer) {
+		buffer.clear();
+		freeBuffers.offer(buffer);
+	}
+	
+	/**
+	 * Continuously receives packets from the channel and queues them for the
+	 * worker threads. Only returns by throwing an exception, such as when
+	 * the channel is closed.
+	 * 
+	 * @param channel
+	 *            A bound DatagramChannel in blocking mode
+	 * @throws IOException
+	 */
+	public void receive(DatagramChannel channel) throws IOException {
+		long lastStatsLogTime = System.currentTimeMillis();
+		
+		while (true) {
+			ByteBuffer buffer = freeBuffers.poll();
+			if (buffer == null) {
+				// All buffers in use so drain packet from socket but drop it
+				discardBuffer.clear();
+				channel.receive(discardBuffer);
+				packetsReceived.incrementAndGet();
+				packetsDropped.incrementAndGet();
+				logger.debug("Dropped CalAmp packet because the decode "
+						+ "queue is full.");
+			} else {
+				// If receiving fails then the buffer needs to be returned to
+				// the pool so that it isn't lost
+				try {
+					channel.receive(buffer);
+				} catch (IOException | RuntimeException e) {
+					releaseBuffer(buffer);
+					throw e;
+				}
+				packetsReceived.incrementAndGet();
+				buffer.flip();
+				try {
+					decodeExecutor.execute(new DecodeTask(buffer));
+					packetsQueued.incrementAndGet();
+				} catch (RejectedExecutionException e) {
+					releaseBuffer(buffer);
+					packetsDropped.incrementAndGet();
+					logger.debug("Dropped CalAmp packet because the decode "
+							+ "queue is full.");
+				}
+			}
+			
+			// Periodically log the counters
+			long now = System.currentTimeMillis();
+			if (now > lastStatsLogTime + STATS_LOGGING_INTERVAL_MSEC) {
+				lastStatsLogTime = now;
+				logger.info("CalAmp packet receiver {}", this);
+			}
+		}
+	}
+	
+	/**
+	 * @return Total number of packets read from the socket
+	 */
+	public long getPacketsReceived() {
+		return packetsReceived.get();
+	}
+
+	/**
+	 * @return Total number of packets handed to the worker threads
+	 */
+	public long getPacketsQueued() {
+		return packetsQueued.get();
+	}
+
+	/**
+	 * @return Total number of packets successfully decoded into a report
+	 */
+	public long getPacketsDecoded() {
+		return packetsDecoded.get();
+	}
+
+	/**
+	 * @return Total number of packets dropped because the queue was full
+	 */
+	public long getPacketsDropped() {
+		return packetsDropped.get();
+	}
+	
+	/**
+	 * @return Number of packets currently waiting to be decoded
+	 */
+	public int getQueueDepth() {
+		return decodeExecutor.getQueue().size();
+	}
+
+	@Override
+	public String toString() {
+		return "CalAmpPacketReceiver [" 
+				+ "packetsReceived=" + packetsReceived 
+				+ ", packetsQueued=" + packetsQueued
+				+ ", packetsDecoded=" + packetsDecoded 
+				+ ", packetsDropped=" + packetsDropped 
+				+ ", queueDepth=" + getQueueDepth()
+				+ "]";
+	}
+}
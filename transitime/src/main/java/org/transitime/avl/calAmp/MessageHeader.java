@@ -16,6 +16,8 @@
  */
 package org.transitime.avl.calAmp;
 
+import java.nio.ByteBuffer;
+
 /**
  * For processing CalAmp message header.
  * <p>
@@ -54,16 +56,18 @@ public class MessageHeader {
 	}
 
 	/**
-	 * Reads message header from byte stream
+	 * Reads message header from byte stream. Uses absolute reads so the
+	 * position of the buffer is not changed.
 	 * 
-	 * @param bytes
+	 * @param buffer
 	 * @param offset
 	 * @return The MessageHeader read
 	 */
-	public static MessageHeader getMessageHeader(byte[] bytes, int offset) {
-		byte serviceType = bytes[offset++];
-		byte messageType = bytes[offset++];
-		short sequenceNumber = Report.readShort(bytes, offset);
+	public static MessageHeader getMessageHeader(ByteBuffer buffer,
+			int offset) {
+		byte serviceType = buffer.get(offset++);
+		byte messageType = buffer.get(offset++);
+		short sequenceNumber = Report.readShort(buffer, offset);
 		offset += 2;
 		
 		return new MessageHeader(serviceType, messageType, sequenceNumber,
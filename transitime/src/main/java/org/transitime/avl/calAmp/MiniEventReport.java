@@ -16,6 +16,7 @@
  */
 package org.transitime.avl.calAmp;
 
+import java.nio.ByteBuffer;
 import java.util.Date;
 
 import org.transitime.avl.AvlExecutor;
@@ -84,47 +85,48 @@ public class MiniEventReport extends Report {
 	
 	/**
 	 * Reads MiniEventReport from byte stream starting at the offset, which should
-	 * be just past the message header.
+	 * be just past the message header. Uses absolute reads so the position of
+	 * the buffer is not changed.
 	 *
 	 * @param optionsHeader
 	 * @param messageHeader
-	 * @param bytes
+	 * @param buffer
 	 * @param offset
 	 * @return The MiniEventReport
 	 */
 	public static MiniEventReport getMiniEventReport(
 			OptionsHeader optionsHeader, MessageHeader messageHeader,
-			byte[] bytes, int offset) {
+			ByteBuffer buffer, int offset) {
 		// Read all the elements of the report from the byte stream
-		int gpsTime = Report.readInt(bytes, offset);
+		int gpsTime = Report.readInt(buffer, offset);
 		offset += 4;
 		
-		int latInt = Report.readInt(bytes, offset);
+		int latInt = Report.readInt(buffer, offset);
 		double lat = latInt / 10000000.0;
 		offset += 4;
 
-		int lonInt = Report.readInt(bytes, offset);
+		int lonInt = Report.readInt(buffer, offset);
 		double lon = lonInt / 10000000.0;
 		offset += 4;
 
-		short heading = (short) Report.readShort(bytes, offset);
+		short heading = (short) Report.readShort(buffer, offset);
 		offset += 2;
 		
-		short speedKph = bytes[offset];
+		short speedKph = buffer.get(offset);
 		offset += 1;
 
-		byte fixStatus = bytes[offset];
+		byte fixStatus = buffer.get(offset);
 		offset += 1;
 		
 		short numberSatellites = (short) (fixStatus & 0x0F);
 		
-		byte communicationState = bytes[offset];
+		byte communicationState = buffer.get(offset);
 		offset += 1;
 		
-		byte inputs = bytes[offset];
+		byte inputs = buffer.get(offset);
 		offset += 1;
 		
-		byte eventCode = bytes[offset];
+		byte eventCode = buffer.get(offset);
 		offset += 1;
 
 		// Create and return the report
@@ -16,6 +16,8 @@
  */
 package org.transitime.avl.calAmp;
 
+import java.nio.ByteBuffer;
+
 /**
  * For processing CalAmp options header.
  * <p>
@@ -50,25 +52,27 @@ public class OptionsHeader {
 	}
 
 	/**
-	 * Reads options header from byte stream
+	 * Reads options header from byte stream. Uses absolute reads so the
+	 * position of the buffer is not changed. The message is expected to start
+	 * at index 0 of the buffer.
 	 * 
-	 * @param bytes
+	 * @param buffer
 	 * @return The OptionsHeader or null if there isn't one
 	 */
-	public static OptionsHeader getOptionsHeader(byte[] bytes) {
+	public static OptionsHeader getOptionsHeader(ByteBuffer buffer) {
 		int i = 0;
-		if (bytes[i++] == OPTIONS_BYTE) {
-			int mobileIdFieldLength = bytes[i++];
+		if (buffer.get(i++) == OPTIONS_BYTE) {
+			int mobileIdFieldLength = buffer.get(i++);
 			StringBuilder mobileId = new StringBuilder();
 			int start = i;
 			while (i < start + mobileIdFieldLength)
-				mobileId.append(String.format("%02X", bytes[i++]));
+				mobileId.append(String.format("%02X", buffer.get(i++)));
 
 			// Should always be 1 so not actually used
 			@SuppressWarnings("unused")
-			int mobileIdTypeLength = bytes[i++]; 
+			int mobileIdTypeLength = buffer.get(i++); 
 			
-			byte mobileIdType = bytes[i++]; 
+			byte mobileIdType = buffer.get(i++); 
 
 			return new OptionsHeader(mobileId.toString(),
 					mobileIdType, i);
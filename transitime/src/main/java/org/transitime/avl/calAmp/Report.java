@@ -71,39 +71,39 @@ public abstract class Report {
 	}
 	
 	/**
-	 * Convenience method for reading in a 4 byte integer from the bytes
+	 * Convenience method for reading in a 4 byte integer from the buffer.
+	 * Uses absolute read so position of buffer is not changed.
 	 * 
-	 * @param bytes
+	 * @param buffer
 	 * @param offset
 	 * @return the read in integer
 	 */
-	protected static int readInt(byte[] bytes, int offset) {
-		ByteBuffer byteBuffer = ByteBuffer.wrap(bytes, offset, 4);
-		return byteBuffer.getInt();
+	protected static int readInt(ByteBuffer buffer, int offset) {
+		return buffer.getInt(offset);
 	}
 	
 	/**
-	 * Convenience method for reading in a 2 byte short from the bytes
+	 * Convenience method for reading in a 2 byte short from the buffer.
+	 * Uses absolute read so position of buffer is not changed.
 	 * 
-	 * @param bytes
+	 * @param buffer
 	 * @param offset
 	 * @return the read in integer
 	 */
-	protected static short readShort(byte[] bytes, int offset) {
-		ByteBuffer byteBuffer = ByteBuffer.wrap(bytes, offset, 2);
-		return byteBuffer.getShort();
+	protected static short readShort(ByteBuffer buffer, int offset) {
+		return buffer.getShort(offset);
 	}
 	
 	/**
-	 * Convenience method for reading in a 4 byte integer from the bytes
+	 * Convenience method for reading in a single byte from the buffer.
+	 * Uses absolute read so position of buffer is not changed.
 	 * 
-	 * @param bytes
+	 * @param buffer
 	 * @param offset
 	 * @return the read in integer
 	 */
-	protected static int readByte(byte[] bytes, int offset) {
-		ByteBuffer byteBuffer = ByteBuffer.wrap(bytes, offset, 1);
-		return byteBuffer.get();
+	protected static int readByte(ByteBuffer buffer, int offset) {
+		return buffer.get(offset);
 	}
 	
 	/**
@@ -114,8 +114,22 @@ public abstract class Report {
 	 * @return The Report, or null if not successful
 	 */
 	public static Report parseReport(DatagramPacket packet) {
-		byte[] bytes = packet.getData();
-
+		return parseReport(ByteBuffer.wrap(packet.getData(), 0,
+				packet.getLength()));
+	}
+	
+	/**
+	 * Reads the CalAmp report from a buffer, such as a direct ByteBuffer that
+	 * a DatagramChannel received the packet into. The message must start at
+	 * index 0 of the buffer and the limit of the buffer must be the length
+	 * of the message. Uses absolute reads so the buffer is not modified and
+	 * no copy of the data is made.
+	 * 
+	 * @param buffer
+	 *            Contains the data
+	 * @return The Report, or null if not successful
+	 */
+	public static Report parseReport(ByteBuffer buffer) {
 		// Log the entire message in hexadecimal format
 		if (logger.isDebugEnabled()) {
 			// Log total length of packets so have an idea of how much data 
@@ -125,33 +139,34 @@ public abstract class Report {
 			int UDP_HEADER_SIZE = 8;
 			logger.debug("Message data is {} bytes long. Including IP Header "
 					+ "and UDP header total size is {} bytes long.", 
-					bytes.length, 
-					bytes.length + IP_HEADER_SIZE + UDP_HEADER_SIZE);
+					buffer.limit(), 
+					buffer.limit() + IP_HEADER_SIZE + UDP_HEADER_SIZE);
 			
 			// Actually log message
 			StringBuilder sb = new StringBuilder();
-			for (int i = 0; i < packet.getLength(); ++i) {
-				sb.append(String.format("%02X", bytes[i]));
+			for (int i = 0; i < buffer.limit(); ++i) {
+				sb.append(String.format("%02X", buffer.get(i)));
 			}
 			logger.debug("Message={}", sb.toString());
 		}
 
 		try {
 			// Read options header
-			OptionsHeader optionsHeader = OptionsHeader.getOptionsHeader(bytes);
+			OptionsHeader optionsHeader = 
+					OptionsHeader.getOptionsHeader(buffer);
 			int messageStartIdx =
 					optionsHeader != null ? optionsHeader.getNextPart() : 0;
 			logger.debug("Options header {}", optionsHeader);
 
 			// Read message header, which specifies type of report
 			MessageHeader messageHeader =
-					MessageHeader.getMessageHeader(bytes, messageStartIdx);
+					MessageHeader.getMessageHeader(buffer, messageStartIdx);
 			logger.debug("Message header {}", messageHeader);
 
 			if (messageHeader.isMiniEventReport()) {
 				MiniEventReport miniEventReport =
 						MiniEventReport.getMiniEventReport(optionsHeader,
-								messageHeader, bytes,
+								messageHeader, buffer,
 								messageHeader.getNextPart());
 				return miniEventReport;
 			} else {
@@ -0,0 +1,107 @@
+/* 
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.avl.socket;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.avl.AvlModule;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.utils.Time;
+import org.transitime.utils.threading.NamedThread;
+
+/**
+ * AVL module that runs the TCP gateway Server so that modems can send NMEA or
+ * TAIP GPS data over long-lived socket connections. Periodically logs the
+ * aggregate and per connection metrics of the gateway.
+ *
+ */
+public class AvlSocketModule extends AvlModule {
+
+	private static IntegerConfigValue avlSocketPort = new IntegerConfigValue(
+			"transitime.avl.socketPort", 4444,
+			"The port number that the AVL socket gateway listens on for "
+			+ "connections from modems.");
+
+	private static IntegerConfigValue avlSocketNumEventLoops = 
+			new IntegerConfigValue("transitime.avl.socketNumEventLoops", 0,
+					"Number of event loop threads for reading from the AVL "
+					+ "socket connections. Each event loop handles many "
+					+ "connections. If 0 then uses one event loop per "
+					+ "available processor.");
+
+	private static IntegerConfigValue avlSocketIdleTimeoutSecs = 
+			new IntegerConfigValue("transitime.avl.socketIdleTimeoutSecs", 
+					300,
+					"If no data is received on an AVL socket connection for "
+					+ "this many seconds then the connection is closed so "
+					+ "that modems that disappeared don't use up resources.");
+
+	private static IntegerConfigValue avlSocketMetricsLoggingSecs = 
+			new IntegerConfigValue("transitime.avl.socketMetricsLoggingSecs", 
+					60,
+					"How frequently the metrics of the AVL socket gateway "
+					+ "should be logged.");
+
+	private static final Logger logger = 
+			LoggerFactory.getLogger(AvlSocketModule.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Constructor
+	 * 
+	 * @param agencyId
+	 */
+	public AvlSocketModule(String agencyId) {
+		super(agencyId);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		// Log that module successfully started
+		logger.info("Started module {} for agencyId={}", getClass().getName(),
+				getAgencyId());
+
+		Server server;
+		try {
+			server = new Server(avlSocketPort.getValue(), 
+					avlSocketNumEventLoops.getValue(),
+					avlSocketIdleTimeoutSecs.getValue() * Time.MS_PER_SEC);
+		} catch (IOException e) {
+			logger.error("Could not create AVL socket server. {}", 
+					e.getMessage(), e);
+			return;
+		}
+		new NamedThread(server, "avlSocketServer").start();
+		
+		// Periodically log the metrics
+		while (true) {
+			Time.sleep(avlSocketMetricsLoggingSecs.getValue() 
+					* Time.MS_PER_SEC);
+			logger.info("AVL socket gateway {}", server);
+			if (logger.isDebugEnabled()) {
+				for (Connection connection : server.getConnections())
+					logger.debug("AVL socket {}", connection);
+			}
+		}
+	}
+}
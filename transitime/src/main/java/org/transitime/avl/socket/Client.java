@@ -21,9 +21,14 @@ public class Client {
 		try {
 			Socket socket = new Socket(hostName, portNumber);
 			PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-			out.println("String 1");
-			out.println("{lsdkj: [{lskdj: 32, lllx}]}");
-			out.println("String 2");
+			// NMEA record with vehicle ID and assignment, ended by empty line
+			out.println("$GPRMC,225446,A,4916.45,N,12311.12,W,000.5,054.7,191194,020.3,E*68");
+			out.println("VID=1234");
+			out.println("J=block1");
+			out.println("");
+			// TAIP record that includes the vehicle ID
+			out.println(">RPV64100+4233322-0710597600017412;ID=5678<");
+			socket.close();
 		} catch (UnknownHostException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
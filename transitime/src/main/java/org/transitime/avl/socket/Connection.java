@@ -0,0 +1,341 @@
+/* 
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.avl.socket;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.avl.NmeaGpsLocation;
+import org.transitime.avl.TaipGpsLocation;
+import org.transitime.db.structs.AvlReport;
+import org.transitime.db.structs.AvlReport.AssignmentType;
+import org.transitime.utils.StringUtils;
+import org.transitime.utils.Time;
+
+/**
+ * A TCP connection from a modem to the AVL gateway. Frames the incoming bytes
+ * into lines and converts them into AVL reports. Only accessed by the thread
+ * of the EventLoop that the connection belongs to, except for the metrics
+ * which can be read by any thread.
+ * <p>
+ * The lines are handled in the same way as for the Georgia Tech feed:
+ * <ul>
+ * <li>A NMEA $GPRMC or TAIP >RPV line specifies the GPS fix</li>
+ * <li>A "VID=" line specifies the vehicle ID. It is remembered for the
+ * connection so that it only needs to be sent once.</li>
+ * <li>A "J=" line specifies the block assignment</li>
+ * <li>An empty line ends the record. If there is a GPS fix and the vehicle
+ * ID is known then an AVL report is created.</li>
+ * </ul>
+ * A TAIP line that contains the vehicle ID, as in ";ID=1234<", is a complete
+ * record by itself and is converted into an AVL report right away.
+ *
+ */
+public class Connection {
+
+	private final Server server;
+	private final SocketChannel channel;
+	private final SocketAddress remoteAddress;
+	
+	// For building up the current line
+	private final byte[] lineBytes = new byte[MAX_LINE_LENGTH];
+	private int lineLength = 0;
+	private boolean lineTooLong = false;
+	
+	// State of the current record
+	private String vehicleId = null;
+	private String assignmentId = null;
+	private AvlReport pendingAvlReport = null;
+	
+	// Metrics. Written only by the thread of the EventLoop but can be read
+	// by other threads so volatile.
+	private final long connectTime;
+	private volatile long lastActivityTime;
+	private volatile long bytesRead = 0;
+	private volatile long linesRead = 0;
+	private volatile long reportsReceived = 0;
+	private volatile long badLines = 0;
+	
+	// Lines longer than this are discarded since they can't be valid
+	private static final int MAX_LINE_LENGTH = 1024;
+	
+	private static final String AVL_SOURCE = "Socket";
+
+	private static final Logger logger = 
+			LoggerFactory.getLogger(Connection.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param server
+	 *            The server that accepted the connection. The AVL reports
+	 *            are handed to it.
+	 * @param channel
+	 *            The channel for the connection
+	 */
+	Connection(Server server, SocketChannel channel) {
+		this.server = server;
+		this.channel = channel;
+		SocketAddress address = null;
+		try {
+			address = channel.getRemoteAddress();
+		} catch (IOException e) {
+			logger.debug("Could not determine remote address. {}", 
+					e.getMessage());
+		}
+		this.remoteAddress = address;
+		this.connectTime = System.currentTimeMillis();
+		this.lastActivityTime = connectTime;
+	}
+	
+	/**
+	 * Processes bytes read from the channel. Complete lines are handled
+	 * right away. Partial lines are kept until the remainder is read. A line
+	 * that causes an exception is counted as a bad line so that it doesn't
+	 * affect the following lines.
+	 * 
+	 * @param buffer
+	 *            Contains the bytes read, from position to limit
+	 */
+	void processBytes(ByteBuffer buffer) {
+		int numBytes = buffer.remaining();
+		bytesRead += numBytes;
+		server.addBytesRead(numBytes);
+		lastActivityTime = System.currentTimeMillis();
+		
+		while (buffer.hasRemaining()) {
+			byte b = buffer.get();
+			if (b == '\n') {
+				// Reset the line state before handling the line so that
+				// the next line starts fresh even if handling this one fails
+				String line = lineTooLong ? null : new String(lineBytes, 0, 
+						lineLength, StandardCharsets.US_ASCII);
+				lineLength = 0;
+				lineTooLong = false;
+				
+				if (line == null) {
+					logger.error("Line from {} was longer than {} characters "
+							+ "so ignoring it.", remoteAddress, 
+							MAX_LINE_LENGTH);
+					++badLines;
+					server.addBadLine();
+				} else {
+					try {
+						handleLine(line);
+					} catch (RuntimeException e) {
+						logger.error("Exception processing line from {}. {}", 
+								remoteAddress, e.getMessage(), e);
+						handleBadLine(line);
+					}
+				}
+			} else if (b != '\r') {
+				if (lineLength < MAX_LINE_LENGTH)
+					lineBytes[lineLength++] = b;
+				else
+					lineTooLong = true;
+			}
+		}
+	}
+	
+	/**
+	 * Handles a single line of the record.
+	 * 
+	 * @param line
+	 */
+	private void handleLine(String line) {
+		logger.debug("Line from {}: {}", remoteAddress, line);
+		++linesRead;
+		server.addLineRead();
+		
+		if (line.isEmpty()) {
+			// End of record
+			if (pendingAvlReport != null) {
+				if (vehicleId != null) {
+					sendAvlReport(pendingAvlReport);
+				} else {
+					logger.error("Received GPS fix from {} but vehicle ID "
+							+ "was not specified via VID= so ignoring it.", 
+							remoteAddress);
+				}
+			}
+			pendingAvlReport = null;
+		} else if (line.startsWith("$GPRMC")) {
+			NmeaGpsLocation gpsLoc = 
+					NmeaGpsLocation.parseIgnoringChecksum(line);
+			if (gpsLoc != null) {
+				pendingAvlReport = new AvlReport(vehicleId, gpsLoc.getTime(),
+						gpsLoc.getLocation(), gpsLoc.getSpeed(),
+						gpsLoc.getHeading(), AVL_SOURCE);
+			} else {
+				handleBadLine(line);
+			}
+		} else if (line.startsWith(">RPV")) {
+			TaipGpsLocation taipGpsLoc = TaipGpsLocation.get(line);
+			if (taipGpsLoc != null) {
+				// If TAIP line includes the vehicle ID then it is a complete
+				// record by itself
+				String taipVehicleId = getTaipVehicleId(line);
+				if (taipVehicleId != null)
+					vehicleId = taipVehicleId;
+				pendingAvlReport = new AvlReport(vehicleId,
+						taipGpsLoc.getFixEpochTime(), 
+						taipGpsLoc.getLatitude(), taipGpsLoc.getLongitude(),
+						taipGpsLoc.getSpeedMetersPerSecond(),
+						taipGpsLoc.getHeading(), AVL_SOURCE);
+				if (taipVehicleId != null) {
+					sendAvlReport(pendingAvlReport);
+					pendingAvlReport = null;
+				}
+			} else {
+				handleBadLine(line);
+			}
+		} else if (line.startsWith("VID=")) {
+			vehicleId = line.substring(4);
+		} else if (line.startsWith("J=")) {
+			assignmentId = line.substring(2);
+		} else {
+			handleBadLine(line);
+		}
+	}
+
+	/**
+	 * Returns the vehicle ID of the ";ID=" field of a TAIP line. The field
+	 * can be followed by other fields, such as a checksum, so the ID ends at
+	 * the next ';' or at the closing '<'.
+	 * 
+	 * @param line
+	 *            The TAIP line
+	 * @return The vehicle ID, or null if the line doesn't have an ID field
+	 *         or the ID is empty
+	 */
+	static String getTaipVehicleId(String line) {
+		int idIdx = line.indexOf(";ID=");
+		if (idIdx < 0)
+			return null;
+		
+		int beginIdx = idIdx + 4;
+		int endIdx = beginIdx;
+		while (endIdx < line.length() && line.charAt(endIdx) != ';' 
+				&& line.charAt(endIdx) != '<')
+			++endIdx;
+		return endIdx > beginIdx ? line.substring(beginIdx, endIdx) : null;
+	}
+	
+	/**
+	 * Logs and counts a line that couldn't be handled
+	 * 
+	 * @param line
+	 */
+	private void handleBadLine(String line) {
+		logger.warn("Could not process line \"{}\" from {}", line, 
+				remoteAddress);
+		++badLines;
+		server.addBadLine();
+	}
+	
+	/**
+	 * Sets the vehicle ID and assignment of the AVL report and hands it to
+	 * the server so that it can be processed.
+	 * 
+	 * @param avlReport
+	 */
+	private void sendAvlReport(AvlReport avlReport) {
+		// Vehicle ID might have been specified after the GPS fix so need to
+		// create the AVL report again with the current vehicle ID
+		AvlReport report = vehicleId.equals(avlReport.getVehicleId()) ? 
+				avlReport : new AvlReport(vehicleId, avlReport.getTime(),
+						avlReport.getLocation(), avlReport.getSpeed(),
+						avlReport.getHeading(), AVL_SOURCE);
+		if (assignmentId != null)
+			report.setAssignment(assignmentId, AssignmentType.BLOCK_ID);
+
+		++reportsReceived;
+		server.processAvlReport(report);
+	}
+	
+	SocketChannel getChannel() {
+		return channel;
+	}
+	
+	/**
+	 * @return Epoch time of when data was last read from the connection
+	 */
+	public long getLastActivityTime() {
+		return lastActivityTime;
+	}
+	
+	/**
+	 * @return Remote address of the modem, or null if not known
+	 */
+	public SocketAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+	
+	/**
+	 * @return The vehicle ID specified by the modem, or null if not yet known
+	 */
+	public String getVehicleId() {
+		return vehicleId;
+	}
+	
+	public long getBytesRead() {
+		return bytesRead;
+	}
+	
+	public long getLinesRead() {
+		return linesRead;
+	}
+	
+	public long getReportsReceived() {
+		return reportsReceived;
+	}
+	
+	public long getBadLines() {
+		return badLines;
+	}
+	
+	/**
+	 * @return Average number of AVL reports per minute since connected
+	 */
+	public double getReportsPerMinute() {
+		long elapsedMsec = System.currentTimeMillis() - connectTime;
+		if (elapsedMsec <= 0)
+			return 0.0;
+		return (double) reportsReceived * Time.MS_PER_MIN / elapsedMsec;
+	}
+	
+	@Override
+	public String toString() {
+		return "Connection [" 
+				+ "remoteAddress=" + remoteAddress 
+				+ ", vehicleId=" + vehicleId
+				+ ", connectTime=" + Time.dateTimeStr(connectTime)
+				+ ", lastActivityTime=" + Time.dateTimeStr(lastActivityTime)
+				+ ", bytesRead=" + bytesRead 
+				+ ", linesRead=" + linesRead
+				+ ", reportsReceived=" + reportsReceived 
+				+ ", badLines=" + badLines
+				+ ", reportsPerMinute=" 
+					+ StringUtils.twoDigitFormat(getReportsPerMinute())
+				+ "]";
+	}
+}
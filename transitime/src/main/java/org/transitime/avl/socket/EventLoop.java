@@ -0,0 +1,202 @@
+/* 
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.avl.socket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.utils.Time;
+
+/**
+ * A single threaded event loop that uses a Selector to read from many
+ * connections. The Server creates one event loop per core and spreads the
+ * accepted connections across them. Also closes connections that have been
+ * idle for too long so that modems that disappeared without closing their
+ * connection don't use up resources.
+ *
+ */
+public class EventLoop implements Runnable {
+
+	private final Server server;
+	private final Selector selector;
+	
+	// Newly accepted channels that still need to be registered with the 
+	// selector. Registration has to be done by the thread of the event loop.
+	private final Queue<SocketChannel> newChannels = 
+			new ConcurrentLinkedQueue<SocketChannel>();
+	
+	// Shared by all connections of the loop since reading is only done by
+	// the single thread of the loop
+	private final ByteBuffer readBuffer = 
+			ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+	
+	private long lastIdleCheckTime = System.currentTimeMillis();
+	
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+	
+	// How long select() waits so that idle connections are checked for
+	// even if there is no activity
+	private static final long SELECT_TIMEOUT_MSEC = 1 * Time.MS_PER_SEC;
+
+	private static final Logger logger = 
+			LoggerFactory.getLogger(EventLoop.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param server
+	 * @throws IOException
+	 *             If the selector could not be opened
+	 */
+	EventLoop(Server server) throws IOException {
+		this.server = server;
+		this.selector = Selector.open();
+	}
+	
+	/**
+	 * Adds a newly accepted channel to this event loop. Can be called from
+	 * any thread.
+	 * 
+	 * @param channel
+	 */
+	void addChannel(SocketChannel channel) {
+		newChannels.add(channel);
+		selector.wakeup();
+	}
+	
+	/**
+	 * Registers the newly accepted channels with the selector
+	 */
+	private void registerNewChannels() {
+		SocketChannel channel;
+		while ((channel = newChannels.poll()) != null) {
+			try {
+				channel.configureBlocking(false);
+				Connection connection = new Connection(server, channel);
+				channel.register(selector, SelectionKey.OP_READ, connection);
+				server.connectionOpened(connection);
+			} catch (IOException e) {
+				logger.error("Could not register channel {}. {}", channel,
+						e.getMessage(), e);
+				try {
+					channel.close();
+				} catch (IOException e1) {}
+			}
+		}
+	}
+	
+	/**
+	 * Reads the available data for the connection of the key
+	 * 
+	 * @param key
+	 */
+	private void read(SelectionKey key) {
+		Connection connection = (Connection) key.attachment();
+		try {
+			readBuffer.clear();
+			int numBytes = connection.getChannel().read(readBuffer);
+			if (numBytes < 0) {
+				close(key, "closed by remote end");
+				return;
+			}
+			readBuffer.flip();
+			connection.processBytes(readBuffer);
+		} catch (IOException e) {
+			close(key, e.getMessage());
+		}
+	}
+	
+	/**
+	 * Closes the connection of the key
+	 * 
+	 * @param key
+	 * @param reason
+	 *            For logging
+	 */
+	private void close(SelectionKey key, String reason) {
+		Connection connection = (Connection) key.attachment();
+		key.cancel();
+		try {
+			connection.getChannel().close();
+		} catch (IOException e) {
+			logger.debug("Exception closing channel. {}", e.getMessage());
+		}
+		server.connectionClosed(connection, reason);
+	}
+	
+	/**
+	 * Closes the connections that haven't had any activity for longer than
+	 * the idle timeout. Only checks once per select timeout.
+	 */
+	private void reapIdleConnections() {
+		long now = System.currentTimeMillis();
+		if (now < lastIdleCheckTime + SELECT_TIMEOUT_MSEC)
+			return;
+		lastIdleCheckTime = now;
+		
+		long idleTimeoutMsec = server.getIdleTimeoutMsec();
+		for (SelectionKey key : selector.keys()) {
+			Connection connection = (Connection) key.attachment();
+			if (key.isValid() && connection != null 
+					&& now - connection.getLastActivityTime() > idleTimeoutMsec) {
+				server.connectionReaped();
+				close(key, "idle for more than " 
+						+ idleTimeoutMsec / Time.MS_PER_SEC + " secs");
+			}
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		while (true) {
+			// Surround with try/catch so that the loop continues even if
+			// there is an unexpected problem
+			try {
+				selector.select(SELECT_TIMEOUT_MSEC);
+				registerNewChannels();
+				
+				Iterator<SelectionKey> iterator = 
+						selector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+					if (key.isValid() && key.isReadable())
+						read(key);
+				}
+				
+				reapIdleConnections();
+			} catch (ClosedChannelException e) {
+				logger.debug("Channel closed. {}", e.getMessage());
+			} catch (Exception e) {
+				logger.error("Unexpected exception in AVL socket event "
+						+ "loop. {}", e.getMessage(), e);
+			}
+		}
+	}
+}
@@ -1,36 +1,278 @@
 package org.transitime.avl.socket;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.avl.AvlExecutor;
+import org.transitime.db.structs.AvlReport;
+import org.transitime.utils.StringUtils;
+import org.transitime.utils.Time;
+import org.transitime.utils.threading.NamedThread;
 
 /**
- * Test program. The Server listens for data on the specified port of a socket.
+ * A TCP gateway for modems that send AVL data over long-lived connections.
+ * Instead of using a thread per connection the Server accepts connections and
+ * spreads them across a small number of EventLoops, typically one per core,
+ * each of which uses a Selector to read from many connections. The lines read
+ * are framed and decoded by the Connection and the resulting AVL reports are
+ * handed to the AvlExecutor so that they are processed by the AvlProcessor.
+ * <p>
+ * Keeps aggregate metrics for the gateway. Metrics for the individual
+ * connections are available via getConnections().
  * 
  * @author Michael
  *
  */
-public class Server {
-	public static void main(String args[]) {
-		int portNumber = 4444; //Integer.parseInt(args[0]);
+public class Server implements Runnable {
 
-		System.out.println("Server running. Listening to port " + portNumber);
-		try {
-			// Setup the socket
-			ServerSocket serverSocket = new ServerSocket(portNumber);
-			Socket clientSocket = serverSocket.accept();
-			BufferedReader in =
-					new BufferedReader(new InputStreamReader(
-							clientSocket.getInputStream()));
+	private final int port;
+	private final long idleTimeoutMsec;
+	private final EventLoop[] eventLoops;
+	
+	// So can spread connections across the event loops
+	private int nextEventLoop = 0;
+	
+	// The open connections so can provide per connection metrics
+	private final Set<Connection> connections = Collections
+			.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+	
+	// Aggregate metrics
+	private final long startTime = System.currentTimeMillis();
+	private final AtomicLong connectionsAccepted = new AtomicLong();
+	private final AtomicLong connectionsReaped = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong linesRead = new AtomicLong();
+	private final AtomicLong reportsReceived = new AtomicLong();
+	private final AtomicLong badLines = new AtomicLong();
+	
+	// For when the server socket fails and needs to be bound again
+	private static final long MIN_REBIND_BACKOFF_MSEC = 1 * Time.MS_PER_SEC;
+	private static final long MAX_REBIND_BACKOFF_MSEC = 60 * Time.MS_PER_SEC;
+	
+	// For when accepting a connection fails
+	private static final long ACCEPT_FAILURE_PAUSE_MSEC = 100;
+	
+	private static final Logger logger = 
+			LoggerFactory.getLogger(Server.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates the server and its event loops. Call run() to actually start
+	 * accepting connections.
+	 * 
+	 * @param port
+	 *            Port to listen on
+	 * @param numEventLoops
+	 *            Number of event loop threads. If less than 1 then uses the
+	 *            number of available processors.
+	 * @param idleTimeoutMsec
+	 *            Connections without any data for this long are closed
+	 * @throws IOException
+	 */
+	public Server(int port, int numEventLoops, long idleTimeoutMsec) 
+			throws IOException {
+		this.port = port;
+		this.idleTimeoutMsec = idleTimeoutMsec;
+		
+		if (numEventLoops < 1)
+			numEventLoops = Runtime.getRuntime().availableProcessors();
+		eventLoops = new EventLoop[numEventLoops];
+		for (int i = 0; i < numEventLoops; ++i)
+			eventLoops[i] = new EventLoop(this);
+	}
+
+	/**
+	 * Starts the event loop threads and then accepts connections, handing
+	 * each one to the next event loop. Never returns. A problem accepting a
+	 * single connection is logged and then the next connection is accepted.
+	 * If the server socket itself fails then it is opened and bound again,
+	 * backing off more each time it fails.
+	 */
+	@Override
+	public void run() {
+		for (EventLoop eventLoop : eventLoops)
+			new NamedThread(eventLoop, "avlSocketLoop").start();
+		
+		long backoffMsec = MIN_REBIND_BACKOFF_MSEC;
+		while (true) {
+			try (ServerSocketChannel serverChannel = 
+					ServerSocketChannel.open()) {
+				serverChannel.bind(new InetSocketAddress(port));
+				logger.info("AVL socket server listening on port {} using {} "
+						+ "event loops", port, eventLoops.length);
+				backoffMsec = MIN_REBIND_BACKOFF_MSEC;
+				
+				acceptConnections(serverChannel);
+			} catch (IOException e) {
+				logger.error("Exception with AVL socket server on port {}. "
+						+ "Will try to bind again in {} msec. {}", 
+						port, backoffMsec, e.getMessage(), e);
+			}
 			
-			while (true) {
-				String inputLine = in.readLine();
-				System.out.println("inputLine=" + inputLine);
+			Time.sleep(backoffMsec);
+			backoffMsec = Math.min(2 * backoffMsec, MAX_REBIND_BACKOFF_MSEC);
+		}
+	}
+	
+	/**
+	 * Accepts connections until the server channel is no longer open. 
+	 * Exceptions for accepting an individual connection, such as when 
+	 * running out of file descriptors, are logged and then accepting 
+	 * continues.
+	 * 
+	 * @param serverChannel
+	 * @throws IOException
+	 *             If the server channel has been closed
+	 */
+	private void acceptConnections(ServerSocketChannel serverChannel) 
+			throws IOException {
+		while (true) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch (IOException e) {
+				if (!serverChannel.isOpen())
+					throw e;
+				
+				logger.error("Exception accepting AVL socket connection on "
+						+ "port {}. {}", port, e.getMessage(), e);
+				// Don't spin if the problem persists
+				Time.sleep(ACCEPT_FAILURE_PAUSE_MSEC);
+				continue;
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
+			
+			connectionsAccepted.incrementAndGet();
+			eventLoops[nextEventLoop].addChannel(channel);
+			nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
 		}
 	}
+	
+	/**
+	 * Hands the AVL report to the AvlExecutor so that it is processed by
+	 * the AvlProcessor. The AvlExecutor handles the threading so this can be
+	 * called by any of the event loops.
+	 * 
+	 * @param avlReport
+	 */
+	void processAvlReport(AvlReport avlReport) {
+		reportsReceived.incrementAndGet();
+		logger.debug("Processing {}", avlReport);
+		AvlExecutor.getInstance().processAvlReport(avlReport);
+	}
+	
+	void connectionOpened(Connection connection) {
+		connections.add(connection);
+		logger.info("Opened AVL socket connection from {}. Number of "
+				+ "connections={}", 
+				connection.getRemoteAddress(), connections.size());
+	}
+	
+	void connectionClosed(Connection connection, String reason) {
+		connections.remove(connection);
+		logger.info("Closed AVL socket connection because {}. {}", 
+				reason, connection);
+	}
+	
+	void connectionReaped() {
+		connectionsReaped.incrementAndGet();
+	}
+	
+	void addBytesRead(int numBytes) {
+		bytesRead.addAndGet(numBytes);
+	}
+	
+	void addLineRead() {
+		linesRead.incrementAndGet();
+	}
+	
+	void addBadLine() {
+		badLines.incrementAndGet();
+	}
+	
+	long getIdleTimeoutMsec() {
+		return idleTimeoutMsec;
+	}
+	
+	/**
+	 * @return Snapshot of the open connections, for per connection metrics
+	 */
+	public List<Connection> getConnections() {
+		return new ArrayList<Connection>(connections);
+	}
+	
+	public int getNumConnections() {
+		return connections.size();
+	}
+	
+	public long getConnectionsAccepted() {
+		return connectionsAccepted.get();
+	}
+	
+	public long getConnectionsReaped() {
+		return connectionsReaped.get();
+	}
+	
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+	
+	public long getLinesRead() {
+		return linesRead.get();
+	}
+	
+	public long getReportsReceived() {
+		return reportsReceived.get();
+	}
+	
+	public long getBadLines() {
+		return badLines.get();
+	}
+	
+	/**
+	 * @return Average number of AVL reports per second since server started
+	 */
+	public double getReportsPerSecond() {
+		long elapsedMsec = System.currentTimeMillis() - startTime;
+		if (elapsedMsec <= 0)
+			return 0.0;
+		return (double) reportsReceived.get() * Time.MS_PER_SEC / elapsedMsec;
+	}
+	
+	@Override
+	public String toString() {
+		return "Server [" 
+				+ "port=" + port 
+				+ ", eventLoops=" + eventLoops.length
+				+ ", connections=" + connections.size()
+				+ ", connectionsAccepted=" + connectionsAccepted
+				+ ", connectionsReaped=" + connectionsReaped
+				+ ", bytesRead=" + bytesRead 
+				+ ", linesRead=" + linesRead
+				+ ", reportsReceived=" + reportsReceived 
+				+ ", badLines=" + badLines
+				+ ", reportsPerSecond=" 
+					+ StringUtils.twoDigitFormat(getReportsPerSecond())
+				+ "]";
+	}
+	
+	/**
+	 * Test program. The Server listens for data on the specified port.
+	 */
+	public static void main(String args[]) throws IOException {
+		int portNumber = 4444; //Integer.parseInt(args[0]);
+
+		System.out.println("Server running. Listening to port " + portNumber);
+		new Server(portNumber, 0, 5 * Time.MS_PER_MIN).run();
+	}
 }
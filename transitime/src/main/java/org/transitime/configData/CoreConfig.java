@@ -148,6 +148,93 @@ public class CoreConfig {
 					+ "transitime.core.maxDistanceFromSegmentForAutoAssigning "
 					+ "is used instead.");
 	
+	/**
+	 * Whether a spatial index of the segments of each trip pattern should be
+	 * used when spatially matching so that only nearby segments are looked at.
+	 * @return
+	 */
+	public static boolean useSpatialIndex() {
+		return useSpatialIndex.getValue();
+	}
+	private static BooleanConfigValue useSpatialIndex =
+			new BooleanConfigValue("transitime.core.useSpatialIndex", 
+					true,
+					"When spatially matching an AVL report to a trip only "
+					+ "look at the segments of the trip pattern that are "
+					+ "near the AVL location, as determined by a spatial "
+					+ "grid index, instead of at every segment. Greatly "
+					+ "speeds up matching for trip patterns with many "
+					+ "points.");
+	
+	/**
+	 * Whether distances between AVL reports and segments should be
+	 * determined using a planar projection of the agency.
+	 * @return
+	 */
+	public static boolean usePlanarProjection() {
+		return usePlanarProjection.getValue();
+	}
+	private static BooleanConfigValue usePlanarProjection =
+			new BooleanConfigValue("transitime.core.usePlanarProjection", 
+					true,
+					"When matching AVL reports to segments project the "
+					+ "locations onto a plane centered on the agency extent "
+					+ "so that the distances can be determined without any "
+					+ "trigonometry. The segments cache their planar "
+					+ "coordinates. The distances differ from the spherical "
+					+ "ones by just a fraction of a percent.");
+	
+	/**
+	 * Whether all of the blocks, trips, trip patterns, and travel times 
+	 * should be read in at startup instead of being lazy loaded.
+	 * @return
+	 */
+	public static boolean preloadConfigData() {
+		return preloadConfigData.getValue();
+	}
+	private static BooleanConfigValue preloadConfigData =
+			new BooleanConfigValue("transitime.core.preloadConfigData", 
+					false,
+					"When true all of the blocks along with their trips, "
+					+ "trip patterns, and travel times are read in at startup "
+					+ "and the global session used for lazy loading is then "
+					+ "closed. This way the first access of a block doesn't "
+					+ "need to lazy load data while holding a lock that "
+					+ "stalls all the other threads. Makes startup slower and "
+					+ "uses more memory so not good for debugging.");
+	
+	/**
+	 * Number of threads used to read in the config data when preloading it.
+	 * @return
+	 */
+	public static int getPreloadConfigDataThreads() {
+		return preloadConfigDataThreads.getValue();
+	}
+	private static IntegerConfigValue preloadConfigDataThreads =
+			new IntegerConfigValue("transitime.core.preloadConfigDataThreads", 
+					4,
+					"When transitime.core.preloadConfigData is true the "
+					+ "config data that is not part of the blocks, such as "
+					+ "routes, stops, and calendars, is read in by this many "
+					+ "threads, each with its own session, while the blocks "
+					+ "are being read in.");
+	
+	/**
+	 * Size of the grid cells of the trip pattern spatial index.
+	 * @return
+	 */
+	public static double getSpatialIndexCellSizeMeters() {
+		return spatialIndexCellSizeMeters.getValue();
+	}
+	private static DoubleConfigValue spatialIndexCellSizeMeters =
+			new DoubleConfigValue("transitime.core.spatialIndexCellSizeMeters", 
+					200.0,
+					"Size in meters of the grid cells used for the spatial "
+					+ "index of the segments of a trip pattern. Should be "
+					+ "roughly the size of maxDistanceFromSegment. Smaller "
+					+ "cells mean fewer segments to examine but more cells "
+					+ "to look up and more memory.");
+	
 	/**
 	 * How far a location can be from a path segment and still be considered
 	 * a match when auto assigning.
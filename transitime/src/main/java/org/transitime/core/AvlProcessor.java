@@ -21,6 +21,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -1538,8 +1539,16 @@ public class AvlProcessor {
 					" " + avlReport + " ...");
 		}
 
-		// Do the low level work of matching vehicle and then generating results
-		lowLevelProcessAvlReport(avlReport, false);
+		// Do the low level work of matching vehicle and then generating 
+		// results. Holds the config read lock so that a new configuration
+		// can't be switched in while the vehicle is being matched.
+		Lock configReadLock = Core.getInstance().getConfigLock().readLock();
+		configReadLock.lock();
+		try {
+			lowLevelProcessAvlReport(avlReport, false);
+		} finally {
+			configReadLock.unlock();
+		}
 		
 		logger.debug("Processing AVL report took {}msec", timer);
 	}
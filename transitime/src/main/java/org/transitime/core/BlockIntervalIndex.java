@@ -0,0 +1,210 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.transitime.db.structs.Block;
+import org.transitime.utils.Time;
+
+/**
+ * An index of the blocks for a service ID, sorted by start time, so that the
+ * blocks active at a time of day can be found with a binary search instead
+ * of by looking at every block. Since no block is longer than the longest
+ * block only the blocks that start within that duration before the time
+ * need to be examined.
+ * <p>
+ * The active logic is the same as for Block.isActive() for a single day:
+ * active if the time is after the start time minus the allowable before time
+ * and before the end time, or before the start time plus the allowable after
+ * start time if that is specified. Times are seconds into the day of the 
+ * service, which can be greater than a day for blocks that go past midnight.
+ * <p>
+ * Immutable so can be shared by multiple threads.
+ *
+ */
+class BlockIntervalIndex {
+
+	// The blocks and their start times, sorted by start time
+	private final Block[] blocks;
+	private final int[] startTimes;
+	
+	// Duration of the longest block
+	private final int maxDurationSecs;
+	
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates the index for the blocks.
+	 * 
+	 * @param blocksForService
+	 */
+	BlockIntervalIndex(Collection<Block> blocksForService) {
+		List<Block> sortedBlocks = new ArrayList<Block>(blocksForService);
+		Collections.sort(sortedBlocks, new Comparator<Block>() {
+			@Override
+			public int compare(Block b1, Block b2) {
+				return Integer.compare(b1.getStartTime(), b2.getStartTime());
+			}
+		});
+		
+		blocks = sortedBlocks.toArray(new Block[sortedBlocks.size()]);
+		startTimes = new int[blocks.length];
+		int maxDuration = 0;
+		for (int i = 0; i < blocks.length; ++i) {
+			startTimes[i] = blocks[i].getStartTime();
+			maxDuration = Math.max(maxDuration, 
+					blocks[i].getEndTime() - blocks[i].getStartTime());
+		}
+		maxDurationSecs = maxDuration;
+	}
+	
+	/**
+	 * Returns the index of the first block with a start time greater than
+	 * the specified time.
+	 */
+	private int firstIndexStartingAfter(int time) {
+		int low = 0;
+		int high = startTimes.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (startTimes[mid] <= time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+	
+	/**
+	 * Returns how long a block can be considered active for.
+	 * 
+	 * @param allowableBeforeTimeSecs
+	 * @param allowableAfterStartTimeSecs
+	 * @return longest time span that a block is considered active
+	 */
+	private int maxActiveSpanSecs(int allowableBeforeTimeSecs,
+			int allowableAfterStartTimeSecs) {
+		return allowableBeforeTimeSecs + (allowableAfterStartTimeSecs < 0 ? 
+				maxDurationSecs : allowableAfterStartTimeSecs);
+	}
+	
+	/**
+	 * Adds the blocks that are active at the specified time to the result
+	 * list.
+	 * 
+	 * @param secsInDay
+	 *            Time to check, in seconds into the day of the service
+	 * @param allowableBeforeTimeSecs
+	 *            How much before the block start time the block is considered
+	 *            to be active
+	 * @param allowableAfterStartTimeSecs
+	 *            If greater than or equal to zero then block considered
+	 *            active only if within this number of seconds after the start
+	 *            time. If less than zero then block considered active up to
+	 *            the block end time.
+	 * @param result
+	 *            The list to add the active blocks to
+	 * @param checkForDuplicates
+	 *            If true then a block is only added if it is not already in
+	 *            the result list
+	 */
+	void addActiveBlocks(int secsInDay, int allowableBeforeTimeSecs,
+			int allowableAfterStartTimeSecs, List<Block> result,
+			boolean checkForDuplicates) {
+		// Blocks starting at or after this time are not yet active
+		int startTimeLimit = secsInDay + allowableBeforeTimeSecs;
+		
+		// Blocks starting at or before this time are no longer active. Since
+		// the active time is limited to the duration of the longest block
+		// don't need to look at blocks that started earlier.
+		int earliestStartTime = allowableAfterStartTimeSecs < 0 ? 
+				secsInDay - maxDurationSecs : 
+				secsInDay - allowableAfterStartTimeSecs;
+		
+		for (int i = firstIndexStartingAfter(earliestStartTime); 
+				i < blocks.length && startTimes[i] < startTimeLimit; ++i) {
+			Block block = blocks[i];
+			if (allowableAfterStartTimeSecs < 0 
+					&& secsInDay >= block.getEndTime())
+				continue;
+			if (checkForDuplicates && result.contains(block))
+				continue;
+			result.add(block);
+		}
+	}
+	
+	/**
+	 * Adds the blocks that are active at the specified time of day to the
+	 * result list, taking into account whether the service is valid today,
+	 * yesterday, and tomorrow. Same as Block.isActive() but for all of the
+	 * blocks of the service: blocks from yesterday can still be running 
+	 * past midnight and blocks for tomorrow can be about to start before
+	 * midnight.
+	 * 
+	 * @param secsInDay
+	 *            Time to check, in seconds into the current day
+	 * @param allowableBeforeTimeSecs
+	 * @param allowableAfterStartTimeSecs
+	 * @param validToday
+	 *            Whether the service is valid for the current day
+	 * @param validYesterday
+	 *            Whether the service was valid for the previous day
+	 * @param validTomorrow
+	 *            Whether the service is valid for the next day
+	 * @param result
+	 *            The list to add the active blocks to
+	 */
+	void addActiveBlocks(int secsInDay, int allowableBeforeTimeSecs,
+			int allowableAfterStartTimeSecs, boolean validToday,
+			boolean validYesterday, boolean validTomorrow, 
+			List<Block> result) {
+		// A block can only be active for more than one of the days if it
+		// can be active for at least a whole day. Only then does need to 
+		// check for duplicates, which is expensive.
+		boolean mightBeDuplicate = maxActiveSpanSecs(allowableBeforeTimeSecs,
+				allowableAfterStartTimeSecs) >= Time.DAY_IN_SECS;
+		boolean alreadyAdded = false;
+		if (validToday) {
+			addActiveBlocks(secsInDay, allowableBeforeTimeSecs,
+					allowableAfterStartTimeSecs, result, false);
+			alreadyAdded = true;
+		}
+		if (validYesterday) {
+			addActiveBlocks(secsInDay + Time.DAY_IN_SECS,
+					allowableBeforeTimeSecs, allowableAfterStartTimeSecs,
+					result, alreadyAdded && mightBeDuplicate);
+			alreadyAdded = true;
+		}
+		if (validTomorrow) {
+			addActiveBlocks(secsInDay - Time.DAY_IN_SECS,
+					allowableBeforeTimeSecs, allowableAfterStartTimeSecs,
+					result, alreadyAdded && mightBeDuplicate);
+		}
+	}
+	
+	/**
+	 * @return Number of blocks in the index
+	 */
+	int size() {
+		return blocks.length;
+	}
+}
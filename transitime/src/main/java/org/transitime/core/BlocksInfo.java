@@ -19,10 +19,13 @@ package org.transitime.core;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.transitime.applications.Core;
 import org.transitime.db.structs.Block;
@@ -38,6 +41,85 @@ import org.transitime.utils.Time;
  */
 public class BlocksInfo {
 
+	// Snapshots of the active blocks for the current clock tick and
+	// configuration. Replaced as a whole when the tick or the configuration
+	// changes so that old snapshots, and the blocks of an old configuration,
+	// are not kept around.
+	private static volatile SnapshotsForTick snapshotsForTick = null;
+	
+	// Limits the number of different allowable times that snapshots are
+	// kept for per tick, since the allowable before time can be specified
+	// by an API client
+	static final int MAX_SNAPSHOTS_PER_TICK = 16;
+	
+	// The interval indices of the blocks for the current configuration
+	private static volatile IndicesForConfig indicesForConfig = null;
+	
+	/**
+	 * The snapshots of the active blocks for a clock tick and configuration,
+	 * keyed on the allowable before and after start times combined into a
+	 * long.
+	 */
+	static class SnapshotsForTick {
+		private final DbConfig dbConfig;
+		private final long tick;
+		private final ConcurrentMap<Long, List<Block>> activeBlocksByTimes =
+				new ConcurrentHashMap<Long, List<Block>>();
+		
+		private SnapshotsForTick(DbConfig dbConfig, long tick) {
+			this.dbConfig = dbConfig;
+			this.tick = tick;
+		}
+		
+		private static Long getKey(int allowableBeforeTimeSecs,
+				int allowableAfterStartTimeSecs) {
+			return ((long) allowableBeforeTimeSecs << 32)
+					| (allowableAfterStartTimeSecs & 0xFFFFFFFFL);
+		}
+		
+		/**
+		 * @return The snapshot for the allowable times, or null if there
+		 *         isn't one
+		 */
+		List<Block> get(int allowableBeforeTimeSecs,
+				int allowableAfterStartTimeSecs) {
+			return activeBlocksByTimes.get(getKey(allowableBeforeTimeSecs,
+					allowableAfterStartTimeSecs));
+		}
+		
+		/**
+		 * Stores the snapshot for the allowable times, unless there are
+		 * already MAX_SNAPSHOTS_PER_TICK snapshots for the tick.
+		 */
+		void put(int allowableBeforeTimeSecs, int allowableAfterStartTimeSecs,
+				List<Block> activeBlocks) {
+			if (activeBlocksByTimes.size() < MAX_SNAPSHOTS_PER_TICK)
+				activeBlocksByTimes.putIfAbsent(getKey(allowableBeforeTimeSecs,
+						allowableAfterStartTimeSecs), activeBlocks);
+		}
+		
+		/**
+		 * @return Number of snapshots stored for the tick
+		 */
+		int size() {
+			return activeBlocksByTimes.size();
+		}
+	}
+	
+	/**
+	 * The interval indices by service ID for a configuration
+	 */
+	private static class IndicesForConfig {
+		private final DbConfig dbConfig;
+		private final ConcurrentMap<String, BlockIntervalIndex> 
+			indexByServiceId = 
+				new ConcurrentHashMap<String, BlockIntervalIndex>();
+		
+		private IndicesForConfig(DbConfig dbConfig) {
+			this.dbConfig = dbConfig;
+		}
+	}
+	
 	/********************** Member Functions **************************/
 
 	/**
@@ -92,16 +174,17 @@ public class BlocksInfo {
 	
 	/**
 	 * Returns list of blocks that are currently active for the specified
-	 * routes.
+	 * routes. Uses a snapshot of the active blocks that is determined once
+	 * per second so that the many callers don't each need to look at the
+	 * blocks.
 	 * 
 	 * @param routeIds
 	 *            Collection of routes IDs that want blocks for. Use null to
 	 *            indicate all routes.
 	 * @param blockIdsToIgnore
-	 *            Won't do the expensive lookup of the blocks in this set. This
-	 *            way can filter out blocks already assigned or such, and speed
-	 *            up the determination of active blocks. Set to null if simply
-	 *            want all currently active blocks.
+	 *            Blocks in this set are not included in the results. This
+	 *            way can filter out blocks already assigned or such. Set to
+	 *            null if simply want all currently active blocks.
 	 * @param allowableBeforeTimeSecs
 	 *            How much before the block time the block is considered to be
 	 *            active
@@ -110,83 +193,176 @@ public class BlocksInfo {
 	 *            considered active only if within this number of seconds after
 	 *            the start time. If less then zero then block considered active
 	 *            up to the block end time.
-     * @return List of currently active blocks. Will not be null.
+	 * @return List of currently active blocks. Will not be null. If routeIds
+	 *         and blockIdsToIgnore are null then the list is the unmodifiable
+	 *         shared snapshot.
 	 */
 	public static List<Block> getCurrentlyActiveBlocks(
 			Collection<String> routeIds, Set<String> blockIdsToIgnore,
 			int allowableBeforeTimeSecs, int allowableAfterStartTimeSecs) {
-		// The list to be returned
-		List<Block> activeBlocks = new ArrayList<Block>(1000);
-		
 		Core core = Core.getInstance();
 		if (core == null)
+			return new ArrayList<Block>(0);
+		
+		List<Block> activeBlocks = getActiveBlocksSnapshot(core,
+				allowableBeforeTimeSecs, allowableAfterStartTimeSecs);
+		
+		// If not filtering then can simply return the shared snapshot
+		boolean allRoutes = routeIds == null || routeIds.isEmpty();
+		if (allRoutes && blockIdsToIgnore == null)
 			return activeBlocks;
 		
-		// Determine which service IDs are currently active
-		Set<String> serviceIds = new HashSet<String>();
+		List<Block> filteredBlocks = new ArrayList<Block>(activeBlocks.size());
+		for (Block block : activeBlocks) {
+			// If this is a block to ignore then simply continue to the 
+			// next one
+			if (blockIdsToIgnore != null
+					&& blockIdsToIgnore.contains(block.getId()))
+				continue;
+			
+			// Determine if block is for specified route. If routeIds is
+			// null then interested in all routes
+			boolean forSpecifiedRoute = allRoutes;
+			if (!allRoutes) {
+				for (String routeId : routeIds) {
+					if (block.getRouteIds().contains(routeId)) {
+						forSpecifiedRoute = true;
+						break;
+					}
+				}
+			}
+			
+			if (forSpecifiedRoute)
+				filteredBlocks.add(block);
+		}
+		
+		return filteredBlocks;
+	}
+	
+	/**
+	 * Returns the snapshot of the active blocks for the current second and
+	 * the specified allowable times, creating it if it doesn't yet exist.
+	 * 
+	 * @param core
+	 * @param allowableBeforeTimeSecs
+	 * @param allowableAfterStartTimeSecs
+	 * @return Unmodifiable list of active blocks
+	 */
+	private static List<Block> getActiveBlocksSnapshot(Core core,
+			int allowableBeforeTimeSecs, int allowableAfterStartTimeSecs) {
+		DbConfig dbConfig = core.getDbConfig();
 		long now = core.getSystemTime();
-		List<String> currentServiceIds = 
-				core.getServiceUtils().getServiceIdsForDay(now);
-		serviceIds.addAll(currentServiceIds);
-		
-		// If current time is just a couple of hours after midnight then need
-		// to also look at service IDs for previous day as well since a block
-		// from the previous day might still be running after midnight.
-		int secsInDayForAvlReport = 
-				Core.getInstance().getTime().getSecondsIntoDay(now);
-		if (secsInDayForAvlReport < 4 * Time.HOUR_IN_SECS) {
-			List<String> previousDayServiceIds =
-					core.getServiceUtils().getServiceIdsForDay(
-							now - Time.DAY_IN_MSECS);
-			serviceIds.addAll(previousDayServiceIds);
+		SnapshotsForTick snapshots = 
+				getSnapshotsForTick(dbConfig, now / Time.MS_PER_SEC);
+		
+		List<Block> activeBlocks = snapshots.get(allowableBeforeTimeSecs,
+				allowableAfterStartTimeSecs);
+		if (activeBlocks == null) {
+			activeBlocks = Collections.unmodifiableList(determineActiveBlocks(
+					core, dbConfig, now, allowableBeforeTimeSecs, 
+					allowableAfterStartTimeSecs));
+			snapshots.put(allowableBeforeTimeSecs, allowableAfterStartTimeSecs,
+					activeBlocks);
 		}
-
-		// If current time is just before midnight then need to also look at
-		// service IDs from the next day since a block might start soon after
-		// midnight.
-		if (secsInDayForAvlReport > Time.DAY_IN_SECS - allowableBeforeTimeSecs) {
-			List<String> nextDayServiceIds =
-					core.getServiceUtils().getServiceIdsForDay(
-							now + Time.DAY_IN_MSECS);
-			serviceIds.addAll(nextDayServiceIds);
+		
+		return activeBlocks;
+	}
+	
+	/**
+	 * Returns the snapshots for the tick and configuration. If the current
+	 * snapshots are for an earlier tick or for a different configuration
+	 * then they are replaced by empty ones so that the old snapshots can be
+	 * garbage collected. If the current snapshots are for a later tick,
+	 * because another thread already moved on, then empty snapshots that
+	 * are not kept are returned.
+	 * 
+	 * @param dbConfig
+	 *            The current configuration
+	 * @param tick
+	 *            The current clock tick, in seconds
+	 * @return The snapshots for the tick and configuration
+	 */
+	static SnapshotsForTick getSnapshotsForTick(DbConfig dbConfig, long tick) {
+		SnapshotsForTick snapshots = snapshotsForTick;
+		if (snapshots != null && snapshots.tick == tick
+				&& snapshots.dbConfig == dbConfig)
+			return snapshots;
+		
+		SnapshotsForTick newSnapshots = new SnapshotsForTick(dbConfig, tick);
+		if (snapshots == null || snapshots.tick < tick 
+				|| snapshots.dbConfig != dbConfig)
+			snapshotsForTick = newSnapshots;
+		return newSnapshots;
+	}
+	
+	/**
+	 * Returns the interval index of the blocks for the service ID, creating
+	 * it if it doesn't yet exist for the current configuration.
+	 * 
+	 * @param dbConfig
+	 * @param serviceId
+	 * @return the index for the service ID
+	 */
+	private static BlockIntervalIndex getIndex(DbConfig dbConfig, 
+			String serviceId) {
+		IndicesForConfig indices = indicesForConfig;
+		if (indices == null || indices.dbConfig != dbConfig) {
+			indices = new IndicesForConfig(dbConfig);
+			indicesForConfig = indices;
 		}
 		
-		// For each service ID ...
+		BlockIntervalIndex index = indices.indexByServiceId.get(serviceId);
+		if (index == null) {
+			index = new BlockIntervalIndex(dbConfig.getBlocks(serviceId));
+			indices.indexByServiceId.putIfAbsent(serviceId, index);
+		}
+		return index;
+	}
+	
+	/**
+	 * Determines the blocks that are active at the specified time using the
+	 * interval indices. Same as calling Block.isActive() for every block of
+	 * the current service IDs but much quicker.
+	 * 
+	 * @return List of active blocks
+	 */
+	private static List<Block> determineActiveBlocks(Core core,
+			DbConfig dbConfig, long now, int allowableBeforeTimeSecs, 
+			int allowableAfterStartTimeSecs) {
+		List<Block> activeBlocks = new ArrayList<Block>();
+		
+		// Determine which service IDs are valid for today, yesterday, and
+		// tomorrow since blocks from yesterday can still be running after
+		// midnight and blocks for tomorrow can be about to start.
+		ServiceUtils serviceUtils = core.getServiceUtils();
+		List<String> todayServiceIds = serviceUtils.getServiceIdsForDay(now);
+		List<String> yesterdayServiceIds =
+				serviceUtils.getServiceIdsForDay(now - Time.DAY_IN_MSECS);
+		List<String> tomorrowServiceIds =
+				serviceUtils.getServiceIdsForDay(now + Time.DAY_IN_MSECS);
+		
+		// Determine which service IDs to look at. Only look at the service
+		// IDs for the previous day if current time is just a couple of hours
+		// after midnight, and at the ones for the next day if just before
+		// midnight.
+		Set<String> serviceIds = new HashSet<String>(todayServiceIds);
+		int secsInDay = core.getTime().getSecondsIntoDay(now);
+		if (secsInDay < 4 * Time.HOUR_IN_SECS)
+			serviceIds.addAll(yesterdayServiceIds);
+		if (secsInDay > Time.DAY_IN_SECS - allowableBeforeTimeSecs)
+			serviceIds.addAll(tomorrowServiceIds);
+		
+		// For each service ID add the blocks that are active today, or
+		// past midnight for service that was valid yesterday, or before
+		// midnight for service that is valid tomorrow.
 		for (String serviceId : serviceIds) {
-			DbConfig dbConfig = core.getDbConfig();
-			Collection<Block> blocks = dbConfig.getBlocks(serviceId);
-			
-			// If the block is about to be or currently active then
-			// add it to the list to be returned
-			for (Block block : blocks) {
-				// If this is a block to ignore then simply continue to the 
-				// next one
-				if (blockIdsToIgnore != null
-						&& blockIdsToIgnore.contains(block.getId()))
-					continue;
-				
-				// Determine if block is for specified route. If routeIds is
-				// null then interested in all routes
-				boolean forSpecifiedRoute = true;
-				if (routeIds != null && !routeIds.isEmpty()) {
-					forSpecifiedRoute = false;
-					for (String routeId : routeIds) {
-						if (block.getRouteIds().contains(routeId)) {
-							forSpecifiedRoute = true;
-							break;
-						}
-					}
-				}
-				
-				// If block currently active and is for specified route then
-				// add it to the list
-				if (block.isActive(now, allowableBeforeTimeSecs,
-						allowableAfterStartTimeSecs) && forSpecifiedRoute)
-					activeBlocks.add(block);
-			}
+			getIndex(dbConfig, serviceId).addActiveBlocks(secsInDay, 
+					allowableBeforeTimeSecs, allowableAfterStartTimeSecs, 
+					todayServiceIds.contains(serviceId),
+					yesterdayServiceIds.contains(serviceId),
+					tomorrowServiceIds.contains(serviceId), activeBlocks);
 		}
 		
-		// Done!
 		return activeBlocks;
 	}
 }
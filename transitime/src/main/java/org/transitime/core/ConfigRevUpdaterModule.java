@@ -0,0 +1,404 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ * 
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.configData.AgencyConfig;
+import org.transitime.core.dataCache.VehicleDataCache;
+import org.transitime.core.dataCache.VehicleStateManager;
+import org.transitime.db.structs.ActiveRevisions;
+import org.transitime.db.structs.Block;
+import org.transitime.db.structs.StopPath;
+import org.transitime.db.structs.Trip;
+import org.transitime.db.structs.VehicleEvent;
+import org.transitime.gtfs.DbConfig;
+import org.transitime.logging.Markers;
+import org.transitime.modules.Module;
+import org.transitime.utils.IntervalTimer;
+import org.transitime.utils.Time;
+
+/**
+ * For switching in new configuration data without having to restart the
+ * core. Polls the ActiveRevisions table and when the configRev or the
+ * travelTimesRev changes the new configuration is read in the background
+ * while the current one continues to be used. Then, between AVL reports, the
+ * new configuration is switched in and the vehicles are updated to use the
+ * equivalent blocks of the new configuration. If a block is not equivalent,
+ * meaning that the trips or the stop paths of it changed, then the vehicle
+ * assignment is terminated so that the vehicle gets matched again.
+ * <p>
+ * This is an optional module that can be enabled by adding it to the
+ * transitime.modules.optionalModulesList parameter.
+ * 
+ */
+public class ConfigRevUpdaterModule extends Module {
+
+	// The revisions that are currently being used
+	private int configRev;
+	private int travelTimesRev;
+	
+	/********************* Parameters *********************************/
+	
+	private static IntegerConfigValue pollingRateSecs = 
+			new IntegerConfigValue(
+					"transitime.core.configRevUpdater.pollingRateSecs", 
+					60,
+					"How frequently in seconds the ActiveRevisions table "
+					+ "should be checked to see if there is a new config or "
+					+ "travel times rev that should be switched in.");
+
+	private static IntegerConfigValue maxStopPathLengthDifference = 
+			new IntegerConfigValue(
+					"transitime.core.configRevUpdater.maxStopPathLengthDifference", 
+					5,
+					"When switching in a new configuration a block is only "
+					+ "considered to be equivalent, so that vehicles can "
+					+ "continue to use it without being matched again, if "
+					+ "the lengths of its stop paths changed by no more than "
+					+ "this number of meters.");
+
+	/********************* Logging ************************************/
+	
+	private static final Logger logger = LoggerFactory
+			.getLogger(ConfigRevUpdaterModule.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Constructor
+	 * 
+	 * @param agencyId
+	 */
+	public ConfigRevUpdaterModule(String agencyId) {
+		super(agencyId);
+	}
+
+	/**
+	 * Returns true if the two blocks have the same trips with the same stop
+	 * paths such that the matches of a vehicle can simply be converted to use
+	 * the new block.
+	 * 
+	 * @param oldBlock
+	 * @param newBlock
+	 * @return true if the blocks are equivalent
+	 */
+	private static boolean isEquivalent(Block oldBlock, Block newBlock) {
+		List<Trip> oldTrips = oldBlock.getTrips();
+		List<Trip> newTrips = newBlock.getTrips();
+		if (oldTrips.size() != newTrips.size())
+			return false;
+		
+		for (int tripIndex = 0; tripIndex < oldTrips.size(); ++tripIndex) {
+			Trip oldTrip = oldTrips.get(tripIndex);
+			Trip newTrip = newTrips.get(tripIndex);
+			if (!oldTrip.getId().equals(newTrip.getId())
+					|| oldTrip.getNumberStopPaths() != newTrip
+							.getNumberStopPaths())
+				return false;
+			
+			for (int stopPathIndex = 0; 
+					stopPathIndex < oldTrip.getNumberStopPaths(); 
+					++stopPathIndex) {
+				StopPath oldPath = oldTrip.getStopPath(stopPathIndex);
+				StopPath newPath = newTrip.getStopPath(stopPathIndex);
+				if (!oldPath.getStopId().equals(newPath.getStopId())
+						|| oldPath.getNumberSegments() != newPath
+								.getNumberSegments()
+						|| Math.abs(oldPath.getLength() - newPath.getLength()) 
+							> maxStopPathLengthDifference.getValue())
+					return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Returns the block from the new configuration that is equivalent to the
+	 * specified block from the old configuration.
+	 * 
+	 * @param oldBlock
+	 * @param newDbConfig
+	 * @return the equivalent block, or null if there isn't one
+	 */
+	private static Block getEquivalentBlock(Block oldBlock,
+			DbConfig newDbConfig) {
+		Block newBlock = newDbConfig.getBlock(oldBlock.getServiceId(), 
+				oldBlock.getId());
+		if (newBlock == null || !isEquivalent(oldBlock, newBlock))
+			return null;
+		return newBlock;
+	}
+	
+	/**
+	 * Converts the match so that it uses the new block. The indices and
+	 * distances are kept the same since the blocks are equivalent.
+	 * 
+	 * @param match
+	 * @param newBlock
+	 * @return the converted match
+	 */
+	private static TemporalMatch convertMatch(TemporalMatch match,
+			Block newBlock) {
+		SpatialMatch spatialMatch = new SpatialMatch(match.getAvlTime(),
+				newBlock, match.getTripIndex(), match.getStopPathIndex(),
+				match.getSegmentIndex(), match.getDistanceToSegment(),
+				match.getDistanceAlongSegment());
+		return new TemporalMatch(spatialMatch, match.getTemporalDifference());
+	}
+	
+	/**
+	 * How a vehicle is to be switched to the new configuration. These are
+	 * determined for all of the vehicles before the new configuration is
+	 * switched in so that a problem converting a vehicle can't leave the
+	 * core partly switched.
+	 */
+	private static class VehicleSwitch {
+		private final VehicleState vehicleState;
+		private final Block newBlock;
+		private final List<TemporalMatch> newMatchHistory;
+		// If not null then the vehicle needs to be matched again
+		private final String unpredictableReason;
+		
+		private VehicleSwitch(VehicleState vehicleState, Block newBlock,
+				List<TemporalMatch> newMatchHistory) {
+			this.vehicleState = vehicleState;
+			this.newBlock = newBlock;
+			this.newMatchHistory = newMatchHistory;
+			this.unpredictableReason = null;
+		}
+		
+		private VehicleSwitch(VehicleState vehicleState, 
+				String unpredictableReason) {
+			this.vehicleState = vehicleState;
+			this.newBlock = null;
+			this.newMatchHistory = null;
+			this.unpredictableReason = unpredictableReason;
+		}
+	}
+	
+	/**
+	 * Determines how the vehicle is to use the equivalent block from the new
+	 * configuration. Matches in the history that can't be converted are
+	 * dropped. If the block the vehicle is assigned to doesn't have an
+	 * equivalent then the assignment is to be terminated so that the vehicle
+	 * will be matched again using the new configuration. Doesn't modify the
+	 * vehicle.
+	 * 
+	 * @param vehicleState
+	 * @param newDbConfig
+	 * @return how to switch the vehicle
+	 */
+	private static VehicleSwitch getVehicleSwitch(VehicleState vehicleState,
+			DbConfig newDbConfig) {
+		Block oldBlock = vehicleState.getBlock();
+		Block newBlock = null;
+		if (oldBlock != null) {
+			newBlock = getEquivalentBlock(oldBlock, newDbConfig);
+			if (newBlock == null) {
+				return new VehicleSwitch(vehicleState, "Block " 
+						+ oldBlock.getId() + " changed in configRev=" 
+						+ newDbConfig.getConfigRev() 
+						+ " so vehicle needs to be matched again.");
+			}
+		}
+		
+		// Convert the match history. Usually all the matches are for the
+		// same block so only need to look up the equivalent block when it
+		// changes.
+		List<TemporalMatch> newMatchHistory = new ArrayList<TemporalMatch>();
+		Block oldMatchBlock = oldBlock;
+		Block newMatchBlock = newBlock;
+		for (TemporalMatch match : vehicleState.getMatches()) {
+			if (match == null) {
+				newMatchHistory.add(null);
+				continue;
+			}
+			
+			if (match.getBlock() != oldMatchBlock) {
+				oldMatchBlock = match.getBlock();
+				newMatchBlock = getEquivalentBlock(oldMatchBlock, newDbConfig);
+			}
+			
+			// If older match can't be converted then can't use rest of 
+			// history either
+			if (newMatchBlock == null)
+				break;
+			
+			newMatchHistory.add(convertMatch(match, newMatchBlock));
+		}
+		
+		return new VehicleSwitch(vehicleState, newBlock, newMatchHistory);
+	}
+	
+	/**
+	 * Updates the vehicle as determined by getVehicleSwitch(). For after the
+	 * new configuration has been switched in.
+	 * 
+	 * @param vehicleSwitch
+	 */
+	private static void switchVehicle(VehicleSwitch vehicleSwitch) {
+		VehicleState vehicleState = vehicleSwitch.vehicleState;
+		if (vehicleSwitch.unpredictableReason != null) {
+			AvlProcessor.getInstance()
+					.makeVehicleUnpredictableAndTerminateAssignment(
+							vehicleState, vehicleSwitch.unpredictableReason,
+							VehicleEvent.ASSIGNMENT_CHANGED);
+		} else {
+			vehicleState.switchToEquivalentBlock(vehicleSwitch.newBlock,
+					vehicleSwitch.newMatchHistory);
+			VehicleDataCache.getInstance().updateVehicle(vehicleState);
+		}
+	}
+	
+	/**
+	 * Reads in the specified configuration in the background and then
+	 * switches it in, updating all of the vehicles while holding the write
+	 * lock of the config lock so that no AVL reports are processed while
+	 * doing so. How each vehicle is to be switched is determined before the
+	 * new configuration is switched in. If that fails for a vehicle then the
+	 * vehicle is made unpredictable so that it gets matched again instead of
+	 * being left with blocks from the old configuration. Once switched in the
+	 * global session of the old configuration is closed.
+	 * 
+	 * @param newConfigRev
+	 */
+	private void switchConfig(int newConfigRev) {
+		IntervalTimer timer = new IntervalTimer();
+		
+		DbConfig newDbConfig = new DbConfig(getAgencyId());
+		newDbConfig.readInBackground(newConfigRev);
+		ServiceUtils newService = new ServiceUtils(newDbConfig);
+		Time newTime = new Time(newDbConfig);
+		
+		Core core = Core.getInstance();
+		Lock configWriteLock = core.getConfigLock().writeLock();
+		IntervalTimer switchTimer = new IntervalTimer();
+		DbConfig oldDbConfig;
+		configWriteLock.lock();
+		try {
+			List<VehicleSwitch> vehicleSwitches = new ArrayList<VehicleSwitch>();
+			for (VehicleState vehicleState : 
+					VehicleStateManager.getInstance().getVehiclesState()) {
+				synchronized (vehicleState) {
+					try {
+						vehicleSwitches.add(
+								getVehicleSwitch(vehicleState, newDbConfig));
+					} catch (RuntimeException e) {
+						logger.error("Could not convert vehicleId={} to "
+								+ "configRev={} so it will be matched again.",
+								vehicleState.getVehicleId(), newConfigRev, e);
+						vehicleSwitches.add(new VehicleSwitch(vehicleState,
+								"Could not convert vehicle to configRev="
+										+ newConfigRev + " so vehicle needs "
+										+ "to be matched again."));
+					}
+				}
+			}
+			
+			oldDbConfig = core.getDbConfig();
+			core.setConfig(newDbConfig, newService, newTime);
+			
+			for (VehicleSwitch vehicleSwitch : vehicleSwitches) {
+				synchronized (vehicleSwitch.vehicleState) {
+					try {
+						switchVehicle(vehicleSwitch);
+					} catch (RuntimeException e) {
+						logger.error("Error switching vehicleId={} to "
+								+ "configRev={}.", 
+								vehicleSwitch.vehicleState.getVehicleId(), 
+								newConfigRev, e);
+					}
+				}
+			}
+		} finally {
+			configWriteLock.unlock();
+		}
+		logger.info("Switching in configRev={} blocked AVL processing for "
+				+ "{} msec", newConfigRev, switchTimer.elapsedMsec());
+		
+		// The old configuration is no longer used so its session for lazy
+		// loading can be closed
+		oldDbConfig.closeGlobalSession();
+		
+		// Now that the new trip patterns are being used create the spatial
+		// indices for them
+		newDbConfig.createSpatialIndices();
+		
+		logger.info("Reading in and switching to configRev={} took {} msec",
+				newConfigRev, timer.elapsedMsec());
+	}
+	
+	/**
+	 * Reads in the active revisions and switches in a new configuration if
+	 * they have changed.
+	 */
+	private void checkForNewRevs() {
+		ActiveRevisions activeRevisions = ActiveRevisions.get(getAgencyId());
+		if (activeRevisions == null || !activeRevisions.isValid())
+			return;
+		
+		if (activeRevisions.getConfigRev() == configRev
+				&& activeRevisions.getTravelTimesRev() == travelTimesRev)
+			return;
+		
+		logger.info("Active revisions changed from configRev={} "
+				+ "travelTimesRev={} to {}. Therefore switching in the new "
+				+ "configuration.", configRev, travelTimesRev, 
+				activeRevisions);
+		switchConfig(activeRevisions.getConfigRev());
+		configRev = activeRevisions.getConfigRev();
+		travelTimesRev = activeRevisions.getTravelTimesRev();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		logger.info("Starting module {} for agencyId={}", getClass().getName(),
+				getAgencyId());
+
+		// Start with the revisions that the core is currently using
+		configRev = Core.getInstance().getDbConfig().getConfigRev();
+		ActiveRevisions activeRevisions = ActiveRevisions.get(getAgencyId());
+		travelTimesRev = activeRevisions != null ? 
+				activeRevisions.getTravelTimesRev() : -1;
+		
+		// Run forever
+		while (true) {
+			Time.sleep(pollingRateSecs.getValue() * Time.MS_PER_SEC);
+
+			try {
+				checkForNewRevs();
+			} catch (Exception e) {
+				logger.error(Markers.email(),
+						"Error with ConfigRevUpdaterModule for agencyId={}", 
+						AgencyConfig.getAgencyId(), e);
+			}
+		}
+	}
+}
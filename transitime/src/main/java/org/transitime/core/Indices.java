@@ -216,6 +216,20 @@ class Indices {
 		return this;
 	}
 
+	/**
+	 * Moves the indices to the beginning of the specified stop path of the
+	 * current trip. Like incrementStopPath() the segmentIndex is set to 0.
+	 * 
+	 * @param stopPathIndex
+	 *            Stop path of the current trip to move to
+	 * @return Indices for the specified StopPath
+	 */
+	public Indices setStopPathIndex(int stopPathIndex) {
+		this.stopPathIndex = stopPathIndex;
+		segmentIndex = 0;
+		return this;
+	}
+	
 	/**
 	 * For handling special case where have a noSchedule assignment. If
 	 * noSchedule assignment then will use the proper trip depending on the time
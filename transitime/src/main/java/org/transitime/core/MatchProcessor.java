@@ -72,8 +72,17 @@ public class MatchProcessor {
 				vehicleState.getVehicleId());
 
 		// Generate the new predictions for the vehicle
+		List<IpcPrediction> oldPredictions = vehicleState.getPredictions();
 		List<IpcPrediction> newPredictions = 
 				PredictionGeneratorFactory.getInstance().generate(vehicleState);
+		
+		// If the predictions were updated incrementally and didn't change 
+		// then there is nothing to do
+		if (newPredictions == oldPredictions) {
+			logger.debug("Predictions for vehicleId={} didn't change.",
+					vehicleState.getVehicleId());
+			return;
+		}
 
 		// Store the predictions in database if so configured
 		if (CoreConfig.getMaxPredictionsTimeForDbSecs() > 0) {
@@ -89,13 +98,14 @@ public class MatchProcessor {
 		}
 
 		// Update the predictions cache to use the new predictions for the
-		// vehicle
-		List<IpcPrediction> oldPredictions = vehicleState.getPredictions();
-		PredictionDataCache.getInstance().updatePredictions(oldPredictions,
-				newPredictions);
+		// vehicle. Only the stops where the predictions actually changed are
+		// updated so the predictions now in the cache for the vehicle are 
+		// returned.
+		List<IpcPrediction> cachedPredictions = PredictionDataCache
+				.getInstance().updatePredictions(oldPredictions, newPredictions);
 
 		// Update predictions for vehicle
-		vehicleState.setPredictions(newPredictions);
+		vehicleState.setPredictions(cachedPredictions);
 	}
 
 	/**
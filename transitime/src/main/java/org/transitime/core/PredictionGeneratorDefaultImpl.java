@@ -96,6 +96,38 @@ public class PredictionGeneratorDefaultImpl implements PredictionGenerator {
 					+ "time will be used. If false then the schedule time plus "
 					+ "the wait stop time will be used.");
 	
+	private static BooleanConfigValue incrementalPredictions =
+			new BooleanConfigValue("transitime.core.incrementalPredictions", 
+					false,
+					"If true then when a vehicle is still on the same stop "
+					+ "path as for the previous AVL report, and the expected "
+					+ "arrival time at the end of the stop path changed by "
+					+ "less than "
+					+ "transitime.core.incrementalPredictionsMaxDeltaMsec, "
+					+ "the existing predictions are simply shifted by the "
+					+ "change instead of being completely regenerated. Not "
+					+ "done for predictions affected by a wait stop since "
+					+ "those depend on the schedule.");
+	
+	private static IntegerConfigValue incrementalPredictionsMaxDeltaMsec =
+			new IntegerConfigValue(
+					"transitime.core.incrementalPredictionsMaxDeltaMsec", 
+					30 * Time.MS_PER_SEC,
+					"When transitime.core.incrementalPredictions is true the "
+					+ "predictions are only shifted if the expected arrival "
+					+ "time at the end of the stop path changed by less than "
+					+ "this number of msec. Otherwise they are regenerated.");
+	
+	private static IntegerConfigValue maxIncrementalPredictionUpdates =
+			new IntegerConfigValue(
+					"transitime.core.maxIncrementalPredictionUpdates", 
+					5,
+					"When transitime.core.incrementalPredictions is true the "
+					+ "predictions are regenerated after having been shifted "
+					+ "this many times in a row. This way predictions are "
+					+ "added for stops that are now within "
+					+ "transitime.core.maxPredictionsTimeSecs.");
+	
 	private static final Logger logger = 
 			LoggerFactory.getLogger(PredictionGeneratorDefaultImpl.class);
 
@@ -283,7 +315,146 @@ public class PredictionGeneratorDefaultImpl implements PredictionGenerator {
 	}
 		
 	/**
-	 * Generates the predictions for the vehicle. 
+	 * Returns true if the existing predictions for a vehicle can simply be
+	 * shifted. Predictions affected by a wait stop depend on the schedule so
+	 * can't be shifted. And if the delayed or uncertain status of a
+	 * prediction would now be different then the predictions need to be
+	 * regenerated to reflect that.
+	 * 
+	 * @param oldPredictions
+	 *            The existing predictions for the vehicle
+	 * @param isDelayed
+	 *            Whether the vehicle is now delayed
+	 * @param lateSoMarkSubsequentTripsAsUncertain
+	 *            Whether predictions for subsequent trips would now be marked
+	 *            as uncertain because the vehicle is late
+	 * @param currentTripId
+	 *            The trip the vehicle is currently on. Predictions for other
+	 *            trips are for subsequent ones.
+	 * @return true if the predictions can be shifted
+	 */
+	static boolean canShiftPredictions(List<IpcPrediction> oldPredictions,
+			boolean isDelayed, boolean lateSoMarkSubsequentTripsAsUncertain,
+			String currentTripId) {
+		for (IpcPrediction prediction : oldPredictions) {
+			boolean lateSoMarkAsUncertain = 
+					lateSoMarkSubsequentTripsAsUncertain
+							&& !prediction.getTripId().equals(currentTripId);
+			if (prediction.isAffectedByWaitStop()
+					|| prediction.isDelayed() != isDelayed
+					|| prediction.isLateAndSubsequentTripSoMarkAsUncertain() 
+						!= lateSoMarkAsUncertain)
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Returns the predictions shifted by deltaMsec for the new AVL report,
+	 * dropping the ones that are then no longer after now.
+	 * 
+	 * @param oldPredictions
+	 * @param avlReport
+	 *            The new AVL report
+	 * @param deltaMsec
+	 *            How much to shift the predictions by
+	 * @param now
+	 *            The current system time
+	 * @return the shifted predictions
+	 */
+	static List<IpcPrediction> getShiftedPredictions(
+			List<IpcPrediction> oldPredictions, AvlReport avlReport,
+			long deltaMsec, long now) {
+		List<IpcPrediction> shiftedPredictions = 
+				new ArrayList<IpcPrediction>(oldPredictions.size());
+		for (IpcPrediction prediction : oldPredictions) {
+			if (prediction.getPredictionTime() + deltaMsec > now)
+				shiftedPredictions.add(
+						new IpcPrediction(prediction, avlReport, deltaMsec));
+		}
+		return shiftedPredictions;
+	}
+	
+	/**
+	 * For incrementally updating the predictions. If the vehicle is still on
+	 * the same stop path as for the previous match and the expected arrival
+	 * time at the end of the stop path changed by less than
+	 * incrementalPredictionsMaxDeltaMsec then the existing predictions are
+	 * shifted by the change instead of being regenerated. If the change is
+	 * less than a second the existing predictions are used as is.
+	 * 
+	 * @param vehicleState
+	 * @param basePredictionTime
+	 *            The new expected arrival time at the end of the stop path
+	 * @param lateSoMarkSubsequentTripsAsUncertain
+	 *            Whether predictions for subsequent trips would now be marked
+	 *            as uncertain because the vehicle is late
+	 * @return The shifted predictions, the existing predictions list if
+	 *         nothing changed, or null if the predictions need to be
+	 *         regenerated
+	 */
+	private List<IpcPrediction> shiftPredictions(VehicleState vehicleState,
+			long basePredictionTime, 
+			boolean lateSoMarkSubsequentTripsAsUncertain) {
+		List<IpcPrediction> oldPredictions = vehicleState.getPredictions();
+		if (oldPredictions == null || oldPredictions.isEmpty())
+			return null;
+		
+		// Regularly regenerate so that stops that are now within the max 
+		// predictions time are added
+		int incrementalUpdates = vehicleState.getIncrementalPredictionUpdates();
+		if (incrementalUpdates >= maxIncrementalPredictionUpdates.getValue())
+			return null;
+		
+		// Vehicle needs to still be on the same stop path
+		TemporalMatch match = vehicleState.getMatch();
+		TemporalMatch previousMatch = vehicleState.getPreviousMatch();
+		if (previousMatch == null 
+				|| previousMatch.getBlock() != match.getBlock()
+				|| previousMatch.getTripIndex() != match.getTripIndex()
+				|| previousMatch.getStopPathIndex() != match.getStopPathIndex())
+			return null;
+		
+		if (!canShiftPredictions(oldPredictions, vehicleState.isDelayed(),
+				lateSoMarkSubsequentTripsAsUncertain, match.getTrip().getId()))
+			return null;
+		
+		long deltaMsec = 
+				basePredictionTime - vehicleState.getPredictionsBaseTime();
+		if (Math.abs(deltaMsec) >= incrementalPredictionsMaxDeltaMsec.getValue())
+			return null;
+
+		// If change is insignificant then simply keep the existing 
+		// predictions. Don't change the base time so that small changes
+		// don't accumulate.
+		if (Math.abs(deltaMsec) < Time.MS_PER_SEC) {
+			vehicleState.setPredictionsBase(
+					vehicleState.getPredictionsBaseTime(), 
+					incrementalUpdates + 1);
+			logger.debug("For vehicleId={} predictions changed by only {} "
+					+ "msec so keeping existing predictions.",
+					vehicleState.getVehicleId(), deltaMsec);
+			return oldPredictions;
+		}
+		
+		List<IpcPrediction> shiftedPredictions = getShiftedPredictions(
+				oldPredictions, vehicleState.getAvlReport(), deltaMsec, 
+				Core.getInstance().getSystemTime());
+		vehicleState.setPredictionsBase(basePredictionTime, 
+				incrementalUpdates + 1);
+		
+		logger.debug("For vehicleId={} shifted {} predictions by {} msec "
+				+ "instead of regenerating them.", vehicleState.getVehicleId(),
+				shiftedPredictions.size(), deltaMsec);
+		return shiftedPredictions;
+	}
+	
+	/**
+	 * Generates the predictions for the vehicle. If incremental predictions
+	 * are enabled then the existing predictions might simply be shifted, in
+	 * which case the existing predictions list is returned if nothing
+	 * changed.
 	 * 
 	 * @param vehicleState
 	 *            Contains the new match for the vehicle that the predictions
@@ -328,6 +499,17 @@ public class PredictionGeneratorDefaultImpl implements PredictionGenerator {
 		boolean lateSoMarkSubsequentTripsAsUncertain = lateness != null ? 
 						lateness.isLaterThan(maxLateCutoffPredsForNextTripsSecs
 								.getValue()) : false;
+		
+		// If possible simply shift the existing predictions
+		if (incrementalPredictions.getValue() && !schedBasedPreds) {
+			List<IpcPrediction> shiftedPredictions = shiftPredictions(
+					vehicleState, predictionTime, 
+					lateSoMarkSubsequentTripsAsUncertain);
+			if (shiftedPredictions != null)
+				return shiftedPredictions;
+		}
+		vehicleState.setPredictionsBase(predictionTime, 0);
+		
 		if (lateSoMarkSubsequentTripsAsUncertain)
 			logger.info("Vehicle late so marking predictions for subsequent "
 					+ "trips as being uncertain. {}", vehicleState);
@@ -385,7 +567,7 @@ public class PredictionGeneratorDefaultImpl implements PredictionGenerator {
 			if (!lastStopOfNonSchedBasedTrip
 					&& predictionForStop.getPredictionTime() > now) {
 				newPredictions.add(predictionForStop);
-				logger.info("Generated prediction {}", predictionForStop);
+				logger.debug("Generated prediction {}", predictionForStop);
 			}
 			
 			// Determine prediction time for the departure. For layovers
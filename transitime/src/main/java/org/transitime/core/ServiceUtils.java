@@ -17,21 +17,27 @@
 package org.transitime.core;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.transitime.applications.Core;
+import org.transitime.config.BooleanConfigValue;
 import org.transitime.config.IntegerConfigValue;
 import org.transitime.db.structs.Agency;
 import org.transitime.db.structs.Calendar;
 import org.transitime.db.structs.CalendarDate;
 import org.transitime.gtfs.DbConfig;
+import org.transitime.utils.IntervalTimer;
 import org.transitime.utils.Time;
 
 /**
@@ -47,6 +53,30 @@ public class ServiceUtils {
 	
 	private final DbConfig dbConfig;
 	
+	// For determining the local day of an epoch time without locking
+	private final Time time;
+	
+	// Each service ID is given an index so that the service IDs active for
+	// a day can be stored as a BitSet.
+	private final Map<String, Integer> serviceIdIndices =
+			new HashMap<String, Integer>();
+	
+	// The precomputed service IDs for each day, indexed by the number of
+	// days since firstIndexedDay. The lists are unmodifiable so they can
+	// be shared by all callers. Null if the days are not precomputed.
+	private int firstIndexedDay;
+	private BitSet[] activeServiceIdsByDay = null;
+	private List<List<String>> serviceIdsByDay = null;
+	private List<Collection<String>> serviceIdsInclPreviousDayByDay = null;
+	
+	// The days for which all calendars had expired so that the old ones
+	// were used
+	private BitSet calendarsExpiredDays = null;
+	
+	// Don't want to precompute an unreasonable number of days if the 
+	// calendars are configured for a very long time span
+	private static final int MAX_DAYS_TO_PRECOMPUTE = 10 * 366;
+	
 	private static IntegerConfigValue minutesIntoMorningToIncludePreviousServiceIds =
 			new IntegerConfigValue(
 					"transitime.service.minutesIntoMorningToIncludePreviousServiceIds",
@@ -57,6 +87,23 @@ public class ServiceUtils {
 					+ "service IDs since that confuses things. Therefore just "
 					+ "include them if before this time of the day, in minutes.");
 
+	private static BooleanConfigValue precomputeServiceIds =
+			new BooleanConfigValue(
+					"transitime.service.precomputeServiceIds",
+					true,
+					"If true then the service IDs for every day covered by "
+					+ "the calendars are determined when the configuration "
+					+ "is loaded so that they are simply looked up instead "
+					+ "of being determined each time they are needed.");
+	
+	private static IntegerConfigValue daysToPrecomputePastCalendarEnd =
+			new IntegerConfigValue(
+					"transitime.service.daysToPrecomputePastCalendarEnd",
+					60,
+					"When precomputing service IDs also do so for this many "
+					+ "days after the last calendar ends since the old "
+					+ "calendars are still used if they all have expired.");
+
 	private static final Logger logger = 
 			LoggerFactory.getLogger(ServiceUtils.class);
 
@@ -69,12 +116,169 @@ public class ServiceUtils {
 	 * @param timezoneName See http://en.wikipedia.org/wiki/List_of_tz_zones
 	 */
 	public ServiceUtils(DbConfig dbConfig) { 
+		this(dbConfig, precomputeServiceIds.getValue());
+	}
+	
+	/**
+	 * ServiceUtils constructor that can specify whether the service IDs 
+	 * should be precomputed. Package visible so that tests can compare the
+	 * precomputed results to the ones determined each time.
+	 * 
+	 * @param dbConfig
+	 * @param precompute
+	 *            Whether to precompute the service IDs for each day
+	 */
+	ServiceUtils(DbConfig dbConfig, boolean precompute) { 
 		Agency agency = dbConfig.getFirstAgency();
 		this.calendar =
 				agency != null ? 
 						new GregorianCalendar(agency.getTimeZone())
 						: new GregorianCalendar();
 		this.dbConfig = dbConfig;
+		this.time = new Time(dbConfig);
+		
+		if (precompute)
+			precomputeServiceIdsForDays();
+	}
+
+	/**
+	 * Returns an epoch time at about noon of the local day. Since calendars
+	 * start and end at midnight the service IDs for that time are the ones
+	 * for the whole day.
+	 * 
+	 * @param epochDay
+	 *            number of days since 1/1/1970
+	 * @return epoch time at noon of the day
+	 */
+	private long getNoon(int epochDay) {
+		long epochTime = epochDay * Time.MS_PER_DAY + 12 * Time.MS_PER_HOUR;
+		epochTime += (epochDay - time.getEpochDay(epochTime)) * Time.MS_PER_DAY;
+		return epochTime 
+				- (time.getMsecsIntoDay(epochTime) - 12 * Time.MS_PER_HOUR);
+	}
+	
+	/**
+	 * Determines the service IDs for each day from the day before the first
+	 * calendar starts through daysToPrecomputePastCalendarEnd after the last
+	 * one ends. This way the service IDs for a time can simply be looked up
+	 * instead of going through all of the calendars and calendar dates each
+	 * time. Since the service IDs depend only on the calendars and calendar
+	 * dates of the configuration this only needs to be done once.
+	 */
+	private void precomputeServiceIdsForDays() {
+		List<Calendar> calendars = dbConfig.getCalendars();
+		if (calendars == null || calendars.isEmpty())
+			return;
+		
+		IntervalTimer timer = new IntervalTimer();
+		
+		// Determine range of days covered by the calendars and number the
+		// service IDs
+		long minStartTime = Long.MAX_VALUE;
+		long maxEndTime = Long.MIN_VALUE;
+		for (Calendar calendar : calendars) {
+			minStartTime = 
+					Math.min(calendar.getStartDate().getTime(), minStartTime);
+			maxEndTime = Math.max(calendar.getEndDate().getTime(), maxEndTime);
+			addServiceIdIndex(calendar.getServiceId());
+		}
+		for (CalendarDate calendarDate : dbConfig.getCalendarDates())
+			addServiceIdIndex(calendarDate.getServiceId());
+		
+		// Start with the day before the first calendar so that the service
+		// IDs for the previous day are available for the first day
+		int firstDay = time.getEpochDay(minStartTime) - 1;
+		int lastDay = time.getEpochDay(maxEndTime)
+				+ daysToPrecomputePastCalendarEnd.getValue();
+		int numDays = lastDay - firstDay + 1;
+		if (numDays > MAX_DAYS_TO_PRECOMPUTE) {
+			logger.warn("Calendars cover {} days which is more than the "
+					+ "maximum of {} so not precomputing the service IDs.",
+					numDays, MAX_DAYS_TO_PRECOMPUTE);
+			return;
+		}
+		
+		BitSet[] activeServiceIds = new BitSet[numDays];
+		List<List<String>> serviceIds = new ArrayList<List<String>>(numDays);
+		List<Collection<String>> serviceIdsInclPreviousDay =
+				new ArrayList<Collection<String>>(numDays);
+		BitSet expiredDays = new BitSet(numDays);
+		for (int i = 0; i < numDays; ++i) {
+			long noon = getNoon(firstDay + i);
+			List<String> serviceIdsForDay = Collections.unmodifiableList(
+					determineServiceIdsForDay(new Date(noon), false));
+			serviceIds.add(serviceIdsForDay);
+			
+			BitSet bitSet = new BitSet(serviceIdIndices.size());
+			for (String serviceId : serviceIdsForDay)
+				bitSet.set(serviceIdIndices.get(serviceId));
+			activeServiceIds[i] = bitSet;
+			
+			if (noon > maxEndTime)
+				expiredDays.set(i);
+			
+			// Also combine with the service IDs for the previous day, for 
+			// when it is early in the morning
+			if (i == 0) {
+				serviceIdsInclPreviousDay.add(null);
+			} else {
+				Set<String> set = 
+						new LinkedHashSet<String>(serviceIdsForDay);
+				set.addAll(serviceIds.get(i - 1));
+				serviceIdsInclPreviousDay.add(Collections
+						.unmodifiableList(new ArrayList<String>(set)));
+			}
+		}
+		
+		this.firstIndexedDay = firstDay;
+		this.activeServiceIdsByDay = activeServiceIds;
+		this.serviceIdsByDay = serviceIds;
+		this.serviceIdsInclPreviousDayByDay = serviceIdsInclPreviousDay;
+		this.calendarsExpiredDays = expiredDays;
+		
+		logger.info("Precomputed service IDs for {} days for {} service IDs. "
+				+ "Took {} msec.", 
+				numDays, serviceIdIndices.size(), timer.elapsedMsec());
+	}
+	
+	/**
+	 * Gives the service ID an index, if it doesn't have one yet.
+	 * 
+	 * @param serviceId
+	 */
+	private void addServiceIdIndex(String serviceId) {
+		if (!serviceIdIndices.containsKey(serviceId))
+			serviceIdIndices.put(serviceId, serviceIdIndices.size());
+	}
+	
+	/**
+	 * Returns the index of the precomputed day for the epoch time, or -1 if
+	 * the service IDs for the time were not precomputed. Also logs an error
+	 * if the calendars had all expired for that day, just like when the
+	 * service IDs are determined without precomputing them.
+	 * 
+	 * @param epochTime
+	 * @return index into the precomputed days or -1
+	 */
+	private int getPrecomputedDay(long epochTime) {
+		if (serviceIdsByDay == null)
+			return -1;
+		
+		// A calendar is active through the very first msec of its end date.
+		// So at exactly midnight the service IDs can differ from the ones for
+		// the rest of the day. Handle that rare case without the 
+		// precomputed values.
+		if (time.getMsecsIntoDay(epochTime) == 0)
+			return -1;
+		
+		int index = time.getEpochDay(epochTime) - firstIndexedDay;
+		if (index < 0 || index >= serviceIdsByDay.size())
+			return -1;
+		
+		if (calendarsExpiredDays.get(index))
+			logger.error("All Calendars were expired. Update them!!!");
+		
+		return index;
 	}
 
 	/**
@@ -106,7 +310,8 @@ public class ServiceUtils {
 	 *            For determining which Calendars are currently active
 	 * @return List of active Calendars
 	 */
-	private List<Calendar> getActiveCalendars(Date epochTime) {
+	private List<Calendar> getActiveCalendars(Date epochTime, 
+			boolean logIfExpired) {
 		List<Calendar> originalCalendarList = dbConfig.getCalendars();
 		List<Calendar> activeCalendarList = new ArrayList<Calendar>();
 		long maxEndTime = 0;
@@ -150,7 +355,7 @@ public class ServiceUtils {
 			// today and looking at yesterday then that is not a notable 
 			// problem.
 			boolean startTimeAProblem = earliestStartTime > epochTime.getTime();
-			if (!startTimeAProblem) {
+			if (!startTimeAProblem && logIfExpired) {
 				logger.error("All Calendars were expired. Update them!!!");
 				
 				// Output calendar list but only for debugging since it is 
@@ -173,13 +378,17 @@ public class ServiceUtils {
 	 * 
 	 * @param epochTime
 	 *            The current time that determining service IDs for
+	 * @param logIfExpired
+	 *            Whether to log an error if all calendars have expired
 	 * @return List of service IDs that are active for the specified time.
 	 */
-	public List<String> getServiceIdsForDay(Date epochTime) {
+	private List<String> determineServiceIdsForDay(Date epochTime,
+			boolean logIfExpired) {
 		List<String> serviceIds = new ArrayList<String>();
 		
 		// Make sure haven't accidentally let all calendars expire
-		List<Calendar> activeCalendars = getActiveCalendars(epochTime);
+		List<Calendar> activeCalendars = 
+				getActiveCalendars(epochTime, logIfExpired);
 		
 		// Go through calendars and determine which ones match. For those that
 		// match, add them to the list of service IDs.
@@ -229,15 +438,56 @@ public class ServiceUtils {
 	 * Determines list of current service IDs for the specified time. These
 	 * service IDs designate which block assignments are currently active.
 	 * <p>
-	 * Uses already read in calendars, but does a good number of calculations so
-	 * still a bit expensive.
+	 * Usually the service IDs were precomputed when the configuration was
+	 * loaded so this is just a quick lookup. The returned list is then
+	 * unmodifiable and shared so it must not be modified.
+	 * 
+	 * @param epochTime
+	 *            The current time that determining service IDs for
+	 * @return List of service IDs that are active for the specified time.
+	 */
+	public List<String> getServiceIdsForDay(Date epochTime) {
+		return getServiceIdsForDay(epochTime.getTime());
+	}
+
+	/**
+	 * Determines list of current service IDs for the specified time. These
+	 * service IDs designate which block assignments are currently active.
+	 * <p>
+	 * Usually the service IDs were precomputed when the configuration was
+	 * loaded so this is just a quick lookup. The returned list is then
+	 * unmodifiable and shared so it must not be modified.
 	 * 
 	 * @param epochTime
 	 *            The current time that determining service IDs for
 	 * @return List of service IDs that are active for the specified time.
 	 */
 	public List<String> getServiceIdsForDay(long epochTime) {
-		return getServiceIdsForDay(new Date(epochTime));
+		int index = getPrecomputedDay(epochTime);
+		if (index >= 0)
+			return serviceIdsByDay.get(index);
+		
+		return determineServiceIdsForDay(new Date(epochTime), true);
+	}
+	
+	/**
+	 * Returns true if the service ID is active for the day of the specified
+	 * time. Usually just looks up a bit in the precomputed BitSet for the 
+	 * day so is quick and doesn't create any objects.
+	 * 
+	 * @param serviceId
+	 * @param epochTime
+	 * @return true if service ID is active for the day
+	 */
+	public boolean isServiceIdActiveForDay(String serviceId, long epochTime) {
+		int index = getPrecomputedDay(epochTime);
+		if (index < 0)
+			return determineServiceIdsForDay(new Date(epochTime), true)
+					.contains(serviceId);
+		
+		Integer serviceIdIndex = serviceIdIndices.get(serviceId);
+		return serviceIdIndex != null 
+				&& activeServiceIdsByDay[index].get(serviceIdIndex);
 	}
 	
 	/**
@@ -258,10 +508,21 @@ public class ServiceUtils {
 	 *         in the morning.
 	 */
 	public Collection<String> getServiceIds(Date epochTime) {
+		boolean earlyInMorning = time.getSecondsIntoDay(epochTime) <= 
+				minutesIntoMorningToIncludePreviousServiceIds.getValue()
+						* Time.MIN_IN_SECS;
+		
+		// Use precomputed values if available
+		int index = getPrecomputedDay(epochTime.getTime());
+		if (index >= 0) {
+			if (!earlyInMorning)
+				return serviceIdsByDay.get(index);
+			if (index > 0)
+				return serviceIdsInclPreviousDayByDay.get(index);
+		}
+		
 		List<String> serviceIdsForDay = getServiceIdsForDay(epochTime);
-		Time time = Core.getInstance().getTime();
-		if (time.getSecondsIntoDay(epochTime) > minutesIntoMorningToIncludePreviousServiceIds
-				.getValue() * Time.MIN_IN_SECS)
+		if (!earlyInMorning)
 			return serviceIdsForDay;
 
 		List<String> serviceIdsForPreviousDay =
@@ -0,0 +1,374 @@
+/* 
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.config.BooleanConfigValue;
+import org.transitime.config.DoubleConfigValue;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.configData.CoreConfig;
+import org.transitime.db.structs.AvlReport;
+import org.transitime.db.structs.Location;
+import org.transitime.db.structs.TripPattern;
+import org.transitime.db.structs.VectorWithHeading;
+import org.transitime.utils.Geo;
+import org.transitime.utils.PlanarProjection;
+import org.transitime.utils.Time;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * A cache, shared by all vehicles and threads, of the segments of a trip
+ * pattern that need to be examined when spatially matching an AVL report.
+ * Many vehicles are at the same terminals and along the same corridors and
+ * the auto assigner matches every unassigned vehicle to the same trip
+ * patterns. So instead of determining the candidate segments for each AVL
+ * report they are determined once for an area and then reused.
+ * <p>
+ * Keyed on trip pattern, a cell of the planar projection, a heading bucket
+ * and the allowable distance. The candidate segments are the ones within the
+ * allowable distance of any location in the cell, plus their neighbors and
+ * the layovers, so that using them gives the same matches as examining
+ * every segment. For the heading bucket it is also determined whether any
+ * of the nearby segments could have an acceptable heading. If not then the
+ * trip pattern cannot have a non-layover match so it doesn't need to be
+ * examined at all by the auto assigner.
+ * <p>
+ * The cache is bounded and entries expire so that memory use is limited.
+ * Hit rates are logged periodically so that the cell size can be tuned.
+ *
+ */
+public class SpatialCandidatesCache {
+
+	private final Cache<Key, Candidates> cache;
+	
+	private final double cellSizeMeters;
+	
+	// Max distance of a location in a cell from the center of the cell,
+	// with a bit of margin
+	private final double cellRadiusMeters;
+	
+	private final int numHeadingBuckets;
+	private final float headingBucketWidth;
+	
+	// For logging the stats periodically
+	private volatile long lastStatsLogTime = System.currentTimeMillis();
+	
+	private static BooleanConfigValue enabled = 
+			new BooleanConfigValue(
+					"transitime.core.spatialCandidatesCache.enabled", 
+					true, 
+					"Whether the candidate segments of trip patterns for a "
+					+ "location should be cached and shared by all vehicles. "
+					+ "Requires the planar projection and the spatial "
+					+ "index to be enabled.");
+	
+	private static DoubleConfigValue cellSizeMetersConfig = 
+			new DoubleConfigValue(
+					"transitime.core.spatialCandidatesCache.cellSizeMeters", 
+					50.0, 
+					"Size of the cells in meters. Smaller cells mean fewer "
+					+ "candidate segments to examine but a lower hit rate.");
+	
+	private static IntegerConfigValue numHeadingBucketsConfig = 
+			new IntegerConfigValue(
+					"transitime.core.spatialCandidatesCache.numHeadingBuckets", 
+					8, 
+					"Into how many buckets the AVL heading is divided for "
+					+ "the key of the cache.");
+	
+	private static IntegerConfigValue maxEntries = 
+			new IntegerConfigValue(
+					"transitime.core.spatialCandidatesCache.maxEntries", 
+					100000, 
+					"Max number of entries in the cache.");
+	
+	private static IntegerConfigValue expireSecs = 
+			new IntegerConfigValue(
+					"transitime.core.spatialCandidatesCache.expireSecs", 
+					30 * Time.SEC_PER_MIN, 
+					"How long an entry is kept in the cache.");
+	
+	private static IntegerConfigValue statsLogIntervalSecs = 
+			new IntegerConfigValue(
+					"transitime.core.spatialCandidatesCache.statsLogIntervalSecs", 
+					5 * Time.SEC_PER_MIN, 
+					"How frequently the hit rate of the cache is logged.");
+	
+	private static final SpatialCandidatesCache singleton = 
+			new SpatialCandidatesCache();
+	
+	private static final Logger logger = 
+			LoggerFactory.getLogger(SpatialCandidatesCache.class);
+
+	/**
+	 * The key of the cache
+	 */
+	private static class Key {
+		private final String tripPatternId;
+		private final int xCell;
+		private final int yCell;
+		private final int headingBucket;
+		private final double distance;
+		
+		private Key(String tripPatternId, int xCell, int yCell,
+				int headingBucket, double distance) {
+			this.tripPatternId = tripPatternId;
+			this.xCell = xCell;
+			this.yCell = yCell;
+			this.headingBucket = headingBucket;
+			this.distance = distance;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = tripPatternId.hashCode();
+			result = prime * result + xCell;
+			result = prime * result + yCell;
+			result = prime * result + headingBucket;
+			long temp = Double.doubleToLongBits(distance);
+			result = prime * result + (int) (temp ^ (temp >>> 32));
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return xCell == other.xCell 
+					&& yCell == other.yCell
+					&& headingBucket == other.headingBucket
+					&& Double.doubleToLongBits(distance) == 
+						Double.doubleToLongBits(other.distance)
+					&& tripPatternId.equals(other.tripPatternId);
+		}
+	}
+	
+	/**
+	 * The cached candidates. Immutable once created.
+	 */
+	public static class Candidates {
+		// So can tell if the cached entry is for an older index, such as for
+		// the TripPattern object of a previous config rev
+		private final TripPatternSegmentIndex index;
+		private final PlanarProjection projection;
+		
+		private final BitSet segments;
+		private final boolean headingMatchPossible;
+		
+		private Candidates(TripPatternSegmentIndex index, 
+				PlanarProjection projection, BitSet segments,
+				boolean headingMatchPossible) {
+			this.index = index;
+			this.projection = projection;
+			this.segments = segments;
+			this.headingMatchPossible = headingMatchPossible;
+		}
+		
+		/**
+		 * @return Sequential numbers of the segments of the trip pattern that
+		 *         need to be examined, as defined by TripPatternSegmentIndex.
+		 *         Must not be modified.
+		 */
+		public BitSet getSegments() {
+			return segments;
+		}
+		
+		/**
+		 * @return False if none of the segments near the location has a
+		 *         heading that is acceptable for the AVL heading, meaning
+		 *         that there can't be a non-layover match
+		 */
+		public boolean isHeadingMatchPossible() {
+			return headingMatchPossible;
+		}
+	}
+	
+	/********************** Member Functions **************************/
+
+	/**
+	 * Constructor declared private to enforce only access to this singleton
+	 * class being getInstance()
+	 */
+	private SpatialCandidatesCache() {
+		cellSizeMeters = cellSizeMetersConfig.getValue();
+		cellRadiusMeters = cellSizeMeters * Math.sqrt(2.0) / 2 * 1.1 + 1.0;
+		numHeadingBuckets = Math.max(numHeadingBucketsConfig.getValue(), 1);
+		headingBucketWidth = 360.0f / numHeadingBuckets;
+		cache = CacheBuilder.newBuilder()
+				.maximumSize(maxEntries.getValue())
+				.expireAfterWrite(expireSecs.getValue(), TimeUnit.SECONDS)
+				.recordStats()
+				.build();
+	}
+	
+	/**
+	 * @return the singleton SpatialCandidatesCache
+	 */
+	public static SpatialCandidatesCache getInstance() {
+		return singleton;
+	}
+	
+	/**
+	 * Returns the candidates for matching the AVL report to the trip pattern.
+	 * 
+	 * @param avlReport
+	 * @param tripPattern
+	 * @param allowableDistance
+	 *            Max distance from segment for a match
+	 * @return The candidates, or null if the cache is not enabled or there
+	 *         is no planar projection
+	 */
+	public Candidates getCandidates(AvlReport avlReport, 
+			TripPattern tripPattern, double allowableDistance) {
+		PlanarProjection projection = PlanarProjection.getCurrent();
+		if (!enabled.getValue() || !CoreConfig.useSpatialIndex()
+				|| projection == null)
+			return null;
+		
+		return getCandidates(tripPattern.getId(), 
+				TripPatternSegmentIndex.get(tripPattern), projection,
+				avlReport.getLocation(), avlReport.getHeading(), 
+				allowableDistance);
+	}
+	
+	/**
+	 * Returns the candidates for matching the location and heading to the
+	 * trip pattern of the index. Package visible so that it can be tested
+	 * without a full TripPattern.
+	 * 
+	 * @param tripPatternId
+	 * @param index
+	 *            The segment index of the trip pattern
+	 * @param projection
+	 * @param loc
+	 *            The AVL location
+	 * @param heading
+	 *            The AVL heading. Can be NaN.
+	 * @param allowableDistance
+	 *            Max distance from segment for a match
+	 * @return The candidates
+	 */
+	Candidates getCandidates(String tripPatternId, 
+			TripPatternSegmentIndex index, PlanarProjection projection,
+			Location loc, float heading, double allowableDistance) {
+		int xCell = (int) Math.floor(projection.x(loc) / cellSizeMeters);
+		int yCell = (int) Math.floor(projection.y(loc) / cellSizeMeters);
+		// Use -1 as the bucket for when the heading is not known
+		int headingBucket = Float.isNaN(heading) ? -1 : Math.floorMod(
+				(int) Math.floor(heading / headingBucketWidth),
+				numHeadingBuckets);
+		Key key = new Key(tripPatternId, xCell, yCell, headingBucket,
+				allowableDistance);
+		
+		Candidates candidates = cache.getIfPresent(key);
+		if (candidates == null || candidates.index != index
+				|| candidates.projection != projection) {
+			candidates = createCandidates(index, projection, xCell, 
+					yCell, headingBucket, allowableDistance);
+			cache.put(key, candidates);
+		}
+		
+		logStatsIfDue();
+		
+		return candidates;
+	}
+	
+	/**
+	 * Determines the candidates for the cell and heading bucket.
+	 */
+	private Candidates createCandidates(TripPatternSegmentIndex index,
+			PlanarProjection projection, int xCell, int yCell,
+			int headingBucket, double allowableDistance) {
+		Location center = new Location(
+				projection.lat((yCell + 0.5) * cellSizeMeters),
+				projection.lon((xCell + 0.5) * cellSizeMeters));
+		double searchDistance = allowableDistance + cellRadiusMeters;
+		float bucketHeading = (headingBucket + 0.5f) * headingBucketWidth;
+		float allowableHeadingDelta = 
+				CoreConfig.getMaxHeadingOffsetFromSegment()
+					+ headingBucketWidth / 2;
+		
+		// Determine the segments within the search distance of the center
+		// of the cell and therefore possibly within the allowable distance
+		// of any location in the cell
+		BitSet indexCandidates = 
+				index.getCandidateSegments(center, searchDistance);
+		BitSet nearbySegments = new BitSet(index.getNumSegments());
+		boolean headingMatchPossible = false;
+		for (int segmentNumber = indexCandidates.nextSetBit(0); 
+				segmentNumber >= 0; 
+				segmentNumber = indexCandidates.nextSetBit(segmentNumber + 1)) {
+			VectorWithHeading vector = index.getSegmentVector(segmentNumber);
+			if (vector.distance(center) < searchDistance) {
+				nearbySegments.set(segmentNumber);
+				if (headingBucket < 0 
+						|| Geo.headingOK(bucketHeading, vector.getHeading(),
+								allowableHeadingDelta))
+					headingMatchPossible = true;
+			}
+		}
+		
+		return new Candidates(index, projection, 
+				index.addNeighborsAndLayovers(nearbySegments),
+				headingMatchPossible);
+	}
+	
+	/**
+	 * Logs the hit rate of the cache if haven't done so recently.
+	 */
+	private void logStatsIfDue() {
+		long now = System.currentTimeMillis();
+		if (now - lastStatsLogTime < 
+				statsLogIntervalSecs.getValue() * Time.MS_PER_SEC)
+			return;
+		lastStatsLogTime = now;
+		
+		logger.info("SpatialCandidatesCache {}", getStats());
+	}
+	
+	/**
+	 * @return The hit and miss counts of the cache
+	 */
+	public CacheStats getStats() {
+		return cache.stats();
+	}
+	
+	/**
+	 * @return Number of entries in the cache
+	 */
+	public long size() {
+		return cache.size();
+	}
+	
+	/**
+	 * Removes all entries, such as for when the configuration changes.
+	 */
+	public void clear() {
+		cache.invalidateAll();
+	}
+}
@@ -17,9 +17,12 @@
 package org.transitime.core;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.slf4j.Logger;
@@ -111,6 +114,26 @@ public class SpatialMatcher {
 	 */
 	private List<SpatialMatch> getSpatialMatchesForTrip(AvlReport avlReport,
 			Trip trip, MatchingType matchingType) {
+		return getSpatialMatchesForTrip(avlReport, trip, matchingType, null);
+	}
+	
+	/**
+	 * Same as getSpatialMatchesForTrip(AvlReport, Trip, MatchingType) but
+	 * can be passed the candidates from SpatialCandidatesCache if the caller
+	 * already looked them up.
+	 * 
+	 * @param avlReport
+	 * @param trip
+	 * @param matchingType
+	 * @param knownCandidates
+	 *            The cached candidates for the trip pattern, or null if they
+	 *            should be looked up
+	 * @return List of potential SpatialMatches. Can be empty but will not be
+	 *         null.
+	 */
+	private List<SpatialMatch> getSpatialMatchesForTrip(AvlReport avlReport,
+			Trip trip, MatchingType matchingType,
+			SpatialCandidatesCache.Candidates knownCandidates) {
 		Block block = trip.getBlock();
 		
 		// The matches to be returned
@@ -126,20 +149,50 @@ public class SpatialMatcher {
 				allowableDistance))
 			return spatialMatches;
 		
-		// Start looking for matches at the beginning of the trip.
-		Indices indices = new Indices(block, block.getTripIndex(trip), 
-				0, // stopPathIndex
-				0); // segmentIndex
-
-		// Loop through stopPaths and segments until reach end of trip and
-		// add them to spatialMatches member
-		do {
-			processPossiblePotentialMatch(avlReport, indices, spatialMatches,
-					matchingType);
-
-			// For next iteration through while loop
-			indices.increment(avlReport.getTime());
-		} while (!indices.atBeginningOfTrip());
+		if (CoreConfig.useSpatialIndex()) {
+			// Only look at the segments that the spatial index indicates
+			// could be within the allowable distance. Since the index also
+			// returns the segments adjacent to the candidates and the layover
+			// segments the local minimums are determined the same way as when
+			// looking at every segment.
+			// Use the candidates shared by all vehicles if available.
+			TripPatternSegmentIndex segmentIndex =
+					TripPatternSegmentIndex.get(trip.getTripPattern());
+			SpatialCandidatesCache.Candidates cachedCandidates =
+					knownCandidates != null ? knownCandidates :
+						SpatialCandidatesCache.getInstance().getCandidates(
+								avlReport, trip.getTripPattern(), 
+								allowableDistance);
+			BitSet candidates = cachedCandidates != null ? 
+					cachedCandidates.getSegments() : 
+					segmentIndex.getCandidateSegments(
+							avlReport.getLocation(), allowableDistance);
+			int tripIndex = block.getTripIndex(trip);
+			for (int segmentNumber = candidates.nextSetBit(0); 
+					segmentNumber >= 0; 
+					segmentNumber = candidates.nextSetBit(segmentNumber + 1)) {
+				Indices indices = new Indices(block, tripIndex,
+						segmentIndex.getStopPathIndex(segmentNumber),
+						segmentIndex.getSegmentIndex(segmentNumber));
+				processPossiblePotentialMatch(avlReport, indices,
+						spatialMatches, matchingType);
+			}
+		} else {
+			// Start looking for matches at the beginning of the trip.
+			Indices indices = new Indices(block, block.getTripIndex(trip), 
+					0, // stopPathIndex
+					0); // segmentIndex
+	
+			// Loop through stopPaths and segments until reach end of trip and
+			// add them to spatialMatches member
+			do {
+				processPossiblePotentialMatch(avlReport, indices,
+						spatialMatches, matchingType);
+	
+				// For next iteration through while loop
+				indices.increment(avlReport.getTime());
+			} while (!indices.atBeginningOfTrip());
+		}
 
 		// Need to handle boundary condition. Done looking ahead but
 		// the end match might be a potential one even if was continuing
@@ -286,6 +339,29 @@ public class SpatialMatcher {
 			AvlReport avlReport,
 			Block block, List<Trip> tripsToInvestigate,
 			MatchingType matchingType) {
+		return getSpatialMatches(avlReport, block, tripsToInvestigate,
+				matchingType, null);
+	}
+	
+	/**
+	 * Same as getSpatialMatches(AvlReport, Block, List, MatchingType) but
+	 * can be passed the cached candidates that the caller already looked up
+	 * so that they are not looked up again for each trip.
+	 * 
+	 * @param avlReport
+	 * @param block
+	 * @param tripsToInvestigate
+	 * @param matchingType
+	 * @param candidatesByTripPatternId
+	 *            Cached candidates keyed on trip pattern ID. Can be null.
+	 * @return non-null possibly empty list of spatial matches
+	 */
+	private static List<SpatialMatch> getSpatialMatches(
+			AvlReport avlReport,
+			Block block, List<Trip> tripsToInvestigate,
+			MatchingType matchingType,
+			Map<String, SpatialCandidatesCache.Candidates> 
+				candidatesByTripPatternId) {
 		List<SpatialMatch> spatialMatchesForAllTrips = 
 				new ArrayList<SpatialMatch>();
 
@@ -333,9 +409,15 @@ public class SpatialMatcher {
 			} else {
 				// Haven't already examined this trip pattern for spatial
 				// matches so do so now.
+				SpatialCandidatesCache.Candidates knownCandidates =
+						candidatesByTripPatternId != null ? 
+								candidatesByTripPatternId.get(
+										trip.getTripPattern().getId()) :
+								null;
 				List<SpatialMatch> spatialMatchesForTrip =
 						(new SpatialMatcher()).getSpatialMatchesForTrip(
-								avlReport, trip, matchingType);
+								avlReport, trip, matchingType, 
+								knownCandidates);
 				
 				// Use these spatial matches for the trip
 				spatialMatchesForAllTrips.addAll(spatialMatchesForTrip);
@@ -400,10 +482,37 @@ public class SpatialMatcher {
 	public static List<SpatialMatch> getSpatialMatchesForAutoAssigning(
 			AvlReport avlReport, Block block,
 			List<Trip> tripsToInvestigate) {
+		// Only layover matches are possible for trip patterns that don't 
+		// have a segment with an acceptable heading near the AVL location.
+		// Since layover matches are filtered out don't need to look at 
+		// those trips at all. The candidates are remembered for each trip 
+		// pattern so that they don't need to be looked up again when 
+		// determining the spatial matches.
+		List<Trip> tripsThatCanMatch = new ArrayList<Trip>();
+		Map<String, SpatialCandidatesCache.Candidates> 
+			candidatesByTripPatternId = 
+				new HashMap<String, SpatialCandidatesCache.Candidates>();
+		for (Trip trip : tripsToInvestigate) {
+			String tripPatternId = trip.getTripPattern().getId();
+			SpatialCandidatesCache.Candidates candidates =
+					candidatesByTripPatternId.get(tripPatternId);
+			if (candidates == null) {
+				double allowableDistance = getMaxAllowableDistanceFromSegment(
+						trip.getRoute(), MatchingType.AUTO_ASSIGNING_MATCHING);
+				candidates = SpatialCandidatesCache.getInstance().getCandidates(
+						avlReport, trip.getTripPattern(), allowableDistance);
+				if (candidates != null)
+					candidatesByTripPatternId.put(tripPatternId, candidates);
+			}
+			if (candidates == null || candidates.isHeadingMatchPossible())
+				tripsThatCanMatch.add(trip);
+		}
+		
 		// Get all the spatial matches
 		List<SpatialMatch> allSpatialMatches =
-				getSpatialMatches(avlReport, block, tripsToInvestigate,
-						MatchingType.AUTO_ASSIGNING_MATCHING);
+				getSpatialMatches(avlReport, block, tripsThatCanMatch,
+						MatchingType.AUTO_ASSIGNING_MATCHING,
+						candidatesByTripPatternId);
 
 		// Filter out the ones that are layovers
 		List<SpatialMatch> spatialMatchesWithoutLayovers = 
@@ -427,7 +536,7 @@ public class SpatialMatcher {
 	 *            for keeping track of what kind of spatial matching being done
 	 * @return max distance that AVL report is allowed to be from segment
 	 */
-	private double getMaxAllowableDistanceFromSegment(Route route,
+	private static double getMaxAllowableDistanceFromSegment(Route route,
 			MatchingType matchingType) {
 		if (matchingType == MatchingType.AUTO_ASSIGNING_MATCHING) {
 			return CoreConfig.getMaxDistanceFromSegmentForAutoAssigning();
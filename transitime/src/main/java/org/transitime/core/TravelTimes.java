@@ -25,6 +25,7 @@ import org.transitime.configData.CoreConfig;
 import org.transitime.db.structs.Location;
 import org.transitime.db.structs.ScheduleTime;
 import org.transitime.db.structs.TravelTimesForStopPath;
+import org.transitime.db.structs.Trip;
 import org.transitime.utils.Time;
 
 /**
@@ -292,14 +293,13 @@ public class TravelTimes {
 		int travelTimeRemainingInPartialSegment = (int) (travelTimeForPartialSegment * 
 				(1-timeTravelInfo.fractionCompleted));
 				
-		// Sum up the travel times for the remaining full travel time segments 
-		// in the path.
-		int travelTimeMsec = travelTimeRemainingInPartialSegment;
-		for (int i=timeTravelInfo.indexOfPartialSegment+1; 
-				i<travelTimesForStopPath.getNumberTravelTimeSegments(); 
-				++i) {
-			travelTimeMsec += travelTimesForStopPath.getTravelTimeSegmentMsec(i);
-		}
+		// Add the travel times for the remaining full travel time segments 
+		// in the path. Since the travel times are cumulative this is simply
+		// the total minus the travel time to the end of the partial segment.
+		int travelTimeMsec = travelTimeRemainingInPartialSegment
+				+ travelTimesForStopPath.getStopPathTravelTimeMsec()
+				- travelTimesForStopPath.getTravelTimeToSegmentMsec(
+						timeTravelInfo.indexOfPartialSegment + 1);
 		return travelTimeMsec; 
 	}
 	
@@ -320,12 +320,10 @@ public class TravelTimes {
 		// Determine how match corresponds to travel time segments
 		TimeTravelInfo timeTravelInfo = travelTimeInfoForPartialPath(match);
 		
-		// Sum up the travel times for the full travel time segments up to but
-		// not including the segment that the match is on.
-		int travelTimeMsec = 0;
-		for (int i=0; i<timeTravelInfo.indexOfPartialSegment; ++i) {
-			travelTimeMsec += travelTimesForStopPath.getTravelTimeSegmentMsec(i);
-		}
+		// Travel time for the full travel time segments up to but not 
+		// including the segment that the match is on
+		int travelTimeMsec = travelTimesForStopPath
+				.getTravelTimeToSegmentMsec(timeTravelInfo.indexOfPartialSegment);
 
 		// Determine travel time to go from the the beginning of the 
 		// current travel time segment to the match.
@@ -367,6 +365,100 @@ public class TravelTimes {
 		return travelTimesForPath.getStopTimeMsec();
 	}
 	
+	/**
+	 * Adds the expected travel and stop times for the stop paths starting at
+	 * indices up to but not including the stop path of endIndices. Wait stops
+	 * are taken into account.
+	 * 
+	 * @param vehicleId
+	 *            for logging messages
+	 * @param timeOfDaySecs
+	 *            For determining if vehicle has to wait at a wait stop
+	 * @param indices
+	 *            The first stop path to include. Is incremented to the stop
+	 *            path of endIndices.
+	 * @param endIndices
+	 *            The stop path to stop at
+	 * @param travelTimeMsec
+	 *            The travel time so far, since it determines whether the
+	 *            vehicle has to wait at a wait stop
+	 * @param useTravelTimeTable
+	 *            If true then the cumulative travel times of the trips are
+	 *            used to add the stop paths between wait stops in a single
+	 *            step. Can't be used for no schedule assignments since they
+	 *            loop back on the same trip.
+	 * @return travelTimeMsec plus the travel and stop times for the stop
+	 *         paths
+	 */
+	int expectedTravelTimeForStopPaths(String vehicleId, int timeOfDaySecs,
+			Indices indices, Indices endIndices, int travelTimeMsec,
+			boolean useTravelTimeTable) {
+		// For all stop paths between the begin and end ones...
+		while (indices.isEarlierStopPathThan(endIndices)) {
+			// If possible use the cumulative travel times of the trip to
+			// add the travel and stop times for all the stop paths up to
+			// the next wait stop, or up to the end stop path or end of
+			// trip, in a single step. Wait stops are handled individually
+			// below since the travel time so far determines whether the
+			// vehicle has to wait.
+			if (useTravelTimeTable) {
+				Trip trip = indices.getTrip();
+				int stopPathIndex = indices.getStopPathIndex();
+				int lastStopPathIndex = 
+						indices.getTripIndex() == endIndices.getTripIndex() ?
+								endIndices.getStopPathIndex() 
+								: trip.getNumberStopPaths();
+				lastStopPathIndex = Math.min(lastStopPathIndex,
+						trip.getNextWaitStopIndex(stopPathIndex));
+				if (lastStopPathIndex > stopPathIndex) {
+					int timeMsec = trip.getTravelAndStopTimeMsec(
+							stopPathIndex, lastStopPathIndex);
+					travelTimeMsec += timeMsec;
+					logger.debug("For vehicleId={} adding travel and stop "
+							+ "time={} msec for stop paths {} through {} "
+							+ "so travel time now is {} msec for {}",
+							vehicleId, timeMsec, stopPathIndex, 
+							lastStopPathIndex - 1, travelTimeMsec, indices);
+					
+					// Continue with the stop path after the ones just
+					// added, which might be for the next trip
+					indices.setStopPathIndex(lastStopPathIndex - 1)
+							.incrementStopPath(timeOfDaySecs);
+					continue;
+				}
+			}
+			
+			// Add the travel time
+			int stopPathTravelTime = expectedTravelTimeForStopPath(indices);
+			travelTimeMsec += stopPathTravelTime;
+			logger.debug("For vehicleId={} adding stop path travel time={} "
+							+ "msec so travel time now is {} for {}",
+					vehicleId, stopPathTravelTime, travelTimeMsec, indices);
+
+			// Add the stop time
+			int stopTimeMsec = indices.getStopTimeForPath();
+			travelTimeMsec += stopTimeMsec;
+			logger.debug("For vehicleId={} adding stop time={} msec so "
+					+ "travel time now is {} msec for {}", vehicleId,
+					stopTimeMsec, travelTimeMsec, indices);
+
+			// TODO make sure this is tested
+			// If layover then take that into account. For such a case the
+			// travel time will then be the scheduled departure time minus
+			// the start time.
+			if (indices.isWaitStop()) {
+				travelTimeMsec =
+						adjustTravelTimeForWaitStop(timeOfDaySecs,
+								travelTimeMsec, indices);
+			}
+
+			// Increment for next time through while loop
+			indices.incrementStopPath(timeOfDaySecs);
+		}
+		
+		return travelTimeMsec;
+	}
+	
 	/**
 	 * Determines expected travel time in msec between the two matches based on
 	 * the travel times from the database.
@@ -465,35 +557,10 @@ public class TravelTimes {
 			// get all the travel times for intermediate paths. 
 			indices.incrementStopPath(timeOfDaySecs);
 		
-			// For all stop paths between the begin and end ones...
-			while (indices.isEarlierStopPathThan(endIndices)) {
-				// Add the travel time
-				int stopPathTravelTime = expectedTravelTimeForStopPath(indices);
-				travelTimeMsec += stopPathTravelTime;
-				logger.debug("For vehicleId={} adding stop path travel time={} "
-								+ "msec so travel time now is {} for {}",
-						vehicleId, stopPathTravelTime, travelTimeMsec, indices);
-
-				// Add the stop time
-				int stopTimeMsec = indices.getStopTimeForPath();
-				travelTimeMsec += stopTimeMsec;
-				logger.debug("For vehicleId={} adding stop time={} msec so "
-						+ "travel time now is {} msec for {}", vehicleId,
-						stopTimeMsec, travelTimeMsec, indices);
-
-				// TODO make sure this is tested
-				// If layover then take that into account. For such a case the
-				// travel time will then be the scheduled departure time minus
-				// the start time.
-				if (indices.isWaitStop()) {
-					travelTimeMsec =
-							adjustTravelTimeForWaitStop(timeOfDaySecs,
-									travelTimeMsec, indices);
-				}
-
-				// Increment for next time through while loop
-				indices.incrementStopPath(timeOfDaySecs);
-			}
+			// Add the travel and stop times for all the intermediate paths
+			travelTimeMsec = expectedTravelTimeForStopPaths(vehicleId,
+					timeOfDaySecs, indices, endIndices, travelTimeMsec,
+					!indices.getBlock().isNoSchedule());
 		}
 		
 		// Add travel time for last partial segment
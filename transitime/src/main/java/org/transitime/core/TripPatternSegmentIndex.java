@@ -0,0 +1,340 @@
+/* 
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.configData.CoreConfig;
+import org.transitime.db.structs.Location;
+import org.transitime.db.structs.StopPath;
+import org.transitime.db.structs.TripPattern;
+import org.transitime.db.structs.VectorWithHeading;
+import org.transitime.utils.IntervalTimer;
+
+/**
+ * A spatial index of the segments of a TripPattern so that when spatially
+ * matching an AVL report only the segments that are near the AVL location
+ * need to be looked at instead of every segment of the trip pattern. For long
+ * trip patterns with thousands of shape points this greatly reduces the cost
+ * of matching.
+ * <p>
+ * Uses a uniform grid. Each segment is added to every grid cell that its
+ * bounding box overlaps. The segments are numbered sequentially through the
+ * trip pattern so that the candidate segments can be returned as a BitSet
+ * and then be iterated over in order.
+ * <p>
+ * To keep the local minimum detection of SpatialMatcher the same as when
+ * every segment is examined the segments immediately before and after each
+ * candidate segment are also returned. This way the distance of the previous
+ * segment is known when examining a candidate and a potential match is
+ * always followed by a further away segment. Layover stop paths are always
+ * included since a layover can match even if the vehicle is away from the
+ * path.
+ *
+ */
+public class TripPatternSegmentIndex {
+
+	// The trip pattern that the index is for. Used to determine whether a
+	// cached index is still valid, such as when the config rev changes.
+	private final TripPattern tripPattern;
+	
+	// For converting sequential segment numbers back to indices
+	private final int[] stopPathIndexes;
+	private final int[] segmentIndexes;
+	private final VectorWithHeading[] vectors;
+	
+	// The segments of layover stop paths, plus their neighbors
+	private final BitSet layoverSegments;
+	
+	// Size of the grid cells in degrees
+	private final double cellSizeLatDegrees;
+	private final double cellSizeLonDegrees;
+	
+	// Sequential segment numbers for each grid cell, keyed on the cell key
+	private final Map<Long, int[]> segmentsByCell;
+	
+	// The indices, keyed on trip pattern ID
+	private static final ConcurrentMap<String, TripPatternSegmentIndex> 
+		indexByTripPatternId = 
+			new ConcurrentHashMap<String, TripPatternSegmentIndex>();
+	
+	private static final double METERS_PER_DEGREE_LATITUDE = 110996.45;
+	
+	// Query distance is increased by this factor to make sure that segments
+	// are not missed due to the different ways distances are calculated
+	private static final double DISTANCE_MARGIN_FACTOR = 1.2;
+	
+	private static final Logger logger = 
+			LoggerFactory.getLogger(TripPatternSegmentIndex.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates the index for the stop paths of a trip pattern.
+	 * 
+	 * @param tripPattern
+	 *            The trip pattern the index is for. Can be null for testing.
+	 * @param stopPaths
+	 *            The stop paths of the trip pattern
+	 * @param cellSizeMeters
+	 *            Size of the grid cells
+	 */
+	TripPatternSegmentIndex(TripPattern tripPattern, List<StopPath> stopPaths,
+			double cellSizeMeters) {
+		this.tripPattern = tripPattern;
+		
+		// Number the segments sequentially
+		int numSegments = 0;
+		for (StopPath stopPath : stopPaths)
+			numSegments += stopPath.getSegmentVectors().size();
+		stopPathIndexes = new int[numSegments];
+		segmentIndexes = new int[numSegments];
+		vectors = new VectorWithHeading[numSegments];
+		layoverSegments = new BitSet(numSegments);
+		
+		// Determine size of cells in degrees, using the average latitude
+		// of the trip pattern for the longitude
+		double latSum = 0.0;
+		int latCount = 0;
+		for (StopPath stopPath : stopPaths) {
+			for (Location loc : stopPath.getLocations()) {
+				latSum += loc.getLat();
+				++latCount;
+			}
+		}
+		double avgLat = latCount > 0 ? latSum / latCount : 0.0;
+		cellSizeLatDegrees = cellSizeMeters / METERS_PER_DEGREE_LATITUDE;
+		cellSizeLonDegrees = cellSizeMeters / (METERS_PER_DEGREE_LATITUDE 
+				* Math.max(Math.cos(Math.toRadians(avgLat)), 0.01));
+		
+		// Add each segment to the cells that its bounding box overlaps
+		Map<Long, List<Integer>> cellLists = new HashMap<Long, List<Integer>>();
+		int segmentNumber = 0;
+		for (int stopPathIndex = 0; stopPathIndex < stopPaths.size(); 
+				++stopPathIndex) {
+			StopPath stopPath = stopPaths.get(stopPathIndex);
+			List<VectorWithHeading> stopPathVectors = 
+					stopPath.getSegmentVectors();
+			for (int segmentIndex = 0; segmentIndex < stopPathVectors.size(); 
+					++segmentIndex) {
+				stopPathIndexes[segmentNumber] = stopPathIndex;
+				segmentIndexes[segmentNumber] = segmentIndex;
+				vectors[segmentNumber] = stopPathVectors.get(segmentIndex);
+				if (stopPath.isLayoverStop())
+					addWithNeighbors(layoverSegments, segmentNumber, 
+							numSegments);
+				
+				VectorWithHeading vector = stopPathVectors.get(segmentIndex);
+				Location l1 = vector.getL1();
+				Location l2 = vector.getL2();
+				int minLatCell = latCell(Math.min(l1.getLat(), l2.getLat()));
+				int maxLatCell = latCell(Math.max(l1.getLat(), l2.getLat()));
+				int minLonCell = lonCell(Math.min(l1.getLon(), l2.getLon()));
+				int maxLonCell = lonCell(Math.max(l1.getLon(), l2.getLon()));
+				for (int latCell = minLatCell; latCell <= maxLatCell; ++latCell) {
+					for (int lonCell = minLonCell; lonCell <= maxLonCell; 
+							++lonCell) {
+						Long key = cellKey(latCell, lonCell);
+						List<Integer> list = cellLists.get(key);
+						if (list == null) {
+							list = new ArrayList<Integer>();
+							cellLists.put(key, list);
+						}
+						list.add(segmentNumber);
+					}
+				}
+				
+				++segmentNumber;
+			}
+		}
+		
+		// Convert to arrays to use less memory
+		segmentsByCell = new HashMap<Long, int[]>(cellLists.size() * 4 / 3 + 1);
+		for (Map.Entry<Long, List<Integer>> entry : cellLists.entrySet()) {
+			List<Integer> list = entry.getValue();
+			int[] array = new int[list.size()];
+			for (int i = 0; i < array.length; ++i)
+				array[i] = list.get(i);
+			segmentsByCell.put(entry.getKey(), array);
+		}
+	}
+	
+	private int latCell(double lat) {
+		return (int) Math.floor(lat / cellSizeLatDegrees);
+	}
+	
+	private int lonCell(double lon) {
+		return (int) Math.floor(lon / cellSizeLonDegrees);
+	}
+	
+	private static long cellKey(int latCell, int lonCell) {
+		return ((long) latCell << 32) | (lonCell & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Sets the bit for the segment number along with the bits for the 
+	 * segments before and after it.
+	 */
+	private static void addWithNeighbors(BitSet bitSet, int segmentNumber,
+			int numSegments) {
+		bitSet.set(Math.max(segmentNumber - 1, 0), 
+				Math.min(segmentNumber + 2, numSegments));
+	}
+	
+	/**
+	 * Returns the index for the trip pattern, creating it if it doesn't yet
+	 * exist or if the cached one is for a different TripPattern object, such
+	 * as one for a different config rev.
+	 * 
+	 * @param tripPattern
+	 * @return the index for the trip pattern
+	 */
+	public static TripPatternSegmentIndex get(TripPattern tripPattern) {
+		TripPatternSegmentIndex index = 
+				indexByTripPatternId.get(tripPattern.getId());
+		if (index == null || index.tripPattern != tripPattern) {
+			index = new TripPatternSegmentIndex(tripPattern, 
+					tripPattern.getStopPaths(), 
+					CoreConfig.getSpatialIndexCellSizeMeters());
+			indexByTripPatternId.put(tripPattern.getId(), index);
+		}
+		return index;
+	}
+	
+	/**
+	 * Creates the indices for the trip patterns. To be called when the 
+	 * configuration is loaded so that the indices don't need to be created
+	 * when the first AVL reports are being matched.
+	 * 
+	 * @param tripPatterns
+	 */
+	public static void createIndices(Collection<TripPattern> tripPatterns) {
+		IntervalTimer timer = new IntervalTimer();
+		for (TripPattern tripPattern : tripPatterns)
+			get(tripPattern);
+		logger.info("Creating spatial indices for {} trip patterns took {} "
+				+ "msec", tripPatterns.size(), timer.elapsedMsec());
+	}
+	
+	/**
+	 * Returns the sequential numbers of the segments that need to be
+	 * examined when matching the location. These are the segments that
+	 * could be within the specified distance of the location, the segments
+	 * before and after them, and the layover segments.
+	 * 
+	 * @param loc
+	 *            The AVL location
+	 * @param distance
+	 *            Max allowable distance from the segment
+	 * @return candidate segment numbers, in order
+	 */
+	public BitSet getCandidateSegments(Location loc, double distance) {
+		BitSet nearbySegments = new BitSet(stopPathIndexes.length);
+		
+		double searchDistance = distance * DISTANCE_MARGIN_FACTOR;
+		double deltaLat = searchDistance / METERS_PER_DEGREE_LATITUDE;
+		double deltaLon = 
+				searchDistance * cellSizeLonDegrees / cellSizeLatDegrees 
+					/ METERS_PER_DEGREE_LATITUDE;
+		int minLatCell = latCell(loc.getLat() - deltaLat);
+		int maxLatCell = latCell(loc.getLat() + deltaLat);
+		int minLonCell = lonCell(loc.getLon() - deltaLon);
+		int maxLonCell = lonCell(loc.getLon() + deltaLon);
+		for (int latCell = minLatCell; latCell <= maxLatCell; ++latCell) {
+			for (int lonCell = minLonCell; lonCell <= maxLonCell; ++lonCell) {
+				int[] segments = segmentsByCell.get(cellKey(latCell, lonCell));
+				if (segments == null)
+					continue;
+				for (int segmentNumber : segments)
+					nearbySegments.set(segmentNumber);
+			}
+		}
+		
+		return addNeighborsAndLayovers(nearbySegments);
+	}
+	
+	/**
+	 * Returns the segments that need to be examined when matching given the
+	 * segments that could be within the allowable distance. Adds the segments
+	 * before and after each of the nearby segments so that local minimums
+	 * are determined properly, and adds the layover segments.
+	 * 
+	 * @param nearbySegments
+	 *            Sequential numbers of segments that could be within the
+	 *            allowable distance. Not modified.
+	 * @return candidate segment numbers, in order
+	 */
+	public BitSet addNeighborsAndLayovers(BitSet nearbySegments) {
+		int numSegments = stopPathIndexes.length;
+		BitSet candidates = (BitSet) layoverSegments.clone();
+		for (int segmentNumber = nearbySegments.nextSetBit(0); 
+				segmentNumber >= 0; 
+				segmentNumber = nearbySegments.nextSetBit(segmentNumber + 1))
+			addWithNeighbors(candidates, segmentNumber, numSegments);
+		return candidates;
+	}
+	
+	/**
+	 * @return Total number of segments in the trip pattern
+	 */
+	public int getNumSegments() {
+		return stopPathIndexes.length;
+	}
+	
+	/**
+	 * @param segmentNumber
+	 *            Sequential number of the segment within the trip pattern
+	 * @return The stop path index of the segment
+	 */
+	public int getStopPathIndex(int segmentNumber) {
+		return stopPathIndexes[segmentNumber];
+	}
+	
+	/**
+	 * @param segmentNumber
+	 *            Sequential number of the segment within the trip pattern
+	 * @return The segment index of the segment within its stop path
+	 */
+	public int getSegmentIndex(int segmentNumber) {
+		return segmentIndexes[segmentNumber];
+	}
+	
+	/**
+	 * @param segmentNumber
+	 *            Sequential number of the segment within the trip pattern
+	 * @return The vector for the segment
+	 */
+	public VectorWithHeading getSegmentVector(int segmentNumber) {
+		return vectors[segmentNumber];
+	}
+	
+	/**
+	 * @return The trip pattern that the index is for
+	 */
+	public TripPattern getTripPattern() {
+		return tripPattern;
+	}
+}
@@ -62,6 +62,12 @@ public class VehicleState {
 	private LinkedList<AvlReport> avlReportHistory =
 			new LinkedList<AvlReport>();
 	private List<IpcPrediction> predictions;
+	// For when predictions are updated incrementally. The expected arrival
+	// time at the end of the stop path that the predictions are based on,
+	// and how many times in a row the predictions were shifted instead of
+	// being regenerated.
+	private long predictionsBaseTime;
+	private int incrementalPredictionUpdates;
 	private TemporalDifference realTimeSchedAdh;
 	
 	// For keeping track of how many bad matches have been encountered.
@@ -142,6 +148,28 @@ public class VehicleState {
 				false); // predictable
 	}
 	
+	/**
+	 * For when a new configuration is switched in while running. Replaces the
+	 * block and the match history with the equivalent ones from the new
+	 * configuration. The assignment method, assignment time, and
+	 * predictability are not changed.
+	 * 
+	 * @param newBlock
+	 *            The block from the new configuration that is equivalent to
+	 *            the current one. Null if vehicle not assigned.
+	 * @param newMatchHistory
+	 *            The match history, most recent match first, using the blocks
+	 *            of the new configuration
+	 */
+	public void switchToEquivalentBlock(Block newBlock,
+			List<TemporalMatch> newMatchHistory) {
+		if (previousBlockBeforeUnassigned == this.block)
+			previousBlockBeforeUnassigned = newBlock;
+		this.block = newBlock;
+		this.temporalMatchHistory = 
+				new LinkedList<TemporalMatch>(newMatchHistory);
+	}
+	
 	/**
 	 * Determines if vehicle is currently getting assigned and it is getting assigned
 	 * back to the same block it was assigned to just a while ago. In other
@@ -714,6 +742,43 @@ public class VehicleState {
 		return predictions;
 	}
 	
+	/**
+	 * Stores what the current predictions are based on so that they can
+	 * later be updated incrementally.
+	 * 
+	 * @param predictionsBaseTime
+	 *            The expected arrival time at the end of the stop path that
+	 *            the predictions are based on
+	 * @param incrementalPredictionUpdates
+	 *            How many times in a row the predictions have been shifted
+	 *            instead of regenerated. 0 if they were just regenerated.
+	 */
+	public void setPredictionsBase(long predictionsBaseTime,
+			int incrementalPredictionUpdates) {
+		this.predictionsBaseTime = predictionsBaseTime;
+		this.incrementalPredictionUpdates = incrementalPredictionUpdates;
+	}
+	
+	/**
+	 * Returns the expected arrival time at the end of the stop path that the
+	 * current predictions are based on.
+	 * 
+	 * @return the base time
+	 */
+	public long getPredictionsBaseTime() {
+		return predictionsBaseTime;
+	}
+	
+	/**
+	 * Returns how many times in a row the predictions have been shifted
+	 * instead of regenerated.
+	 * 
+	 * @return number of incremental updates
+	 */
+	public int getIncrementalPredictionUpdates() {
+		return incrementalPredictionUpdates;
+	}
+	
 	/**
 	 * Stores the real-time schedule adherence for the vehicle.
 	 * 
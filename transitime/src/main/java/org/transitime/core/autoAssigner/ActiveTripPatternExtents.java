@@ -0,0 +1,139 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core.autoAssigner;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.transitime.applications.Core;
+import org.transitime.db.structs.AvlReport;
+import org.transitime.db.structs.Block;
+import org.transitime.db.structs.Extent;
+import org.transitime.db.structs.Location;
+import org.transitime.db.structs.Trip;
+import org.transitime.gtfs.DbConfig;
+import org.transitime.utils.Time;
+
+/**
+ * For quickly determining which blocks a vehicle could possibly match to.
+ * For each block keeps the extents of the trip patterns of the trips that
+ * are currently active, which is where the vehicle for the block is expected
+ * to be. If the AVL report is not within the allowable distance of any of
+ * those extents then the spatial matcher would not find any matches for the
+ * block, so the block doesn't need to be examined.
+ * <p>
+ * The extents are determined per second of AVL time, since that is the
+ * resolution used to determine which trips are active, and are shared by
+ * all vehicles being auto assigned for that second.
+ *
+ */
+public class ActiveTripPatternExtents {
+
+	// The extents for recent seconds, keyed on epoch second
+	private static final ConcurrentMap<Long, ExtentsForTick> extentsByTick =
+			new ConcurrentHashMap<Long, ExtentsForTick>();
+	
+	// How many seconds of extents to keep
+	private static final int TICKS_TO_KEEP = 10;
+	
+	/**
+	 * The extents of the active trip patterns of the blocks for a second.
+	 */
+	private static class ExtentsForTick {
+		private final DbConfig dbConfig;
+		// Keyed on service ID and block ID
+		private final ConcurrentMap<String, Extent[]> extentsByBlock =
+				new ConcurrentHashMap<String, Extent[]>();
+		
+		private ExtentsForTick(DbConfig dbConfig) {
+			this.dbConfig = dbConfig;
+		}
+	}
+	
+	/********************** Member Functions **************************/
+
+	/**
+	 * Returns the extents for the second of the AVL report, creating them if
+	 * necessary.
+	 */
+	private static ExtentsForTick getExtentsForTick(AvlReport avlReport) {
+		DbConfig dbConfig = Core.getInstance().getDbConfig();
+		long tick = avlReport.getTime() / Time.MS_PER_SEC;
+		ExtentsForTick extentsForTick = extentsByTick.get(tick);
+		if (extentsForTick == null || extentsForTick.dbConfig != dbConfig) {
+			extentsForTick = new ExtentsForTick(dbConfig);
+			extentsByTick.put(tick, extentsForTick);
+			
+			// Get rid of old ticks so don't use up memory
+			Iterator<Long> iterator = extentsByTick.keySet().iterator();
+			while (iterator.hasNext()) {
+				long t = iterator.next();
+				if (t < tick - TICKS_TO_KEEP || t > tick + TICKS_TO_KEEP)
+					iterator.remove();
+			}
+		}
+		return extentsForTick;
+	}
+	
+	/**
+	 * Returns the extents of the trip patterns of the trips of the block that
+	 * are active for the AVL report.
+	 */
+	private static Extent[] getExtents(Block block, AvlReport avlReport) {
+		ExtentsForTick extentsForTick = getExtentsForTick(avlReport);
+		String key = block.getServiceId() + "|" + block.getId();
+		Extent[] extents = extentsForTick.extentsByBlock.get(key);
+		if (extents == null) {
+			List<Extent> extentsList = new ArrayList<Extent>();
+			List<String> tripPatternIds = new ArrayList<String>();
+			for (Trip trip : block.getTripsCurrentlyActive(avlReport)) {
+				String tripPatternId = trip.getTripPattern().getId();
+				if (!tripPatternIds.contains(tripPatternId)) {
+					tripPatternIds.add(tripPatternId);
+					extentsList.add(trip.getTripPattern().getExtent());
+				}
+			}
+			extents = extentsList.toArray(new Extent[extentsList.size()]);
+			extentsForTick.extentsByBlock.put(key, extents);
+		}
+		return extents;
+	}
+	
+	/**
+	 * Returns true if the AVL report is within the allowable distance of the
+	 * trip patterns of the block that are currently active, meaning that the
+	 * vehicle could possibly be spatially matched to the block.
+	 * 
+	 * @param block
+	 * @param avlReport
+	 * @param allowableDistance
+	 *            Max distance from segment for a spatial match
+	 * @return true if block could match
+	 */
+	public static boolean couldMatch(Block block, AvlReport avlReport,
+			double allowableDistance) {
+		Location loc = avlReport.getLocation();
+		for (Extent extent : getExtents(block, avlReport)) {
+			if (extent.isWithinDistance(loc, allowableDistance))
+				return true;
+		}
+		return false;
+	}
+}
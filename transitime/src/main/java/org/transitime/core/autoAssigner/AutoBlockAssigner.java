@@ -21,7 +21,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -60,7 +63,9 @@ import org.transitime.utils.Time;
  * the current report. Even with all of this optimization it can take a while to
  * match a vehicle since have to look at every stop path for each available trip
  * pattern. For an agency with ~250 available blocks this can take about 1/2 a
- * second.
+ * second. Therefore blocks whose currently active trip patterns are not near
+ * the AVL report are filtered out first and the remaining blocks are examined
+ * in parallel.
  *
  * @author SkiBu Smith
  *
@@ -74,10 +79,10 @@ public class AutoBlockAssigner {
 	private VehicleState vehicleState;
 	
 	// Contains the results of spatial matching the avl report to the 
-	// specified trip pattern. Keyed on trip pattern ID. Note: since the spatial 
-	// matches are cached and reused the block member will not be correct
-	private Map<String, SpatialMatch> spatialMatchCache = 
-			new HashMap<String, SpatialMatch>();
+	// trip patterns of the blocks examined. Safe to use while the blocks
+	// are examined in parallel.
+	private final SpatialMatchCache spatialMatchCache = 
+			new SpatialMatchCache();
 	
 	/****************************** Config params **********************/
 	
@@ -134,6 +139,19 @@ public class AutoBlockAssigner {
 					+ "reporting rates. So this param allows one to limit how "
 					+ "frequently auto assigner called for vehicle");
 	
+	private static IntegerConfigValue parallelism =
+			new IntegerConfigValue(
+					"transitime.autoBlockAssigner.parallelism", 
+					Runtime.getRuntime().availableProcessors(),
+					"Max number of threads used for examining the available "
+					+ "blocks when auto assigning. The threads are shared by "
+					+ "all vehicles being auto assigned. Set to 1 to examine "
+					+ "the blocks serially.");
+	
+	// For examining blocks in parallel. Bounded so that auto assigning
+	// can't use up all of the processors. Created when first needed.
+	private static volatile ForkJoinPool forkJoinPool = null;
+	
 	// For keeping track of last time vehicle auto assigned so that can limit 
 	// how frequently it is done. Keyed on vehicleId
 	private static HashMap<String, Long> timeVehicleLastAutoAssigned =
@@ -336,9 +354,6 @@ public class AutoBlockAssigner {
 	 */
 	private List<SpatialMatch> getSpatialMatches(AvlReport avlReport,
 			Block block) {
-		// Convenience variable
-		String vehicleId = avlReport.getVehicleId();
-		
 		// For returning results of this method
 		List<SpatialMatch> spatialMatches = new ArrayList<SpatialMatch>();
 		
@@ -346,118 +361,19 @@ public class AutoBlockAssigner {
 		// looking at all trips
 		List<Trip> activeTrips = block.getTripsCurrentlyActive(avlReport);
 		
-		// Determine trips that need to look at for spatial matches because 
-		// haven't looked at the associated trip pattern yet.
-		List<Trip> tripsNeedToInvestigate = new ArrayList<Trip>();
-		
-		// Go through the activeTrips and determine which ones actually need
-		// to be investigated. If the associated trip pattern was already 
-		// examined then use the spatial match (or null) previous found
-		// and cached. If it is a new trip pattern then add the trip to the
-		// list of trips that need to be investigated.
+		// Get the spatial matches for each active trip. If the associated 
+		// trip pattern was already examined, possibly while examining 
+		// another block, then the cached matches are used.
 		for (Trip trip : activeTrips) {
-			String tripPatternId = trip.getTripPattern().getId();
+			List<SpatialMatch> tripSpatialMatches = 
+					spatialMatchCache.getSpatialMatches(avlReport, block, trip);
 			
-			logger.debug("For vehicleId={} checking tripId={} with "
-					+ "tripPatternId={} for spatial "
-					+ "matches.", vehicleId, trip.getId(), 
-					trip.getTripPattern().getId());
-			
-			// If spatial match results already in cache...
-			if (spatialMatchCache.containsKey(tripPatternId)) {
-				// Already processed this trip pattern so use cached results. 
-				// Can be null
-				SpatialMatch previouslyFoundMatch =
-						spatialMatchCache.get(tripPatternId);
-
-				// If there actually was a successful spatial match to the 
-				// trip pattern in the cache then add it to spatialMatches list
-				if (previouslyFoundMatch != null) {
-					// The cached match has the wrong trip info so need  
-					// to create an equivalent match with the proper trip block 
-					// info
-					SpatialMatch matchWithProperBlock =
-							new SpatialMatch(previouslyFoundMatch, trip);
-					
-					// Add to list of spatial matches to return
-					spatialMatches.add(matchWithProperBlock);
-
-					logger.debug("For vehicleId={} for tripId={} with "
-							+ "tripPatternId={} using previously cached "
-							+ "spatial match.", 
-							vehicleId, trip.getId(), tripPatternId);
-				} else {
-					logger.debug("For vehicleId={} for tripId={} with "
-							+ "tripPatternId={} found from cache that there "
-							+ "is no spatial match.", 
-							vehicleId, trip.getId(), tripPatternId);
-				}
-			} else {
-				// New trip pattern so need to investigate it to search for 
-				// potential spatial matches
-				tripsNeedToInvestigate.add(trip);
-				
-				logger.debug("For vehicleId={} for tripId={} with "
-						+ "tripPatternId={} have not previously determined "
-						+ "spatial matches so will do so now.",
-						vehicleId, trip.getId(), tripPatternId);
-			}
-		}
-
-		// Investigate the trip patterns not in the cache. Determine potential 
-		// spatial matches that are not layovers. If match is to a layover can 
-		// ignore it since layover matches are far too flexible to really be 
-		// considered a spatial match
-		List<SpatialMatch> newSpatialMatches = SpatialMatcher
-				.getSpatialMatchesForAutoAssigning(avlReport,
-						block, tripsNeedToInvestigate);
-		
-		// Add newly discovered matches to the cache and to the list of spatial
-		// matches to be returned
-		for (SpatialMatch newSpatialMatch : newSpatialMatches) {
 			logger.debug("For vehicleId={} for tripId={} with "
-						+ "tripPatternId={} found new spatial match {}.",
-						vehicleId, newSpatialMatch.getTrip().getId(), 
-						newSpatialMatch.getTrip().getTripPattern().getId(),
-						newSpatialMatch);
+					+ "tripPatternId={} found {} spatial matches.", 
+					avlReport.getVehicleId(), trip.getId(), 
+					trip.getTripPattern().getId(), tripSpatialMatches.size());
 			
-			// Cache it
-			spatialMatchCache.put(newSpatialMatch.getTrip().getTripPattern()
-					.getId(), newSpatialMatch);
-			
-			// Add to list of spatial matches to return
-			spatialMatches.add(newSpatialMatch);
-		}
-		
-		// Also need to add to the cache the trips patterns that investigated 
-		// but did not find a spatial match. This is really important because
-		// when don't find a spatial match for a trip pattern don't want to 
-		// waste time searching it again to find out again that it doesn't 
-		// have a match.
-		for (Trip tripInvestigated : tripsNeedToInvestigate) {
-			// If the trip that was investigated did not result in spatial
-			// match then remember that by storing a null spatial match
-			// for the trip pattern
-			String tripPatternId = tripInvestigated.getTripPattern().getId();
-			boolean spatialMatchFound = false;
-			for (SpatialMatch newSpatialMatch : newSpatialMatches) {
-				String spatialMatchTripPatternId =
-						newSpatialMatch.getTrip().getTripPattern().getId();
-				if (spatialMatchTripPatternId.equals(tripPatternId)) {
-					spatialMatchFound = true;
-				}
-			}
-			// If no spatial match found for the trip pattern that just
-			// investigated then mark in cache that no match
-			if (!spatialMatchFound) {
-				spatialMatchCache.put(tripPatternId, null);
-				
-				logger.debug("For vehicleId={} for tripId={} with "
-						+ "tripPatternId={} no spatial match found so storing "
-						+ "that info in cache for investigating next block.",
-						vehicleId, tripInvestigated.getId(), 
-						tripInvestigated.getTripPattern().getId());
-			}
+			spatialMatches.addAll(tripSpatialMatches);
 		}
 		
 		// Return the results
@@ -678,31 +594,25 @@ public class AutoBlockAssigner {
 					vehicleId, blocksToExamine.size());
 		}
 		
-		// For each active block that is currently unassigned...
+		// Only need to examine blocks where the vehicle for the block could
+		// be near the AVL report. Otherwise the spatial matcher wouldn't find
+		// any matches anyways.
+		double allowableDistance = 
+				CoreConfig.getMaxDistanceFromSegmentForAutoAssigning();
+		List<Block> blocksNearby = new ArrayList<Block>();
 		for (Block block : blocksToExamine) {
-			IntervalTimer blockTimer = new IntervalTimer();
-			
-			if (logger.isDebugEnabled()) {
-				// Note, when auto assignment first done for this block this
-				// debug statement will take a while to execute because block
-				// info read from db. But that is OK since it is going to happen
-				// at some point anyways.
-				logger.debug("For vehicleId={} examining blockId={} for match. "
-						+ "The block contains the routes {}. {}", 
-						vehicleId, block.getId(), block.getRouteIds(), 
-						block.toShortString());
-			}
-
-			// Determine best match for the block depending on whether the 
-			// block is schedule based or not
-			TemporalMatch bestMatch = block.isNoSchedule() ? 
-					bestNoScheduleMatch(block) :
-					bestScheduleMatch(block);					
+			if (ActiveTripPatternExtents.couldMatch(block, getAvlReport(),
+					allowableDistance))
+				blocksNearby.add(block);
+		}
+		logger.info("For vehicleId={} {} of the {} blocks are near the AVL "
+				+ "report so examining them. Filtering took {}msec", 
+				vehicleId, blocksNearby.size(), blocksToExamine.size(), timer);
+		
+		// Examine the blocks, in parallel if there are several of them
+		for (TemporalMatch bestMatch : bestMatches(blocksNearby)) {
 			if (bestMatch != null)
 				validMatches.add(bestMatch);
-			
-			logger.debug("For vehicleId={} checking blockId={} took {}msec",
-					vehicleId, block.getId(), blockTimer);
 		}
 
 		// Return the valid matches that were found
@@ -712,6 +622,105 @@ public class AutoBlockAssigner {
 		return validMatches;
 	}
 	
+	/**
+	 * Determines the best match for the block depending on whether the block
+	 * is schedule based or not.
+	 * 
+	 * @param block
+	 * @return the best match, or null if no adequate match
+	 */
+	private TemporalMatch bestMatch(Block block) {
+		IntervalTimer blockTimer = new IntervalTimer();
+		String vehicleId = vehicleState.getVehicleId();
+		
+		if (logger.isDebugEnabled()) {
+			// Note, when auto assignment first done for this block this
+			// debug statement will take a while to execute because block
+			// info read from db. But that is OK since it is going to happen
+			// at some point anyways.
+			logger.debug("For vehicleId={} examining blockId={} for match. "
+					+ "The block contains the routes {}. {}", 
+					vehicleId, block.getId(), block.getRouteIds(), 
+					block.toShortString());
+		}
+
+		TemporalMatch bestMatch = block.isNoSchedule() ? 
+				bestNoScheduleMatch(block) :
+				bestScheduleMatch(block);					
+		
+		logger.debug("For vehicleId={} checking blockId={} took {}msec",
+				vehicleId, block.getId(), blockTimer);
+		
+		return bestMatch;
+	}
+	
+	/**
+	 * Returns the fork join pool for examining blocks in parallel, creating
+	 * it if it doesn't yet exist.
+	 * 
+	 * @return the pool
+	 */
+	private static ForkJoinPool getForkJoinPool() {
+		if (forkJoinPool == null) {
+			synchronized (AutoBlockAssigner.class) {
+				if (forkJoinPool == null)
+					forkJoinPool = new ForkJoinPool(
+							Math.max(parallelism.getValue(), 1));
+			}
+		}
+		return forkJoinPool;
+	}
+	
+	/**
+	 * Determines the best match for each of the blocks. If there are multiple
+	 * blocks and parallelism is configured then the blocks are examined in
+	 * parallel using the shared fork join pool.
+	 * 
+	 * @param blocks
+	 * @return the best matches, in the same order as the blocks. An element
+	 *         is null if there is no adequate match for the block.
+	 */
+	private List<TemporalMatch> bestMatches(List<Block> blocks) {
+		List<TemporalMatch> bestMatches = new ArrayList<TemporalMatch>();
+		
+		// If just a single block or not configured for parallelism then 
+		// simply examine the blocks serially
+		if (blocks.size() <= 1 || parallelism.getValue() <= 1) {
+			for (Block block : blocks)
+				bestMatches.add(bestMatch(block));
+			return bestMatches;
+		}
+		
+		List<Callable<TemporalMatch>> tasks = 
+				new ArrayList<Callable<TemporalMatch>>();
+		for (final Block block : blocks) {
+			tasks.add(new Callable<TemporalMatch>() {
+				@Override
+				public TemporalMatch call() {
+					return bestMatch(block);
+				}
+			});
+		}
+		
+		try {
+			for (Future<TemporalMatch> future : 
+					getForkJoinPool().invokeAll(tasks))
+				bestMatches.add(future.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.error("For vehicleId={} interrupted while examining "
+					+ "blocks for auto assignment.", 
+					vehicleState.getVehicleId(), e);
+		} catch (ExecutionException e) {
+			// Propagate exception the same way as if examined serially
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+		
+		return bestMatches;
+	}
+	
 	/**
 	 * Determines if the auto assigner is being called too recently, as specified by
 	 * the transitime.autoBlockAssigner.minTimeBetweenAutoAssigningSecs property. This
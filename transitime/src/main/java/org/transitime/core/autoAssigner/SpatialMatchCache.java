@@ -0,0 +1,122 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core.autoAssigner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+import org.transitime.core.SpatialMatch;
+import org.transitime.core.SpatialMatcher;
+import org.transitime.db.structs.AvlReport;
+import org.transitime.db.structs.Block;
+import org.transitime.db.structs.Trip;
+
+/**
+ * Caches the spatial matches of an AVL report by trip pattern for when auto
+ * assigning a vehicle. Many of the blocks examined share trip patterns so
+ * this way a trip pattern only needs to be spatially matched once.
+ * <p>
+ * Since the blocks are examined in parallel a trip pattern is matched
+ * atomically, by whichever block gets to it first, and the other blocks wait
+ * for and then use that result. All of the matches for the trip pattern are
+ * cached, with an empty list meaning there is no match, so each block gets
+ * the same matches no matter in which order the blocks are examined.
+ *
+ */
+class SpatialMatchCache {
+
+	// Keyed on trip pattern ID. The cached matches are for the trip that
+	// the trip pattern was first matched for.
+	private final ConcurrentMap<String, List<SpatialMatch>>
+		spatialMatchesByTripPatternId =
+			new ConcurrentHashMap<String, List<SpatialMatch>>();
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Returns the spatial matches of the AVL report to the trip. If the trip
+	 * pattern of the trip was already matched then the cached matches are
+	 * copied for the trip. Otherwise the trip pattern is matched now and the
+	 * matches are cached.
+	 *
+	 * @param avlReport
+	 *            The AVL report to be matched
+	 * @param block
+	 *            The block of the trip
+	 * @param trip
+	 *            The currently active trip to match the AVL report to
+	 * @return The spatial matches for the trip, not including layovers
+	 */
+	List<SpatialMatch> getSpatialMatches(final AvlReport avlReport,
+			final Block block, final Trip trip) {
+		List<SpatialMatch> tripPatternMatches =
+				spatialMatchesByTripPatternId.computeIfAbsent(
+						trip.getTripPattern().getId(),
+						new Function<String, List<SpatialMatch>>() {
+							@Override
+							public List<SpatialMatch> apply(
+									String tripPatternId) {
+								return determineSpatialMatches(avlReport,
+										block, trip);
+							}
+						});
+
+		// The cached matches have the trip info of the trip the trip
+		// pattern was first matched for, so copy them for this trip
+		List<SpatialMatch> spatialMatches =
+				new ArrayList<SpatialMatch>(tripPatternMatches.size());
+		for (SpatialMatch spatialMatch : tripPatternMatches) {
+			spatialMatches.add(spatialMatch.getTrip() == trip ?
+					spatialMatch : copyForTrip(spatialMatch, trip));
+		}
+		return spatialMatches;
+	}
+
+	/**
+	 * Spatially matches the AVL report to the trip, ignoring layover
+	 * matches since they are far too flexible to really be considered a
+	 * spatial match.
+	 *
+	 * @param avlReport
+	 * @param block
+	 * @param trip
+	 * @return The unmodifiable spatial matches. Empty if there are none.
+	 */
+	List<SpatialMatch> determineSpatialMatches(AvlReport avlReport,
+			Block block, Trip trip) {
+		return Collections.unmodifiableList(SpatialMatcher
+				.getSpatialMatchesForAutoAssigning(avlReport, block,
+						Collections.singletonList(trip)));
+	}
+
+	/**
+	 * Creates a spatial match equivalent to the cached one but for the
+	 * specified trip, which has the same trip pattern.
+	 *
+	 * @param spatialMatch
+	 * @param trip
+	 * @return The spatial match for the trip
+	 */
+	SpatialMatch copyForTrip(SpatialMatch spatialMatch, Trip trip) {
+		return new SpatialMatch(spatialMatch, trip);
+	}
+
+}
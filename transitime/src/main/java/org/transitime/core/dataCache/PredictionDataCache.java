@@ -18,15 +18,22 @@ package org.transitime.core.dataCache;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.applications.Core;
+import org.transitime.config.IntegerConfigValue;
 import org.transitime.core.PredictionGeneratorDefaultImpl;
 import org.transitime.core.VehicleState;
 import org.transitime.db.structs.Route;
@@ -36,8 +43,10 @@ import org.transitime.gtfs.DbConfig;
 import org.transitime.ipc.data.IpcPrediction;
 import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
 import org.transitime.ipc.interfaces.PredictionsInterface.RouteStop;
+import org.transitime.utils.HashedTimerWheel;
 import org.transitime.utils.MapKey;
 import org.transitime.utils.Time;
+import org.transitime.utils.threading.NamedThreadFactory;
 
 /**
  * For storing and retrieving predictions by stop.
@@ -50,18 +59,44 @@ import org.transitime.utils.Time;
  * old one has been removed but the new one has not yet been written, causing
  * a prediction to be missed.
  * <p>
- * For concurrency and thread safety using ConcurrentHashMap instead of 
- * HashMap. 
- * <p> 
- * getPredictions() returns a copy of the list of predictions for the
- * route/stop. This way the contents will always be coherent and the 
- * caller does not need to synchronize, which would be difficult to
- * enforce.
+ * For concurrency and thread safety the predictions are copy-on-write. For
+ * each route/stop there is an AtomicReference to an immutable list of
+ * immutable IpcPredictionsForRouteStopDest objects whose predictions are
+ * already ordered by time. A writer creates a new list with the updated
+ * predictions and publishes it with compareAndSet(), retrying if another
+ * writer published first. This way the predictions read are always
+ * coherent and readers don't need any locking, copying, or modifying of
+ * the shared data.
+ * <p>
+ * Expired predictions are removed using a hashed timer wheel. Each
+ * route/stop is scheduled for the time of its earliest prediction and when
+ * that time has passed the expired predictions for the route/stop are
+ * removed, even if nobody is requesting predictions for it. The wheel is
+ * advanced every tick by a timer. It uses the core's system time so that it
+ * also works in playback mode. Destinations left without any predictions
+ * are removed from the route/stop. Readers simply skip predictions that
+ * expired since the last tick.
  * 
  * @author SkiBu Smith
  */
 public class PredictionDataCache {
 
+	// Declared before the singleton since used by the constructor
+	private static IntegerConfigValue expiryTickMsec =
+			new IntegerConfigValue(
+					"transitime.core.predictionExpiryTickMsec", 
+					5 * Time.MS_PER_SEC,
+					"Expired predictions are removed from the prediction "
+					+ "cache using a timer wheel with ticks of this many "
+					+ "msec. Predictions are removed at most this long after "
+					+ "they expire, but they are never provided to clients "
+					+ "once expired.");
+	
+	// Number of slots of the timer wheel. With the default tick this covers
+	// over 20 minutes so most route/stops are in a slot for the current
+	// rotation.
+	private static final int EXPIRY_WHEEL_SLOTS = 256;
+	
 	// This is a singleton class
 	private static PredictionDataCache singleton = 
 			new PredictionDataCache();
@@ -77,20 +112,87 @@ public class PredictionDataCache {
 	// for each route/stop have a List of PredictionsForRouteStop, one
 	// for each destination/trip head sign.
 	// Keyed by MapKey using routeId/stopId.
-	// ConcurrentHashMap is used so that can associate a route/stop with a 
-	// PredictionsForRouteStop in a threadsafe way. Will always use same 
-	// PredictionsForRouteStop for a route/stop and synchronize any changes and 
-	// access to it so if multiple threads are making changes on a route/stop 
-	// those changes will be coherent and information will not be lost.
-	private final ConcurrentHashMap<MapKey, List<IpcPredictionsForRouteStopDest>> 
-		predictionsMap =
-			new ConcurrentHashMap<MapKey, List<IpcPredictionsForRouteStopDest>>(1000);
+	// ConcurrentHashMap is used so that can associate a route/stop with an
+	// AtomicReference in a threadsafe way. Will always use same
+	// AtomicReference for a route/stop and the immutable list it refers to
+	// is replaced using compareAndSet() so if multiple threads are making
+	// changes on a route/stop those changes will be coherent and information
+	// will not be lost.
+	private final ConcurrentHashMap<MapKey, 
+			AtomicReference<List<IpcPredictionsForRouteStopDest>>> 
+		predictionsMap = new ConcurrentHashMap<MapKey, 
+			AtomicReference<List<IpcPredictionsForRouteStopDest>>>(1000);
+	
+	// For removing the expired predictions. Keyed on the same route/stop
+	// key as predictionsMap.
+	private final HashedTimerWheel<MapKey> expiryWheel =
+			new HashedTimerWheel<MapKey>(EXPIRY_WHEEL_SLOTS, 
+					expiryTickMsec.getValue());
+	
+	// For advancing the timer wheel every tick. Uses a daemon thread so
+	// that the timer doesn't keep a process that only reads the cache
+	// from exiting.
+	private final ScheduledThreadPoolExecutor expiryTimer =
+			new ScheduledThreadPoolExecutor(1, new NamedThreadFactory(
+					PredictionDataCache.class.getSimpleName() + "Expiry") {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = super.newThread(runnable);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	
+	// Number of predictions in the cache and number removed because they
+	// expired
+	private final AtomicLong livePredictionCount = new AtomicLong();
+	private final AtomicLong evictedPredictionCount = new AtomicLong();
 	
 	private static final Logger logger = 
 			LoggerFactory.getLogger(PredictionDataCache.class);
 
+	/**
+	 * For creating the updated predictions for a route/stop/destination
+	 * from the current ones.
+	 */
+	private static abstract class DestinationUpdate {
+		/**
+		 * @param currentPreds
+		 *            The current predictions for the route/stop/destination
+		 * @return The updated predictions, or currentPreds if nothing changed
+		 */
+		abstract IpcPredictionsForRouteStopDest update(
+				IpcPredictionsForRouteStopDest currentPreds);
+		
+		/**
+		 * @return Number of expired predictions of other vehicles that the
+		 *         last call to update() dropped
+		 */
+		int getNumberExpiredRemoved() {
+			return 0;
+		}
+	}
+	
 	/********************** Member Functions **************************/
 	
+	/**
+	 * Constructor. Starts the timer that removes the expired predictions.
+	 */
+	private PredictionDataCache() {
+		long tickMsec = expiryTickMsec.getValue();
+		expiryTimer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					evictExpiredPredictions();
+				} catch (Exception e) {
+					logger.error("Exception when removing expired "
+							+ "predictions. {}", e.getMessage(), e);
+				}
+			}
+		}, tickMsec, tickMsec, TimeUnit.MILLISECONDS);
+	}
+	
 	/**
 	 * Returns singleton object for this class. It will use the regular
 	 * SystemCurrentTime class for determining the time and whether any 
@@ -112,12 +214,11 @@ public class PredictionDataCache {
 	}
 	
 	/**
-	 * Returns copy of the PredictionsForRouteStop object. This is the low-level
-	 * method that actually gets the appropriate predictions. A clone is used so
-	 * that it can be accessed as needed without worrying about another thread
-	 * writing to it. The list of predictions should be relatively small so
-	 * cloning is not very costly. And this way the caller of this method
-	 * doesn't have to synchronize or such.
+	 * Returns the PredictionsForRouteStop objects. This is the low-level
+	 * method that actually gets the appropriate predictions. Since the
+	 * predictions are immutable snapshots they can be accessed as needed
+	 * without worrying about another thread writing to them and without
+	 * having to copy them.
 	 * 
 	 * @param routeIdOrShortName  
 	 *            route_id or route_short_name, or null to specify all routes
@@ -183,17 +284,15 @@ public class PredictionDataCache {
 		List<IpcPredictionsForRouteStopDest> predictionsForRouteStop = 
 				getPredictionsForRouteStop(routeShortName, stopId);
 		
-		// Remove old predictions so that they are not provided through the 
-		// API and such
-		for (IpcPredictionsForRouteStopDest preds : predictionsForRouteStop) {
-			preds.removeExpiredPredictions(getSystemTime());
-		}
+		// Old predictions are skipped so that they are not provided through
+		// the API and such
+		long currentTime = getSystemTime();
 
 		// Want to limit predictions to max time in future since if using
 		// schedule based predictions then generating predictions far into the 		
 		// future.
 		long maxPredictionEpochTime =
-				Core.getInstance().getSystemTime()
+				currentTime
 						+ PredictionGeneratorDefaultImpl
 								.getMaxPredictionsTimeSecs()
 						* Time.SEC_IN_MSECS;
@@ -207,6 +306,8 @@ public class PredictionDataCache {
 		boolean nonEndOfTripPredFound = false;
 		for (IpcPredictionsForRouteStopDest predictions : predictionsForRouteStop) {
 			for (IpcPrediction preds : predictions.getPredictionsForRouteStop()) {
+				if (preds.getPredictionTime() < currentTime)
+					continue;
 				if (preds.isAtEndOfTrip())
 					endOfTripPredFound = true;
 				else
@@ -216,10 +317,8 @@ public class PredictionDataCache {
 		boolean shouldFilterOutEndOfTripPreds = 
 				endOfTripPredFound && nonEndOfTripPredFound;
 		
-		// Make a copy of the prediction objects so that they cannot be
-		// modified by another thread while they are being accessed. This
-		// is important because when the predictions are modified they are
-		// temporarily not coherent. 
+		// Get the predictions limited by number, time, and direction. The
+		// snapshots are immutable so they don't actually need to be copied.
 		List<IpcPredictionsForRouteStopDest> clonedPredictions = 
 				new ArrayList<IpcPredictionsForRouteStopDest>(
 						predictionsForRouteStop.size());
@@ -239,7 +338,8 @@ public class PredictionDataCache {
 					boolean allPredsForEndOfTrip = true;
 					for (IpcPrediction preds : predictions
 							.getPredictionsForRouteStop()) {
-						if (!preds.isAtEndOfTrip()) {
+						if (preds.getPredictionTime() >= currentTime 
+								&& !preds.isAtEndOfTrip()) {
 							allPredsForEndOfTrip = false;
 							continue;
 						}
@@ -251,7 +351,7 @@ public class PredictionDataCache {
 			
 			// Direction ID is OK so clone prediction and add to list
 			IpcPredictionsForRouteStopDest clone =
-					predictions.getClone(maxPredictionsPerStop,
+					predictions.getClone(maxPredictionsPerStop, currentTime,
 							maxPredictionEpochTime, distanceToStop);
 			clonedPredictions.add(clone);
 		}
@@ -446,15 +546,19 @@ public class PredictionDataCache {
 			int maxPredictionsPerStop, long maxSystemTimeForPrediction) {
 		List<IpcPredictionsForRouteStopDest> allPredictions = 
 				new ArrayList<IpcPredictionsForRouteStopDest>(5000);
+		long currentTime = getSystemTime();
 		
 		// Go through all PredictionsForRouteStop objects
-		Collection<List<IpcPredictionsForRouteStopDest>> predictionsByRouteStop = 
-				predictionsMap.values();		
-		for (List<IpcPredictionsForRouteStopDest> predictionsForRouteStop : predictionsByRouteStop) {
-			for (IpcPredictionsForRouteStopDest predictionForRouteStopDest : predictionsForRouteStop) {
+		Collection<AtomicReference<List<IpcPredictionsForRouteStopDest>>> 
+			predictionsByRouteStop = predictionsMap.values();		
+		for (AtomicReference<List<IpcPredictionsForRouteStopDest>> 
+				predictionsForRouteStop : predictionsByRouteStop) {
+			for (IpcPredictionsForRouteStopDest predictionForRouteStopDest : 
+					predictionsForRouteStop.get()) {
 				IpcPredictionsForRouteStopDest clonedPrediction = 
 						predictionForRouteStopDest.getClone(
-								maxPredictionsPerStop, maxSystemTimeForPrediction);
+								maxPredictionsPerStop, currentTime,
+								maxSystemTimeForPrediction, Double.NaN);
 				// If there were valid predictions then include it in array to
 				// be returned
 				if (!clonedPrediction.getPredictionsForRouteStop().isEmpty())
@@ -465,18 +569,181 @@ public class PredictionDataCache {
 		return allPredictions;
 	}
 	
+	/**
+	 * Groups the predictions by route/stop/destination.
+	 * 
+	 * @param predictions
+	 * @return map of predictions keyed by route/stop/destination
+	 */
+	private static Map<MapKey, List<IpcPrediction>> groupByRouteStopDest(
+			List<IpcPrediction> predictions) {
+		Map<MapKey, List<IpcPrediction>> predsByRouteStopDestMap =
+				new HashMap<MapKey, List<IpcPrediction>>();
+		
+		for (IpcPrediction prediction : predictions) {
+			MapKey key = new MapKey(prediction.getRouteShortName(),
+							prediction.getStopId(), 
+							prediction.getTrip().getHeadsign());
+			List<IpcPrediction> predsForRouteStopDestList = 
+					predsByRouteStopDestMap.get(key);
+			if (predsForRouteStopDestList == null) {
+				predsForRouteStopDestList = new ArrayList<IpcPrediction>();
+				predsByRouteStopDestMap.put(key, predsForRouteStopDestList);
+			}
+			predsForRouteStopDestList.add(prediction);
+		}
+		
+		return predsByRouteStopDestMap;
+	}
+	
+	/**
+	 * Returns true if the new predictions for a route/stop/destination are
+	 * the same, as far as clients are concerned, as the old ones so that the
+	 * cache doesn't need to be updated.
+	 * 
+	 * @param oldPreds
+	 * @param newPreds
+	 * @return true if the predictions are the same
+	 */
+	private static boolean samePredictions(List<IpcPrediction> oldPreds,
+			List<IpcPrediction> newPreds) {
+		if (oldPreds.size() != newPreds.size())
+			return false;
+		
+		for (int i = 0; i < oldPreds.size(); ++i) {
+			IpcPrediction oldPred = oldPreds.get(i);
+			IpcPrediction newPred = newPreds.get(i);
+			if (oldPred.getPredictionTime() != newPred.getPredictionTime()
+					|| oldPred.getGtfsStopSeq() != newPred.getGtfsStopSeq()
+					|| !oldPred.getTripId().equals(newPred.getTripId())
+					|| oldPred.isArrival() != newPred.isArrival()
+					|| oldPred.isDelayed() != newPred.isDelayed()
+					|| oldPred.isAffectedByWaitStop() != newPred
+							.isAffectedByWaitStop()
+					|| oldPred.isLateAndSubsequentTripSoMarkAsUncertain() != newPred
+							.isLateAndSubsequentTripSoMarkAsUncertain())
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * How the predictions for a vehicle in the cache need to be changed for
+	 * new predictions.
+	 */
+	static class PredictionsDiff {
+		// The new predictions, grouped by route/stop/destination, for the
+		// route/stop/destinations where they changed
+		final List<List<IpcPrediction>> changedPredictions =
+				new ArrayList<List<IpcPrediction>>();
+		
+		// The old predictions for route/stop/destinations that don't have
+		// any new predictions
+		final List<IpcPrediction> removedPredictions = 
+				new ArrayList<IpcPrediction>();
+		
+		// The predictions for the vehicle that are in the cache once the
+		// changes have been made
+		final List<IpcPrediction> cachedPredictions = 
+				new ArrayList<IpcPrediction>();
+	}
+	
+	/**
+	 * Determines how the predictions for a vehicle in the cache need to be
+	 * changed for the new predictions. For route/stop/destinations where the
+	 * new predictions are the same as the old ones the old predictions
+	 * remain in the cache.
+	 * 
+	 * @param oldPredictionsForVehicle
+	 *            The predictions currently in the cache for the vehicle. Can
+	 *            be null.
+	 * @param newPredictionsForVehicle
+	 *            The new predictions. Must not be null.
+	 * @return the changes to make
+	 */
+	static PredictionsDiff diffPredictions(
+			List<IpcPrediction> oldPredictionsForVehicle,
+			List<IpcPrediction> newPredictionsForVehicle) {
+		PredictionsDiff diff = new PredictionsDiff();
+		
+		// Group the predictions by route/stop/dest so that all the 
+		// predictions for a route/stop/dest can be dealt with at once
+		Map<MapKey, List<IpcPrediction>> newPredsForVehicleByRouteStopDestMap =
+				groupByRouteStopDest(newPredictionsForVehicle);
+		Map<MapKey, List<IpcPrediction>> oldPredsForVehicleByRouteStopDestMap =
+				oldPredictionsForVehicle != null ? 
+						groupByRouteStopDest(oldPredictionsForVehicle) 
+						: new HashMap<MapKey, List<IpcPrediction>>();
+		
+		// Go through the new predictions grouped by route/stop/destination.
+		// If they are the same as the old ones then the cache doesn't need 
+		// to be touched and the old prediction remains in it.
+		Map<IpcPrediction, IpcPrediction> unchangedPreds =
+				new IdentityHashMap<IpcPrediction, IpcPrediction>();
+		for (Map.Entry<MapKey, List<IpcPrediction>> entry : 
+				newPredsForVehicleByRouteStopDestMap.entrySet()) {
+			List<IpcPrediction> newPredsForVehicleForRouteStopDest = 
+					entry.getValue();
+			List<IpcPrediction> oldPredsForVehicleForRouteStopDest =
+					oldPredsForVehicleByRouteStopDestMap.get(entry.getKey());
+			if (oldPredsForVehicleForRouteStopDest != null
+					&& samePredictions(oldPredsForVehicleForRouteStopDest,
+							newPredsForVehicleForRouteStopDest)) {
+				for (int i = 0; 
+						i < newPredsForVehicleForRouteStopDest.size(); 
+						++i)
+					unchangedPreds.put(newPredsForVehicleForRouteStopDest.get(i),
+							oldPredsForVehicleForRouteStopDest.get(i));
+				continue;
+			}
+			
+			diff.changedPredictions.add(newPredsForVehicleForRouteStopDest);
+		}
+		
+		// Old predictions for route/stop/dests that don't have new ones
+		// need to be removed
+		if (oldPredictionsForVehicle != null) {
+			for (IpcPrediction oldPrediction : oldPredictionsForVehicle) {
+				MapKey key = new MapKey(oldPrediction.getRouteShortName(),
+						oldPrediction.getStopId(), 
+						oldPrediction.getTrip().getHeadsign());
+				if (newPredsForVehicleByRouteStopDestMap.get(key) == null)
+					diff.removedPredictions.add(oldPrediction);
+			}
+		}
+		
+		// Determine the predictions that will be in the cache for the vehicle
+		for (IpcPrediction newPrediction : newPredictionsForVehicle) {
+			IpcPrediction unchangedPrediction = 
+					unchangedPreds.get(newPrediction);
+			diff.cachedPredictions.add(unchangedPrediction != null ? 
+					unchangedPrediction : newPrediction);
+		}
+		
+		return diff;
+	}
+	
 	/**
 	 * Updates predictions in the cache that are associated with a vehicle.
 	 * Removes any that are in oldPredictionsForVehicle and adds all the ones in
-	 * newPredictionsForVehicle.
+	 * newPredictionsForVehicle. The cache is only updated for the
+	 * route/stop/destinations where the predictions actually changed. For
+	 * the others the old predictions remain in the cache.
 	 * 
 	 * @param oldPredictionsForVehicle
-	 *            The old predictions to be removed.
+	 *            The old predictions to be removed. Must be the ones that are
+	 *            currently in the cache for the vehicle.
 	 * @param newPredictionsForVehicle
 	 *            The new predictions. Can be null if only removing old
 	 *            predictions
+	 * @return The predictions for the vehicle that are now in the cache. These
+	 *         are the new predictions except that for the unchanged
+	 *         route/stop/destinations the old predictions are used. Should be
+	 *         passed in as oldPredictionsForVehicle for the next update.
 	 */
-	public void updatePredictions(List<IpcPrediction> oldPredictionsForVehicle,
+	public List<IpcPrediction> updatePredictions(
+			List<IpcPrediction> oldPredictionsForVehicle,
 			List<IpcPrediction> newPredictionsForVehicle) {
 		// Handle null being passed in for newPredictionsForVehicle
 		if (newPredictionsForVehicle == null)
@@ -487,48 +754,16 @@ public class PredictionDataCache {
 		// trips then won't have a unique trip identifier. Therefore to
 		// atomically update the predictions for this vehicle for this
 		// route/stop need to delete all predictions for the vehicle
-		// and add all new ones in one synchronized operation.
-		// First step is to group the new predictions by route/stop/dest so
-		// can deal with them all at once. Those are put into
-		// newPredsForVehicleByRouteStopDestMap.
-		Map<MapKey, List<IpcPrediction>> newPredsForVehicleByRouteStopDestMap =
-				new HashMap<MapKey, List<IpcPrediction>>();
-		
-		for (IpcPrediction newPrediction : newPredictionsForVehicle) {
-			MapKey key = new MapKey(newPrediction.getRouteShortName(),
-							newPrediction.getStopId(), 
-							newPrediction.getTrip().getHeadsign());
-			List<IpcPrediction> predsForRouteStopDestList = 
-					newPredsForVehicleByRouteStopDestMap.get(key);
-			if (predsForRouteStopDestList == null) {
-				predsForRouteStopDestList = new ArrayList<IpcPrediction>();
-				newPredsForVehicleByRouteStopDestMap
-						.put(key, predsForRouteStopDestList);
-			}
-			predsForRouteStopDestList.add(newPrediction);
-		}
-		
-		// Go through the new predictions grouped by route/stop/destination and
-		// process them.
+		// and add all new ones in one operation.
+		PredictionsDiff diff = diffPredictions(oldPredictionsForVehicle, 
+				newPredictionsForVehicle);
 		for (List<IpcPrediction> newPredsForVehicleForRouteStopDest : 
-				newPredsForVehicleByRouteStopDestMap.values()) {
+				diff.changedPredictions)
 			updatePredictionsForVehicle(newPredsForVehicleForRouteStopDest);
-		}
+		for (IpcPrediction oldPrediction : diff.removedPredictions)
+			removePrediction(oldPrediction);
 		
-		// Remove old predictions that are not in newPredictionsForVehicle 
-		if (oldPredictionsForVehicle != null) {
-			for (IpcPrediction oldPrediction : oldPredictionsForVehicle) {
-				// If there is no new prediction for the old prediction 
-				// route/stop...
-				MapKey key = new MapKey(oldPrediction.getRouteShortName(),
-						oldPrediction.getStopId(), 
-						oldPrediction.getTrip().getHeadsign());
-				if (newPredsForVehicleByRouteStopDestMap.get(key) == null) {
-					// Remove the old prediction
-					removePrediction(oldPrediction);
-				}
-			}
-		}
+		return diff.cachedPredictions;
 	}
 	
 	/**
@@ -543,6 +778,10 @@ public class PredictionDataCache {
 		List<IpcPrediction> oldPredictions = vehicleState.getPredictions();
 		
 		updatePredictions(oldPredictions, null);
+		
+		// So that the predictions are not considered to still be in the
+		// cache when the predictions are next updated
+		vehicleState.setPredictions(null);
 	}
 
 	/**
@@ -551,28 +790,31 @@ public class PredictionDataCache {
 	 * 
 	 * @param oldPrediction
 	 */
-	private void removePrediction(IpcPrediction oldPrediction) {
+	private void removePrediction(final IpcPrediction oldPrediction) {
 		logger.debug("Removing prediction={}", oldPrediction);
 		
-		// Get the prediction list from the map
-		IpcPredictionsForRouteStopDest predictions = 
-				getPredictionsForRouteStopDestination(oldPrediction);
-		predictions.removePrediction(oldPrediction);
+		updateRouteStopDestination(oldPrediction.getTrip(),
+				oldPrediction.getStopId(), false, new DestinationUpdate() {
+					@Override
+					IpcPredictionsForRouteStopDest update(
+							IpcPredictionsForRouteStopDest currentPreds) {
+						return currentPreds.withoutPrediction(oldPrediction);
+					}
+				});
 	}
 
 	/**
-	 * Gets the prediction list for the route/stop/destination, synchronizes it
-	 * so that changes are threadsafe, and then updates the list with the new
-	 * predictions. Each route/stop will usually get only a single prediction
-	 * but there are situations where a vehicle will hit a stop more than once
-	 * with the max time that predictions are generated for. For such a case
-	 * need to add all of those predictions at once.
+	 * Publishes the new predictions for the vehicle for the
+	 * route/stop/destination. Each route/stop will usually get only a single
+	 * prediction but there are situations where a vehicle will hit a stop
+	 * more than once with the max time that predictions are generated for.
+	 * For such a case need to add all of those predictions at once.
 	 * 
 	 * @param newPredsForVehicleForRouteStopDest
 	 *            the new predictions to be set for the route/stop/destination.
 	 */
 	private void updatePredictionsForVehicle(
-			List<IpcPrediction> newPredsForVehicleForRouteStopDest) {
+			final List<IpcPrediction> newPredsForVehicleForRouteStopDest) {
 		// If no predictions then nothing to do so return.
 		if (newPredsForVehicleForRouteStopDest == null || 
 				newPredsForVehicleForRouteStopDest.isEmpty())
@@ -581,21 +823,44 @@ public class PredictionDataCache {
 		logger.debug("Adding predictions for the route/stop/destination: {}", 
 				newPredsForVehicleForRouteStopDest);
 
-		// Get the current predictions for the route/stop/destination
-		IpcPrediction pred = newPredsForVehicleForRouteStopDest.get(0);
-		IpcPredictionsForRouteStopDest currentPredsForRouteStopDest = 
-				getPredictionsForRouteStopDestination(pred);
-		
 		// Update the predictions for the route/stop/destination
-		currentPredsForRouteStopDest.updatePredictionsForVehicle(
-				newPredsForVehicleForRouteStopDest, getSystemTime());
+		IpcPrediction pred = newPredsForVehicleForRouteStopDest.get(0);
+		final long currentTime = getSystemTime();
+		final String vehicleId = pred.getVehicleId();
+		updateRouteStopDestination(pred.getTrip(), pred.getStopId(), true,
+				new DestinationUpdate() {
+					private int numExpiredRemoved;
+					
+					@Override
+					IpcPredictionsForRouteStopDest update(
+							IpcPredictionsForRouteStopDest currentPreds) {
+						// withPredictionsForVehicle() also drops the expired
+						// predictions of the other vehicles so count them
+						numExpiredRemoved = 0;
+						for (IpcPrediction currentPred : 
+								currentPreds.getPredictionsForRouteStop()) {
+							if (!currentPred.getVehicleId().equals(vehicleId)
+									&& currentPred.getPredictionTime() 
+										< currentTime)
+								++numExpiredRemoved;
+						}
+						return currentPreds.withPredictionsForVehicle(
+								newPredsForVehicleForRouteStopDest, currentTime);
+					}
+					
+					@Override
+					int getNumberExpiredRemoved() {
+						return numExpiredRemoved;
+					}
+				});
 	}
 	
 	/**
 	 * Returns List of PredictionsForRouteStop objects associated with the
 	 * specified route/stop. Returns a list because there is a separate
 	 * PredictionsForRouteStop for each destination and some route directions
-	 * have multiple destinations.
+	 * have multiple destinations. The PredictionsForRouteStop objects are
+	 * immutable snapshots so don't need to be copied or synchronized.
 	 * 
 	 * @param routeShortName
 	 *            The route short name. Set to null to get predictions for all
@@ -605,101 +870,221 @@ public class PredictionDataCache {
 	 */
 	private List<IpcPredictionsForRouteStopDest> getPredictionsForRouteStop(
 			String routeShortName, String stopId) {
-		List<IpcPredictionsForRouteStopDest> predictionsForStop;
-		
 		// If routeShortName specified then get predictions for that route.
 		// If not then get predictions for all routes that serve the stop.
 		if (routeShortName != null) {
 			// Determine the predictions for all destinations for the route/stop
-			MapKey key = MapKey.create(routeShortName, stopId);
-			predictionsForStop = predictionsMap.get(key);
+			AtomicReference<List<IpcPredictionsForRouteStopDest>> predsRef = 
+					predictionsMap.get(MapKey.create(routeShortName, stopId));
 
-			if (predictionsForStop == null) {
-				// No predictions so return empty array instead of null
-				predictionsForStop = 
-						new ArrayList<IpcPredictionsForRouteStopDest>(1);
-				
-				// Need to update the predictions map with the 
-				// predictionsForStop list for this route/stop so that
-				// when this list of predictions is updated it will be
-				// kept around.
-				predictionsMap.putIfAbsent(key, predictionsForStop);
-			}
+			// If no predictions return empty array instead of null
+			if (predsRef == null)
+				return Collections.emptyList();
+			
+			return predsRef.get();
 		} else {
 			// No route specified so get predictions for all routes for the stop
-			predictionsForStop =
+			List<IpcPredictionsForRouteStopDest> predictionsForStop =
 					new ArrayList<IpcPredictionsForRouteStopDest>();
 			Collection<Route> routes = 
 					Core.getInstance().getDbConfig().getRoutesForStop(stopId);
 			for (Route route : routes) {
 				MapKey key = MapKey.create(route.getShortName(), stopId);
-				 List<IpcPredictionsForRouteStopDest> predsForRoute = 
-						 predictionsMap.get(key);
-				 if (predsForRoute != null)
-					 predictionsForStop.addAll(predsForRoute);
+				AtomicReference<List<IpcPredictionsForRouteStopDest>> 
+					predsForRoute = predictionsMap.get(key);
+				if (predsForRoute != null)
+					predictionsForStop.addAll(predsForRoute.get());
 			}
+			return predictionsForStop;
 		}		
-
-		return predictionsForStop;
 	}
 	
 	/**
-	 * Returns PredictionsForRouteStop object associated with the specified
-	 * route/stop/destination specified by the trip and stopId parameters.
-	 * <p>
-	 * The returned PredictionsForRouteStop objects needs to be synchronized
-	 * when predictions accessed. Otherwise might access temporarily corrupt
-	 * state when a prediction is being updated.
+	 * Updates the predictions for the route/stop/destination specified by
+	 * the trip and stopId parameters. A new list of predictions for the
+	 * route/stop is created with the updated predictions for the destination
+	 * and it is then published using compareAndSet(). If another thread
+	 * published a new list in the meantime then the update is simply done
+	 * again using the newer list so that no changes are lost. If the
+	 * destination no longer has any predictions then it is removed.
 	 * 
 	 * @param trip
 	 * @param stopId
-	 * @return The PredictionsForRouteStop for the specified
-	 *         route/stop/destination
+	 * @param createIfNeeded
+	 *            If true then predictions for the destination are created if
+	 *            there aren't any yet. Otherwise there is nothing to update.
+	 * @param destinationUpdate
+	 *            For creating the updated predictions for the destination
 	 */
-	private IpcPredictionsForRouteStopDest getPredictionsForRouteStopDestination(
-			Trip trip, String stopId) {
-		// Determine the predictions for all destinations for the route/stop
-		List<IpcPredictionsForRouteStopDest> predictionsForRouteStop = 
-				getPredictionsForRouteStop(trip.getRouteShortName(), stopId);
-		
-		// Sync on the array so that it can't change between when check to
-		// find out if the PredictionsForRouteStopDest already exists for
-		// the destination till the time insert new one.
-		synchronized (predictionsForRouteStop) {
-			// From the list of predictions return the one that is for the
-			// specified destination.
-			for (IpcPredictionsForRouteStopDest preds : predictionsForRouteStop) {
-				if (preds.getHeadsign() == null
-						|| preds.getHeadsign().equals(trip.getHeadsign()))
-					return preds;
+	private void updateRouteStopDestination(Trip trip, String stopId,
+			boolean createIfNeeded, DestinationUpdate destinationUpdate) {
+		// Get the reference for the route/stop, creating it if necessary
+		MapKey key = MapKey.create(trip.getRouteShortName(), stopId);
+		AtomicReference<List<IpcPredictionsForRouteStopDest>> predsRef = 
+				predictionsMap.get(key);
+		if (predsRef == null) {
+			if (!createIfNeeded)
+				return;
+			List<IpcPredictionsForRouteStopDest> emptyList = 
+					Collections.emptyList();
+			predsRef = new AtomicReference<List<IpcPredictionsForRouteStopDest>>(
+					emptyList);
+			AtomicReference<List<IpcPredictionsForRouteStopDest>> existingRef = 
+					predictionsMap.putIfAbsent(key, predsRef);
+			if (existingRef != null)
+				predsRef = existingRef;
+		}
+		
+		while (true) {
+			List<IpcPredictionsForRouteStopDest> currentList = predsRef.get();
+			List<IpcPredictionsForRouteStopDest> newList = 
+					new ArrayList<IpcPredictionsForRouteStopDest>(
+							currentList.size() + 1);
+			IpcPredictionsForRouteStopDest updatedPreds = null;
+			int sizeChange = 0;
+			for (IpcPredictionsForRouteStopDest preds : currentList) {
+				// If this is the specified destination then update it
+				if (updatedPreds == null
+						&& (preds.getHeadsign() == null 
+							|| preds.getHeadsign().equals(trip.getHeadsign()))) {
+					updatedPreds = destinationUpdate.update(preds);
+					
+					// If nothing changed then don't need to publish anything
+					if (updatedPreds == preds)
+						return;
+					
+					sizeChange = updatedPreds.getPredictionsForRouteStop().size()
+							- preds.getPredictionsForRouteStop().size();
+					if (!updatedPreds.getPredictionsForRouteStop().isEmpty())
+						newList.add(updatedPreds);
+				} else {
+					newList.add(preds);
+				}
 			}
-
+			
 			// The PredictionsForRouteStopDest was not yet created for the
 			// route/stop/destination so create it now and add it to list
 			// of PredictionsForRouteStopDest objects for the route/stop.
-			IpcPredictionsForRouteStopDest preds = 
-					new IpcPredictionsForRouteStopDest(trip, stopId, Double.NaN);
-			predictionsForRouteStop.add(preds);
-			return preds;
+			if (updatedPreds == null) {
+				if (!createIfNeeded)
+					return;
+				updatedPreds = destinationUpdate.update(
+						new IpcPredictionsForRouteStopDest(trip, stopId, 
+								Double.NaN));
+				sizeChange = updatedPreds.getPredictionsForRouteStop().size();
+				newList.add(updatedPreds);
+			}
+			
+			if (predsRef.compareAndSet(currentList, 
+					Collections.unmodifiableList(newList))) {
+				livePredictionCount.addAndGet(sizeChange);
+				evictedPredictionCount.addAndGet(
+						destinationUpdate.getNumberExpiredRemoved());
+				
+				// Make sure the route/stop is in the timer wheel so that the
+				// predictions are removed once they expire
+				List<IpcPrediction> preds = 
+						updatedPreds.getPredictionsForRouteStop();
+				if (!preds.isEmpty())
+					expiryWheel.schedule(key, preds.get(0).getPredictionTime());
+				return;
+			}
 		}
-
 	}
 	
 	/**
-	 * Returns PredictionsForRouteStop object associated with the
-	 * specified route/stop/destination specified by the prediction parameter.
+	 * Removes the expired predictions for the route/stop, along with the
+	 * destinations that then don't have any. Then, if there are still
+	 * predictions, schedules the route/stop in the timer wheel again
+	 * for the time of the earliest one.
 	 * 
-	 * @param prediction
-	 *            for specifying route and stop for which to get the prediction
-	 *            list for.
-	 * @return The PredictionsForRouteStop for the specified route/stop/destination
+	 * @param key
+	 *            The route/stop
+	 * @param currentTime
+	 *            Predictions before this time have expired
 	 */
-	private IpcPredictionsForRouteStopDest getPredictionsForRouteStopDestination(
-			IpcPrediction prediction) {
-		return getPredictionsForRouteStopDestination(prediction.getTrip(),
-				prediction.getStopId());
+	private void removeExpiredPredictions(MapKey key, long currentTime) {
+		AtomicReference<List<IpcPredictionsForRouteStopDest>> predsRef = 
+				predictionsMap.get(key);
+		if (predsRef == null)
+			return;
+		
+		while (true) {
+			List<IpcPredictionsForRouteStopDest> currentList = predsRef.get();
+			List<IpcPredictionsForRouteStopDest> newList = 
+					new ArrayList<IpcPredictionsForRouteStopDest>(
+							currentList.size());
+			int numRemoved = 0;
+			long earliestPredictionTime = Long.MAX_VALUE;
+			for (IpcPredictionsForRouteStopDest preds : currentList) {
+				IpcPredictionsForRouteStopDest updatedPreds =
+						preds.withoutExpiredPredictions(currentTime);
+				numRemoved += preds.getPredictionsForRouteStop().size()
+						- updatedPreds.getPredictionsForRouteStop().size();
+				if (updatedPreds.getPredictionsForRouteStop().isEmpty())
+					continue;
+				earliestPredictionTime = Math.min(earliestPredictionTime,
+						updatedPreds.getPredictionsForRouteStop().get(0)
+								.getPredictionTime());
+				newList.add(updatedPreds);
+			}
+			
+			if (newList.size() == currentList.size() && numRemoved == 0 
+					|| predsRef.compareAndSet(currentList, 
+							Collections.unmodifiableList(newList))) {
+				livePredictionCount.addAndGet(-numRemoved);
+				evictedPredictionCount.addAndGet(numRemoved);
+				if (earliestPredictionTime != Long.MAX_VALUE)
+					expiryWheel.schedule(key, earliestPredictionTime);
+				return;
+			}
+		}
 	}
 	
+	/**
+	 * Advances the timer wheel and removes the expired predictions for the
+	 * route/stops that it returns. Called by the timer every tick.
+	 */
+	private void evictExpiredPredictions() {
+		// Don't want to create the core just to find out the time
+		if (!Core.isCoreApplication())
+			return;
+		
+		long currentTime = getSystemTime();
+		List<MapKey> expiredKeys = expiryWheel.expire(currentTime);
+		if (expiredKeys.isEmpty())
+			return;
+		
+		for (MapKey key : expiredKeys)
+			removeExpiredPredictions(key, currentTime);
+		
+		logger.debug("Checked {} route/stops for expired predictions. "
+				+ "Now have {} predictions in cache and {} have been evicted "
+				+ "in total.", expiredKeys.size(), livePredictionCount.get(), 
+				evictedPredictionCount.get());
+	}
+	
+	/**
+	 * Returns the number of predictions currently in the cache. Can include
+	 * some that have expired since the last tick of the timer wheel.
+	 * 
+	 * @return number of predictions
+	 */
+	public long getNumberOfPredictions() {
+		return livePredictionCount.get();
+	}
+	
+	/**
+	 * Returns the total number of expired predictions that were removed from
+	 * the cache by the timer wheel.
+	 * 
+	 * @return number of evicted predictions
+	 */
+	public long getNumberOfEvictedPredictions() {
+		return evictedPredictionCount.get();
+	}
+	
+	
 //	/**
 //	 * For debugging
 //	 * 
@@ -0,0 +1,308 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ * 
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.db.hibernate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.hibernate.HibernateException;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.type.BinaryType;
+import org.hibernate.usertype.UserType;
+
+/**
+ * A custom hibernate type for storing an int[] in a binary column using a
+ * compact encoding instead of Java serialization. Java serializing a List of
+ * Integers is slow to read, takes up a lot of space in the db, and boxes each
+ * value. Instead the encoding is:
+ * <ul>
+ * <li>A format version byte</li>
+ * <li>The number of values as a variable length integer</li>
+ * <li>Each value as the difference from the previous value, zigzag encoded
+ * so that negative differences are small, and written as a variable length
+ * integer</li>
+ * </ul>
+ * Since consecutive values such as travel times for the travel time segments
+ * of a stop path are usually similar most values take just one or two bytes.
+ * <p>
+ * The sql type is the same VARBINARY type that hibernate uses for serialized
+ * objects so the db schema doesn't change. Data that was written as a Java
+ * serialized List of Integers can still be read. Such data can be converted
+ * to the new encoding using ConvertTravelTimesEncoding.
+ * <p>
+ * To enable use
+ * {@code @Type(type="org.transitime.db.hibernate.PackedIntArrayType")}
+ * when declaring an int[] member that is to be persisted.
+ * 
+ */
+public class PackedIntArrayType implements UserType {
+
+	// First byte of the encoding. Can't be the first byte of a Java
+	// serialization stream, which is 0xAC, so that the two can be told apart.
+	private static final byte FORMAT_VERSION = 1;
+	
+	// First two bytes of a Java serialization stream
+	private static final byte JAVA_SERIALIZATION_MAGIC_0 = (byte) 0xAC;
+	private static final byte JAVA_SERIALIZATION_MAGIC_1 = (byte) 0xED;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Encodes the values using the compact encoding.
+	 * 
+	 * @param values
+	 * @return the encoded bytes
+	 */
+	public static byte[] encode(int[] values) {
+		ByteArrayOutputStream out = 
+				new ByteArrayOutputStream(2 + 2 * values.length);
+		out.write(FORMAT_VERSION);
+		writeVarInt(out, values.length);
+		int previous = 0;
+		for (int value : values) {
+			int delta = value - previous;
+			writeVarInt(out, (delta << 1) ^ (delta >> 31));
+			previous = value;
+		}
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Decodes bytes that were written by encode(), or that are a Java
+	 * serialized List of Integers.
+	 * 
+	 * @param bytes
+	 * @return the decoded values
+	 * @throws HibernateException
+	 *             if the bytes are not in a known format or are corrupt
+	 */
+	public static int[] decode(byte[] bytes) throws HibernateException {
+		if (isJavaSerialized(bytes))
+			return decodeJavaSerialized(bytes);
+		
+		if (bytes.length == 0 || bytes[0] != FORMAT_VERSION)
+			throw new HibernateException("Unknown format for packed int "
+					+ "array. First byte is " 
+					+ (bytes.length > 0 ? bytes[0] : "missing"));
+
+		// Each value takes at least one byte, so a count larger than the 
+		// number of remaining bytes means the data is corrupt. Checked 
+		// before allocating the array so that corrupt data can't cause a
+		// huge allocation.
+		int[] position = {1};
+		int count = readVarInt(bytes, position);
+		if (count < 0 || count > bytes.length - position[0])
+			throw new HibernateException("Packed int array has invalid "
+					+ "count of " + count + " for " 
+					+ (bytes.length - position[0]) + " remaining bytes");
+		
+		int[] values = new int[count];
+		int previous = 0;
+		for (int i = 0; i < values.length; ++i) {
+			int zigzag = readVarInt(bytes, position);
+			previous += (zigzag >>> 1) ^ -(zigzag & 1);
+			values[i] = previous;
+		}
+		return values;
+	}
+	
+	/**
+	 * Returns true if the bytes are a Java serialization stream, meaning the
+	 * data was written before the compact encoding was used.
+	 * 
+	 * @param bytes
+	 * @return true if Java serialized
+	 */
+	public static boolean isJavaSerialized(byte[] bytes) {
+		return bytes.length >= 2 
+				&& bytes[0] == JAVA_SERIALIZATION_MAGIC_0
+				&& bytes[1] == JAVA_SERIALIZATION_MAGIC_1;
+	}
+	
+	/**
+	 * Reads in a Java serialized List of Integers and returns it as an int[].
+	 * 
+	 * @param bytes
+	 * @return the values
+	 * @throws HibernateException
+	 */
+	private static int[] decodeJavaSerialized(byte[] bytes) 
+			throws HibernateException {
+		try {
+			ObjectInputStream in = 
+					new ObjectInputStream(new ByteArrayInputStream(bytes));
+			List<?> list = (List<?>) in.readObject();
+			int[] values = new int[list.size()];
+			for (int i = 0; i < values.length; ++i)
+				values[i] = (Integer) list.get(i);
+			return values;
+		} catch (IOException | ClassNotFoundException | ClassCastException e) {
+			throw new HibernateException("Could not read Java serialized "
+					+ "List of Integers", e);
+		}
+	}
+	
+	/**
+	 * Writes a non-negative int, or a zigzag encoded one, using 7 bits per
+	 * byte with the high bit indicating that more bytes follow.
+	 * 
+	 * @param out
+	 * @param value
+	 */
+	private static void writeVarInt(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+	
+	/**
+	 * Reads a variable length int written by writeVarInt().
+	 * 
+	 * @param bytes
+	 * @param position
+	 *            Single element array containing the index of the next byte to
+	 *            read. Updated to be after the int that was read.
+	 * @return the int
+	 * @throws HibernateException
+	 *             if the data ends in the middle of the int
+	 */
+	private static int readVarInt(byte[] bytes, int[] position) 
+			throws HibernateException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			if (position[0] >= bytes.length)
+				throw new HibernateException("Packed int array is truncated");
+			byte b = bytes[position[0]++];
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new HibernateException("Packed int array has malformed int");
+	}
+	
+	@Override
+	public int[] sqlTypes() {
+		return new int[] {
+				BinaryType.INSTANCE.sqlType(),
+		};
+	}
+
+	/* (non-Javadoc)
+	 * @see org.hibernate.usertype.UserType#assemble(java.io.Serializable, java.lang.Object)
+	 */
+	@Override
+	public Object assemble(Serializable cached, Object owner)
+			throws HibernateException {
+		return cached;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.hibernate.usertype.UserType#deepCopy(java.lang.Object)
+	 */
+	@Override
+	public Object deepCopy(Object value) throws HibernateException {
+		// Arrays are never modified once set so don't need to copy
+		return value;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.hibernate.usertype.UserType#disassemble(java.lang.Object)
+	 */
+	@Override
+	public Serializable disassemble(Object value) throws HibernateException {
+		return (Serializable) value;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.hibernate.usertype.UserType#equals(java.lang.Object, java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object x, Object y) throws HibernateException {
+		return Arrays.equals((int[]) x, (int[]) y);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.hibernate.usertype.UserType#hashCode(java.lang.Object)
+	 */
+	@Override
+	public int hashCode(Object x) throws HibernateException {
+		return Arrays.hashCode((int[]) x);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.hibernate.usertype.UserType#isMutable()
+	 */
+	@Override
+	public boolean isMutable() {
+		return false;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.hibernate.usertype.UserType#nullSafeGet(java.sql.ResultSet, java.lang.String[], org.hibernate.engine.spi.SessionImplementor, java.lang.Object)
+	 */
+	@Override
+	public Object nullSafeGet(ResultSet rs, String[] names,
+			SessionImplementor session, Object owner)
+			throws HibernateException, SQLException {
+		assert names.length == 1;
+		
+		byte[] bytes = rs.getBytes(names[0]);
+		return bytes != null ? decode(bytes) : null;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.hibernate.usertype.UserType#nullSafeSet(java.sql.PreparedStatement, java.lang.Object, int, org.hibernate.engine.spi.SessionImplementor)
+	 */
+	@Override
+	public void nullSafeSet(PreparedStatement st, Object value, int index,
+			SessionImplementor session) throws HibernateException, SQLException {
+		if (value != null && !(value instanceof int[]))
+			throw new HibernateException("Writing element " 
+					+ value.getClass().getName() + " but was expecting an int[]");
+		
+		byte[] bytes = value != null ? encode((int[]) value) : null;
+		BinaryType.INSTANCE.nullSafeSet(st, bytes, index, session);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.hibernate.usertype.UserType#replace(java.lang.Object, java.lang.Object, java.lang.Object)
+	 */
+	@Override
+	public Object replace(Object original, Object target, Object owner)
+			throws HibernateException {
+		return original;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.hibernate.usertype.UserType#returnedClass()
+	 */
+	@Override
+	public Class<?> returnedClass() {
+		return int[].class;
+	}
+
+}
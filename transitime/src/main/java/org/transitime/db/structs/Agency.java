@@ -83,8 +83,10 @@ public class Agency implements Serializable {
 	@Transient
 	private TimeZone timezone = null;
 	
+	// Declared transient so that it is not serialized when a snapshot of
+	// the config data is written since Time is not serializable
 	@Transient
-	private Time time = null;
+	private transient Time time = null;
 	
 	// Because Hibernate requires objects with composite Ids to be Serializable
 	private static final long serialVersionUID = -3381456129303325040L;
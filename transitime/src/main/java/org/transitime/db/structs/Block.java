@@ -208,6 +208,28 @@ public final class Block implements Serializable {
 		return query.list();
 	}
 
+	/**
+	 * Returns list of Block objects for the specified configRev with the
+	 * trips collection already loaded, using a single query instead of a
+	 * query per block. Since the trips are not lazy loaded getTrips() never
+	 * needs to lock or access the session.
+	 * 
+	 * @param session
+	 * @param configRev
+	 * @return List of Block objects with their trips
+	 * @throws HibernateException
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<Block> getBlocksWithTrips(Session session, 
+			int configRev) throws HibernateException {
+		String hql = "SELECT DISTINCT b FROM Blocks b " +
+				"    LEFT JOIN FETCH b.trips " +
+				"    WHERE b.configRev = :configRev";
+		Query query = session.createQuery(hql);
+		query.setInteger("configRev", configRev);
+		return query.list();
+	}
+
 	/**
 	 * Deletes rev from the Blocks, Trips, and Block_to_Trip_joinTable
 	 * 
@@ -450,11 +472,8 @@ public final class Block implements Serializable {
 	 */
 	private boolean serviceClassIsValidForDay(Date date, long offset) {
 		long dateToCheck = date.getTime() + offset;
-		List<String> currentServiceIds =
-				Core.getInstance().getServiceUtils()
-						.getServiceIdsForDay(dateToCheck);
-		
-		return currentServiceIds.contains(serviceId);
+		return Core.getInstance().getServiceUtils()
+				.isServiceIdActiveForDay(serviceId, dateToCheck);
 	}
 	
 	/**
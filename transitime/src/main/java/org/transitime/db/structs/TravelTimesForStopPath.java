@@ -17,7 +17,8 @@
 package org.transitime.db.structs;
 
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import javax.persistence.Column;
@@ -27,17 +28,22 @@ import javax.persistence.Enumerated;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.Table;
+import javax.persistence.Transient;
 
 import org.hibernate.HibernateException;
 import org.hibernate.Query;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.annotations.DynamicUpdate;
+import org.hibernate.annotations.Type;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.db.hibernate.HibernateUtils;
+import org.transitime.db.hibernate.PackedIntArrayType;
 import org.transitime.utils.Geo;
 
+import com.google.common.primitives.Ints;
+
 
 /**
  * Contains the expected time it takes to travel along the specified path, which
@@ -88,11 +94,11 @@ public class TravelTimesForStopPath implements Serializable {
 	@Column
 	private final float travelTimeSegmentLength;
 	
-	// Travel time is a List of Integers containing the expected travel time
+	// Travel time is an array of ints containing the expected travel time
 	// for each travel time segment whose length is travelTimeSegmentLength. 
 	// Integers are used to make it take
 	// less space and processing than if longs were used. Values in milliseconds.
-	// There are two ways to deal with Lists of basic types in Hibernate. The
+	// There are several ways to deal with Lists of basic types in Hibernate. The
 	// normal way is to declare it an @ElementCollection (and use @OrderColumn
 	// to maintain order of data in list) but this causes the list data to be
 	// stored in a separate table, one having the same primary keys. When 
@@ -100,18 +106,22 @@ public class TravelTimesForStopPath implements Serializable {
 	// many SQL statements are needed (one for each element in the List).
 	// This is all very cumbersome, slow, and space inefficient since
 	// storing the primary keys again for each row in the additional table.
-	// The other way to deal with such a list is to have it be serializable
+	// Another way to deal with such a list is to have it be serializable
 	// and specify (length=1000) in the @Column annotation. In this way the
 	// List data is simply serialized/unserialized into a BLOB. This means that
 	// don't have a separate table with a separate row for each item in the 
 	// list. The drawback is that since the data is in a blob it cannot be
 	// read directly using SQL on the command line or for reports. But since
 	// it can make things so much more efficient want to try using it.
-	// NOTE: since trying to use serialization need to use ArrayList<> instead
-	// of List<> since List<> doesn't implement Serializable.
+	// But Java serialization of a List of Integers is slow to read, takes
+	// up a lot of space, and boxes every value. Therefore a primitive int[]
+	// is used and it is stored in the blob using the compact delta and
+	// variable length encoding of PackedIntArrayType. Data that was stored
+	// as a serialized List can still be read.
 	private static final int travelTimesMaxBytes = 2000;
 	@Column(length=travelTimesMaxBytes)
-	private final ArrayList<Integer> travelTimesMsec;
+	@Type(type="org.transitime.db.hibernate.PackedIntArrayType")
+	private final int[] travelTimesMsec;
 
 	// There is a separate time for travel and for actually stopping. For
 	// many systems might not be able to really differentiate between the two
@@ -136,8 +146,17 @@ public class TravelTimesForStopPath implements Serializable {
 	@Enumerated(EnumType.STRING)
 	private final HowSet howSet;
 	
+	// Cumulative travel times in msec at the beginning of each travel time
+	// segment plus an additional element for the end of the stop path. This
+	// way the travel time to any point along the stop path is a lookup
+	// instead of summing up the boxed travelTimesMsec. Not stored in db.
+	// Created when first needed since Hibernate sets travelTimesMsec after
+	// the object is constructed.
+	@Transient
+	private transient volatile int[] cumulativeTravelTimesMsec = null;
+	
 	// Needed because class is serializable
-	private static final long serialVersionUID = -5136757109373446841L;
+	private static final long serialVersionUID = 3866198433140582723L;
 
 	private static final Logger logger = 
 			LoggerFactory.getLogger(TravelTimesForStopPath.class);
@@ -195,7 +214,7 @@ public class TravelTimesForStopPath implements Serializable {
 	 * @param trip for logging useful error message. OK if null.
 	 * @throws ArrayIndexOutOfBoundsException
 	 *             Thrown if not enough memory allocated for column
-	 *             travelTimesMsec for serializing the object.
+	 *             travelTimesMsec for encoding the travel times.
 	 */
 	public TravelTimesForStopPath(int configRev, int travelTimesRev,
 			String stopPathId, double travelTimeSegmentDistance,
@@ -205,8 +224,10 @@ public class TravelTimesForStopPath implements Serializable {
 		// First make sure that travelTimesMsec isn't bigger than
 		// the space allocated for it. Only bother checking if have
 		// at least a few travel times for the path.
-		if (travelTimesMsec.size() > 5) {
-			int serializedSize = HibernateUtils.sizeof(travelTimesMsec);
+		int[] travelTimesArray = Ints.toArray(travelTimesMsec);
+		if (travelTimesArray.length > 5) {
+			int serializedSize = 
+					PackedIntArrayType.encode(travelTimesArray).length;
 			if (serializedSize > travelTimesMaxBytes) {
 				String msg = "Too many elements in "
 						+ "travelTimesMsec when constructing a "
@@ -238,7 +259,7 @@ public class TravelTimesForStopPath implements Serializable {
 		this.travelTimesRev = travelTimesRev;
 		this.stopPathId = stopPathId;
 		this.travelTimeSegmentLength = (float) travelTimeSegmentDistance;		
-		this.travelTimesMsec = (ArrayList<Integer>) travelTimesMsec;
+		this.travelTimesMsec = travelTimesArray;
 		this.stopTimeMsec = stopTimeMsec;
 		this.daysOfWeekOverride = (short) daysOfWeekOverride;
 		this.howSet = howSet;
@@ -270,7 +291,7 @@ public class TravelTimesForStopPath implements Serializable {
 	 */
 	public TravelTimesForStopPath clone(int newTravelTimesRev) {
 		return new TravelTimesForStopPath(configRev, newTravelTimesRev,
-				stopPathId, travelTimeSegmentLength, travelTimesMsec,
+				stopPathId, travelTimeSegmentLength, getTravelTimesMsec(),
 				stopTimeMsec, daysOfWeekOverride, howSet, null);
 	}
 	
@@ -285,7 +306,7 @@ public class TravelTimesForStopPath implements Serializable {
 				+ ", travelTimesRev=" + travelTimesRev
 				+ ", stopPathId=" + stopPathId 
 				+ ", travelTimeSegmentLength=" + travelTimeSegmentLength
-				+ ", travelTimesMsec=" + travelTimesMsec 
+				+ ", travelTimesMsec=" + Arrays.toString(travelTimesMsec) 
 				+ ", stopTimeMsec=" + stopTimeMsec
 				+ ", travelTimeMsec=" + getStopPathTravelTimeMsec()
 				+ ", daysOfWeekOverride=" + daysOfWeekOverride
@@ -303,7 +324,7 @@ public class TravelTimesForStopPath implements Serializable {
 		return "TTForStopPath ["
 				+ "stopTimeMsec=" + stopTimeMsec
 				+ ", travelTimeMsec=" + getStopPathTravelTimeMsec()
-				+ ", travelTimesMsec=" + travelTimesMsec 
+				+ ", travelTimesMsec=" + Arrays.toString(travelTimesMsec) 
 				+ ", stopPathId=" + stopPathId
 				+ ", ttSegLen=" + Geo.distanceFormat(travelTimeSegmentLength)
 				+ ", howSet=" + howSet 
@@ -341,17 +362,18 @@ public class TravelTimesForStopPath implements Serializable {
 	}
 	
 	/**
-	 * @return the travelTimeMsec
+	 * @return unmodifiable list of the travel times in msec for the travel
+	 *         time segments
 	 */
 	public List<Integer> getTravelTimesMsec() {
-		return travelTimesMsec;
+		return Collections.unmodifiableList(Ints.asList(travelTimesMsec));
 	}
 
 	/**
 	 * @return How many travel time segments there are for the stop path
 	 */
 	public int getNumberTravelTimeSegments() {
-		return travelTimesMsec.size();
+		return travelTimesMsec.length;
 	}
 	
 	/**
@@ -361,10 +383,39 @@ public class TravelTimesForStopPath implements Serializable {
 	 * @return total travel time for the stop path in msec
 	 */
 	public int getStopPathTravelTimeMsec() {
-		int totalTravelTimeMsec = 0;
-		for (Integer timeMsec : travelTimesMsec)
-			totalTravelTimeMsec += timeMsec;
-		return totalTravelTimeMsec;
+		int[] cumulative = getCumulativeTravelTimesMsec();
+		return cumulative[cumulative.length - 1];
+	}
+	
+	/**
+	 * Returns the travel times summed up at the beginning of each travel time
+	 * segment, plus an additional element for the end of the stop path.
+	 * Created the first time it is needed.
+	 * 
+	 * @return cumulative travel times in msec
+	 */
+	private int[] getCumulativeTravelTimesMsec() {
+		int[] cumulative = cumulativeTravelTimesMsec;
+		if (cumulative == null) {
+			cumulative = new int[travelTimesMsec.length + 1];
+			for (int i = 0; i < travelTimesMsec.length; ++i)
+				cumulative[i + 1] = cumulative[i] + travelTimesMsec[i];
+			cumulativeTravelTimesMsec = cumulative;
+		}
+		return cumulative;
+	}
+	
+	/**
+	 * Returns the travel time from the beginning of the stop path to the
+	 * beginning of the specified travel time segment. If segmentIndex is the
+	 * number of travel time segments then the travel time for the whole stop
+	 * path is returned.
+	 * 
+	 * @param segmentIndex
+	 * @return travel time in msec to the beginning of the segment
+	 */
+	public int getTravelTimeToSegmentMsec(int segmentIndex) {
+		return getCumulativeTravelTimesMsec()[segmentIndex];
 	}
 	
 	/**
@@ -374,7 +425,8 @@ public class TravelTimesForStopPath implements Serializable {
 	 * @return travel time for the specified travel time segment in msec
 	 */
 	public int getTravelTimeSegmentMsec(int segmentIndex) {
-		return travelTimesMsec.get(segmentIndex);
+		int[] cumulative = getCumulativeTravelTimesMsec();
+		return cumulative[segmentIndex + 1] - cumulative[segmentIndex];
 	}
 	
 	/**
@@ -455,7 +507,7 @@ public class TravelTimesForStopPath implements Serializable {
 		result = prime * result + stopTimeMsec;
 		result = prime * result + Float.floatToIntBits(travelTimeSegmentLength);
 		result = prime * result
-				+ ((travelTimesMsec == null) ? 0 : travelTimesMsec.hashCode());
+				+ Arrays.hashCode(travelTimesMsec);
 		result = prime * result + travelTimesRev;
 		return result;
 	}
@@ -493,10 +545,7 @@ public class TravelTimesForStopPath implements Serializable {
 		if (Float.floatToIntBits(travelTimeSegmentLength) != Float
 				.floatToIntBits(other.travelTimeSegmentLength))
 			return false;
-		if (travelTimesMsec == null) {
-			if (other.travelTimesMsec != null)
-				return false;
-		} else if (!travelTimesMsec.equals(other.travelTimesMsec))
+		if (!Arrays.equals(travelTimesMsec, other.travelTimesMsec))
 			return false;
 		if (travelTimesRev != other.travelTimesRev)
 			return false;
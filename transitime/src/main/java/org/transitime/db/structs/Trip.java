@@ -164,6 +164,13 @@ public class Trip implements Lifecycle, Serializable {
 	@Transient
 	private Route route;
 	
+	// Cumulative travel and stop times for the stop paths so that the
+	// expected time between stop paths is a subtraction instead of a loop.
+	// Created when the config is read in, or when first needed if the config
+	// is lazy loaded. Not stored in db and not serialized.
+	@Transient
+	private transient volatile TravelTimeTable travelTimeTable = null;
+	
 	// Note: though trip_short_name and wheelchair_accessible are available
 	// as part of the GTFS spec and in a GtfsTrip object, they are not
 	// included here because currently don't understand how best to use them
@@ -455,6 +462,7 @@ public class Trip implements Lifecycle, Serializable {
 	 */
 	public void setTravelTimes(TravelTimesForTrip travelTimes) {
 		this.travelTimes = travelTimes;
+		this.travelTimeTable = null;
 	}
 	
 	/**
@@ -1043,6 +1051,103 @@ public class Trip implements Lifecycle, Serializable {
 		return travelTimes.getTravelTimesForStopPath(stopPathIndex);
 	}
 	
+	/**
+	 * The travel times of the trip summed up by stop path. Immutable so that
+	 * it can be shared by threads without synchronization.
+	 */
+	private static class TravelTimeTable {
+		// Travel time plus stop time in msec from the beginning of the trip
+		// to the beginning of each stop path. Has an additional element for
+		// the end of the trip.
+		private final int[] cumulativeTimesMsec;
+		
+		// For each stop path the index of the first wait stop at or after
+		// it. The number of stop paths if there is no such wait stop.
+		private final int[] nextWaitStopIndex;
+		
+		private TravelTimeTable(Trip trip) {
+			int numStopPaths = trip.travelTimes.numberOfStopPaths();
+			cumulativeTimesMsec = new int[numStopPaths + 1];
+			for (int i = 0; i < numStopPaths; ++i) {
+				TravelTimesForStopPath travelTimesForStopPath = 
+						trip.travelTimes.getTravelTimesForStopPath(i);
+				cumulativeTimesMsec[i + 1] = cumulativeTimesMsec[i]
+						+ travelTimesForStopPath.getStopPathTravelTimeMsec()
+						+ travelTimesForStopPath.getStopTimeMsec();
+			}
+			
+			nextWaitStopIndex = new int[numStopPaths + 1];
+			nextWaitStopIndex[numStopPaths] = numStopPaths;
+			for (int i = numStopPaths - 1; i >= 0; --i) {
+				StopPath stopPath = trip.getStopPath(i);
+				nextWaitStopIndex[i] = stopPath != null 
+						&& stopPath.isWaitStop() ? i : nextWaitStopIndex[i + 1];
+			}
+		}
+	}
+	
+	/**
+	 * Creates the cumulative travel time table for the trip so that it
+	 * doesn't need to be created while processing AVL data. Should be called
+	 * once the travel times and trip pattern for the trip have been read in.
+	 * Does nothing if the trip doesn't have travel times.
+	 */
+	public void createTravelTimeTable() {
+		if (travelTimes != null && tripPattern != null)
+			travelTimeTable = new TravelTimeTable(this);
+	}
+	
+	/**
+	 * Returns the cumulative travel time table, creating it if it hasn't been
+	 * created yet.
+	 * 
+	 * @return the TravelTimeTable for the trip
+	 */
+	private TravelTimeTable getTravelTimeTable() {
+		TravelTimeTable table = travelTimeTable;
+		if (table == null) {
+			table = new TravelTimeTable(this);
+			travelTimeTable = table;
+		}
+		return table;
+	}
+	
+	/**
+	 * Returns the expected travel time plus stop time for the stop paths
+	 * starting at fromStopPathIndex up to but not including toStopPathIndex.
+	 * Wait stops are not taken into account. Use getNextWaitStopIndex() to
+	 * determine if there is one within the range.
+	 * 
+	 * @param fromStopPathIndex
+	 *            First stop path to include
+	 * @param toStopPathIndex
+	 *            Stop path to stop at. Can be the number of stop paths in
+	 *            order to include the rest of the trip.
+	 * @return travel plus stop time in msec. 0 if toStopPathIndex is not
+	 *         after fromStopPathIndex
+	 */
+	public int getTravelAndStopTimeMsec(int fromStopPathIndex,
+			int toStopPathIndex) {
+		if (toStopPathIndex <= fromStopPathIndex)
+			return 0;
+		
+		int[] cumulativeTimesMsec = getTravelTimeTable().cumulativeTimesMsec;
+		return cumulativeTimesMsec[toStopPathIndex] 
+				- cumulativeTimesMsec[fromStopPathIndex];
+	}
+	
+	/**
+	 * Returns the index of the first stop path at or after stopPathIndex
+	 * whose stop is a wait stop.
+	 * 
+	 * @param stopPathIndex
+	 * @return index of the next wait stop, or the number of stop paths if
+	 *         there are no more wait stops for the trip
+	 */
+	public int getNextWaitStopIndex(int stopPathIndex) {
+		return getTravelTimeTable().nextWaitStopIndex[stopPathIndex];
+	}
+	
 	/**
 	 * Returns length of the trip from the first terminal to the last.
 	 * 
@@ -199,6 +199,41 @@ public class TripPattern implements Serializable, Lifecycle {
 		}
 	}
 	
+	/**
+	 * Create a TripPattern when the GTFS data is not available, such as for
+	 * testing. The headsign is taken from the trip and the extent is
+	 * determined from the locations of the stops of the stop paths.
+	 * 
+	 * @param configRev
+	 * @param id
+	 *            The ID of the trip pattern
+	 * @param shapeId
+	 * @param stopPaths
+	 *            The stop paths, with their locations set
+	 * @param trip
+	 *            For supplying additional info
+	 * @param routeShortName
+	 */
+	public TripPattern(int configRev, String id, String shapeId,
+			List<StopPath> stopPaths, Trip trip, String routeShortName) {
+		this.configRev = configRev;
+		this.id = id;
+		this.shapeId = shapeId;
+		this.stopPaths = stopPaths;
+		this.headsign = trip.getHeadsign();
+		this.directionId = trip.getDirectionId();
+		this.routeId = trip.getRouteId();
+		this.routeShortName = routeShortName;
+		this.trips.add(trip);
+		
+		this.extent = new Extent();
+		for (StopPath stopPath : stopPaths) {
+			stopPath.setTripPatternId(id);
+			this.extent.add(stopPath.getStopLocation());
+			this.stopPathsMap.put(stopPath.getStopId(), stopPath);
+		}
+	}
+	
 	/**
 	 * Hibernate requires a not-arg constructor
 	 */
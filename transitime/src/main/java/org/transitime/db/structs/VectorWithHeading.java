@@ -17,6 +17,7 @@
 package org.transitime.db.structs;
 
 import org.transitime.utils.Geo;
+import org.transitime.utils.PlanarProjection;
 
 /**
  * Inherits from Vector but automatically calculates the heading. Useful 
@@ -32,8 +33,43 @@ public class VectorWithHeading extends Vector {
 	// equator.
 	private final float headingInDegrees;
 	
+	// The vector in planar coordinates for the current projection so that
+	// distances can be determined without trigonometry. Lazily created since
+	// the vectors are usually created before the projection is set.
+	// Immutable so it can be safely replaced by another thread.
+	private transient PlanarVector planarVector = null;
+	
 	private static final long serialVersionUID = -1505569199887453928L;
 
+	/**
+	 * The vector projected onto the plane, along with its length and unit
+	 * direction.
+	 */
+	private static class PlanarVector {
+		private final PlanarProjection projection;
+		private final double x1;
+		private final double y1;
+		private final double unitX;
+		private final double unitY;
+		private final double planarLength;
+		// Length as determined by Geo.distance() so that distances along
+		// the vector are consistent with length()
+		private final double length;
+		
+		private PlanarVector(PlanarProjection projection, Location l1,
+				Location l2, double length) {
+			this.projection = projection;
+			this.x1 = projection.x(l1);
+			this.y1 = projection.y(l1);
+			double dx = projection.x(l2) - x1;
+			double dy = projection.y(l2) - y1;
+			this.planarLength = Math.sqrt(dx*dx + dy*dy);
+			this.unitX = planarLength > 0.0 ? dx / planarLength : 0.0;
+			this.unitY = planarLength > 0.0 ? dy / planarLength : 0.0;
+			this.length = length;
+		}
+	}
+	
 	/********************** Member Functions **************************/
 
 	/**
@@ -62,6 +98,89 @@ public class VectorWithHeading extends Vector {
 		return headingInDegrees;
 	}
 	
+	/**
+	 * Returns the vector in planar coordinates for the current projection.
+	 * 
+	 * @return the planar vector, or null if there is no current projection
+	 */
+	private PlanarVector getPlanarVector() {
+		PlanarProjection projection = PlanarProjection.getCurrent();
+		if (projection == null)
+			return null;
+		
+		PlanarVector pv = planarVector;
+		if (pv == null || pv.projection != projection) {
+			pv = new PlanarVector(projection, l1, l2, super.length());
+			planarVector = pv;
+		}
+		return pv;
+	}
+	
+	/**
+	 * Returns the length of the vector in meters. Cached when there is a
+	 * current projection so that doesn't need to be recalculated.
+	 */
+	@Override
+	public double length() {
+		PlanarVector pv = getPlanarVector();
+		return pv != null ? pv.length : super.length();
+	}
+	
+	/**
+	 * Returns distance between the location and this vector. Uses the
+	 * planar coordinates if there is a current projection so that no
+	 * trigonometry is needed.
+	 */
+	@Override
+	public double distance(Location l) {
+		PlanarVector pv = getPlanarVector();
+		if (pv == null)
+			return super.distance(l);
+		
+		double dx = pv.projection.x(l) - pv.x1;
+		double dy = pv.projection.y(l) - pv.y1;
+		double along = dx * pv.unitX + dy * pv.unitY;
+		
+		// If closest to beginning of vector
+		if (along <= 0.0)
+			return Math.sqrt(dx*dx + dy*dy);
+		
+		// If closest to end of vector
+		if (along > pv.planarLength) {
+			double ex = dx - pv.unitX * pv.planarLength;
+			double ey = dy - pv.unitY * pv.planarLength;
+			return Math.sqrt(ex*ex + ey*ey);
+		}
+		
+		// Closest to middle of vector so use the cross product
+		return Math.abs(dx * pv.unitY - dy * pv.unitX);
+	}
+	
+	/**
+	 * Returns length along vector where the location is closest to the
+	 * vector. Uses the planar coordinates if there is a current projection.
+	 * The result is scaled to length() so that a location past the end of
+	 * the vector matches exactly to length().
+	 */
+	@Override
+	public double matchDistanceAlongVector(Location l) {
+		PlanarVector pv = getPlanarVector();
+		if (pv == null)
+			return super.matchDistanceAlongVector(l);
+		
+		if (pv.planarLength == 0.0)
+			return 0.0;
+		
+		double dx = pv.projection.x(l) - pv.x1;
+		double dy = pv.projection.y(l) - pv.y1;
+		double along = dx * pv.unitX + dy * pv.unitY;
+		if (along <= 0.0)
+			return 0.0;
+		if (along > pv.planarLength)
+			return pv.length;
+		return along * pv.length / pv.planarLength;
+	}
+	
 	/**
 	 * Returns true if heading is within allowableDelta of segment.
 	 * 
@@ -0,0 +1,265 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.feed.gtfsRt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.db.structs.AvlReport;
+import org.transitime.utils.IntervalTimer;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.Position;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
+
+/**
+ * Reads a GTFS-realtime Vehicle Positions feed that is polled repeatedly and
+ * only returns AvlReports for the entities that actually changed since the
+ * previous poll. Many feeds are polled more frequently than the vehicles
+ * report so most of the entities in a feed are the same as last time.
+ * Skipping those means that the AVL reports don't need to be created and
+ * then filtered out further downstream.
+ * <p>
+ * An entity is considered to have changed if its GPS timestamp, latitude, or
+ * longitude differs from what was last seen for the entity ID. Entities
+ * without a timestamp are always returned since it can't be determined
+ * whether they are new.
+ * <p>
+ * Both FULL_DATASET and DIFFERENTIAL feeds are handled. For a FULL_DATASET
+ * feed an entity that is no longer in the feed is forgotten so that it is
+ * returned again if it reappears. For a DIFFERENTIAL feed entities that are
+ * not in the message are unchanged and entities marked as deleted are
+ * forgotten.
+ * <p>
+ * The buffer that the feed is read into is reused across polls. Since state
+ * is kept between calls an instance must only be used for a single feed and
+ * by a single thread.
+ *
+ */
+public class DifferentialGtfsRtVehiclePositionsReader {
+
+	// What was last seen for each entity, keyed on entity ID
+	private final Map<String, LastSeen> lastSeenByEntityId =
+			new HashMap<String, LastSeen>();
+	
+	// Incremented for each feed read so can determine which entities were
+	// not in a FULL_DATASET feed
+	private long generation = 0;
+	
+	// Buffer that feed is read into. Reused so that a new large buffer
+	// doesn't need to be allocated and grown for every poll.
+	private byte[] buffer = new byte[64 * 1024];
+
+	// For logging
+	private long totalEntities = 0;
+	private long totalChangedEntities = 0;
+	
+	// Same limit as used by GtfsRtVehiclePositionsReader
+	private static final int SIZE_LIMIT = 200000000;
+	
+	private static final Logger logger = LoggerFactory
+			.getLogger(DifferentialGtfsRtVehiclePositionsReader.class);
+
+	/**
+	 * What was last seen for an entity. Mutable so that an object doesn't
+	 * need to be allocated for each entity for each poll.
+	 */
+	private static class LastSeen {
+		private long timestamp;
+		private float lat;
+		private float lon;
+		private long generation;
+	}
+	
+	/********************** Member Functions **************************/
+
+	/**
+	 * Reads all of the data from the input stream into the reusable buffer,
+	 * growing the buffer if necessary.
+	 * 
+	 * @param inputStream
+	 * @return number of bytes read
+	 * @throws IOException
+	 */
+	private int readFully(InputStream inputStream) throws IOException {
+		int length = 0;
+		while (true) {
+			if (length == buffer.length) {
+				if (buffer.length >= SIZE_LIMIT)
+					throw new IOException("GTFS-realtime feed is larger than "
+							+ SIZE_LIMIT + " bytes");
+				byte[] largerBuffer = new byte[
+				        (int) Math.min(2L * buffer.length, SIZE_LIMIT)];
+				System.arraycopy(buffer, 0, largerBuffer, 0, length);
+				buffer = largerBuffer;
+			}
+			
+			int bytesRead = 
+					inputStream.read(buffer, length, buffer.length - length);
+			if (bytesRead < 0)
+				return length;
+			length += bytesRead;
+		}
+	}
+	
+	/**
+	 * Determines whether the vehicle position differs from what was last seen
+	 * for the entity and records the new values.
+	 * 
+	 * @param entityId
+	 * @param vehicle
+	 * @return true if the entity is new or changed
+	 */
+	private boolean updateLastSeen(String entityId, VehiclePosition vehicle) {
+		Position position = vehicle.getPosition();
+		long timestamp = vehicle.getTimestamp();
+		float lat = position.getLatitude();
+		float lon = position.getLongitude();
+		
+		LastSeen lastSeen = lastSeenByEntityId.get(entityId);
+		if (lastSeen == null) {
+			lastSeen = new LastSeen();
+			lastSeenByEntityId.put(entityId, lastSeen);
+		} else if (vehicle.hasTimestamp()
+				&& lastSeen.timestamp == timestamp
+				&& lastSeen.lat == lat 
+				&& lastSeen.lon == lon) {
+			lastSeen.generation = generation;
+			return false;
+		}
+		
+		lastSeen.timestamp = timestamp;
+		lastSeen.lat = lat;
+		lastSeen.lon = lon;
+		lastSeen.generation = generation;
+		return true;
+	}
+	
+	/**
+	 * Processes the GTFS-realtime message and returns AvlReports for the
+	 * entities that changed.
+	 * 
+	 * @param message
+	 * @return AvlReports for new or changed entities
+	 */
+	private Collection<AvlReport> processMessage(FeedMessage message) {
+		IntervalTimer timer = new IntervalTimer();
+		
+		++generation;
+		boolean differential = message.getHeader().getIncrementality() 
+				== Incrementality.DIFFERENTIAL;
+		
+		Collection<AvlReport> avlReports = new ArrayList<AvlReport>();
+		int entities = 0;
+		int deletedEntities = 0;
+		for (FeedEntity entity : message.getEntityList()) {
+			++entities;
+			
+			// Entities marked as deleted are only used for DIFFERENTIAL feeds
+			if (entity.getIsDeleted()) {
+				if (lastSeenByEntityId.remove(entity.getId()) != null)
+					++deletedEntities;
+				continue;
+			}
+			
+			// If no position then nothing to process
+			if (!entity.hasVehicle() || !entity.getVehicle().hasPosition())
+				continue;
+			
+			VehiclePosition vehicle = entity.getVehicle();
+			if (!updateLastSeen(entity.getId(), vehicle))
+				continue;
+			
+			AvlReport avlReport = 
+					GtfsRtVehiclePositionsReader.getAvlReport(vehicle);
+			if (avlReport == null)
+				continue;
+			
+			avlReports.add(avlReport);
+			logger.debug("Processed changed entity {}", avlReport);
+		}
+		
+		// For a FULL_DATASET feed forget about the entities that are no 
+		// longer in the feed so that they are treated as new if they return
+		if (!differential) {
+			Iterator<LastSeen> iterator = 
+					lastSeenByEntityId.values().iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().generation != generation) {
+					iterator.remove();
+					++deletedEntities;
+				}
+			}
+		}
+		
+		totalEntities += entities;
+		totalChangedEntities += avlReports.size();
+		logger.info("Processed {} GTFS-realtime feed with {} entities. "
+				+ "{} were new or changed, {} were removed, and {} are being "
+				+ "tracked. Total changed {} of {} entities. Took {} msec.",
+				differential ? "DIFFERENTIAL" : "FULL_DATASET",
+				entities, avlReports.size(), deletedEntities,
+				lastSeenByEntityId.size(), totalChangedEntities, 
+				totalEntities, timer.elapsedMsec());
+		
+		return avlReports;
+	}
+	
+	/**
+	 * Reads the GTFS-realtime feed from the input stream and returns
+	 * AvlReports for the entities that are new or that changed since the
+	 * previous call.
+	 * 
+	 * @param inputStream
+	 * @return AvlReports for new or changed entities
+	 * @throws IOException
+	 */
+	public Collection<AvlReport> process(InputStream inputStream) 
+			throws IOException {
+		IntervalTimer timer = new IntervalTimer();
+		
+		int length = readFully(inputStream);
+		CodedInputStream codedStream = 
+				CodedInputStream.newInstance(buffer, 0, length);
+		codedStream.setSizeLimit(SIZE_LIMIT);
+		FeedMessage feedMessage = FeedMessage.parseFrom(codedStream);
+		logger.debug("Parsing GTFS-realtime feed of {} bytes took {} msec", 
+				length, timer.elapsedMsec());
+		
+		return processMessage(feedMessage);
+	}
+	
+	/**
+	 * Returns the number of entities whose last seen values are being kept.
+	 * 
+	 * @return number of entities being tracked
+	 */
+	public int getTrackedEntityCount() {
+		return lastSeenByEntityId.size();
+	}
+}
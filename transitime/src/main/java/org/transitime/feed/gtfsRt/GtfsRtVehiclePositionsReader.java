@@ -101,6 +101,93 @@ public class GtfsRtVehiclePositionsReader {
 		return desc.getLicensePlate();
 	}
 	
+	/**
+	 * Converts the VehiclePosition from the GTFS-realtime feed into an
+	 * AvlReport.
+	 * 
+	 * @param vehicle
+	 *            The VehiclePosition from the feed
+	 * @return The AvlReport, or null if the VehiclePosition doesn't have a
+	 *         vehicle ID or position and therefore can't be handled
+	 */
+	static AvlReport getAvlReport(VehiclePosition vehicle) {
+		// Determine vehicle ID. If no vehicle ID then can't handle it.
+		String vehicleId = getVehicleId(vehicle);
+		if (vehicleId == null) 
+			return null;
+
+		// Determine the GPS time. If time is not available then use the
+		// current time. This is really a bad idea though because the 
+		// latency will be quite large, resulting in inaccurate predictions
+		// and arrival times. But better than not having a time at all.
+		long gpsTime;
+		if (vehicle.hasTimestamp())
+			gpsTime = vehicle.getTimestamp()*Time.MS_PER_SEC;
+		else {
+			logger.warn("For vehicleId={} GPS time not available in "
+					+ "GTFS-realtime feed so using system time, which is "
+					+ "not accurate!",
+					vehicleId);
+			gpsTime = System.currentTimeMillis();
+		}
+		
+		// Determine the position data
+	    Position position = vehicle.getPosition();
+	    
+	    // If no position then cannot handle the data
+	    if (!position.hasLatitude() || !position.hasLongitude())
+	    	return null;
+	    
+	    double lat = position.getLatitude();
+	    double lon = position.getLongitude();
+	    
+	    // Handle speed and heading
+	    float speed = Float.NaN;
+	    if (position.hasSpeed()) {
+	    	speed = position.getSpeed();
+	    }
+	    float heading = Float.NaN;
+	    if (position.hasBearing()) {
+	    	heading = position.getBearing();
+	    	
+	    	// rtd-denver at least sets bearing to 65535.0 when vehicle 
+	    	// not moving. For this special case reset heading to NaN.
+	    	if (heading == 65535.0)
+	    		heading = Float.NaN;
+	    }
+	    
+		// Create the core AVL object. The feed can provide a silly amount 
+	    // of precision so round to just 5 decimal places.
+        // AvlReport is expecting time in ms while the proto provides it in
+	    // seconds
+		AvlReport avlReport = new AvlReport(vehicleId, 
+				gpsTime,
+				MathUtils.round(lat, 5), MathUtils.round(lon, 5), speed,
+				heading,
+				"GTFS-rt",
+				null, // leadingVehicleId,
+				null, // driverId
+				getLicensePlate(vehicle), 
+				null, // passengerCount
+				Float.NaN); // passengerFullness
+		
+		// Determine vehicle assignment information. Trip assignments
+		// are more useful than route assignments so check trip
+		// assignment first.
+		if (vehicle.hasTrip()) {
+			TripDescriptor tripDescriptor = vehicle.getTrip();
+			if (tripDescriptor.hasTripId()) {
+				avlReport.setAssignment(tripDescriptor.getTripId(), 
+						AssignmentType.TRIP_ID);
+			} else if (tripDescriptor.hasRouteId()) {
+				avlReport.setAssignment(tripDescriptor.getRouteId(), 
+						AssignmentType.ROUTE_ID);
+			}
+		}
+		
+		return avlReport;
+	}
+	
 	/**
 	 * For each vehicle in the GTFS-realtime message put AvlReport into list.
 	 * 
@@ -108,7 +195,7 @@ public class GtfsRtVehiclePositionsReader {
 	 *            Contains all of the VehiclePosition objects
 	 * @return List of AvlReports
 	 */
-	private static Collection<AvlReport> processMessage(FeedMessage message) {
+	public static Collection<AvlReport> processMessage(FeedMessage message) {
 		logger.info("Processing each individual AvlReport...");
 		IntervalTimer timer = new IntervalTimer();
 		
@@ -121,82 +208,11 @@ public class GtfsRtVehiclePositionsReader {
 			if (!entity.hasVehicle())
 				continue;
 			
-			// Get the object describing the vehicle
-			VehiclePosition vehicle = entity.getVehicle();
-			
-			// Determine vehicle ID. If no vehicle ID then can't handle it.
-			String vehicleId = getVehicleId(vehicle);
-			if (vehicleId == null) 
+			// Convert the vehicle position into an AvlReport. If can't
+			// then continue to next entity.
+			AvlReport avlReport = getAvlReport(entity.getVehicle());
+			if (avlReport == null)
 				continue;
-
-			// Determine the GPS time. If time is not available then use the
-			// current time. This is really a bad idea though because the 
-			// latency will be quite large, resulting in inaccurate predictions
-			// and arrival times. But better than not having a time at all.
-			long gpsTime;
-			if (vehicle.hasTimestamp())
-				gpsTime = vehicle.getTimestamp()*Time.MS_PER_SEC;
-			else {
-				logger.warn("For vehicleId={} GPS time not available in "
-						+ "GTFS-realtime feed so using system time, which is "
-						+ "not accurate!",
-						vehicleId);
-				gpsTime = System.currentTimeMillis();
-			}
-			
-			// Determine the position data
-		    Position position = vehicle.getPosition();
-		    
-		    // If no position then cannot handle the data
-		    if (!position.hasLatitude() || !position.hasLongitude())
-		    	continue;
-		    
-		    double lat = position.getLatitude();
-		    double lon = position.getLongitude();
-		    
-		    // Handle speed and heading
-		    float speed = Float.NaN;
-		    if (position.hasSpeed()) {
-		    	speed = position.getSpeed();
-		    }
-		    float heading = Float.NaN;
-		    if (position.hasBearing()) {
-		    	heading = position.getBearing();
-		    	
-		    	// rtd-denver at least sets bearing to 65535.0 when vehicle 
-		    	// not moving. For this special case reset heading to NaN.
-		    	if (heading == 65535.0)
-		    		heading = Float.NaN;
-		    }
-		    
-			// Create the core AVL object. The feed can provide a silly amount 
-		    // of precision so round to just 5 decimal places.
-            // AvlReport is expecting time in ms while the proto provides it in
-		    // seconds
-			AvlReport avlReport = new AvlReport(vehicleId, 
-					gpsTime,
-					MathUtils.round(lat, 5), MathUtils.round(lon, 5), speed,
-					heading,
-					"GTFS-rt",
-					null, // leadingVehicleId,
-					null, // driverId
-					getLicensePlate(vehicle), 
-					null, // passengerCount
-					Float.NaN); // passengerFullness
-			
-			// Determine vehicle assignment information. Trip assignments
-			// are more useful than route assignments so check trip
-			// assignment first.
-			if (vehicle.hasTrip()) {
-				TripDescriptor tripDescriptor = vehicle.getTrip();
-				if (tripDescriptor.hasTripId()) {
-					avlReport.setAssignment(tripDescriptor.getTripId(), 
-							AssignmentType.TRIP_ID);
-				} else if (tripDescriptor.hasRouteId()) {
-					avlReport.setAssignment(tripDescriptor.getRouteId(), 
-							AssignmentType.ROUTE_ID);
-				}
-			}
 			
 			avlReportsReadIn.add(avlReport);
 			
@@ -211,12 +227,32 @@ public class GtfsRtVehiclePositionsReader {
 	}
 	
 	/**
-	 * Actually processes the GTFS-realtime file and calls handleAvlReport()
-	 * for each AvlReport.
+	 * Returns how many of the entities of the message contain a vehicle
+	 * position. Can be compared to the number of AvlReports returned by
+	 * processMessage() to determine how many vehicle positions were skipped.
+	 * 
+	 * @param message
+	 * @return number of entities with a vehicle position
 	 */
-	public static Collection<AvlReport> process(InputStream inputStream) {
-		IntervalTimer timer = new IntervalTimer();
-		
+	public static int numberOfVehiclePositions(FeedMessage message) {
+		int count = 0;
+		for (FeedEntity entity : message.getEntityList()) {
+			if (entity.hasVehicle())
+				++count;
+		}
+		return count;
+	}
+	
+	/**
+	 * Reads the GTFS-realtime data into a FeedMessage. Unlike process() a
+	 * problem reading the data is thrown instead of just logged.
+	 * 
+	 * @param inputStream
+	 * @return the FeedMessage
+	 * @throws IOException
+	 */
+	public static FeedMessage parse(InputStream inputStream) 
+			throws IOException {
 		// Create a CodedInputStream instead of just a regular InputStream
 		// so that can change the size limit. Otherwise if file is greater
 		// than 64MB get an exception.
@@ -226,6 +262,16 @@ public class GtfsRtVehiclePositionsReader {
 		final int GTFS_SIZE_LIMIT = 200000000;
 		codedStream.setSizeLimit(GTFS_SIZE_LIMIT);	
 		
+		return FeedMessage.parseFrom(codedStream);
+	}
+	
+	/**
+	 * Actually processes the GTFS-realtime file and calls handleAvlReport()
+	 * for each AvlReport.
+	 */
+	public static Collection<AvlReport> process(InputStream inputStream) {
+		IntervalTimer timer = new IntervalTimer();
+		
 		// Actual read in the data into a protobuffer FeedMessage object.
 		// Would prefer to do this one VehiclePosition at a time using
 		// something like VehiclePosition.parseFrom(codedStream) so that
@@ -234,7 +280,7 @@ public class GtfsRtVehiclePositionsReader {
 		// parseFrom(). Therefore loading in entire file at once.
 		FeedMessage feedMessage;
 		try {
-			feedMessage = FeedMessage.parseFrom(codedStream);
+			feedMessage = parse(inputStream);
 			logger.info("Parsing GTFS-realtime file into a FeedMessage took " +
 					"{} msec", timer.elapsedMsec());
 			return processMessage(feedMessage);
@@ -16,6 +16,9 @@
  */
 package org.transitime.gtfs;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -24,13 +27,21 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.applications.Core;
+import org.transitime.configData.CoreConfig;
 import org.transitime.core.ServiceUtils;
+import org.transitime.core.TripPatternSegmentIndex;
 import org.transitime.db.hibernate.HibernateUtils;
 import org.transitime.db.structs.ActiveRevisions;
 import org.transitime.db.structs.Agency;
@@ -50,7 +61,9 @@ import org.transitime.db.structs.Trip;
 import org.transitime.db.structs.TripPattern;
 import org.transitime.utils.IntervalTimer;
 import org.transitime.utils.MapKey;
+import org.transitime.utils.PlanarProjection;
 import org.transitime.utils.Time;
+import org.transitime.utils.threading.NamedThreadFactory;
 
 /**
  * Reads all the configuration data from the database. The data is based on GTFS
@@ -122,6 +135,16 @@ public class DbConfig {
 	// and so that can read in TripPatterns later using the same session.
 	private Session globalSession;
 
+	// The planar projection for the agency. Only made the current one
+	// right away if not reading in the data in the background.
+	private PlanarProjection planarProjection;
+	
+	// Set when reading in a new configuration in the background while
+	// another one is still in use. In that case the shared static state,
+	// the current planar projection and the spatial indices, must not be
+	// changed until the new configuration is switched in.
+	private boolean readInBackground = false;
+	
 	private static final Logger logger = LoggerFactory
 			.getLogger(DbConfig.class);
 
@@ -157,6 +180,25 @@ public class DbConfig {
 		globalSession = HibernateUtils.getSession(agencyId);
 	}
 	
+	/**
+	 * Closes the global session used for lazy loading data. For when the
+	 * configuration has been replaced by a new one so that the session isn't
+	 * kept open. Problems are logged since the configuration isn't being
+	 * used anymore.
+	 */
+	public void closeGlobalSession() {
+		if (globalSession == null)
+			return;
+		
+		try {
+			globalSession.close();
+		} catch (HibernateException e) {
+			logger.error("Error closing global session for agencyId={} "
+					+ "configRev={}", agencyId, configRev, e);
+		}
+		globalSession = null;
+	}
+	
 	/**
 	 * Initiates the reading of the configuration data from the database. Calls
 	 * actuallyReadData() which does all the work.
@@ -179,7 +221,22 @@ public class DbConfig {
 
 		// Do the low-level processing
 		try {
-			actuallyReadData(configRev);
+			// If there is a snapshot of the config data then use it since
+			// that is much faster than reading everything from the db
+			if (DbConfigSnapshot.isEnabled() 
+					&& DbConfigSnapshot.read(this, configRev)) {
+				logger.info("Finished reading configuration data from "
+						+ "snapshot. Took {} msec.", timer.elapsedMsec());
+				return;
+			}
+			
+			boolean preload = CoreConfig.preloadConfigData();
+			actuallyReadData(configRev, preload);
+			
+			// If all the data was preloaded then can write a snapshot of
+			// it so that next time can start up quickly
+			if (preload && DbConfigSnapshot.isEnabled())
+				DbConfigSnapshot.write(this);
 		} catch (HibernateException e) {
 			logger.error("Error reading configuration data from db for "
 					+ "configRev={}. NOTE: Exiting because could not read in "
@@ -200,6 +257,233 @@ public class DbConfig {
 				+ "Took {} msec.", timer.elapsedMsec());
 	}
 
+	/**
+	 * Reads in a new configuration while another one is still being used by
+	 * the core, so that the new one can be switched in without restarting.
+	 * Everything is preloaded so that the lazy loading global session isn't
+	 * needed. Uses the snapshot if there is one. The current planar
+	 * projection and the spatial indices are not modified since they are
+	 * still being used for the current configuration. Therefore once the
+	 * configuration is switched in PlanarProjection.setCurrent() needs to be
+	 * called with getPlanarProjection() and createSpatialIndices() should be
+	 * called. Unlike read() doesn't exit if there is a problem.
+	 * 
+	 * @param configRev
+	 * @throws HibernateException
+	 */
+	public void readInBackground(int configRev) throws HibernateException {
+		IntervalTimer timer = new IntervalTimer();
+		logger.info("Reading configuration for configRev={} in background...",
+				configRev);
+
+		readInBackground = true;
+		this.configRev = configRev;
+		
+		if (DbConfigSnapshot.isEnabled() 
+				&& DbConfigSnapshot.read(this, configRev)) {
+			logger.info("Finished reading configuration data in background "
+					+ "from snapshot. Took {} msec.", timer.elapsedMsec());
+			return;
+		}
+		
+		actuallyReadData(configRev, true);
+		if (DbConfigSnapshot.isEnabled())
+			DbConfigSnapshot.write(this);
+		
+		logger.info("Finished reading configuration data in background from "
+				+ "database. Took {} msec.", timer.elapsedMsec());
+	}
+	
+	/**
+	 * Creates the spatial indices for all of the trip patterns, if they are
+	 * enabled. For when the configuration was read in using
+	 * readInBackground() and has been switched in.
+	 */
+	public void createSpatialIndices() {
+		if (!CoreConfig.useSpatialIndex())
+			return;
+		
+		List<TripPattern> tripPatterns = new ArrayList<TripPattern>();
+		for (List<TripPattern> tripPatternsForRoute : 
+				tripPatternsByRouteMap.values())
+			tripPatterns.addAll(tripPatternsForRoute);
+		TripPatternSegmentIndex.createIndices(tripPatterns);
+	}
+	
+	/**
+	 * Reads in all of the configuration data from the database, including
+	 * all blocks and trips, so that a snapshot of it can be written. Unlike
+	 * read() doesn't exit if there is a problem.
+	 * 
+	 * @param configRev
+	 * @throws HibernateException
+	 */
+	void readPreloaded(int configRev) throws HibernateException {
+		this.configRev = configRev;
+		actuallyReadData(configRev, true);
+	}
+	
+	/**
+	 * Writes the configuration data that was read in to the stream so that
+	 * it can be read back in using readSnapshotData(). Since all the data is
+	 * written as a single object graph objects that are shared, such as trip
+	 * patterns used by multiple trips, are still shared when read back in.
+	 * Only works if the data was preloaded since otherwise parts of it were
+	 * not read in.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	void writeSnapshotData(ObjectOutputStream out) throws IOException {
+		List<TripPattern> tripPatterns = new ArrayList<TripPattern>();
+		for (List<TripPattern> tripPatternsForRoute : 
+				tripPatternsByRouteMap.values())
+			tripPatterns.addAll(tripPatternsForRoute);
+		
+		out.writeObject(new ArrayList<Block>(blocks));
+		out.writeObject(new ArrayList<Route>(routes));
+		out.writeObject(tripPatterns);
+		out.writeObject(new ArrayList<Trip>(tripsMap.values()));
+		out.writeObject(new ArrayList<Stop>(stopsMap.values()));
+		out.writeObject(new ArrayList<Agency>(agencies));
+		out.writeObject(new ArrayList<Calendar>(calendars));
+		out.writeObject(new ArrayList<CalendarDate>(calendarDates));
+		out.writeObject(new ArrayList<FareAttribute>(fareAttributes));
+		out.writeObject(new ArrayList<FareRule>(fareRules));
+		out.writeObject(new ArrayList<Frequency>(frequencies));
+		out.writeObject(new ArrayList<Transfer>(transfers));
+	}
+	
+	/**
+	 * Reads in the configuration data written by writeSnapshotData() and
+	 * creates the maps for accessing it, just like when it is read from the
+	 * database. Since everything is read in there is no global session.
+	 * 
+	 * @param configRev
+	 * @param in
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	@SuppressWarnings("unchecked")
+	void readSnapshotData(int configRev, ObjectInputStream in)
+			throws IOException, ClassNotFoundException {
+		this.configRev = configRev;
+		
+		blocks = (List<Block>) in.readObject();
+		routes = (List<Route>) in.readObject();
+		List<TripPattern> tripPatterns = (List<TripPattern>) in.readObject();
+		List<Trip> trips = (List<Trip>) in.readObject();
+		List<Stop> stopsList = (List<Stop>) in.readObject();
+		agencies = (List<Agency>) in.readObject();
+		calendars = (List<Calendar>) in.readObject();
+		calendarDates = (List<CalendarDate>) in.readObject();
+		fareAttributes = (List<FareAttribute>) in.readObject();
+		fareRules = (List<FareRule>) in.readObject();
+		frequencies = (List<Frequency>) in.readObject();
+		transfers = (List<Transfer>) in.readObject();
+		
+		blocksByServiceMap = putBlocksIntoMap(blocks);
+		blocksByRouteMap = putBlocksIntoMapByRoute(blocks);
+		routesByRouteIdMap = putRoutesIntoMapByRouteId(routes);
+		routesByRouteShortNameMap = putRoutesIntoMapByRouteShortName(routes);
+		tripPatternsByRouteMap = putTripPatternsIntoMap(tripPatterns);
+		if (CoreConfig.useSpatialIndex() && !readInBackground)
+			TripPatternSegmentIndex.createIndices(tripPatterns);
+		tripsMap = new HashMap<String, Trip>();
+		for (Trip trip : trips)
+			tripsMap.put(trip.getId(), trip);
+		putTripsIntoIndividualTripMaps();
+		createTravelTimeTables();
+		stopsMap = putStopsIntoMap(stopsList);
+		stopsByStopCode = putStopsIntoMapByStopCode(stopsList);
+		routesListByStopIdMap = putRoutesIntoMapByStopId(routes);
+		setPlanarProjection();
+		calendarDatesMap = putCalendarDatesIntoMap(calendarDates);
+		
+		globalSession = null;
+	}
+	
+	/**
+	 * Determines the planar projection for the agency so that the geometry
+	 * for matching doesn't need trigonometry. Makes it the current projection
+	 * unless reading in the configuration in the background.
+	 */
+	private void setPlanarProjection() {
+		planarProjection = null;
+		if (CoreConfig.usePlanarProjection() && !agencies.isEmpty())
+			planarProjection = 
+					PlanarProjection.forExtent(agencies.get(0).getExtent());
+		if (!readInBackground)
+			PlanarProjection.setCurrent(planarProjection);
+		logger.info("Using planar projection {}", planarProjection);
+	}
+	
+	/**
+	 * Returns the planar projection for the agency.
+	 * 
+	 * @return the projection, or null if not using a planar projection
+	 */
+	public PlanarProjection getPlanarProjection() {
+		return planarProjection;
+	}
+	
+	/**
+	 * Creates a map of calendar dates keyed by the epoch time of the date so
+	 * that calendar dates for a day can be found efficiently.
+	 * 
+	 * @param calendarDates
+	 * @return the map
+	 */
+	private static Map<Long, List<CalendarDate>> putCalendarDatesIntoMap(
+			List<CalendarDate> calendarDates) {
+		Map<Long, List<CalendarDate>> calendarDatesMap = 
+				new HashMap<Long, List<CalendarDate>>();
+		for (CalendarDate calendarDate : calendarDates) {
+			Long time = calendarDate.getTime();
+			List<CalendarDate> calendarDatesForDate = calendarDatesMap.get(time);
+			if (calendarDatesForDate == null) {
+				calendarDatesForDate = new ArrayList<CalendarDate>(1);
+				calendarDatesMap.put(time, calendarDatesForDate);
+			}
+			calendarDatesForDate.add(calendarDate);
+		}
+		return calendarDatesMap;
+	}
+	
+	/**
+	 * Creates the cumulative travel time tables for all of the trips so that
+	 * they don't need to be created when processing AVL data. Only for when
+	 * all the trips have been read in.
+	 */
+	private void createTravelTimeTables() {
+		IntervalTimer timer = new IntervalTimer();
+		for (Trip trip : tripsMap.values())
+			trip.createTravelTimeTable();
+		logger.info("Creating travel time tables for {} trips took {} msec",
+				tripsMap.size(), timer.elapsedMsec());
+	}
+	
+	/**
+	 * Puts all of the trips from tripsMap into the maps used for looking up
+	 * individual trips so that they never need to be read from the db.
+	 */
+	private void putTripsIntoIndividualTripMaps() {
+		for (Trip trip : tripsMap.values()) {
+			individualTripsMap.put(trip.getId(), trip);
+			
+			if (trip.getShortName() != null) {
+				List<Trip> tripsForShortName = 
+						individualTripsByShortNameMap.get(trip.getShortName());
+				if (tripsForShortName == null) {
+					tripsForShortName = new ArrayList<Trip>(1);
+					individualTripsByShortNameMap.put(trip.getShortName(), 
+							tripsForShortName);
+				}
+				tripsForShortName.add(trip);
+			}
+		}
+	}
+
 	/**
 	 * Creates a map of a map so that blocks can be looked up easily by service
 	 * and block IDs.
@@ -439,6 +723,11 @@ public class DbConfig {
 			logger.debug("Reading trip patterns for all routes took {} msec",
 					timer.elapsedMsec());
 			
+			// Create the spatial indices now so that matching the first AVL
+			// reports isn't slowed down by having to create them
+			if (CoreConfig.useSpatialIndex() && !readInBackground)
+				TripPatternSegmentIndex.createIndices(tripPatterns);
+			
 			return theTripPatternsByRouteMap;
 	}
 	
@@ -505,8 +794,9 @@ public class DbConfig {
 	public Trip getTrip(String tripIdOrShortName) {
 		Trip trip = individualTripsMap.get(tripIdOrShortName);
 
-		// If trip not read in yet, do so now
-		if (trip == null) {
+		// If trip not read in yet, do so now. But if the data was preloaded
+		// then all trips have already been read in and there is no session.
+		if (trip == null && globalSession != null) {
 			logger.debug("Trip for tripIdOrShortName={} not read from db yet "
 					+ "so reading it now.", tripIdOrShortName);
 			
@@ -589,6 +879,11 @@ public class DbConfig {
 			}
 		}
 
+		// If the data was preloaded then all trips have already been read in
+		// so there is no such trip
+		if (globalSession == null)
+			return null;
+		
 		logger.info("FIXME tripShortName={} not yet read from db so reading it in now", tripShortName);
 		
 		// Trips for the short name not read in yet, do so now
@@ -641,13 +936,170 @@ public class DbConfig {
 		return routesMap;
 	}
 
+	/**
+	 * For reading in a type of config data. When preloading the data it is
+	 * read in by a separate thread, using its own session, so that the
+	 * different types of data can be read in parallel.
+	 */
+	private abstract class ConfigDataReader<T> implements Callable<T> {
+		private final String name;
+		
+		private ConfigDataReader(String name) {
+			this.name = name;
+		}
+		
+		/**
+		 * Actually reads in the data
+		 * 
+		 * @param session
+		 * @return the data
+		 */
+		protected abstract T read(Session session);
+		
+		@Override
+		public T call() {
+			IntervalTimer timer = new IntervalTimer();
+			Session session = HibernateUtils.getSession(agencyId);
+			try {
+				return read(session);
+			} finally {
+				session.close();
+				logger.info("Preloading {} took {} msec", 
+						name, timer.elapsedMsec());
+			}
+		}
+	}
+	
+	/**
+	 * Starts reading in the data. If preloading then the data is read by the
+	 * executor. Otherwise it is read in using the global session when
+	 * getResult() is called.
+	 * 
+	 * @param executor
+	 *            For preloading. Null if not preloading the data.
+	 * @param reader
+	 * @return Future for getting the data via getResult()
+	 */
+	private <T> Future<T> startReading(ExecutorService executor,
+			final ConfigDataReader<T> reader) {
+		if (executor != null)
+			return executor.submit(reader);
+		
+		return new FutureTask<T>(new Callable<T>() {
+			@Override
+			public T call() {
+				return reader.read(globalSession);
+			}
+		});
+	}
+	
+	/**
+	 * Returns the data read in by the Future from startReading(). 
+	 * 
+	 * @param future
+	 * @return the data
+	 * @throws HibernateException
+	 */
+	private static <T> T getResult(Future<T> future) 
+			throws HibernateException {
+		// Run the task if it hasn't been started yet. Does nothing if it is
+		// already running or done.
+		if (future instanceof FutureTask)
+			((FutureTask<T>) future).run();
+		
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HibernateException("Interrupted while reading data", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new HibernateException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Returns how much heap is used. Garbage is deliberately not collected
+	 * first since a full GC can stall a running core for seconds, such as
+	 * when the config is reloaded in the background. Therefore the 
+	 * difference between two calls only approximates the size of the data
+	 * read in.
+	 * 
+	 * @return bytes of heap used
+	 */
+	private static long getUsedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+	
+	/**
+	 * Logs how long it took to preload a type of data and approximately how
+	 * much heap it uses.
+	 * 
+	 * @param name
+	 * @param timer
+	 *            Started before the data was read in
+	 * @param usedHeapBefore
+	 *            From getUsedHeap() before the data was read in
+	 */
+	private static void logPreloaded(String name, IntervalTimer timer,
+			long usedHeapBefore) {
+		long msec = timer.elapsedMsec();
+		logger.info("Preloading {} took {} msec and heap grew by about {} MB",
+				name, msec, 
+				(getUsedHeap() - usedHeapBefore) / (1024 * 1024));
+	}
+	
+	/**
+	 * Reads in all the blocks along with their trips, trip patterns, and
+	 * travel times using the global session. This way nothing needs to be
+	 * lazy loaded later on, which would mean locking 
+	 * Block.getLazyLoadingSyncObject() and stalling the other threads.
+	 * All trips, even ones not part of a block, are read in so that they can
+	 * be looked up without accessing the database.
+	 * 
+	 * @return the blocks
+	 */
+	private List<Block> preloadBlocksAndTrips() {
+		// Read in trip patterns first so that they are already in the
+		// session when the trips that use them are read in
+		long usedHeapBefore = getUsedHeap();
+		IntervalTimer timer = new IntervalTimer();
+		tripPatternsByRouteMap = putTripPatternsInfoRouteMap();
+		logPreloaded("trip patterns", timer, usedHeapBefore);
+		
+		// Read in the blocks and in the same query their trips. The travel 
+		// times are read in eagerly along with the trips.
+		usedHeapBefore = getUsedHeap();
+		timer = new IntervalTimer();
+		List<Block> blocksWithTrips = 
+				Block.getBlocksWithTrips(globalSession, configRev);
+		logPreloaded("blocks with their trips and travel times", timer,
+				usedHeapBefore);
+		
+		// Read in all trips. Most are already in the session. Put them in 
+		// the maps used for looking up individual trips.
+		usedHeapBefore = getUsedHeap();
+		timer = new IntervalTimer();
+		tripsMap = Trip.getTrips(globalSession, configRev);
+		putTripsIntoIndividualTripMaps();
+		logPreloaded("remaining trips", timer, usedHeapBefore);
+		
+		return blocksWithTrips;
+	}
+	
 	/**
 	 * Reads the individual data structures from the database.
 	 * 
 	 * @param configRev
+	 * @param preload
+	 *            If true then all the blocks and trips are read in and the
+	 *            global session is closed. Otherwise they are lazy loaded.
 	 */
-	private void actuallyReadData(int configRev) {
+	private void actuallyReadData(final int configRev, boolean preload) {
 		IntervalTimer timer;
+		IntervalTimer totalTimer = new IntervalTimer();
 
 		// Open up Hibernate session so can read in data. Remember this
 		// session as a member variable. This is a bit odd because usually
@@ -682,48 +1134,153 @@ public class DbConfig {
 		// stopPaths = StopPath.getPaths(session, configRev);
 		// logger.debug("Reading stopPaths took {} msec", timer.elapsedMsec());
 
+		// If preloading then the data that is not part of the blocks is read
+		// in parallel, each type using its own session, while the blocks are
+		// read in using the global session. Otherwise everything is simply
+		// read using the global session.
+		long usedHeapBefore = preload ? getUsedHeap() : 0;
+		ExecutorService executor = preload ? 
+				Executors.newFixedThreadPool(
+						CoreConfig.getPreloadConfigDataThreads(),
+						new NamedThreadFactory("preloadConfigData")) 
+				: null;
+		try {
+			actuallyReadData(configRev, executor);
+		} finally {
+			if (executor != null)
+				executor.shutdown();
+		}
+		
+		// If preloaded then everything has been read in so the global session
+		// isn't needed anymore for lazy loading
+		if (preload) {
+			createTravelTimeTables();
+			globalSession.close();
+			globalSession = null;
+			logger.info("Preloading all config data took {} msec and heap "
+					+ "grew by about {} MB", totalTimer.elapsedMsec(), 
+					(getUsedHeap() - usedHeapBefore) / (1024 * 1024));
+		}
+	}
+	
+	/**
+	 * Reads the individual data structures from the database.
+	 * 
+	 * @param configRev
+	 * @param executor
+	 *            For reading data in parallel when preloading. Null if not
+	 *            preloading.
+	 */
+	private void actuallyReadData(final int configRev, 
+			ExecutorService executor) {
+		IntervalTimer timer;
+
+		// Start reading the data that is not part of the blocks
+		Future<List<Route>> routesFuture = startReading(executor,
+				new ConfigDataReader<List<Route>>("routes") {
+					@Override
+					protected List<Route> read(Session session) {
+						return Route.getRoutes(session, configRev);
+					}
+				});
+		Future<List<Stop>> stopsFuture = startReading(executor,
+				new ConfigDataReader<List<Stop>>("stops") {
+					@Override
+					protected List<Stop> read(Session session) {
+						return Stop.getStops(session, configRev);
+					}
+				});
+		Future<List<Agency>> agenciesFuture = startReading(executor,
+				new ConfigDataReader<List<Agency>>("agencies") {
+					@Override
+					protected List<Agency> read(Session session) {
+						return Agency.getAgencies(session, configRev);
+					}
+				});
+		Future<List<Calendar>> calendarsFuture = startReading(executor,
+				new ConfigDataReader<List<Calendar>>("calendars") {
+					@Override
+					protected List<Calendar> read(Session session) {
+						return Calendar.getCalendars(session, configRev);
+					}
+				});
+		Future<List<CalendarDate>> calendarDatesFuture = startReading(executor,
+				new ConfigDataReader<List<CalendarDate>>("calendar dates") {
+					@Override
+					protected List<CalendarDate> read(Session session) {
+						return CalendarDate.getCalendarDates(session, configRev);
+					}
+				});
+		Future<List<FareAttribute>> fareAttributesFuture = 
+				startReading(executor, 
+				new ConfigDataReader<List<FareAttribute>>("fare attributes") {
+					@Override
+					protected List<FareAttribute> read(Session session) {
+						return FareAttribute.getFareAttributes(session, 
+								configRev);
+					}
+				});
+		Future<List<FareRule>> fareRulesFuture = startReading(executor,
+				new ConfigDataReader<List<FareRule>>("fare rules") {
+					@Override
+					protected List<FareRule> read(Session session) {
+						return FareRule.getFareRules(session, configRev);
+					}
+				});
+		Future<List<Frequency>> frequenciesFuture = startReading(executor,
+				new ConfigDataReader<List<Frequency>>("frequencies") {
+					@Override
+					protected List<Frequency> read(Session session) {
+						return Frequency.getFrequencies(session, configRev);
+					}
+				});
+		Future<List<Transfer>> transfersFuture = startReading(executor,
+				new ConfigDataReader<List<Transfer>>("transfers") {
+					@Override
+					protected List<Transfer> read(Session session) {
+						return Transfer.getTransfers(session, configRev);
+					}
+				});
+		
 		timer = new IntervalTimer();
-		blocks = Block.getBlocks(globalSession, configRev);
+		if (executor != null)
+			blocks = preloadBlocksAndTrips();
+		else
+			blocks = Block.getBlocks(globalSession, configRev);
 		blocksByServiceMap = putBlocksIntoMap(blocks);
 		blocksByRouteMap = putBlocksIntoMapByRoute(blocks);
 		logger.debug("Reading blocks took {} msec", timer.elapsedMsec());
 
 		timer = new IntervalTimer();
-		routes = Route.getRoutes(globalSession, configRev);
+		routes = getResult(routesFuture);
 		routesByRouteIdMap = putRoutesIntoMapByRouteId(routes);
 		routesByRouteShortNameMap = putRoutesIntoMapByRouteShortName(routes);
 		logger.debug("Reading routes took {} msec", timer.elapsedMsec());
 
-		tripPatternsByRouteMap = putTripPatternsInfoRouteMap();
+		// If preloading then trip patterns were already read in
+		if (executor == null)
+			tripPatternsByRouteMap = putTripPatternsInfoRouteMap();
 		
 		timer = new IntervalTimer();
-		List<Stop> stopsList = Stop.getStops(globalSession, configRev);
+		List<Stop> stopsList = getResult(stopsFuture);
 		stopsMap = putStopsIntoMap(stopsList);
 		stopsByStopCode = putStopsIntoMapByStopCode(stopsList);
 		routesListByStopIdMap = putRoutesIntoMapByStopId(routes);
 		logger.debug("Reading stops took {} msec", timer.elapsedMsec());
 
 		timer = new IntervalTimer();
-		agencies = Agency.getAgencies(globalSession, configRev);
-		calendars = Calendar.getCalendars(globalSession, configRev);
-		calendarDates = CalendarDate.getCalendarDates(globalSession, configRev);
+		agencies = getResult(agenciesFuture);
 		
-		calendarDatesMap = new HashMap<Long, List<CalendarDate>>();
-		for (CalendarDate calendarDate : calendarDates) {
-			Long time = calendarDate.getTime();
-			List<CalendarDate> calendarDatesForDate = calendarDatesMap.get(time);
-			if (calendarDatesForDate == null) {
-				calendarDatesForDate = new ArrayList<CalendarDate>(1);
-				calendarDatesMap.put(time, calendarDatesForDate);
-			}
-			calendarDatesForDate.add(calendarDate);
-		}
+		setPlanarProjection();
+		
+		calendars = getResult(calendarsFuture);
+		calendarDates = getResult(calendarDatesFuture);
+		calendarDatesMap = putCalendarDatesIntoMap(calendarDates);
 		
-		fareAttributes =
-				FareAttribute.getFareAttributes(globalSession, configRev);
-		fareRules = FareRule.getFareRules(globalSession, configRev);
-		frequencies = Frequency.getFrequencies(globalSession, configRev);
-		transfers = Transfer.getTransfers(globalSession, configRev);
+		fareAttributes = getResult(fareAttributesFuture);
+		fareRules = getResult(fareRulesFuture);
+		frequencies = getResult(frequenciesFuture);
+		transfers = getResult(transfersFuture);
 
 		logger.debug("Reading everything else took {} msec",
 				timer.elapsedMsec());
@@ -996,6 +1553,15 @@ public class DbConfig {
 		return configRev;
 	}
 
+	/**
+	 * Returns the agency ID that the configuration data is for.
+	 * 
+	 * @return the agency ID
+	 */
+	public String getAgencyId() {
+		return agencyId;
+	}
+
 	/**
 	 * Output contents of collection to stdout. For debugging.
 	 * 
@@ -0,0 +1,353 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ * 
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.gtfs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.config.StringConfigValue;
+import org.transitime.db.structs.ActiveRevisions;
+import org.transitime.utils.IntervalTimer;
+
+/**
+ * For writing a snapshot of all of the configuration data for a configRev to
+ * a file and then quickly reading it back in when the core starts up. Reading
+ * the snapshot is much faster than reading everything from the database via
+ * Hibernate, which for a large agency can take minutes. The database is still
+ * the source of truth. A snapshot is only used if it is for the configRev
+ * being read and for the travel times rev that is currently active, since
+ * the trips reference the travel times. Otherwise the data is read from the
+ * database as usual.
+ * <p>
+ * The file starts with a header containing the format version, agency ID,
+ * configRev, and travel times rev. The header is followed by the serialized
+ * object graph of the fully loaded configuration data, as written by
+ * DbConfig.writeSnapshotData(). When reading, the file is mapped into memory
+ * and the object graph is deserialized from the mapped buffer using an
+ * ObjectInputStream. The objects are therefore still deserialized, and the
+ * time saved comes from not querying the database. It is written to a temporary file that is then renamed so that a
+ * partially written snapshot is never read.
+ * 
+ */
+public class DbConfigSnapshot {
+
+	private static StringConfigValue snapshotDirectory =
+			new StringConfigValue("transitime.core.configSnapshotDirectory",
+					null,
+					"Directory for snapshots of the configuration data. "
+					+ "Snapshots are written when GTFS data is processed "
+					+ "and when the core has preloaded the data from the "
+					+ "db. The core reads the snapshot at startup if it is "
+					+ "for the current revisions. If not set then snapshots "
+					+ "are not used.");
+
+	// For identifying the snapshot file and its format. FORMAT_VERSION needs
+	// to be incremented whenever what is written changes.
+	private static final int MAGIC = 0x54434653;
+	private static final int FORMAT_VERSION = 2;
+	
+	private static final Logger logger = 
+			LoggerFactory.getLogger(DbConfigSnapshot.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Constructor private since only static methods
+	 */
+	private DbConfigSnapshot() {
+	}
+	
+	/**
+	 * For reading the mapped file as an InputStream so that it can be
+	 * deserialized by an ObjectInputStream
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+		
+		private ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+		
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+		
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if (!buffer.hasRemaining())
+				return -1;
+			
+			length = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, length);
+			return length;
+		}
+		
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+	
+	/**
+	 * Returns true if the snapshot directory is configured
+	 * 
+	 * @return true if snapshots should be used
+	 */
+	public static boolean isEnabled() {
+		return snapshotDirectory.getValue() != null;
+	}
+	
+	/**
+	 * Returns the snapshot file for the agency and configRev
+	 * 
+	 * @param agencyId
+	 * @param configRev
+	 * @return the file
+	 */
+	private static File getFile(String agencyId, int configRev) {
+		return new File(snapshotDirectory.getValue(), 
+				agencyId + "_configRev" + configRev + ".snapshot");
+	}
+	
+	/**
+	 * Returns the travel times rev that is currently active
+	 * 
+	 * @param agencyId
+	 * @return the active travel times rev, or -1 if could not read it
+	 */
+	private static int getActiveTravelTimesRev(String agencyId) {
+		ActiveRevisions activeRevisions = ActiveRevisions.get(agencyId);
+		return activeRevisions != null ? 
+				activeRevisions.getTravelTimesRev() : -1;
+	}
+	
+	/**
+	 * Reads the snapshot for the configRev into the DbConfig if there is a
+	 * valid one for the configRev and the currently active travel times rev.
+	 * 
+	 * @param dbConfig
+	 * @param configRev
+	 * @return true if the config data was read from the snapshot, false if
+	 *         it needs to be read from the db
+	 */
+	public static boolean read(DbConfig dbConfig, int configRev) {
+		File file = getFile(dbConfig.getAgencyId(), configRev);
+		if (!file.exists()) {
+			logger.info("No snapshot {} of the config data so reading it "
+					+ "from db.", file);
+			return false;
+		}
+		
+		return read(dbConfig, configRev, file, 
+				getActiveTravelTimesRev(dbConfig.getAgencyId()));
+	}
+	
+	/**
+	 * Reads the snapshot file into the DbConfig if it is valid for the 
+	 * configRev and the specified travel times rev. Package visible so that
+	 * it can be tested without a db.
+	 * 
+	 * @param dbConfig
+	 * @param configRev
+	 * @param file
+	 *            The snapshot file
+	 * @param activeTravelTimesRev
+	 *            The travel times rev that the snapshot must be for
+	 * @return true if the config data was read from the snapshot, false if
+	 *         it needs to be read from the db
+	 */
+	static boolean read(DbConfig dbConfig, int configRev, File file,
+			int activeTravelTimesRev) {
+		IntervalTimer timer = new IntervalTimer();
+		RandomAccessFile randomAccessFile = null;
+		try {
+			randomAccessFile = new RandomAccessFile(file, "r");
+			if (randomAccessFile.length() > Integer.MAX_VALUE) {
+				logger.error("Snapshot {} is too large to be memory mapped "
+						+ "so reading config data from db.", file);
+				return false;
+			}
+			MappedByteBuffer buffer = randomAccessFile.getChannel().map(
+					MapMode.READ_ONLY, 0, randomAccessFile.length());
+			DataInputStream in = 
+					new DataInputStream(new ByteBufferInputStream(buffer));
+			
+			// Make sure snapshot is for the current revisions
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+				logger.warn("Snapshot {} is not valid or is for an old "
+						+ "format so reading config data from db.", file);
+				return false;
+			}
+			String agencyId = in.readUTF();
+			int snapshotConfigRev = in.readInt();
+			int travelTimesRev = in.readInt();
+			if (!agencyId.equals(dbConfig.getAgencyId()) 
+					|| snapshotConfigRev != configRev) {
+				logger.warn("Snapshot {} is for agencyId={} configRev={} "
+						+ "so reading config data from db.", 
+						file, agencyId, snapshotConfigRev);
+				return false;
+			}
+			if (travelTimesRev != activeTravelTimesRev) {
+				logger.info("Snapshot {} is for travelTimesRev={} but the "
+						+ "active travelTimesRev={} so reading config data "
+						+ "from db.", file, travelTimesRev, 
+						activeTravelTimesRev);
+				return false;
+			}
+			
+			// Snapshot is good so read it in
+			dbConfig.readSnapshotData(configRev, new ObjectInputStream(in));
+			
+			logger.info("Read config data for configRev={} travelTimesRev={} "
+					+ "from snapshot {} of {} bytes. Took {} msec.", 
+					configRev, travelTimesRev, file, file.length(), 
+					timer.elapsedMsec());
+			return true;
+		} catch (Exception e) {
+			logger.error("Could not read snapshot {} so reading config data "
+					+ "from db.", file, e);
+			return false;
+		} finally {
+			if (randomAccessFile != null) {
+				try {
+					randomAccessFile.close();
+				} catch (IOException e) {
+					// Nothing else to do
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Writes a snapshot of the config data for the currently active travel
+	 * times rev. The data must have been preloaded so that all of it has been
+	 * read in. Problems are logged but not thrown since the snapshot is just
+	 * an optimization.
+	 * 
+	 * @param dbConfig
+	 */
+	public static void write(DbConfig dbConfig) {
+		write(dbConfig, getActiveTravelTimesRev(dbConfig.getAgencyId()));
+	}
+	
+	/**
+	 * Writes a snapshot of the config data. The data must have been preloaded
+	 * so that all of it has been read in. Problems are logged but not thrown
+	 * since the snapshot is just an optimization.
+	 * 
+	 * @param dbConfig
+	 * @param travelTimesRev
+	 *            The travel times rev referenced by the trips
+	 */
+	public static void write(DbConfig dbConfig, int travelTimesRev) {
+		write(dbConfig, travelTimesRev, 
+				getFile(dbConfig.getAgencyId(), dbConfig.getConfigRev()));
+	}
+	
+	/**
+	 * Writes a snapshot of the config data to the specified file. Package
+	 * visible so that it can be tested without a configured snapshot
+	 * directory.
+	 * 
+	 * @param dbConfig
+	 * @param travelTimesRev
+	 *            The travel times rev referenced by the trips
+	 * @param file
+	 *            The snapshot file
+	 */
+	static void write(DbConfig dbConfig, int travelTimesRev, File file) {
+		IntervalTimer timer = new IntervalTimer();
+		File tempFile = new File(file.getPath() + ".tmp");
+		ObjectOutputStream out = null;
+		try {
+			file.getParentFile().mkdirs();
+			DataOutputStream dataOut = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tempFile)));
+			dataOut.writeInt(MAGIC);
+			dataOut.writeInt(FORMAT_VERSION);
+			dataOut.writeUTF(dbConfig.getAgencyId());
+			dataOut.writeInt(dbConfig.getConfigRev());
+			dataOut.writeInt(travelTimesRev);
+			
+			out = new ObjectOutputStream(dataOut);
+			dbConfig.writeSnapshotData(out);
+			out.close();
+			out = null;
+			
+			// Rename so that a partially written file is never read
+			Files.move(tempFile.toPath(), file.toPath(), 
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			
+			logger.info("Wrote snapshot {} of config data for configRev={} "
+					+ "travelTimesRev={}. It is {} bytes. Took {} msec.", 
+					file, dbConfig.getConfigRev(), travelTimesRev, 
+					file.length(), timer.elapsedMsec());
+		} catch (Exception e) {
+			logger.error("Could not write snapshot {} of config data.", 
+					file, e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// Nothing else to do
+				}
+			}
+			tempFile.delete();
+		}
+	}
+	
+	/**
+	 * Reads all of the config data for the configRev from the db and writes
+	 * a snapshot of it. For when processing GTFS data so that the core can
+	 * start up quickly with the new data. Problems are logged but not thrown.
+	 * 
+	 * @param agencyId
+	 * @param configRev
+	 * @param travelTimesRev
+	 *            The travel times rev referenced by the trips
+	 */
+	public static void writeFromDb(String agencyId, int configRev,
+			int travelTimesRev) {
+		try {
+			DbConfig dbConfig = new DbConfig(agencyId);
+			dbConfig.readPreloaded(configRev);
+			write(dbConfig, travelTimesRev);
+		} catch (Exception e) {
+			logger.error("Could not read config data for configRev={} in "
+					+ "order to write snapshot.", configRev, e);
+		}
+	}
+}
@@ -2492,6 +2492,16 @@ public class GtfsData {
 				zipFileLastModifiedTime, notes);
 	}
 	
+	/**
+	 * Returns the config and travel times revisions that the data is being
+	 * written to.
+	 * 
+	 * @return the revisions
+	 */
+	public ActiveRevisions getRevs() {
+		return revs;
+	}
+	
 	/*************************** Main Public Methods **********************/
 	
 	/**
@@ -0,0 +1,66 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.ipc.data;
+
+import java.io.Serializable;
+
+/**
+ * The result of pushing a batch of AVL reports to the server via RMI.
+ * Indicates how many of the reports were accepted for processing, how many
+ * were rejected because they had invalid data, and how many were stale
+ * because they were not newer than the last report processed for the
+ * vehicle.
+ *
+ */
+public class IpcAvlBatchResult implements Serializable {
+
+	private final int accepted;
+	private final int rejected;
+	private final int stale;
+	
+	private static final long serialVersionUID = -3468214739911284732L;
+
+	/********************** Member Functions **************************/
+
+	public IpcAvlBatchResult(int accepted, int rejected, int stale) {
+		this.accepted = accepted;
+		this.rejected = rejected;
+		this.stale = stale;
+	}
+
+	@Override
+	public String toString() {
+		return "IpcAvlBatchResult [" 
+				+ "accepted=" + accepted 
+				+ ", rejected=" + rejected
+				+ ", stale=" + stale 
+				+ "]";
+	}
+
+	public int getAccepted() {
+		return accepted;
+	}
+
+	public int getRejected() {
+		return rejected;
+	}
+
+	public int getStale() {
+		return stale;
+	}
+
+}
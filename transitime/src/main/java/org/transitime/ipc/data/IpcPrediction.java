@@ -120,6 +120,37 @@ public class IpcPrediction implements Serializable {
 			boolean atEndOfTrip, boolean predictionAffectedByWaitStop,
 			boolean isDelayed, boolean lateAndSubsequentTripSoMarkAsUncertain,
 			ArrivalOrDeparture arrivalOrDeparture) {
+		this(avlReport, stopId, gtfsStopSeq, trip, getTripStartEpochTime(trip),
+				predictionTime, actualPredictionTime, atEndOfTrip,
+				predictionAffectedByWaitStop, isDelayed,
+				lateAndSubsequentTripSoMarkAsUncertain, arrivalOrDeparture);
+	}
+	
+	/**
+	 * Constructs a Prediction object for when the start time of the trip is
+	 * already known. For use on server side. Unlike the other constructor
+	 * this one doesn't need the Core, so it can also be used for testing.
+	 * 
+	 * @param avlReport
+	 * @param stopId
+	 * @param gtfsStopSeq
+	 * @param trip
+	 * @param tripStartEpochTime
+	 *            Epoch time of the start of the trip
+	 * @param predictionTime
+	 * @param actualPredictionTime
+	 * @param atEndOfTrip
+	 * @param predictionAffectedByWaitStop
+	 * @param isDelayed
+	 * @param lateAndSubsequentTripSoMarkAsUncertain
+	 * @param arrivalOrDeparture
+	 */
+	public IpcPrediction(AvlReport avlReport, String stopId, int gtfsStopSeq,
+			Trip trip, long tripStartEpochTime, long predictionTime, 
+			long actualPredictionTime, boolean atEndOfTrip, 
+			boolean predictionAffectedByWaitStop, boolean isDelayed, 
+			boolean lateAndSubsequentTripSoMarkAsUncertain,
+			ArrivalOrDeparture arrivalOrDeparture) {
 		this.vehicleId = avlReport.getVehicleId();
 		this.routeId = trip.getRouteId();
 		this.stopId = stopId;
@@ -129,7 +160,8 @@ public class IpcPrediction implements Serializable {
 		// so that when getting all predictions code for telling when
 		// tripId changes will still work when debugging.
 		this.tripId = trip != null ? trip.getId() : "";
-		this.tripPatternId = trip != null ? trip.getTripPattern().getId() : "";
+		this.tripPatternId = trip != null && trip.getTripPattern() != null ? 
+				trip.getTripPattern().getId() : "";
 		this.blockId = trip != null ? trip.getBlockId() : null;
 		this.predictionTime = predictionTime;
 		this.actualPredictionTime = actualPredictionTime;
@@ -137,12 +169,7 @@ public class IpcPrediction implements Serializable {
 		this.schedBasedPred = avlReport.isForSchedBasedPreds();
 		this.avlTime = avlReport.getTime();
 		this.creationTime = avlReport.getTimeProcessed();
-
-		Date currentTime = Core.getInstance().getSystemDate();
-		this.tripStartEpochTime =
-				Core.getInstance().getTime()
-						.getEpochTime(trip.getStartTime(), currentTime);
-		
+		this.tripStartEpochTime = tripStartEpochTime;
 		this.affectedByWaitStop = predictionAffectedByWaitStop;
 		this.driverId = avlReport.getDriverId();
 		this.passengerCount = (short) avlReport.getPassengerCount();
@@ -153,6 +180,59 @@ public class IpcPrediction implements Serializable {
 		this.isArrival = arrivalOrDeparture == ArrivalOrDeparture.ARRIVAL;
 	}
 
+	/**
+	 * Returns the epoch time of the start of the trip, using the current
+	 * time of the Core.
+	 * 
+	 * @param trip
+	 * @return epoch time of start of trip
+	 */
+	private static long getTripStartEpochTime(Trip trip) {
+		Date currentTime = Core.getInstance().getSystemDate();
+		return Core.getInstance().getTime()
+				.getEpochTime(trip.getStartTime(), currentTime);
+	}
+
+	/**
+	 * Constructor for a prediction for the same stop as an existing one but
+	 * with the prediction times shifted. For when the predictions for a
+	 * vehicle are updated incrementally for a new AVL report instead of
+	 * being completely regenerated.
+	 * 
+	 * @param toShift
+	 *            The existing prediction
+	 * @param avlReport
+	 *            The new AVL report
+	 * @param deltaMsec
+	 *            How much the prediction times are to be shifted
+	 */
+	public IpcPrediction(IpcPrediction toShift, AvlReport avlReport,
+			long deltaMsec) {
+		this.vehicleId = toShift.vehicleId;
+		this.routeId = toShift.routeId;
+		this.stopId = toShift.stopId;
+		this.gtfsStopSeq = toShift.gtfsStopSeq;
+		this.trip = toShift.trip;
+		this.tripId = toShift.tripId;
+		this.tripPatternId = toShift.tripPatternId;
+		this.blockId = toShift.blockId;
+		this.predictionTime = toShift.predictionTime + deltaMsec;
+		this.actualPredictionTime = toShift.actualPredictionTime + deltaMsec;
+		this.atEndOfTrip = toShift.atEndOfTrip;
+		this.schedBasedPred = toShift.schedBasedPred;
+		this.avlTime = avlReport.getTime();
+		this.creationTime = avlReport.getTimeProcessed();
+		this.tripStartEpochTime = toShift.tripStartEpochTime;
+		this.affectedByWaitStop = toShift.affectedByWaitStop;
+		this.driverId = avlReport.getDriverId();
+		this.passengerCount = (short) avlReport.getPassengerCount();
+		this.passengerFullness = avlReport.getPassengerFullness();
+		this.isDelayed = toShift.isDelayed;
+		this.lateAndSubsequentTripSoMarkAsUncertain = 
+				toShift.lateAndSubsequentTripSoMarkAsUncertain;
+		this.isArrival = toShift.isArrival;
+	}
+
 	/**
 	 * Constructor used for when deserializing a proxy object. Declared private
 	 * because only used internally by the proxy class.
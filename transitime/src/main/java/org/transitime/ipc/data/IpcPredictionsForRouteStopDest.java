@@ -22,7 +22,8 @@ import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 import org.transitime.applications.Core;
@@ -31,10 +32,14 @@ import org.transitime.db.structs.Stop;
 import org.transitime.db.structs.Trip;
 import org.transitime.db.structs.TripPattern;
 import org.transitime.utils.Geo;
-import org.transitime.utils.TrimmableArrayList;
 
 /**
  * Contains list of predictions for a route/stop/destination. 
+ * <p>
+ * Immutable so that the server can publish the predictions to readers
+ * without any locking or copying. The predictions are ordered by prediction
+ * time. To change the predictions withPredictionsForVehicle() or
+ * withoutPrediction() are used to create a new object.
  *
  * @author SkiBu Smith
  *
@@ -58,10 +63,19 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 	// For when providing predictions based on location
 	private final double distanceToStop;
 	
-	// The predictions associated with the route/stop/dest
+	// The predictions associated with the route/stop/dest, ordered by
+	// prediction time. Unmodifiable on the server side.
 	private final List<IpcPrediction> predictionsForRouteStopDest;
 
-	private final static int INITIAL_CAPACITY = 5;
+	// For ordering predictions by prediction time
+	private static final Comparator<IpcPrediction> PREDICTION_TIME_COMPARATOR =
+			new Comparator<IpcPrediction>() {
+				@Override
+				public int compare(IpcPrediction p1, IpcPrediction p2) {
+					return Long.compare(p1.getPredictionTime(),
+							p2.getPredictionTime());
+				}
+			};
 	
 	private static final long serialVersionUID = 5875028328864504842L;
 
@@ -98,8 +112,7 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 		this.directionId = 
 				trip != null ? trip.getDirectionId() : null;
 		this.distanceToStop = distanceToStop;
-		this.predictionsForRouteStopDest = 
-				new TrimmableArrayList<IpcPrediction>(INITIAL_CAPACITY);
+		this.predictionsForRouteStopDest = Collections.emptyList();
 	}
 	
 	/**
@@ -130,25 +143,23 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 		this.headsign = tripPattern.getHeadsign();
 		this.directionId = tripPattern.getDirectionId();
 		this.distanceToStop = distanceToStop;
-		this.predictionsForRouteStopDest = new TrimmableArrayList<IpcPrediction>(0);
-
+		this.predictionsForRouteStopDest = Collections.emptyList();
 	}
 	
 	/**
-	 * Constructor for cloning a PredictionsForRouteStop object.
+	 * Constructor for creating a PredictionsForRouteStop object with the same
+	 * route/stop/destination info as an existing one but with different
+	 * predictions.
 	 * 
 	 * @param toClone
-	 * @param maxPredictionsPerStop
-	 * @param maxSystemTimeForPrediction
-	 *            Max point in future want predictions for. This way can limit
-	 *            predictions when requesting a large number of them.
+	 * @param predictions
+	 *            The unmodifiable predictions, ordered by prediction time
 	 * @param distanceFromStop
 	 *            For when getting predictions by location
 	 */
 	private IpcPredictionsForRouteStopDest(
 			IpcPredictionsForRouteStopDest toClone,
-			int maxPredictionsPerStop, long maxSystemTimeForPrediction, 
-			double distanceToStop) {
+			List<IpcPrediction> predictions, double distanceToStop) {
 		this.routeId = toClone.routeId;
 		this.routeShortName = toClone.routeShortName;
 		this.routeName = toClone.routeName;
@@ -159,26 +170,13 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 		this.headsign = toClone.headsign;
 		this.directionId = toClone.directionId;
 		this.distanceToStop = distanceToStop;
-		
-		// Copy all the prediction info. Do while synchronized since another
-		// thread could otherwise be changing the data.
-		synchronized (toClone) {	
-			int size = Math.min(toClone.predictionsForRouteStopDest.size(),
-					maxPredictionsPerStop);
-			this.predictionsForRouteStopDest = new ArrayList<IpcPrediction>(size);			
-			for (int i=0; i<size; ++i) {
-				IpcPrediction prediction = toClone.predictionsForRouteStopDest.get(i);
-				// If prediction exceeds max time then done
-				if (prediction.getPredictionTime() > maxSystemTimeForPrediction)
-					break;
-				this.predictionsForRouteStopDest.add(i, prediction);
-			}
-		}
+		this.predictionsForRouteStopDest = predictions;
 	}
 	
 	/**
-	 * Constructor used for when deserializing a proxy object. Declared private
-	 * because only used internally by the proxy class.
+	 * Constructor used for when deserializing a proxy object. Package-private
+	 * since otherwise only used internally by the proxy class. Since it
+	 * doesn't need the Core it can also be used for testing.
 	 * 
 	 * @param routeId
 	 * @param routeShortName
@@ -192,7 +190,7 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 	 * @param distanceToStop
 	 * @param predictions
 	 */
-	private IpcPredictionsForRouteStopDest(String routeId,
+	IpcPredictionsForRouteStopDest(String routeId,
 			String routeShortName, String routeName, int routeOrder,
 			String stopId, String stopName, Integer stopCode,
 			String destination, String directionId, double distanceToStop,
@@ -242,7 +240,7 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 		this.headsign = null;
 		this.directionId = directionId;
 		this.distanceToStop = distanceToStop;
-		this.predictionsForRouteStopDest = new TrimmableArrayList<IpcPrediction>(0);
+		this.predictionsForRouteStopDest = Collections.emptyList();
 	}
 	
 	/**
@@ -279,7 +277,9 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 			this.headsign = p.headsign;
 			this.directionId = p.directionId;
 			this.distanceToStop = p.distanceToStop;
-			this.predictionsForRouteStop = p.predictionsForRouteStopDest;
+			// Copy since the predictions can be an unserializable sublist
+			this.predictionsForRouteStop = 
+					new ArrayList<IpcPrediction>(p.predictionsForRouteStopDest);
 		}
 
 		/*
@@ -372,9 +372,10 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 	}
 
 	/**
-	 * Gets a copy of this object. This is done with the object being
-	 * copied synchronized so that the predictions remain coherent. Limits
-	 * number of predictions to maxPredictionsPerStop.
+	 * Gets the predictions limited by maxPredictionsPerStop. Since this
+	 * object is immutable the predictions are not copied. Instead this object
+	 * is returned if no predictions need to be left out, or else a new object
+	 * that uses a sublist of the predictions.
 	 * 
 	 * @param maxPredictionsPerStop
 	 * @param distanceFromStop
@@ -383,22 +384,18 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 	 */
 	public IpcPredictionsForRouteStopDest getClone(int maxPredictionsPerStop,
 			double distanceToStop) {
-		// Get copy of predictions. Don't limit by how far predictions
-		// are into the future. Therefore maxPredictionTime set to
-		// Integer.MAX_VALUE and currentTime set to 0L because it 
-		// doesn't matter.
-		IpcPredictionsForRouteStopDest clone = new IpcPredictionsForRouteStopDest(this,
-				maxPredictionsPerStop, Long.MAX_VALUE, distanceToStop);
-		return clone;
+		// Don't limit by how far predictions are into the future
+		return getClone(maxPredictionsPerStop, Long.MIN_VALUE, Long.MAX_VALUE,
+				distanceToStop);
 	}
 	
 	/**
-	 * Gets a copy of this object. This is done with the object being copied
-	 * synchronized so that the predictions remain coherent. Limits number of
-	 * predictions to maxPredictionsPerStop.
+	 * Gets the predictions limited by maxPredictionsPerStop and
+	 * maxSystemTimeForPrediction. Since this object is immutable the
+	 * predictions are not copied.
 	 * 
 	 * @param maxPredictionsPerStop
-	 *            Won't copy more then this number of predictions
+	 *            Won't include more then this number of predictions
 	 * @param maxSystemTimeForPrediction
 	 *            Max point in future want predictions for. This way can limit
 	 *            predictions when requesting a large number of them.
@@ -408,122 +405,147 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 	 */
 	public IpcPredictionsForRouteStopDest getClone(int maxPredictionsPerStop,
 			long maxSystemTimeForPrediction, double distanceToStop) {
-		IpcPredictionsForRouteStopDest clone = new IpcPredictionsForRouteStopDest(
-				this, maxPredictionsPerStop, maxSystemTimeForPrediction, distanceToStop);
-		return clone;
+		return getClone(maxPredictionsPerStop, Long.MIN_VALUE,
+				maxSystemTimeForPrediction, distanceToStop);
 	}
 	
 	/**
-	 * Removes a prediction.
-	 * <p>
-	 * Not sure if really need to synchronize removal of predictions
-	 * from list since it is only a single operation. But synching
-	 * it is certainly the safe thing to do.
+	 * Gets the predictions limited by maxPredictionsPerStop and
+	 * maxSystemTimeForPrediction, leaving out the ones that have expired.
+	 * Since this object is immutable the predictions are not copied. Instead
+	 * this object is returned if no predictions need to be left out, or else
+	 * a new object that uses a sublist of the predictions. Expired predictions
+	 * are simply skipped, not removed, so that readers never modify the
+	 * predictions.
+	 * 
+	 * @param maxPredictionsPerStop
+	 *            Won't include more then this number of predictions
+	 * @param currentTime
+	 *            Predictions before this time have expired and are left out.
+	 *            Should use Core.getSystemTime() so that works even when in
+	 *            playback mode.
+	 * @param maxSystemTimeForPrediction
+	 *            Max point in future want predictions for. This way can limit
+	 *            predictions when requesting a large number of them.
+	 * @param distanceToStop
+	 *            For when getting predictions by location
+	 * @return
+	 */
+	public IpcPredictionsForRouteStopDest getClone(int maxPredictionsPerStop,
+			long currentTime, long maxSystemTimeForPrediction,
+			double distanceToStop) {
+		List<IpcPrediction> preds = predictionsForRouteStopDest;
+		
+		// Since ordered by time the expired predictions are at the beginning
+		int from = 0;
+		while (from < preds.size()
+				&& preds.get(from).getPredictionTime() < currentTime)
+			++from;
+		
+		int maxTo = (int) Math.min((long) from + maxPredictionsPerStop, 
+				preds.size());
+		int to = from;
+		while (to < maxTo 
+				&& preds.get(to).getPredictionTime() <= maxSystemTimeForPrediction)
+			++to;
+		
+		// If not leaving out any predictions then can simply use this object
+		if (from == 0 && to == preds.size()
+				&& Double.compare(distanceToStop, this.distanceToStop) == 0)
+			return this;
+		
+		return new IpcPredictionsForRouteStopDest(this, 
+				preds.subList(from, to), distanceToStop);
+	}
+	
+	/**
+	 * Returns a new object with the prediction removed. This object is not
+	 * modified so that other threads can safely keep reading it.
 	 * 
 	 * @param oldPrediction
+	 * @return the new object, or this object if it doesn't contain the
+	 *         prediction
 	 */
-	public synchronized void removePrediction(IpcPrediction oldPrediction) {
-		predictionsForRouteStopDest.remove(oldPrediction);
+	public IpcPredictionsForRouteStopDest withoutPrediction(
+			IpcPrediction oldPrediction) {
+		int index = predictionsForRouteStopDest.indexOf(oldPrediction);
+		if (index < 0)
+			return this;
+		
+		List<IpcPrediction> newPreds = 
+				new ArrayList<IpcPrediction>(predictionsForRouteStopDest);
+		newPreds.remove(index);
+		return new IpcPredictionsForRouteStopDest(this, 
+				Collections.unmodifiableList(newPreds), distanceToStop);
 	}
-
+	
 	/**
-	 * Removes predictions that are older than the current time. Useful for when
-	 * getting predictions. Synchronized because don't want predictions list to
-	 * be changing by another thread when removing predictions.
+	 * Returns a new object with the expired predictions removed. This object
+	 * is not modified so that other threads can safely keep reading it.
 	 * 
 	 * @param currentTime
-	 *            Should use PredictionDataCache.systemTime.get() so that works
-	 *            even when in playback mode.
+	 *            Predictions before this time have expired
+	 * @return the new object, or this object if there are no expired
+	 *         predictions
 	 */
-	public synchronized void removeExpiredPredictions(long currentTime) {
-		Iterator<IpcPrediction> iterator = predictionsForRouteStopDest.iterator();
-		while (iterator.hasNext()) {
-			IpcPrediction currentPrediction = iterator.next();
-
-			// Remove predictions that are expired. It makes sense to do this 
-			// here when adding predictions since only need to take out 
-			// predictions if more are being added.
-			if (currentPrediction.getPredictionTime() < currentTime) {
-				iterator.remove();
-			} else {
-				// The subsequent predictions are later so if this one is
-				// into the future then the remaining ones are too. 
-				// Therefore done.
-				return;
-			}
-		}
+	public IpcPredictionsForRouteStopDest withoutExpiredPredictions(
+			long currentTime) {
+		// Since ordered by time the expired predictions are at the beginning
+		int from = 0;
+		while (from < predictionsForRouteStopDest.size()
+				&& predictionsForRouteStopDest.get(from).getPredictionTime() 
+					< currentTime)
+			++from;
+		if (from == 0)
+			return this;
 		
+		List<IpcPrediction> newPreds = new ArrayList<IpcPrediction>(
+				predictionsForRouteStopDest.subList(from,
+						predictionsForRouteStopDest.size()));
+		return new IpcPredictionsForRouteStopDest(this, 
+				Collections.unmodifiableList(newPreds), distanceToStop);
 	}
 	
 	/**
-	 * Updates the predictions for this object with the new predictions for a
-	 * vehicle.
-	 * <p>
-	 * Synchronized because there are multiple steps in removing old predictions
-	 * and creating new ones.
+	 * Returns a new object where the predictions for the vehicle are replaced
+	 * with the new predictions and where expired predictions are removed.
+	 * This object is not modified so that other threads can safely keep
+	 * reading it while the predictions are being updated.
 	 * 
 	 * @param newPredsForRouteStopDest
 	 *            The new predictions for the vehicle
 	 * @param currentTime
 	 *            So can get rid of predictions that have expired.
+	 * @return the new object
 	 */
-	public synchronized void updatePredictionsForVehicle(
-			List<IpcPrediction> newPredsForRouteStopDest,
-			long currentTime) {
+	public IpcPredictionsForRouteStopDest withPredictionsForVehicle(
+			List<IpcPrediction> newPredsForRouteStopDest, long currentTime) {
 		// If no predictions then nothing to do so return.
 		if (newPredsForRouteStopDest == null
 				|| newPredsForRouteStopDest.isEmpty())
-			return;
+			return this;
 	
 		// Determine which vehicle we are updating predictions for
 		String vehicleId = newPredsForRouteStopDest.get(0).getVehicleId();
 		
-		// Go through current predictions and get rid of existing ones for
-		// this vehicle or ones that have expired
-		Iterator<IpcPrediction> iterator = predictionsForRouteStopDest.iterator();
-		while (iterator.hasNext()) {
-			IpcPrediction currentPrediction = iterator.next();
-
-			// Remove existing predictions for this vehicle
-			if (currentPrediction.getVehicleId().equals(vehicleId)) {
-				iterator.remove();
-				continue;
-			}
-			
-			// Remove predictions that are expired. It makes sense to do this 
-			// here when adding predictions since only need to take out 
-			// predictions if more are being added.
-			if (currentPrediction.getPredictionTime() < currentTime) {
-				iterator.remove();
-				continue;
-			}
+		// Keep the current predictions except for the existing ones for
+		// this vehicle and the ones that have expired
+		List<IpcPrediction> newPreds = new ArrayList<IpcPrediction>(
+				predictionsForRouteStopDest.size() 
+				+ newPredsForRouteStopDest.size());
+		for (IpcPrediction currentPrediction : predictionsForRouteStopDest) {
+			if (!currentPrediction.getVehicleId().equals(vehicleId)
+					&& currentPrediction.getPredictionTime() >= currentTime)
+				newPreds.add(currentPrediction);
 		}
 
-		// Go through list and insert the new predictions into the 
-		// appropriate places
-		for (IpcPrediction newPredForRouteStop : newPredsForRouteStopDest) {
-			boolean insertedPrediction = false;
-			for (int i=0; i<predictionsForRouteStopDest.size(); ++i) {
-				// If the new prediction is before the previous prediction
-				// in currentPredsForRouteStop then insert it.
-				if (newPredForRouteStop.getPredictionTime() < 
-						predictionsForRouteStopDest.get(i).getPredictionTime()) {			
-					// Actually add the prediction to the list
-					predictionsForRouteStopDest.add(i, newPredForRouteStop);
-					insertedPrediction = true;
-					
-					// Done with the inner for loop so break out of loop
-					// and continue with next prediction.
-					break;
-				}
-			}
-			
-			// If didn't find that the prediction was before one of the 
-			// existing ones then insert it onto the end
-			if (!insertedPrediction) {
-				predictionsForRouteStopDest.add(newPredForRouteStop);
-			}
-		}
+		// Add the new predictions and order by time. Since the sort is stable
+		// a new prediction comes after existing ones with the same time.
+		newPreds.addAll(newPredsForRouteStopDest);
+		Collections.sort(newPreds, PREDICTION_TIME_COMPARATOR);
+		
+		return new IpcPredictionsForRouteStopDest(this, 
+				Collections.unmodifiableList(newPreds), distanceToStop);
 	}
 	
 	@Override
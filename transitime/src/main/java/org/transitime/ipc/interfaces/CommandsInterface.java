@@ -21,6 +21,7 @@ import java.rmi.RemoteException;
 import java.util.Collection;
 
 import org.transitime.ipc.data.IpcAvl;
+import org.transitime.ipc.data.IpcAvlBatchResult;
 
 /**
  * Defines the RMI interface for sending commands or data to the server (as
@@ -48,4 +49,19 @@ public interface CommandsInterface extends Remote {
 	 * @throws RemoteException
 	 */
 	public String pushAvl(Collection<IpcAvl> avlData) throws RemoteException;
+	
+	/**
+	 * Sends a batch of AVL data to server in a single call. Unlike
+	 * pushAvl(Collection) the reports are checked up front so that the
+	 * caller can be told how many were accepted, rejected due to invalid
+	 * data, or stale because they were not newer than the last report for
+	 * the vehicle.
+	 * 
+	 * @param avlData
+	 *            collection of data
+	 * @return counts of accepted, rejected, and stale reports
+	 * @throws RemoteException
+	 */
+	public IpcAvlBatchResult pushAvlBatch(Collection<IpcAvl> avlData)
+			throws RemoteException;
 }
@@ -0,0 +1,209 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.ipc.jms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.JMSException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.utils.threading.NamedThreadFactory;
+
+/**
+ * For sending many small objects to a Topic or a Queue as batches instead of
+ * as one message per object. Objects are collected and then encoded into a
+ * single BytesMessage once either the maximum batch size is reached or the
+ * maximum delay has elapsed since the first object of the batch was added.
+ * This greatly reduces the number of broker round trips and the amount of
+ * data sent when there are lots of objects, such as AVL reports for a large
+ * system.
+ * <p>
+ * All access to the underlying RestartableMessageProducer is synchronized
+ * on this object. This way the timer thread that flushes old batches never
+ * uses the JMS session at the same time as the thread adding objects.
+ * <p>
+ * close() should be called when the producer is no longer needed so that
+ * the last partial batch is sent and the flush thread is stopped.
+ * 
+ * @param <T>
+ *            Type of object being sent
+ */
+public class BatchingMessageProducer<T> {
+
+	private final RestartableMessageProducer messageProducer;
+	private final Encoder<T> encoder;
+	private final int maxBatchSize;
+	private final long maxBatchDelayMsec;
+	
+	// The objects waiting to be sent
+	private List<T> batch;
+	
+	// When the first object of the current batch was added
+	private long batchStartTime;
+	
+	// For logging
+	private long batchesSent = 0;
+	private long objectsSent = 0;
+	private long bytesSent = 0;
+	
+	// For flushing batches that are older than maxBatchDelayMsec even if no
+	// more objects are added
+	private final ScheduledExecutorService flushTimer;
+	private final ScheduledFuture<?> flushTask;
+	
+	// Set by close() so that no more objects are accepted
+	private boolean closed = false;
+	
+	private static final Logger logger = 
+			LoggerFactory.getLogger(BatchingMessageProducer.class);
+
+	/**
+	 * For converting a batch of objects into a compact binary message
+	 *
+	 * @param <T>
+	 */
+	public interface Encoder<T> {
+		public byte[] encode(List<T> batch);
+	}
+	
+	/********************** Member Functions **************************/
+
+	/**
+	 * Constructor. Usually created via
+	 * JMSWrapper.createBatchingTopicProducer().
+	 * 
+	 * @param messageProducer
+	 *            For actually sending the batches
+	 * @param encoder
+	 *            For encoding a batch into bytes
+	 * @param maxBatchSize
+	 *            Batch is sent when it contains this many objects
+	 * @param maxBatchDelayMsec
+	 *            Batch is sent when the first object was added this long ago
+	 */
+	public BatchingMessageProducer(RestartableMessageProducer messageProducer,
+			Encoder<T> encoder, int maxBatchSize, long maxBatchDelayMsec) {
+		this.messageProducer = messageProducer;
+		this.encoder = encoder;
+		this.maxBatchSize = maxBatchSize;
+		this.maxBatchDelayMsec = maxBatchDelayMsec;
+		this.batch = new ArrayList<T>(maxBatchSize);
+		
+		this.flushTimer = Executors.newSingleThreadScheduledExecutor(
+				new NamedThreadFactory("jmsBatchFlush"));
+		this.flushTask = flushTimer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flushIfDue();
+				} catch (Exception e) {
+					logger.error("Exception when flushing batch of JMS "
+							+ "messages. {}", e.getMessage(), e);
+				}
+			}
+		}, maxBatchDelayMsec, maxBatchDelayMsec, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Adds the object to the current batch. If the batch is then full, or
+	 * the batch is older than the maximum delay, the batch is sent.
+	 * 
+	 * @param object
+	 * @throws JMSException
+	 * @throws IllegalStateException
+	 *             if close() has already been called
+	 */
+	public synchronized void send(T object) throws JMSException {
+		if (closed)
+			throw new IllegalStateException(
+					"Cannot send to a closed BatchingMessageProducer");
+		
+		if (batch.isEmpty())
+			batchStartTime = System.currentTimeMillis();
+		batch.add(object);
+		
+		if (batch.size() >= maxBatchSize 
+				|| System.currentTimeMillis() - batchStartTime 
+					>= maxBatchDelayMsec)
+			flush();
+	}
+	
+	/**
+	 * Sends the current batch if it is older than the maximum delay.
+	 * 
+	 * @throws JMSException
+	 */
+	public synchronized void flushIfDue() throws JMSException {
+		if (!batch.isEmpty()
+				&& System.currentTimeMillis() - batchStartTime 
+					>= maxBatchDelayMsec)
+			flush();
+	}
+	
+	/**
+	 * Sends the current batch, if there is one, as a single BytesMessage.
+	 * 
+	 * @throws JMSException
+	 */
+	public synchronized void flush() throws JMSException {
+		if (batch.isEmpty())
+			return;
+		
+		// Clear out the batch first so that if sending fails the same 
+		// objects are not sent again and again
+		List<T> batchToSend = batch;
+		batch = new ArrayList<T>(maxBatchSize);
+		
+		byte[] bytes = encoder.encode(batchToSend);
+		messageProducer.sendBytesMessage(bytes);
+		
+		++batchesSent;
+		objectsSent += batchToSend.size();
+		bytesSent += bytes.length;
+		logger.debug("Sent batch of {} objects in {} bytes. Totals: "
+				+ "batches={} objects={} bytes={}", 
+				batchToSend.size(), bytes.length, batchesSent, objectsSent,
+				bytesSent);
+	}
+	
+	/**
+	 * Sends any remaining partial batch and then stops the flush thread.
+	 * Calling close() more than once has no further effect.
+	 * 
+	 * @throws JMSException
+	 */
+	public void close() throws JMSException {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		
+		// Stop the timer first so it can't race with the final flush
+		flushTask.cancel(false);
+		flushTimer.shutdown();
+		
+		flush();
+	}
+	
+}
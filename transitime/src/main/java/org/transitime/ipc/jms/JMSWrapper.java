@@ -18,6 +18,7 @@ package org.transitime.ipc.jms;
 
 import java.io.Serializable;
 
+import javax.jms.BytesMessage;
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.Destination;
@@ -352,6 +353,32 @@ public class JMSWrapper {
 		return createProducer(Type.TOPIC, topicName);
 	}
 	
+	/**
+	 * Creates a Topic producer that sends objects in batches, using the
+	 * encoder to convert each batch into a single compact BytesMessage. If
+	 * topic doesn't already exist it will be dynamically created.
+	 * 
+	 * @param topicName
+	 * @param encoder
+	 *            For converting a batch of objects into bytes
+	 * @param maxBatchSize
+	 *            Batch is sent when it contains this many objects
+	 * @param maxBatchDelayMsec
+	 *            Batch is sent when first object was added this long ago
+	 * @return the producer, or null if it could not be created
+	 */
+	public <T> BatchingMessageProducer<T> createBatchingTopicProducer(
+			String topicName, BatchingMessageProducer.Encoder<T> encoder,
+			int maxBatchSize, long maxBatchDelayMsec) {
+		RestartableMessageProducer messageProducer = 
+				createProducer(Type.TOPIC, topicName);
+		if (messageProducer == null)
+			return null;
+		
+		return new BatchingMessageProducer<T>(messageProducer, encoder,
+				maxBatchSize, maxBatchDelayMsec);
+	}
+	
 	/**
 	 * This is how a Queue producer is typically created.
 	 * 
@@ -397,6 +424,35 @@ public class JMSWrapper {
 		return objectMessage.getObject();
 	}
 	
+	/**
+	 * For reading a message of any type from a Topic or a Queue. Useful 
+	 * when different types of messages can be sent to the same destination.
+	 * Will block until a message can be read.
+	 * 
+	 * @param consumer
+	 * @return the message
+	 * @throws JMSException
+	 */
+	public static Message receiveMessage(MessageConsumer consumer) 
+			throws JMSException {
+		return consumer.receive();
+	}
+	
+	/**
+	 * Returns the contents of a BytesMessage, such as one sent by a
+	 * BatchingMessageProducer.
+	 * 
+	 * @param bytesMessage
+	 * @return the bytes of the message
+	 * @throws JMSException
+	 */
+	public static byte[] getBytes(BytesMessage bytesMessage) 
+			throws JMSException {
+		byte[] bytes = new byte[(int) bytesMessage.getBodyLength()];
+		bytesMessage.readBytes(bytes);
+		return bytes;
+	}
+	
 	/**
 	 * For reading a string message from a Topic or a Queue.
 	 * 
@@ -18,6 +18,7 @@ package org.transitime.ipc.jms;
 
 import java.io.Serializable;
 
+import javax.jms.BytesMessage;
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.MessageProducer;
@@ -165,4 +166,49 @@ public class RestartableMessageProducer {
 
 	}
 
+	/**
+	 * For sending a binary message to a Topic or a Queue. Used for sending
+	 * batches of data in a compact encoding.
+	 * 
+	 * @param bytes
+	 * @throws JMSException
+	 */
+	public void sendBytesMessage(byte[] bytes) 
+			throws JMSException {
+		BytesMessage bytesMessage;
+		try {
+			bytesMessage = jmsWrapper.getSession().createBytesMessage();
+		} catch (JMSException e) {
+			// Sessions can sometimes get closed, like when running the 
+			// service on a laptop and then closing it. For this situation
+			// try opening session again and then try to create the bytes
+			// message again.
+			logger.error("Trying to open session again because got " +
+					"JMSException " + e.getMessage());
+			try {
+				jmsWrapper.initiateConnection();
+			} catch (NamingException e1) {
+				logger.error("Got NamingException exeption when trying to " +
+						"re-initiate the connection", e);
+				// Throw the initial JMSException
+				throw e; 
+			}
+			// Now try creating the message again
+			bytesMessage = jmsWrapper.getSession().createBytesMessage();
+		}
+		bytesMessage.writeBytes(bytes);
+		
+		try {
+			messageProducer.send(bytesMessage);
+		} catch (Exception e) {
+			// Producers are sometimes closed so try opening it up again
+			// and then send the message again.
+			logger.error("Trying to send message again because got " +
+					"JMSException " + e.getMessage());
+			createProducer();
+			// Now try sending the message again
+			messageProducer.send(bytesMessage);
+		}
+	}
+
 }
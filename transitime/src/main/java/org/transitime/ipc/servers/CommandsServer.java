@@ -5,9 +5,11 @@ import java.util.Collection;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitime.avl.AvlClient;
 import org.transitime.avl.AvlExecutor;
 import org.transitime.db.structs.AvlReport;
 import org.transitime.ipc.data.IpcAvl;
+import org.transitime.ipc.data.IpcAvlBatchResult;
 import org.transitime.ipc.interfaces.CommandsInterface;
 import org.transitime.ipc.rmi.AbstractServer;
 
@@ -96,4 +98,53 @@ public class CommandsServer extends AbstractServer
 		return null;
 	}
 
+	/**
+	 * Called on server side via RMI when a batch of AVL data is to be
+	 * processed. Invalid and stale reports are counted and not sent on to
+	 * the AvlExecutor.
+	 * 
+	 * @param avlDataCollection
+	 *            AVL data sent to server
+	 * @return counts of accepted, rejected, and stale reports
+	 */
+	@Override
+	public IpcAvlBatchResult pushAvlBatch(Collection<IpcAvl> avlDataCollection)
+			throws RemoteException {
+		int accepted = 0;
+		int rejected = 0;
+		int stale = 0;
+		for (IpcAvl avlData : avlDataCollection) {
+			AvlReport avlReport = new AvlReport(avlData);
+			
+			// If the data is bad then reject it
+			String errorMsg = avlReport.validateData();
+			if (errorMsg != null) {
+				logger.debug("Rejecting AVL report {} because {}", 
+						avlReport, errorMsg);
+				++rejected;
+				continue;
+			}
+			
+			// If not newer than the last report for the vehicle then it
+			// would just be filtered out
+			if (AvlClient.isStale(avlReport)) {
+				logger.debug("Not processing stale AVL report {}", avlReport);
+				++stale;
+				continue;
+			}
+			
+			// Use AvlExecutor to actually process the data using a thread 
+			// executor
+			logger.debug("Processing AVL report {}", avlReport);
+			AvlExecutor.getInstance().processAvlReport(avlReport);
+			++accepted;
+		}
+		
+		IpcAvlBatchResult result = 
+				new IpcAvlBatchResult(accepted, rejected, stale);
+		logger.info("Processed batch of {} AVL reports. {}", 
+				avlDataCollection.size(), result);
+		return result;
+	}
+	
 }
@@ -0,0 +1,116 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.monitoring;
+
+import org.transitime.avl.AvlExecutor;
+import org.transitime.config.DoubleConfigValue;
+import org.transitime.utils.EmailSender;
+import org.transitime.utils.StringUtils;
+
+/**
+ * For monitoring the queues of the AvlExecutor. Examines the queue depth and
+ * processing time of each lane so that can tell if AVL processing is getting
+ * backed up, and if so whether it is due to a single hot lane.
+ *
+ */
+public class AvlQueueMonitor extends MonitorBase {
+
+	private static DoubleConfigValue maxAvlQueueFraction = 
+			new DoubleConfigValue(
+					"transitime.monitoring.maxAvlQueueFraction", 
+					0.4, 
+					"If the AVL queue for any of the AVL threads fills up by "
+					+ "more than this 0.0 - 1.0 fraction then AVL queue "
+					+ "monitoring is triggered.");
+	
+	private static DoubleConfigValue maxAvlQueueFractionGap =
+			new DoubleConfigValue(
+					"transitime.monitoring.maxAvlQueueFractionGap", 
+					0.1, 
+					"When transitioning from triggered to untriggered don't "
+					+ "want to send out an e-mail right away if actually "
+					+ "dithering. Therefore will only send out OK e-mail if the "
+					+ "value is now below maxAvlQueueFraction - "
+					+ "maxAvlQueueFractionGap ");
+	
+	/********************** Member Functions **************************/
+
+	/**
+	 * Simple constructor
+	 * 
+	 * @param emailSender
+	 * @param agencyId
+	 */
+	public AvlQueueMonitor(EmailSender emailSender, String agencyId) {
+		super(emailSender, agencyId);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.monitoring.MonitorBase#triggered()
+	 */
+	@Override
+	protected boolean triggered() {
+		// If AVL reports not handled by AvlExecutor, such as when using
+		// JMS, then nothing to monitor
+		if (!AvlExecutor.isRunning()) {
+			setMessage("AvlExecutor not in use.");
+			return false;
+		}
+		
+		// Determine the fullest lane and describe each of the lanes so can
+		// see if there is a hot partition
+		double maxQueueLevel = 0.0;
+		StringBuilder lanesInfo = new StringBuilder();
+		for (AvlExecutor.Lane lane : AvlExecutor.getInstance().getLanes()) {
+			maxQueueLevel = Math.max(maxQueueLevel, lane.getQueueLevel());
+			lanesInfo.append(" lane ").append(lane.getLaneIndex())
+				.append(": queueDepth=").append(lane.getQueueDepth())
+				.append(" processed=").append(lane.getProcessedCount())
+				.append(" coalesced=").append(lane.getCoalescedCount())
+				.append(" avgMsec=")
+				.append(StringUtils.twoDigitFormat(lane.getAvgProcessingMsec()))
+				.append(" maxMsec=")
+				.append(StringUtils.twoDigitFormat(lane.getMaxProcessingMsec()))
+				.append(";");
+		}
+		
+		setMessage("Max AVL queue fraction=" 
+				+ StringUtils.twoDigitFormat(maxQueueLevel)
+				+ " while max allowed fraction=" 
+				+ StringUtils.twoDigitFormat(maxAvlQueueFraction.getValue()) 
+				+ "." + lanesInfo,
+				maxQueueLevel);
+		
+		// Determine the threshold for triggering. If already triggered
+		// then lower the threshold by maxAvlQueueFractionGap in order
+		// to prevent lots of e-mail being sent out if the value is
+		// dithering around maxAvlQueueFraction.
+		double threshold = maxAvlQueueFraction.getValue();
+		if (wasTriggered())
+			threshold -= maxAvlQueueFractionGap.getValue();
+		
+		return maxQueueLevel > threshold; 
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.monitoring.MonitorBase#type()
+	 */
+	@Override
+	protected String type() {
+		return "AVL Queue";
+	}
+}
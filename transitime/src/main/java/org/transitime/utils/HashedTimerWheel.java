@@ -0,0 +1,180 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ * 
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hashed timer wheel for finding out efficiently which keys have expired.
+ * A key is scheduled for an expiration time and is put into the slot for the
+ * tick that the time is in. The slot is the tick modulo the number of slots
+ * so times that are a whole rotation or more apart share a slot. When time
+ * advances only the slots for the ticks that have completely elapsed need
+ * to be looked at, instead of having to look at every key.
+ * <p>
+ * If a key is scheduled more than once for the same slot then only the
+ * earliest time is kept. A key can also be in multiple slots if scheduled
+ * for different ticks. The user therefore needs to handle a key expiring
+ * when there is actually nothing to do for it anymore.
+ * <p>
+ * Time is passed in instead of using the system clock so that the wheel
+ * also works in playback mode. A key is returned by expire() at most one
+ * tick after its expiration time, as long as expire() is called regularly.
+ * The exception is when a key is scheduled for the current tick at the same
+ * moment that another thread processes that tick. Then the key is only
+ * returned a rotation later.
+ * <p>
+ * Threadsafe. Each slot is synchronized separately so that scheduling keys
+ * for different slots doesn't cause contention.
+ *
+ * @param <K>
+ *            The type of the keys
+ */
+public class HashedTimerWheel<K> {
+
+	private final long tickMsec;
+	
+	// The scheduled keys for each slot, with the expiration time of each key.
+	private final List<Map<K, Long>> slots;
+	
+	// The last tick that has been completely processed. Long.MIN_VALUE if
+	// expire() hasn't been called yet.
+	private volatile long lastProcessedTick = Long.MIN_VALUE;
+	
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates the timer wheel.
+	 * 
+	 * @param numSlots
+	 *            Number of slots. The number of slots times tickMsec should
+	 *            be larger than how far in the future keys are usually
+	 *            scheduled so that most slots only contain keys for the
+	 *            current rotation.
+	 * @param tickMsec
+	 *            Duration of a tick in msec
+	 */
+	public HashedTimerWheel(int numSlots, long tickMsec) {
+		if (numSlots <= 0 || tickMsec <= 0)
+			throw new IllegalArgumentException("numSlots and tickMsec must "
+					+ "be positive.");
+		
+		this.tickMsec = tickMsec;
+		this.slots = new ArrayList<Map<K, Long>>(numSlots);
+		for (int i = 0; i < numSlots; ++i)
+			slots.add(new HashMap<K, Long>());
+	}
+	
+	/**
+	 * Returns the slot for the tick.
+	 * 
+	 * @param tick
+	 * @return the slot
+	 */
+	private Map<K, Long> getSlot(long tick) {
+		return slots.get((int) Math.floorMod(tick, (long) slots.size()));
+	}
+	
+	/**
+	 * Schedules the key to expire at the specified time. If the tick for the
+	 * time has already been processed then the key is put into the next
+	 * tick to be processed so that it doesn't have to wait for a whole
+	 * rotation.
+	 * 
+	 * @param key
+	 * @param time
+	 *            Epoch time in msec when the key expires
+	 */
+	public void schedule(K key, long time) {
+		long tick = Math.max(Math.floorDiv(time, tickMsec), 
+				lastProcessedTick + 1);
+		Map<K, Long> slot = getSlot(tick);
+		synchronized (slot) {
+			Long existingTime = slot.get(key);
+			if (existingTime == null || time < existingTime)
+				slot.put(key, time);
+		}
+	}
+	
+	/**
+	 * Removes and returns the keys that have expired as of the specified
+	 * time. Only the slots for the ticks that have completely elapsed since
+	 * the previous call are looked at so usually this is very quick. If
+	 * called again during the same tick then nothing needs to be done.
+	 * 
+	 * @param now
+	 *            Current epoch time in msec
+	 * @return the expired keys. Can be empty but not null.
+	 */
+	public List<K> expire(long now) {
+		// The last tick that has completely elapsed
+		long elapsedTick = Math.floorDiv(now, tickMsec) - 1;
+		if (elapsedTick <= lastProcessedTick)
+			return Collections.emptyList();
+		
+		// Determine which ticks need to be processed. Only one thread
+		// processes a tick. No need to process more than a whole rotation.
+		long firstTick;
+		synchronized (this) {
+			if (elapsedTick <= lastProcessedTick)
+				return Collections.emptyList();
+			firstTick = Math.max(lastProcessedTick + 1, 
+					elapsedTick - slots.size() + 1);
+			lastProcessedTick = elapsedTick;
+		}
+		
+		List<K> expiredKeys = new ArrayList<K>();
+		for (long tick = firstTick; tick <= elapsedTick; ++tick) {
+			Map<K, Long> slot = getSlot(tick);
+			synchronized (slot) {
+				Iterator<Map.Entry<K, Long>> iterator = 
+						slot.entrySet().iterator();
+				while (iterator.hasNext()) {
+					Map.Entry<K, Long> entry = iterator.next();
+					// Keys for a later rotation stay in the slot
+					if (entry.getValue() < now) {
+						expiredKeys.add(entry.getKey());
+						iterator.remove();
+					}
+				}
+			}
+		}
+		
+		return expiredKeys;
+	}
+	
+	/**
+	 * Returns the number of scheduled keys. A key scheduled in multiple
+	 * slots is counted for each of them.
+	 * 
+	 * @return number of scheduled keys
+	 */
+	public int size() {
+		int size = 0;
+		for (Map<K, Long> slot : slots) {
+			synchronized (slot) {
+				size += slot.size();
+			}
+		}
+		return size;
+	}
+}
@@ -0,0 +1,160 @@
+/* 
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.utils;
+
+import org.transitime.db.structs.Extent;
+import org.transitime.db.structs.Location;
+
+/**
+ * A local equirectangular projection of latitudes and longitudes onto a plane
+ * with coordinates in meters. The cosine of the latitude is determined just
+ * once, for the middle of the agency extent, so converting a location to x/y
+ * only takes a subtraction and a multiplication per coordinate. This way
+ * geometry that is done over and over again, such as determining the
+ * distance of an AVL report to each of the segments of a trip pattern, can
+ * be done without any trigonometry.
+ * <p>
+ * Since the same cosine is used for the whole agency the results differ
+ * slightly from Geo.distance(), which uses the average latitude of the two
+ * locations. For an agency that spans a degree of latitude the difference
+ * is a fraction of a percent, which is fine for matching.
+ * <p>
+ * There is a single current projection, which is set when the agency
+ * configuration is read in.
+ *
+ */
+public class PlanarProjection {
+
+	// The origin of the plane
+	private final double originLat;
+	private final double originLon;
+	
+	// For converting degrees to meters
+	private final double metersPerDegreeLat;
+	private final double metersPerDegreeLon;
+	
+	// The projection for the agency. Null if not set, in which case the
+	// regular Geo methods need to be used.
+	private static volatile PlanarProjection current = null;
+	
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates projection with the specified origin.
+	 * 
+	 * @param originLat
+	 * @param originLon
+	 */
+	public PlanarProjection(double originLat, double originLon) {
+		this.originLat = originLat;
+		this.originLon = originLon;
+		this.metersPerDegreeLat = 
+				Math.toRadians(1.0) * Geo.RADIUS_OF_EARTH_IN_METERS;
+		this.metersPerDegreeLon = 
+				metersPerDegreeLat * Math.cos(Math.toRadians(originLat));
+	}
+	
+	/**
+	 * Creates projection with the origin at the middle of the extent.
+	 * 
+	 * @param extent
+	 * @return the projection, or null if the extent is empty
+	 */
+	public static PlanarProjection forExtent(Extent extent) {
+		if (extent == null || extent.getMinLat() > extent.getMaxLat())
+			return null;
+		
+		return new PlanarProjection(
+				(extent.getMinLat() + extent.getMaxLat()) / 2, 
+				(extent.getMinLon() + extent.getMaxLon()) / 2);
+	}
+	
+	/**
+	 * Sets the projection to be used for the agency.
+	 * 
+	 * @param projection
+	 *            The projection. Set to null to not use a projection.
+	 */
+	public static void setCurrent(PlanarProjection projection) {
+		current = projection;
+	}
+	
+	/**
+	 * @return The projection for the agency, or null if not set
+	 */
+	public static PlanarProjection getCurrent() {
+		return current;
+	}
+	
+	/**
+	 * @param lon
+	 * @return the x coordinate in meters east of the origin
+	 */
+	public double x(double lon) {
+		return (lon - originLon) * metersPerDegreeLon;
+	}
+	
+	/**
+	 * @param lat
+	 * @return the y coordinate in meters north of the origin
+	 */
+	public double y(double lat) {
+		return (lat - originLat) * metersPerDegreeLat;
+	}
+	
+	/**
+	 * @param loc
+	 * @return the x coordinate of the location in meters east of the origin
+	 */
+	public double x(Location loc) {
+		return x(loc.getLon());
+	}
+	
+	/**
+	 * @param loc
+	 * @return the y coordinate of the location in meters north of the origin
+	 */
+	public double y(Location loc) {
+		return y(loc.getLat());
+	}
+	
+	/**
+	 * @param x
+	 *            x coordinate in meters east of the origin
+	 * @return the longitude for the x coordinate
+	 */
+	public double lon(double x) {
+		return originLon + x / metersPerDegreeLon;
+	}
+	
+	/**
+	 * @param y
+	 *            y coordinate in meters north of the origin
+	 * @return the latitude for the y coordinate
+	 */
+	public double lat(double y) {
+		return originLat + y / metersPerDegreeLat;
+	}
+	
+	@Override
+	public String toString() {
+		return "PlanarProjection [" 
+				+ "originLat=" + Geo.format(originLat) 
+				+ ", originLon=" + Geo.format(originLon) 
+				+ "]";
+	}
+}
@@ -16,6 +16,9 @@
  */
 package org.transitime.utils;
 
+import java.time.Instant;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
@@ -131,6 +134,33 @@ public class Time {
 	// Have a shared calendar so don't have to keep creating one
 	private Calendar calendar;
 	
+	// The timezone rules, for determining the offset from UTC
+	private ZoneRules zoneRules;
+	
+	// The most recently used period of constant UTC offset. Since the
+	// offset only changes at DST transitions this allows getSecondsIntoDay()
+	// and getMsecsIntoDay() to be determined without locking the calendar.
+	private volatile OffsetPeriod offsetPeriod = null;
+	
+	/**
+	 * A period of time during which the offset of the timezone from UTC
+	 * doesn't change. Immutable so can be shared by threads.
+	 */
+	private static class OffsetPeriod {
+		// Inclusive
+		private final long startEpochTime;
+		// Exclusive
+		private final long endEpochTime;
+		private final int offsetMsecs;
+		
+		private OffsetPeriod(long startEpochTime, long endEpochTime,
+				int offsetMsecs) {
+			this.startEpochTime = startEpochTime;
+			this.endEpochTime = endEpochTime;
+			this.offsetMsecs = offsetMsecs;
+		}
+	}
+	
 	/******************* Methods ******************/
 	
 	public Time(DbConfig dbConfig) {
@@ -138,6 +168,7 @@ public class Time {
 		this.calendar =
 				agency != null ? new GregorianCalendar(agency.getTimeZone())
 						: new GregorianCalendar();
+		this.zoneRules = calendar.getTimeZone().toZoneId().getRules();
 	}
 	
 	/**
@@ -152,11 +183,14 @@ public class Time {
 	 */
 	public Time(String timeZoneStr) {
 		// If no time zone string specified then use local timezone
-		if (timeZoneStr == null)
+		if (timeZoneStr == null) {
+			this.zoneRules = TimeZone.getDefault().toZoneId().getRules();
 			return;
+		}
 		
 		TimeZone timeZone = TimeZone.getTimeZone(timeZoneStr);
 		this.calendar = new GregorianCalendar(timeZone);
+		this.zoneRules = timeZone.toZoneId().getRules();
 		
 		readableDateFormat24MsecForTimeZone.setCalendar(this.calendar);
 		readableTimeFormatForTimeZone.setCalendar(this.calendar);
@@ -170,15 +204,7 @@ public class Time {
 	 * @return seconds into the day
 	 */
 	public int getSecondsIntoDay(long epochTime) {
-		// Since setting and then getting time and this method might be called
-		// by multiple threads need to synchronize.
-		synchronized (calendar) {
-			// Get seconds into day
-			calendar.setTimeInMillis(epochTime);
-			return calendar.get(Calendar.HOUR_OF_DAY) * 60 * 60 +
-					calendar.get(Calendar.MINUTE) * 60          +
-					calendar.get(Calendar.SECOND);
-		}
+		return getMsecsIntoDay(epochTime) / MS_PER_SEC;
 	}
 	
 	/**
@@ -211,16 +237,83 @@ public class Time {
 	 * @return msec into the day
 	 */
 	public int getMsecsIntoDay(Date epochTime) {
-		// Since setting and then getting time and this method might be called
-		// by multiple threads need to synchronize.
-		synchronized (calendar) {
-			// Get seconds into day
-			calendar.setTime(epochTime);
-			return calendar.get(Calendar.HOUR_OF_DAY) * 60 * 60 * 1000 +
-					calendar.get(Calendar.MINUTE) * 60 * 1000          +
-					calendar.get(Calendar.SECOND) * 1000               +
-					calendar.get(Calendar.MILLISECOND);
+		return getMsecsIntoDay(epochTime.getTime());
+	}
+	
+	/**
+	 * Converts the epoch time into number of msec into the day. This is the
+	 * wall clock time of day, the same as the hour, minute, second, and
+	 * msec of a calendar for the timezone, so on the days of DST transitions
+	 * it is not the same as the time elapsed since midnight.
+	 * <p>
+	 * Doesn't lock anything so can be called by many threads at once. The
+	 * UTC offset is cached for the period between DST transitions so
+	 * usually only some arithmetic is needed.
+	 * 
+	 * @param epochTime
+	 * @return msec into the day
+	 */
+	public int getMsecsIntoDay(long epochTime) {
+		return (int) Math.floorMod(epochTime + getOffsetMsecs(epochTime),
+				MS_PER_DAY);
+	}
+	
+	/**
+	 * Returns the number of the local day, in the timezone, that contains the
+	 * epoch time. Day 0 is 1/1/1970. Useful as a compact key for a calendar
+	 * date. Like getMsecsIntoDay() it doesn't lock anything.
+	 * 
+	 * @param epochTime
+	 * @return number of days since 1/1/1970 for the local date
+	 */
+	public int getEpochDay(long epochTime) {
+		return (int) Math.floorDiv(epochTime + getOffsetMsecs(epochTime),
+				MS_PER_DAY);
+	}
+	
+	/**
+	 * Returns the UTC offset of the timezone for the epoch time, using the
+	 * cached period between DST transitions if possible.
+	 * 
+	 * @param epochTime
+	 * @return offset in msec
+	 */
+	private long getOffsetMsecs(long epochTime) {
+		OffsetPeriod period = offsetPeriod;
+		if (period == null || epochTime < period.startEpochTime
+				|| epochTime >= period.endEpochTime) {
+			period = createOffsetPeriod(epochTime);
+			offsetPeriod = period;
 		}
+		
+		return period.offsetMsecs;
+	}
+	
+	/**
+	 * Determines the period of constant UTC offset that contains the epoch
+	 * time, using the DST transitions of the timezone.
+	 * 
+	 * @param epochTime
+	 * @return the period containing epochTime
+	 */
+	private OffsetPeriod createOffsetPeriod(long epochTime) {
+		Instant instant = Instant.ofEpochMilli(epochTime);
+		int offsetMsecs = 
+				zoneRules.getOffset(instant).getTotalSeconds() * MS_PER_SEC;
+		
+		// The transition at or before the epoch time
+		ZoneOffsetTransition previousTransition =
+				zoneRules.previousTransition(instant.plusMillis(1));
+		long start = previousTransition != null ? 
+				previousTransition.toEpochSecond() * MS_PER_SEC : Long.MIN_VALUE;
+		
+		// The transition after the epoch time
+		ZoneOffsetTransition nextTransition = 
+				zoneRules.nextTransition(instant);
+		long end = nextTransition != null ? 
+				nextTransition.toEpochSecond() * MS_PER_SEC : Long.MAX_VALUE;
+		
+		return new OffsetPeriod(start, end, offsetMsecs);
 	}
 	
 	/**
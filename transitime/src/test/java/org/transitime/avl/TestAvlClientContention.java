@@ -0,0 +1,116 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.avl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.transitime.db.structs.AvlReport;
+import org.transitime.utils.Time;
+
+import junit.framework.TestCase;
+
+/**
+ * Makes sure that the lock-free AvlClient filtering of AVL reports accepts
+ * exactly the right reports when several threads filter at the same time,
+ * each thread handling its own set of vehicles like the lanes of the
+ * AvlExecutor do.
+ */
+public class TestAvlClientContention extends TestCase {
+
+	private static final int NUM_VEHICLES = 40;
+	private static final int REPORTS_PER_VEHICLE = 25;
+	private static final int NUM_THREADS = 4;
+	
+	/**
+	 * Filters all of the clients using NUM_THREADS threads, client i being
+	 * handled by thread i % NUM_THREADS. Returns how many were accepted.
+	 */
+	private int runFilter(List<AvlClient> allClients) 
+			throws InterruptedException {
+		final List<List<AvlClient>> clientsPerThread = 
+				new ArrayList<List<AvlClient>>();
+		for (int t = 0; t < NUM_THREADS; ++t)
+			clientsPerThread.add(new ArrayList<AvlClient>());
+		for (int i = 0; i < allClients.size(); ++i)
+			clientsPerThread.get(i % NUM_THREADS).add(allClients.get(i));
+
+		final AtomicInteger acceptedCount = new AtomicInteger();
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		final CountDownLatch doneLatch = new CountDownLatch(NUM_THREADS);
+		for (int t = 0; t < NUM_THREADS; ++t) {
+			final List<AvlClient> clients = clientsPerThread.get(t);
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						startLatch.await();
+						for (AvlClient client : clients) {
+							if (client.shouldProcess())
+								acceptedCount.incrementAndGet();
+						}
+					} catch (InterruptedException e) {
+						// Count will be wrong so test will fail
+					} finally {
+						doneLatch.countDown();
+					}
+				}
+			}).start();
+		}
+		
+		startLatch.countDown();
+		doneLatch.await();
+		return acceptedCount.get();
+	}
+	
+	public void testOlderReportFilteredOut() {
+		AvlReport newer = new AvlReport("filterVehicle", 1000000010000L, 
+				37.78, -122.41, "test");
+		AvlReport older = new AvlReport("filterVehicle", 1000000000000L, 
+				37.78, -122.41, "test");
+		assertTrue(new AvlClient(newer).shouldProcess());
+		assertFalse(new AvlClient(older).shouldProcess());
+		assertFalse(new AvlClient(newer).shouldProcess());
+	}
+	
+	public void testConcurrentFiltering() throws InterruptedException {
+		// Reports for a vehicle are 10 seconds apart so that none are 
+		// filtered out for being too recent. Vehicles are distributed so 
+		// that each vehicle is always handled by the same thread.
+		List<AvlClient> clients = new ArrayList<AvlClient>();
+		List<AvlClient> repeatedClients = new ArrayList<AvlClient>();
+		for (int i = 0; i < REPORTS_PER_VEHICLE; ++i) {
+			long time = 1000000000000L + i * 10 * Time.MS_PER_SEC;
+			for (int v = 0; v < NUM_VEHICLES; ++v) {
+				String vehicleId = "contentionVehicle" + v;
+				clients.add(new AvlClient(new AvlReport(vehicleId, time, 
+						37.78, -122.41, "test")));
+				repeatedClients.add(new AvlClient(new AvlReport(vehicleId, 
+						time, 37.78, -122.41, "test")));
+			}
+		}
+		
+		// All of the reports are new so all should be accepted
+		assertEquals(NUM_VEHICLES * REPORTS_PER_VEHICLE, runFilter(clients));
+		
+		// Reports that are not newer than the last accepted ones should all
+		// be filtered out
+		assertEquals(0, runFilter(repeatedClients));
+	}
+}
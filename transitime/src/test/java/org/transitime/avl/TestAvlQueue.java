@@ -0,0 +1,104 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ * 
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.avl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.transitime.db.structs.AvlReport;
+
+import junit.framework.TestCase;
+
+/**
+ * Makes sure that AvlQueue hands out slots in the order they were created,
+ * coalesces reports for a vehicle that already has a slot, and limits the
+ * number of slots to its capacity.
+ */
+public class TestAvlQueue extends TestCase {
+
+	private static AvlClient client(String vehicleId, long time) {
+		return new AvlClient(new AvlReport(vehicleId, time, 37.78, -122.41,
+				"test"));
+	}
+	
+	private static AvlReport report(Runnable runnable) {
+		return ((AvlClient) runnable).getAvlReport();
+	}
+	
+	public void testOrdering() {
+		AvlQueue queue = new AvlQueue(10);
+		assertTrue(queue.offer(client("v1", 1000)));
+		assertTrue(queue.offer(client("v2", 1000)));
+		assertTrue(queue.offer(client("v3", 1000)));
+		
+		assertEquals("v1", report(queue.poll()).getVehicleId());
+		assertEquals("v2", report(queue.poll()).getVehicleId());
+		assertEquals("v3", report(queue.poll()).getVehicleId());
+		assertNull(queue.poll());
+	}
+	
+	public void testCoalescing() {
+		AvlQueue queue = new AvlQueue(10);
+		queue.offer(client("v1", 1000));
+		queue.offer(client("v2", 1000));
+		
+		// Newer report replaces the pending one but keeps its position
+		AvlClient newer = client("v1", 2000);
+		assertTrue(queue.offer(newer));
+		// Older report is dropped since a newer one is pending
+		assertTrue(queue.offer(client("v1", 1500)));
+		
+		assertEquals(2, queue.size());
+		assertEquals(2, queue.getCoalescedCount());
+		assertSame(newer, queue.poll());
+		assertEquals("v2", report(queue.poll()).getVehicleId());
+		assertNull(queue.poll());
+	}
+	
+	public void testCapacity() throws InterruptedException {
+		AvlQueue queue = new AvlQueue(2);
+		assertTrue(queue.offer(client("v1", 1000)));
+		assertTrue(queue.offer(client("v2", 1000)));
+		assertEquals(0, queue.remainingCapacity());
+		
+		// No room for another vehicle
+		assertFalse(queue.offer(client("v3", 1000)));
+		assertFalse(queue.offer(client("v3", 1000), 10, TimeUnit.MILLISECONDS));
+		
+		// But a vehicle that already has a slot can always be coalesced
+		assertTrue(queue.offer(client("v2", 2000)));
+		assertEquals(2, queue.size());
+		
+		// Once a slot is taken there is room again
+		assertEquals("v1", report(queue.take()).getVehicleId());
+		assertTrue(queue.offer(client("v3", 1000)));
+		assertEquals(2000, report(queue.poll()).getTime());
+		assertEquals("v3", report(queue.poll()).getVehicleId());
+		assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+	}
+	
+	public void testRemove() {
+		AvlQueue queue = new AvlQueue(10);
+		AvlClient pending = client("v1", 1000);
+		queue.offer(pending);
+		
+		// Only removed if it is the pending client for the vehicle
+		assertFalse(queue.remove(client("v1", 1000)));
+		assertTrue(queue.remove(pending));
+		assertEquals(0, queue.size());
+		assertEquals(10, queue.remainingCapacity());
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.avl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.transitime.db.structs.AvlReport;
+import org.transitime.db.structs.AvlReport.AssignmentType;
+
+import junit.framework.TestCase;
+
+/**
+ * Makes sure that a batch of AVL reports survives being encoded and decoded
+ * by AvlReportBatchCodec and that the encoding is much more compact than
+ * serializing each report.
+ * 
+ */
+public class TestAvlReportBatchCodec extends TestCase {
+
+	private static List<AvlReport> createAvlReports() {
+		List<AvlReport> avlReports = new ArrayList<AvlReport>();
+		long time = 1420070400000L;
+		for (int i = 0; i < 200; ++i) {
+			AvlReport avlReport;
+			if (i % 2 == 0) {
+				// Minimal report
+				avlReport = new AvlReport("vehicle" + (i % 50), time + i * 1000,
+						37.7749295 + i * 0.0001, -122.4194155 - i * 0.0001, 
+						Float.NaN, Float.NaN, "GTFS-rt");
+			} else {
+				// Report with all the optional members set
+				avlReport = new AvlReport("vehicle" + (i % 50), time - i * 10,
+						37.7749295 - i * 0.0002, -122.4194155 + i * 0.0002, 
+						12.5f, 270.0f, "API", "lead" + i, "driver" + i,
+						"plate" + i, i, 0.5f);
+				avlReport.setAssignment("block" + (i % 5), 
+						AssignmentType.BLOCK_ID);
+				avlReport.setField1("door", "open");
+			}
+			avlReports.add(avlReport);
+		}
+		return avlReports;
+	}
+	
+	public void testRoundTrip() throws IOException {
+		List<AvlReport> avlReports = createAvlReports();
+		byte[] bytes = new AvlReportBatchCodec().encode(avlReports);
+		List<AvlReport> decoded = AvlReportBatchCodec.decode(bytes);
+		
+		assertReportsEqual(avlReports, decoded);
+	}
+	
+	public void testNullSource() throws IOException {
+		List<AvlReport> avlReports = new ArrayList<AvlReport>();
+		avlReports.add(new AvlReport("vehicle1", 1420070400000L, 37.7749295,
+				-122.4194155, Float.NaN, Float.NaN, null));
+		avlReports.add(new AvlReport("vehicle2", 1420070401000L, 37.7749295,
+				-122.4194155, Float.NaN, Float.NaN, "GTFS-rt"));
+		avlReports.add(new AvlReport("vehicle3", 1420070402000L, 37.7749295,
+				-122.4194155, Float.NaN, Float.NaN, null));
+		
+		List<AvlReport> decoded = AvlReportBatchCodec.decode(
+				new AvlReportBatchCodec().encode(avlReports));
+		
+		assertNull(decoded.get(0).getSource());
+		assertEquals("GTFS-rt", decoded.get(1).getSource());
+		assertNull(decoded.get(2).getSource());
+		assertReportsEqual(avlReports, decoded);
+	}
+	
+	private static void assertReportsEqual(List<AvlReport> avlReports,
+			List<AvlReport> decoded) {
+		assertEquals(avlReports.size(), decoded.size());
+		for (int i = 0; i < avlReports.size(); ++i) {
+			AvlReport expected = avlReports.get(i);
+			AvlReport actual = decoded.get(i);
+			assertEquals(expected.getVehicleId(), actual.getVehicleId());
+			assertEquals(expected.getTime(), actual.getTime());
+			assertEquals(expected.getLat(), actual.getLat(), 1e-7);
+			assertEquals(expected.getLon(), actual.getLon(), 1e-7);
+			assertEquals(expected.getSpeed(), actual.getSpeed());
+			assertEquals(expected.getHeading(), actual.getHeading());
+			assertEquals(expected.getSource(), actual.getSource());
+			assertEquals(expected.getAssignmentId(), 
+					actual.getAssignmentId());
+			assertEquals(expected.getAssignmentType(), 
+					actual.getAssignmentType());
+			assertEquals(expected.getLeadVehicleId(), 
+					actual.getLeadVehicleId());
+			assertEquals(expected.getDriverId(), actual.getDriverId());
+			assertEquals(expected.getLicensePlate(), 
+					actual.getLicensePlate());
+			assertEquals(expected.getPassengerCount(), 
+					actual.getPassengerCount());
+			assertEquals(expected.getPassengerFullness(), 
+					actual.getPassengerFullness());
+			assertEquals(expected.getField1Name(), actual.getField1Name());
+			assertEquals(expected.getField1Value(), actual.getField1Value());
+		}
+	}
+	
+	public void testCompactness() throws IOException {
+		List<AvlReport> avlReports = createAvlReports();
+		byte[] bytes = new AvlReportBatchCodec().encode(avlReports);
+		
+		// Size when each report is sent as a separate ObjectMessage
+		int serializedSize = 0;
+		for (AvlReport avlReport : avlReports) {
+			ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(byteStream);
+			out.writeObject(avlReport);
+			out.close();
+			serializedSize += byteStream.size();
+		}
+		
+		assertTrue("Batch encoded in " + bytes.length + " bytes but "
+				+ "reports serialized separately take " + serializedSize
+				+ " bytes", bytes.length * 5 < serializedSize);
+	}
+}
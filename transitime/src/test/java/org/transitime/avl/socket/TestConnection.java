@@ -0,0 +1,94 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.avl.socket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests how a Connection frames and handles lines, including getting the
+ * vehicle ID from TAIP lines and lines that can't be parsed.
+ *
+ */
+public class TestConnection extends TestCase {
+
+	private static final String TAIP_FIX = 
+			">RPV64100+4233322-0710597600017412";
+	
+	private SocketChannel channel;
+	private Connection connection;
+	
+	@Override
+	protected void setUp() throws IOException {
+		// The channel is never connected since the bytes are handed to the
+		// connection directly
+		channel = SocketChannel.open();
+		connection = new Connection(new Server(0, 1, 0), channel);
+	}
+	
+	@Override
+	protected void tearDown() throws IOException {
+		channel.close();
+	}
+	
+	private void processBytes(String s) {
+		connection.processBytes(
+				ByteBuffer.wrap(s.getBytes(StandardCharsets.US_ASCII)));
+	}
+	
+	public void testTaipVehicleId() {
+		assertEquals("1234", 
+				Connection.getTaipVehicleId(TAIP_FIX + ";ID=1234<"));
+		assertEquals("5678", 
+				Connection.getTaipVehicleId(TAIP_FIX + ";ID=5678;*7F<"));
+		assertEquals("5678", Connection.getTaipVehicleId(
+				TAIP_FIX + ";SV=2;ID=5678;*7F<"));
+		assertNull(Connection.getTaipVehicleId(TAIP_FIX + "<"));
+		assertNull(Connection.getTaipVehicleId(TAIP_FIX + ";ID=;*7F<"));
+	}
+	
+	/**
+	 * A TAIP line that passes the basic checks but has non-digits where the
+	 * time is expected causes an exception when parsed. It is to be counted
+	 * as a bad line and the rest of the buffer is to still be handled.
+	 */
+	public void testUnparsableLine() {
+		processBytes(">RPVab100+4233322-0710597600017412;ID=1234<\r\n"
+				+ "VID=5678\r\n");
+		assertEquals(1, connection.getBadLines());
+		assertEquals(2, connection.getLinesRead());
+		assertEquals("5678", connection.getVehicleId());
+		
+		// Next line is not appended to the bad one
+		processBytes("VID=9012\n");
+		assertEquals(1, connection.getBadLines());
+		assertEquals("9012", connection.getVehicleId());
+	}
+	
+	public void testLineSplitAcrossReads() {
+		processBytes("VI");
+		processBytes("D=12");
+		processBytes("34\r\n");
+		assertEquals(1, connection.getLinesRead());
+		assertEquals("1234", connection.getVehicleId());
+	}
+	
+}
@@ -0,0 +1,187 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ * 
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.transitime.db.structs.Block;
+import org.transitime.db.structs.Trip;
+import org.transitime.utils.Time;
+
+import junit.framework.TestCase;
+
+/**
+ * Makes sure that BlockIntervalIndex finds the same active blocks as looking
+ * at every block the way Block.isActive() does. Includes blocks that go past
+ * midnight, service that is valid on only some of the adjacent days, and
+ * times right at the start and end of when the blocks are active.
+ * 
+ */
+public class TestBlockIntervalIndex extends TestCase {
+
+	private static final int NUM_BLOCKS = 200;
+	
+	private static final int[] ALLOWABLE_BEFORE_TIMES_SECS = 
+		{0, 10 * Time.SEC_PER_MIN, 5 * Time.SEC_PER_HOUR};
+	private static final int[] ALLOWABLE_AFTER_START_TIMES_SECS = 
+		{-1, 0, 15 * Time.SEC_PER_MIN, 30 * Time.SEC_PER_HOUR};
+	
+	/**
+	 * Creates blocks with random start times and durations, including ones
+	 * that start or end after midnight, plus a few with fixed times right
+	 * around midnight.
+	 */
+	private static List<Block> createBlocks() {
+		List<Block> blocks = new ArrayList<Block>();
+		Random random = new Random(42);
+		for (int i = 0; i < NUM_BLOCKS; ++i) {
+			int startTime = random.nextInt(27 * Time.SEC_PER_HOUR);
+			int duration = Time.SEC_PER_MIN 
+					+ random.nextInt(20 * Time.SEC_PER_HOUR);
+			blocks.add(createBlock("block" + i, startTime, 
+					startTime + duration));
+		}
+		blocks.add(createBlock("endsAtMidnight", 20 * Time.SEC_PER_HOUR, 
+				Time.SEC_PER_DAY));
+		blocks.add(createBlock("startsAtMidnight", Time.SEC_PER_DAY, 
+				Time.SEC_PER_DAY + 2 * Time.SEC_PER_HOUR));
+		blocks.add(createBlock("crossesMidnight", 23 * Time.SEC_PER_HOUR, 
+				Time.SEC_PER_DAY + Time.SEC_PER_HOUR));
+		blocks.add(createBlock("startsAtZero", 0, Time.SEC_PER_HOUR));
+		return blocks;
+	}
+	
+	private static Block createBlock(String blockId, int startTime, 
+			int endTime) {
+		return new Block(0, blockId, "service", startTime, endTime,
+				new ArrayList<Trip>());
+	}
+	
+	/**
+	 * Same logic as Block.isActive(Date, int, int), which can't be called
+	 * directly since it needs the Core for the time zone and the service
+	 * calendar.
+	 */
+	private static boolean isActive(Block block, int secsInDay, 
+			int allowableBeforeTimeSecs, int allowableAfterStartTimeSecs,
+			boolean validToday, boolean validYesterday, 
+			boolean validTomorrow) {
+		int allowableStartTime = block.getStartTime() - allowableBeforeTimeSecs;
+		int allowableEndTime = allowableAfterStartTimeSecs < 0 ? 
+				block.getEndTime() : 
+				block.getStartTime() + allowableAfterStartTimeSecs;
+		
+		if (validToday && secsInDay > allowableStartTime 
+				&& secsInDay < allowableEndTime)
+			return true;
+		
+		int secsInDayPastMidnight = secsInDay + Time.SEC_PER_DAY;
+		if (validYesterday && secsInDayPastMidnight > allowableStartTime
+				&& secsInDayPastMidnight < allowableEndTime)
+			return true;
+		
+		int secsInDayBeforeMidnight = secsInDay - Time.SEC_PER_DAY;
+		if (validTomorrow && secsInDayBeforeMidnight > allowableStartTime
+				&& secsInDayBeforeMidnight < allowableEndTime)
+			return true;
+		
+		return false;
+	}
+	
+	/**
+	 * Adds the time of day, and the times a second before and after, to the
+	 * set of times to check.
+	 */
+	private static void addTimeOfDay(SortedSet<Integer> times, int secs) {
+		for (int delta = -1; delta <= 1; ++delta) {
+			int secsInDay = ((secs + delta) % Time.SEC_PER_DAY 
+					+ Time.SEC_PER_DAY) % Time.SEC_PER_DAY;
+			times.add(secsInDay);
+		}
+	}
+	
+	/**
+	 * Times every few minutes throughout the day plus the times at which the
+	 * blocks become active or inactive.
+	 */
+	private static SortedSet<Integer> timesToCheck(List<Block> blocks,
+			int allowableBeforeTimeSecs, int allowableAfterStartTimeSecs) {
+		SortedSet<Integer> times = new TreeSet<Integer>();
+		for (int secs = 0; secs < Time.SEC_PER_DAY; 
+				secs += 5 * Time.SEC_PER_MIN)
+			times.add(secs);
+		for (Block block : blocks) {
+			addTimeOfDay(times, block.getStartTime());
+			addTimeOfDay(times, 
+					block.getStartTime() - allowableBeforeTimeSecs);
+			addTimeOfDay(times, block.getEndTime());
+			if (allowableAfterStartTimeSecs >= 0)
+				addTimeOfDay(times, 
+						block.getStartTime() + allowableAfterStartTimeSecs);
+		}
+		return times;
+	}
+	
+	public void testSameAsIsActive() {
+		List<Block> blocks = createBlocks();
+		BlockIntervalIndex index = new BlockIntervalIndex(blocks);
+		assertEquals(blocks.size(), index.size());
+		
+		for (int before : ALLOWABLE_BEFORE_TIMES_SECS) {
+			for (int after : ALLOWABLE_AFTER_START_TIMES_SECS) {
+				for (int secsInDay : timesToCheck(blocks, before, after)) {
+					// Every combination of the service being valid today,
+					// yesterday, and tomorrow
+					for (int valid = 0; valid < 8; ++valid) {
+						boolean today = (valid & 1) != 0;
+						boolean yesterday = (valid & 2) != 0;
+						boolean tomorrow = (valid & 4) != 0;
+						
+						Set<Block> expected = new HashSet<Block>();
+						for (Block block : blocks) {
+							if (isActive(block, secsInDay, before, after,
+									today, yesterday, tomorrow))
+								expected.add(block);
+						}
+						
+						List<Block> result = new ArrayList<Block>();
+						index.addActiveBlocks(secsInDay, before, after, 
+								today, yesterday, tomorrow, result);
+						
+						String description = "secsInDay=" + secsInDay 
+								+ " before=" + before + " after=" + after
+								+ " today=" + today 
+								+ " yesterday=" + yesterday 
+								+ " tomorrow=" + tomorrow;
+						assertEquals("Duplicate blocks for " + description,
+								result.size(), 
+								new HashSet<Block>(result).size());
+						assertEquals(description, expected, 
+								new HashSet<Block>(result));
+					}
+				}
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,106 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.transitime.core.BlocksInfo.SnapshotsForTick;
+import org.transitime.db.structs.Block;
+import org.transitime.gtfs.DbConfig;
+
+import junit.framework.TestCase;
+
+/**
+ * Makes sure that BlocksInfo only keeps the active block snapshots for the
+ * current clock tick and configuration, and only a limited number of them.
+ *
+ */
+public class TestBlocksInfo extends TestCase {
+
+	private final DbConfig dbConfig = new DbConfig("agency1");
+
+	public void testSnapshotsKeptForSameTick() {
+		List<Block> activeBlocks = new ArrayList<Block>();
+		SnapshotsForTick snapshots =
+				BlocksInfo.getSnapshotsForTick(dbConfig, 1000);
+		snapshots.put(0, -1, activeBlocks);
+
+		SnapshotsForTick sameSnapshots =
+				BlocksInfo.getSnapshotsForTick(dbConfig, 1000);
+		assertSame(snapshots, sameSnapshots);
+		assertSame(activeBlocks, sameSnapshots.get(0, -1));
+		assertNull(sameSnapshots.get(-1, 0));
+	}
+
+	public void testNewTickDropsSnapshots() {
+		SnapshotsForTick snapshots =
+				BlocksInfo.getSnapshotsForTick(dbConfig, 2000);
+		snapshots.put(0, -1, new ArrayList<Block>());
+
+		SnapshotsForTick newSnapshots =
+				BlocksInfo.getSnapshotsForTick(dbConfig, 2001);
+		assertNotSame(snapshots, newSnapshots);
+		assertEquals(0, newSnapshots.size());
+		assertNull(newSnapshots.get(0, -1));
+		assertSame(newSnapshots,
+				BlocksInfo.getSnapshotsForTick(dbConfig, 2001));
+	}
+
+	public void testNewConfigDropsSnapshots() {
+		SnapshotsForTick snapshots =
+				BlocksInfo.getSnapshotsForTick(dbConfig, 3000);
+		snapshots.put(0, -1, new ArrayList<Block>());
+
+		DbConfig newDbConfig = new DbConfig("agency1");
+		SnapshotsForTick newSnapshots =
+				BlocksInfo.getSnapshotsForTick(newDbConfig, 3000);
+		assertNotSame(snapshots, newSnapshots);
+		assertEquals(0, newSnapshots.size());
+		assertNull(newSnapshots.get(0, -1));
+		assertSame(newSnapshots,
+				BlocksInfo.getSnapshotsForTick(newDbConfig, 3000));
+	}
+
+	/**
+	 * A thread that is still working on an earlier tick must not replace the
+	 * snapshots of the current tick.
+	 */
+	public void testEarlierTickDoesNotReplaceSnapshots() {
+		SnapshotsForTick snapshots =
+				BlocksInfo.getSnapshotsForTick(dbConfig, 4001);
+		snapshots.put(0, -1, new ArrayList<Block>());
+
+		SnapshotsForTick earlierSnapshots =
+				BlocksInfo.getSnapshotsForTick(dbConfig, 4000);
+		assertNotSame(snapshots, earlierSnapshots);
+		assertEquals(0, earlierSnapshots.size());
+		assertSame(snapshots, BlocksInfo.getSnapshotsForTick(dbConfig, 4001));
+	}
+
+	public void testNumberOfSnapshotsIsLimited() {
+		SnapshotsForTick snapshots =
+				BlocksInfo.getSnapshotsForTick(dbConfig, 5000);
+		for (int i = 0; i < 10 * BlocksInfo.MAX_SNAPSHOTS_PER_TICK; ++i)
+			snapshots.put(i, -1, new ArrayList<Block>());
+
+		assertEquals(BlocksInfo.MAX_SNAPSHOTS_PER_TICK, snapshots.size());
+		assertNotNull(snapshots.get(0, -1));
+		assertNull(snapshots.get(10 * BlocksInfo.MAX_SNAPSHOTS_PER_TICK - 1,
+				-1));
+	}
+}
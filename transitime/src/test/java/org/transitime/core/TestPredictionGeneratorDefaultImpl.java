@@ -0,0 +1,164 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ * 
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.transitime.db.structs.AvlReport;
+import org.transitime.db.structs.Trip;
+import org.transitime.db.structs.TripTestUtils;
+import org.transitime.ipc.data.IpcPrediction;
+import org.transitime.ipc.data.IpcPrediction.ArrivalOrDeparture;
+import org.transitime.utils.Time;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the shifting of existing predictions that is done instead of
+ * regenerating them when predictions are updated incrementally.
+ * 
+ */
+public class TestPredictionGeneratorDefaultImpl extends TestCase {
+
+	private static final long AVL_TIME = 1420113600000L;
+	
+	private AvlReport avlReport;
+	private Trip currentTrip;
+	private Trip nextTrip;
+	
+	private static AvlReport createAvlReport(long time) {
+		AvlReport avlReport = 
+				new AvlReport("vehicle1", time, 37.78, -122.41, "test");
+		avlReport.setTimeProcessed();
+		return avlReport;
+	}
+	
+	private IpcPrediction createPrediction(Trip trip, int gtfsStopSeq,
+			long predictionTime, boolean affectedByWaitStop, 
+			boolean isDelayed, boolean lateSoMarkAsUncertain) {
+		return new IpcPrediction(avlReport, "stop" + gtfsStopSeq, gtfsStopSeq,
+				trip, AVL_TIME, predictionTime, predictionTime, false, 
+				affectedByWaitStop, isDelayed, lateSoMarkAsUncertain,
+				ArrivalOrDeparture.ARRIVAL);
+	}
+	
+	private IpcPrediction createPrediction(Trip trip, int gtfsStopSeq,
+			long predictionTime) {
+		return createPrediction(trip, gtfsStopSeq, predictionTime, false, 
+				false, false);
+	}
+	
+	@Override
+	protected void setUp() {
+		avlReport = createAvlReport(AVL_TIME);
+		currentTrip = TripTestUtils.createTrip("trip1");
+		nextTrip = TripTestUtils.createTrip("trip2");
+	}
+	
+	public void testShiftedPredictions() {
+		List<IpcPrediction> oldPredictions = Arrays.asList(
+				createPrediction(currentTrip, 1, AVL_TIME + 30 * Time.MS_PER_SEC),
+				createPrediction(currentTrip, 2, AVL_TIME + 2 * Time.MS_PER_MIN),
+				createPrediction(nextTrip, 1, AVL_TIME + 10 * Time.MS_PER_MIN,
+						false, true, false));
+		
+		// Vehicle is now 15 seconds earlier than expected so the first 
+		// prediction is then before now and is dropped
+		long now = AVL_TIME + 20 * Time.MS_PER_SEC;
+		AvlReport newAvlReport = createAvlReport(now);
+		long deltaMsec = -15 * Time.MS_PER_SEC;
+		List<IpcPrediction> shiftedPredictions = 
+				PredictionGeneratorDefaultImpl.getShiftedPredictions(
+						oldPredictions, newAvlReport, deltaMsec, now);
+		
+		assertEquals(2, shiftedPredictions.size());
+		for (int i = 0; i < shiftedPredictions.size(); ++i) {
+			IpcPrediction oldPrediction = oldPredictions.get(i + 1);
+			IpcPrediction shiftedPrediction = shiftedPredictions.get(i);
+			assertEquals(oldPrediction.getPredictionTime() + deltaMsec,
+					shiftedPrediction.getPredictionTime());
+			assertEquals(oldPrediction.getActualPredictionTime() + deltaMsec,
+					shiftedPrediction.getActualPredictionTime());
+			assertEquals(now, shiftedPrediction.getAvlTime());
+			assertEquals(oldPrediction.getStopId(), 
+					shiftedPrediction.getStopId());
+			assertEquals(oldPrediction.getTripId(), 
+					shiftedPrediction.getTripId());
+			assertEquals(oldPrediction.isDelayed(), 
+					shiftedPrediction.isDelayed());
+			assertEquals(oldPrediction.getTripStartEpochTime(),
+					shiftedPrediction.getTripStartEpochTime());
+		}
+	}
+	
+	public void testCanShift() {
+		List<IpcPrediction> oldPredictions = Arrays.asList(
+				createPrediction(currentTrip, 1, AVL_TIME + Time.MS_PER_MIN),
+				createPrediction(nextTrip, 1, AVL_TIME + 10 * Time.MS_PER_MIN));
+		assertTrue(PredictionGeneratorDefaultImpl.canShiftPredictions(
+				oldPredictions, false, false, currentTrip.getId()));
+		
+		// Vehicle became delayed
+		assertFalse(PredictionGeneratorDefaultImpl.canShiftPredictions(
+				oldPredictions, true, false, currentTrip.getId()));
+	}
+	
+	public void testWaitStopNotShifted() {
+		List<IpcPrediction> oldPredictions = Arrays.asList(
+				createPrediction(currentTrip, 1, AVL_TIME + Time.MS_PER_MIN),
+				createPrediction(nextTrip, 1, AVL_TIME + 10 * Time.MS_PER_MIN,
+						true, false, false));
+		assertFalse(PredictionGeneratorDefaultImpl.canShiftPredictions(
+				oldPredictions, false, false, currentTrip.getId()));
+	}
+	
+	/**
+	 * When the vehicle becomes late the predictions for the subsequent trips
+	 * need to be marked as uncertain, so they can't simply be shifted.
+	 */
+	public void testBecameLate() {
+		List<IpcPrediction> oldPredictions = Arrays.asList(
+				createPrediction(currentTrip, 1, AVL_TIME + Time.MS_PER_MIN),
+				createPrediction(nextTrip, 1, AVL_TIME + 10 * Time.MS_PER_MIN));
+		assertFalse(PredictionGeneratorDefaultImpl.canShiftPredictions(
+				oldPredictions, false, true, currentTrip.getId()));
+		
+		// If only have predictions for the current trip then being late 
+		// doesn't affect them
+		List<IpcPrediction> currentTripPredictions = 
+				new ArrayList<IpcPrediction>(oldPredictions.subList(0, 1));
+		assertTrue(PredictionGeneratorDefaultImpl.canShiftPredictions(
+				currentTripPredictions, false, true, currentTrip.getId()));
+	}
+	
+	public void testStillLate() {
+		List<IpcPrediction> oldPredictions = Arrays.asList(
+				createPrediction(currentTrip, 1, AVL_TIME + Time.MS_PER_MIN),
+				createPrediction(nextTrip, 1, AVL_TIME + 10 * Time.MS_PER_MIN,
+						false, false, true));
+		assertTrue(PredictionGeneratorDefaultImpl.canShiftPredictions(
+				oldPredictions, false, true, currentTrip.getId()));
+		
+		// No longer late so predictions for next trip are not uncertain 
+		// anymore
+		assertFalse(PredictionGeneratorDefaultImpl.canShiftPredictions(
+				oldPredictions, false, false, currentTrip.getId()));
+	}
+	
+}
@@ -0,0 +1,236 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ * 
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.transitime.db.structs.Agency;
+import org.transitime.db.structs.Calendar;
+import org.transitime.db.structs.CalendarDate;
+import org.transitime.gtfs.DbConfig;
+import org.transitime.gtfs.gtfsStructs.GtfsCalendar;
+import org.transitime.gtfs.gtfsStructs.GtfsCalendarDate;
+import org.transitime.utils.Time;
+
+import junit.framework.TestCase;
+
+/**
+ * Makes sure that the service IDs precomputed for each day by ServiceUtils
+ * are the same as the ones determined from the calendars each time. Covers
+ * calendar_dates.txt exceptions that add and remove service, the previous
+ * day's service IDs being included early in the morning, times exactly at
+ * midnight, a DST change, and the fallback to the old calendars once they
+ * have all expired.
+ * 
+ */
+public class TestServiceUtils extends TestCase {
+
+	private static final String TIMEZONE = "America/Los_Angeles";
+	
+	private static final String CALENDAR_TXT = 
+			"service_id,monday,tuesday,wednesday,thursday,friday,saturday,"
+			+ "sunday,start_date,end_date\n"
+			+ "weekday,1,1,1,1,1,0,0,20150101,20150331\n"
+			+ "weekend,0,0,0,0,0,1,1,20150101,20150331\n"
+			+ "april,1,1,1,1,1,1,1,20150401,20150430\n";
+	
+	// Jan 19 is a holiday with weekend service, Feb 14 has special service
+	// that isn't in calendar.txt
+	private static final String CALENDAR_DATES_TXT = 
+			"service_id,date,exception_type\n"
+			+ "weekday,20150119,2\n"
+			+ "weekend,20150119,1\n"
+			+ "special,20150214,1\n";
+	
+	private static final String[] SERVICE_IDS = 
+		{"weekday", "weekend", "april", "special", "unknown"};
+	
+	private TimeZone originalDefaultTimeZone;
+	private DateFormat dateFormat;
+	private DbConfig dbConfig;
+	
+	/**
+	 * A DbConfig with just the calendars, so that no db is needed
+	 */
+	private static class CalendarsDbConfig extends DbConfig {
+		private final List<Calendar> calendars;
+		private final List<CalendarDate> calendarDates;
+		
+		private CalendarsDbConfig(List<Calendar> calendars, 
+				List<CalendarDate> calendarDates) {
+			super("testAgency");
+			this.calendars = calendars;
+			this.calendarDates = calendarDates;
+		}
+		
+		@Override
+		public List<Calendar> getCalendars() {
+			return calendars;
+		}
+		
+		@Override
+		public List<CalendarDate> getCalendarDates() {
+			return calendarDates;
+		}
+		
+		@Override
+		public List<CalendarDate> getCalendarDates(Date epochTime) {
+			long startOfDay = Time.getStartOfDay(epochTime);
+			List<CalendarDate> result = new ArrayList<CalendarDate>();
+			for (CalendarDate calendarDate : calendarDates) {
+				if (calendarDate.getTime() == startOfDay)
+					result.add(calendarDate);
+			}
+			return result.isEmpty() ? null : result;
+		}
+		
+		@Override
+		public Agency getFirstAgency() {
+			// So that the default time zone is used
+			return null;
+		}
+	}
+	
+	private static Iterable<CSVRecord> parse(String csv) throws IOException {
+		return CSVFormat.DEFAULT.withHeader().parse(new StringReader(csv));
+	}
+	
+	@Override
+	protected void setUp() throws IOException, ParseException {
+		// Without an agency the default time zone is used
+		originalDefaultTimeZone = TimeZone.getDefault();
+		TimeZone.setDefault(TimeZone.getTimeZone(TIMEZONE));
+		dateFormat = new SimpleDateFormat("yyyyMMdd");
+		
+		List<Calendar> calendars = new ArrayList<Calendar>();
+		for (CSVRecord record : parse(CALENDAR_TXT))
+			calendars.add(new Calendar(0, 
+					new GtfsCalendar(record, false, "calendar.txt"), 
+					dateFormat));
+		List<CalendarDate> calendarDates = new ArrayList<CalendarDate>();
+		for (CSVRecord record : parse(CALENDAR_DATES_TXT))
+			calendarDates.add(new CalendarDate(0, 
+					new GtfsCalendarDate(record, false, "calendar_dates.txt"),
+					dateFormat));
+		dbConfig = new CalendarsDbConfig(calendars, calendarDates);
+	}
+	
+	@Override
+	protected void tearDown() {
+		TimeZone.setDefault(originalDefaultTimeZone);
+	}
+	
+	private long time(String date, int hour, int minute) 
+			throws ParseException {
+		return dateFormat.parse(date).getTime() + hour * Time.MS_PER_HOUR 
+				+ minute * Time.MS_PER_MIN;
+	}
+	
+	/**
+	 * Compares the precomputed results to the ones determined from the 
+	 * calendars for the time.
+	 */
+	private void assertSameServiceIds(ServiceUtils precomputed, 
+			ServiceUtils notPrecomputed, long epochTime) {
+		String msg = "epochTime=" + new Date(epochTime);
+		assertEquals(msg, notPrecomputed.getServiceIdsForDay(epochTime),
+				precomputed.getServiceIdsForDay(epochTime));
+		assertEquals(msg, 
+				new HashSet<String>(notPrecomputed.getServiceIds(epochTime)),
+				new HashSet<String>(precomputed.getServiceIds(epochTime)));
+		for (String serviceId : SERVICE_IDS) {
+			assertEquals(msg + " serviceId=" + serviceId, 
+					notPrecomputed.getServiceIdsForDay(epochTime)
+						.contains(serviceId),
+					precomputed.isServiceIdActiveForDay(serviceId, epochTime));
+		}
+	}
+	
+	public void testSameAsNotPrecomputed() throws ParseException {
+		ServiceUtils precomputed = new ServiceUtils(dbConfig, true);
+		ServiceUtils notPrecomputed = new ServiceUtils(dbConfig, false);
+		
+		// From before the first calendar until past the days that are
+		// precomputed after the last one ends. Every 50 minutes so that 
+		// different times of day are covered, plus right around midnight.
+		long begin = time("20141225", 0, 0);
+		long end = time("20150801", 0, 0);
+		for (long t = begin; t < end; t += 50 * Time.MS_PER_MIN)
+			assertSameServiceIds(precomputed, notPrecomputed, t);
+		for (long day = begin; day < end; day += Time.MS_PER_DAY) {
+			// Adjust to local midnight in case of DST change
+			long midnight = 
+					Time.getStartOfDay(new Date(day + 12 * Time.MS_PER_HOUR));
+			assertSameServiceIds(precomputed, notPrecomputed, midnight - 1);
+			assertSameServiceIds(precomputed, notPrecomputed, midnight);
+			assertSameServiceIds(precomputed, notPrecomputed, midnight + 1);
+		}
+	}
+	
+	public void testCalendarDates() throws ParseException {
+		ServiceUtils serviceUtils = new ServiceUtils(dbConfig, true);
+		
+		// Monday holiday has weekend instead of weekday service
+		long holiday = time("20150119", 10, 0);
+		assertFalse(serviceUtils.isServiceIdActiveForDay("weekday", holiday));
+		assertTrue(serviceUtils.isServiceIdActiveForDay("weekend", holiday));
+		
+		// Special service that is only in calendar_dates.txt
+		long valentines = time("20150214", 10, 0);
+		assertTrue(serviceUtils.getServiceIdsForDay(valentines)
+				.contains("special"));
+		assertTrue(serviceUtils.isServiceIdActiveForDay("special", 
+				valentines));
+		assertFalse(serviceUtils.isServiceIdActiveForDay("special", 
+				valentines + Time.MS_PER_DAY));
+	}
+	
+	public void testPreviousDayEarlyInMorning() throws ParseException {
+		ServiceUtils serviceUtils = new ServiceUtils(dbConfig, true);
+		
+		// Early on the day after the holiday the holiday's weekend service
+		// is also included since blocks could still be running
+		assertTrue(serviceUtils.getServiceIds(time("20150120", 2, 0))
+				.contains("weekend"));
+		assertTrue(serviceUtils.getServiceIds(time("20150120", 2, 0))
+				.contains("weekday"));
+		assertFalse(serviceUtils.getServiceIds(time("20150120", 10, 0))
+				.contains("weekend"));
+	}
+	
+	public void testExpiredCalendars() throws ParseException {
+		ServiceUtils serviceUtils = new ServiceUtils(dbConfig, true);
+		
+		// After all calendars have expired the ones that ended last are
+		// still used
+		long expired = time("20150515", 10, 0);
+		assertEquals(1, serviceUtils.getServiceIdsForDay(expired).size());
+		assertTrue(serviceUtils.isServiceIdActiveForDay("april", expired));
+	}
+	
+}
@@ -0,0 +1,172 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ * 
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.transitime.configData.CoreConfig;
+import org.transitime.db.structs.Location;
+import org.transitime.db.structs.StopPath;
+import org.transitime.db.structs.VectorWithHeading;
+import org.transitime.utils.PlanarProjection;
+
+import junit.framework.TestCase;
+
+/**
+ * Makes sure that matching using the candidate segments shared via the
+ * SpatialCandidatesCache finds the same spatial matches as examining every
+ * segment of the trip pattern, which is what the SpatialMatcher does when
+ * nothing is cached. Uses many AVL headings for each location so that all
+ * of the heading buckets are covered.
+ * 
+ */
+public class TestSpatialCandidatesCache extends TestCase {
+
+	private static final int NUM_AVL_LOCATIONS = 500;
+	private static final int NUM_HEADINGS = 24;
+	private static final double ALLOWABLE_DISTANCE = 60.0;
+	private static final double INDEX_CELL_SIZE = 200.0;
+	private static final String TRIP_PATTERN_ID = "tripPattern";
+	
+	private PlanarProjection projection;
+	private List<VectorWithHeading> vectors;
+	private TripPatternSegmentIndex index;
+	
+	@Override
+	protected void setUp() {
+		projection = new PlanarProjection(37.75, -122.45);
+		PlanarProjection.setCurrent(projection);
+		SpatialCandidatesCache.getInstance().clear();
+		
+		List<StopPath> stopPaths = 
+				TestTripPatternSegmentIndex.createStopPaths();
+		index = new TripPatternSegmentIndex(null, stopPaths, INDEX_CELL_SIZE);
+		vectors = new ArrayList<VectorWithHeading>();
+		for (StopPath stopPath : stopPaths)
+			vectors.addAll(stopPath.getSegmentVectors());
+	}
+	
+	@Override
+	protected void tearDown() {
+		SpatialCandidatesCache.getInstance().clear();
+		PlanarProjection.setCurrent(null);
+	}
+	
+	/**
+	 * Determines the spatial matches the same way as 
+	 * SpatialMatcher.processPossiblePotentialMatch() does, by looking for
+	 * local minimums of the distance among the segments examined.
+	 * 
+	 * @return Sequential numbers of the matched segments
+	 */
+	private List<Integer> spatialMatches(BitSet segments, Location loc,
+			float heading) {
+		List<Integer> matches = new ArrayList<Integer>();
+		double previousDistance = Double.MAX_VALUE;
+		int potentialMatch = -1;
+		for (int i = segments.nextSetBit(0); i >= 0; 
+				i = segments.nextSetBit(i + 1)) {
+			VectorWithHeading vector = vectors.get(i);
+			double distance = vector.distance(loc);
+			if (distance <= previousDistance) {
+				if (distance < ALLOWABLE_DISTANCE
+						&& vector.headingOK(heading, 
+								CoreConfig.getMaxHeadingOffsetFromSegment()))
+					potentialMatch = i;
+			} else if (potentialMatch >= 0) {
+				matches.add(potentialMatch);
+				potentialMatch = -1;
+			}
+			previousDistance = distance;
+		}
+		if (potentialMatch >= 0)
+			matches.add(potentialMatch);
+		return matches;
+	}
+	
+	public void testSameMatchesAsUncached() {
+		BitSet allSegments = new BitSet(vectors.size());
+		allSegments.set(0, vectors.size());
+		
+		// Random AVL locations near the trip pattern, some within and some
+		// beyond the allowable distance
+		Random random = new Random(42);
+		for (int i = 0; i < NUM_AVL_LOCATIONS; ++i) {
+			Location l1 = vectors.get(random.nextInt(vectors.size())).getL1();
+			Location loc = new Location(
+					l1.getLat() + (random.nextDouble() - 0.5) * 0.0015,
+					l1.getLon() + (random.nextDouble() - 0.5) * 0.0015);
+			
+			// Unknown heading plus headings all the way around so that
+			// every heading bucket is used for the location
+			for (int h = -1; h < NUM_HEADINGS; ++h) {
+				float heading = h < 0 ? Float.NaN : 
+					(h + random.nextFloat()) * 360.0f / NUM_HEADINGS;
+				
+				List<Integer> uncachedMatches = 
+						spatialMatches(allSegments, loc, heading);
+				SpatialCandidatesCache.Candidates candidates = 
+						SpatialCandidatesCache.getInstance().getCandidates(
+								TRIP_PATTERN_ID, index, projection, loc, 
+								heading, ALLOWABLE_DISTANCE);
+				if (candidates.isHeadingMatchPossible()) {
+					assertEquals(uncachedMatches, spatialMatches(
+							candidates.getSegments(), loc, heading));
+				} else {
+					// Auto assigner skips the trip pattern so there must
+					// not be any matches
+					assertTrue(uncachedMatches.isEmpty());
+				}
+			}
+		}
+		
+		// Make sure that cached entries were actually used
+		assertTrue(SpatialCandidatesCache.getInstance().getStats()
+				.hitCount() > 0);
+	}
+	
+	public void testHeadingBuckets() {
+		Location loc = vectors.get(100).getL1();
+		SpatialCandidatesCache cache = SpatialCandidatesCache.getInstance();
+		
+		// Same cell and same heading bucket share the cached entry
+		SpatialCandidatesCache.Candidates north1 = cache.getCandidates(
+				TRIP_PATTERN_ID, index, projection, loc, 1.0f, 
+				ALLOWABLE_DISTANCE);
+		SpatialCandidatesCache.Candidates north2 = cache.getCandidates(
+				TRIP_PATTERN_ID, index, projection, loc, 2.0f, 
+				ALLOWABLE_DISTANCE);
+		assertSame(north1, north2);
+		
+		// A different bucket gets its own entry
+		SpatialCandidatesCache.Candidates east = cache.getCandidates(
+				TRIP_PATTERN_ID, index, projection, loc, 90.0f, 
+				ALLOWABLE_DISTANCE);
+		assertNotSame(north1, east);
+		assertTrue(north1.isHeadingMatchPossible());
+		
+		// A new index, such as for a new config rev, replaces stale entries
+		TripPatternSegmentIndex newIndex = new TripPatternSegmentIndex(null,
+				TestTripPatternSegmentIndex.createStopPaths(), INDEX_CELL_SIZE);
+		assertNotSame(north1, cache.getCandidates(TRIP_PATTERN_ID, newIndex,
+				projection, loc, 1.0f, ALLOWABLE_DISTANCE));
+	}
+	
+}
@@ -0,0 +1,263 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.transitime.db.structs.Block;
+import org.transitime.db.structs.Location;
+import org.transitime.db.structs.ScheduleTime;
+import org.transitime.db.structs.StopPath;
+import org.transitime.db.structs.TravelTimesForStopPath;
+import org.transitime.db.structs.TravelTimesForStopPath.HowSet;
+import org.transitime.db.structs.TravelTimesForTrip;
+import org.transitime.db.structs.Trip;
+import org.transitime.db.structs.TripPattern;
+import org.transitime.db.structs.TripTestUtils;
+import org.transitime.utils.Time;
+
+import junit.framework.TestCase;
+
+/**
+ * Makes sure that adding up the travel times for stop paths using the
+ * cumulative travel time tables of the trips gives the same results as
+ * going through the stop paths one at a time. Uses a block with multiple
+ * trips that have wait stops at the beginning of each trip and in the 
+ * middle of one of the trips.
+ * 
+ */
+public class TestTravelTimes extends TestCase {
+
+	private static final int NUM_TRIPS = 3;
+	private static final int NUM_STOP_PATHS = 5;
+	
+	private static final int FIRST_TRIP_START_TIME = 8 * Time.SEC_PER_HOUR;
+	private static final int SECS_BETWEEN_TRIPS = 30 * Time.SEC_PER_MIN;
+	private static final int SECS_BETWEEN_STOPS = 5 * Time.SEC_PER_MIN;
+	
+	private static final int STOP_TIME_MSEC = 20 * Time.MS_PER_SEC;
+	
+	// Second trip also waits at its fourth stop
+	private static final int MID_TRIP_WAIT_STOP_TRIP_INDEX = 1;
+	private static final int MID_TRIP_WAIT_STOP_INDEX = 3;
+	
+	private Block block;
+	
+	private static int getTripStartTime(int tripIndex) {
+		return FIRST_TRIP_START_TIME + tripIndex * SECS_BETWEEN_TRIPS;
+	}
+	
+	private static boolean isWaitStop(int tripIndex, int stopPathIndex) {
+		return stopPathIndex == 0 
+				|| (tripIndex == MID_TRIP_WAIT_STOP_TRIP_INDEX 
+					&& stopPathIndex == MID_TRIP_WAIT_STOP_INDEX);
+	}
+	
+	/**
+	 * Travel times for the two travel time segments of a stop path. Varied
+	 * so that adding up the wrong stop paths would give a different result.
+	 */
+	private static List<Integer> getTravelTimesMsec(int tripIndex,
+			int stopPathIndex) {
+		int base = 60 * Time.MS_PER_SEC 
+				+ (tripIndex * 7 + stopPathIndex * 13) * Time.MS_PER_SEC;
+		return Arrays.asList(base, base / 2 + 1);
+	}
+	
+	private static Trip createTrip(int tripIndex) {
+		String tripId = "trip" + tripIndex;
+		Trip trip = TripTestUtils.createTrip(tripId);
+
+		// Stop paths, each with two segments
+		List<StopPath> stopPaths = new ArrayList<StopPath>();
+		for (int i = 0; i < NUM_STOP_PATHS; ++i) {
+			StopPath stopPath = new StopPath(0, tripId + "_path" + i, 
+					"stop" + i, i + 1, i == NUM_STOP_PATHS - 1, "route1", 
+					i == 0, isWaitStop(tripIndex, i), false, null);
+			double lat = 37.75 + i * 0.002;
+			ArrayList<Location> locations = new ArrayList<Location>();
+			locations.add(new Location(lat, -122.45));
+			locations.add(new Location(lat + 0.001, -122.45));
+			locations.add(new Location(lat + 0.002, -122.45));
+			stopPath.setLocations(locations);
+			stopPath.onLoad(null, null);
+			stopPaths.add(stopPath);
+		}
+		trip.setTripPattern(new TripPattern(0, "pattern" + tripIndex, 
+				"shape1", stopPaths, trip, "1"));
+		
+		// Schedule times
+		List<ScheduleTime> scheduleTimes = new ArrayList<ScheduleTime>();
+		for (int i = 0; i < NUM_STOP_PATHS; ++i) {
+			int time = getTripStartTime(tripIndex) + i * SECS_BETWEEN_STOPS;
+			scheduleTimes.add(new ScheduleTime(time, time));
+		}
+		trip.addScheduleTimes(scheduleTimes);
+		
+		// Travel times
+		TravelTimesForTrip travelTimes = new TravelTimesForTrip(0, 0, trip);
+		for (int i = 0; i < NUM_STOP_PATHS; ++i) {
+			travelTimes.add(new TravelTimesForStopPath(0, 0, 
+					stopPaths.get(i).getId(), 100.0, 
+					getTravelTimesMsec(tripIndex, i), STOP_TIME_MSEC, 0, 
+					HowSet.SCHED, trip));
+		}
+		trip.setTravelTimes(travelTimes);
+		trip.createTravelTimeTable();
+		
+		return trip;
+	}
+	
+	@Override
+	protected void setUp() {
+		List<Trip> trips = new ArrayList<Trip>();
+		for (int t = 0; t < NUM_TRIPS; ++t)
+			trips.add(createTrip(t));
+		block = new Block(0, "block1", "service1", getTripStartTime(0), 
+				getTripStartTime(NUM_TRIPS), trips);
+	}
+	
+	/**
+	 * For every pair of stop paths of the block, and for times of day where
+	 * the vehicle has to wait at all, some, or none of the wait stops, makes
+	 * sure that the travel time table gives the same travel time as the per
+	 * stop path loop.
+	 */
+	public void testSameAsPerStopPathLoop() {
+		TravelTimes travelTimes = TravelTimes.getInstance();
+		int[] timesOfDaySecs = {
+				getTripStartTime(0) - Time.SEC_PER_HOUR,
+				getTripStartTime(0) + 10 * Time.SEC_PER_MIN,
+				getTripStartTime(1) + 12 * Time.SEC_PER_MIN,
+				getTripStartTime(NUM_TRIPS) + Time.SEC_PER_HOUR};
+		int numWaited = 0;
+		int numNotWaited = 0;
+		for (int timeOfDaySecs : timesOfDaySecs) {
+			for (int t1 = 0; t1 < NUM_TRIPS; ++t1) {
+				for (int s1 = 0; s1 < NUM_STOP_PATHS; ++s1) {
+					for (int t2 = t1; t2 < NUM_TRIPS; ++t2) {
+						for (int s2 = t2 == t1 ? s1 + 1 : 0; 
+								s2 < NUM_STOP_PATHS; ++s2) {
+							String msg = "timeOfDaySecs=" + timeOfDaySecs 
+									+ " from " + t1 + "/" + s1 
+									+ " to " + t2 + "/" + s2;
+							Indices endIndices = new Indices(block, t2, s2, 0);
+							
+							Indices loopIndices = new Indices(block, t1, s1, 0);
+							int loopTravelTimeMsec = 
+									travelTimes.expectedTravelTimeForStopPaths(
+											"vehicle1", timeOfDaySecs, 
+											loopIndices, endIndices, 0, false);
+							
+							Indices tableIndices = new Indices(block, t1, s1, 0);
+							int tableTravelTimeMsec = 
+									travelTimes.expectedTravelTimeForStopPaths(
+											"vehicle1", timeOfDaySecs, 
+											tableIndices, endIndices, 0, true);
+							
+							assertEquals(msg, loopTravelTimeMsec, 
+									tableTravelTimeMsec);
+							assertTrue(msg, 
+									loopIndices.equalStopPath(endIndices));
+							assertTrue(msg, 
+									tableIndices.equalStopPath(endIndices));
+							
+							// Make sure both cases where the vehicle has to
+							// wait and where it doesn't are covered
+							if (loopTravelTimeMsec == 
+									sumOfTimesMsec(t1, s1, t2, s2))
+								++numNotWaited;
+							else
+								++numWaited;
+						}
+					}
+				}
+			}
+		}
+		assertTrue(numWaited > 0);
+		assertTrue(numNotWaited > 0);
+	}
+	
+	/**
+	 * Makes sure that the time is right when crossing the mid trip wait stop
+	 * and the layover of the next trip, both when the vehicle has to wait
+	 * and when it is too late to.
+	 */
+	public void testWaitStops() {
+		TravelTimes travelTimes = TravelTimes.getInstance();
+		int midTripWaitStopDepartureSecs = 
+				getTripStartTime(MID_TRIP_WAIT_STOP_TRIP_INDEX) 
+				+ MID_TRIP_WAIT_STOP_INDEX * SECS_BETWEEN_STOPS;
+		
+		// Early enough to wait at the mid trip wait stop, which then 
+		// determines the travel time
+		int timeOfDaySecs = getTripStartTime(1);
+		int travelTimeMsec = travelTimes.expectedTravelTimeForStopPaths(
+				"vehicle1", timeOfDaySecs, new Indices(block, 1, 1, 0), 
+				new Indices(block, 2, 0, 0), 0, true);
+		assertTrue(timeOfDaySecs * Time.MS_PER_SEC 
+				+ sumOfTimesMsec(1, 1, 1, MID_TRIP_WAIT_STOP_INDEX + 1)
+				< midTripWaitStopDepartureSecs * Time.MS_PER_SEC);
+		assertEquals((midTripWaitStopDepartureSecs - timeOfDaySecs) 
+				* Time.MS_PER_SEC 
+				+ sumOfTimesMsec(1, MID_TRIP_WAIT_STOP_INDEX + 1, 2, 0), 
+				travelTimeMsec);
+		
+		// Too late for the mid trip wait stop but early enough to wait at 
+		// the layover of the next trip
+		timeOfDaySecs = midTripWaitStopDepartureSecs - Time.SEC_PER_MIN;
+		travelTimeMsec = travelTimes.expectedTravelTimeForStopPaths(
+				"vehicle1", timeOfDaySecs, new Indices(block, 1, 2, 0), 
+				new Indices(block, 2, 2, 0), 0, true);
+		assertTrue(timeOfDaySecs * Time.MS_PER_SEC 
+				+ sumOfTimesMsec(1, 2, 1, MID_TRIP_WAIT_STOP_INDEX + 1)
+				> midTripWaitStopDepartureSecs * Time.MS_PER_SEC);
+		assertEquals((getTripStartTime(2) - timeOfDaySecs) * Time.MS_PER_SEC
+				+ sumOfTimesMsec(2, 1, 2, 2), travelTimeMsec);
+		
+		// Much too late to wait anywhere so just the sum of the times
+		timeOfDaySecs = getTripStartTime(NUM_TRIPS);
+		travelTimeMsec = travelTimes.expectedTravelTimeForStopPaths(
+				"vehicle1", timeOfDaySecs, new Indices(block, 1, 1, 0), 
+				new Indices(block, 2, 2, 0), 0, true);
+		assertEquals(sumOfTimesMsec(1, 1, 2, 2), travelTimeMsec);
+	}
+	
+	/**
+	 * Returns the sum of the travel and stop times of the stop paths from
+	 * t1/s1 up to but not including t2/s2, without taking wait stops into
+	 * account.
+	 */
+	private static int sumOfTimesMsec(int t1, int s1, int t2, int s2) {
+		int sumMsec = 0;
+		int t = t1;
+		int s = s1;
+		while (t < t2 || (t == t2 && s < s2)) {
+			for (int travelTimeMsec : getTravelTimesMsec(t, s))
+				sumMsec += travelTimeMsec;
+			sumMsec += STOP_TIME_MSEC;
+			if (++s == NUM_STOP_PATHS) {
+				s = 0;
+				++t;
+			}
+		}
+		return sumMsec;
+	}
+	
+}
@@ -0,0 +1,158 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.transitime.db.structs.Location;
+import org.transitime.db.structs.StopPath;
+import org.transitime.db.structs.VectorWithHeading;
+import org.transitime.utils.Geo;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the spatial index of trip pattern segments. Creates a long winding
+ * trip pattern with thousands of points and for random AVL locations makes
+ * sure that the index returns every segment that a linear scan finds to be
+ * within the allowable distance.
+ * 
+ */
+public class TestTripPatternSegmentIndex extends TestCase {
+
+	private static final int NUM_STOP_PATHS = 60;
+	private static final int POINTS_PER_STOP_PATH = 100;
+	private static final int NUM_AVL_REPORTS = 2000;
+	private static final double ALLOWABLE_DISTANCE = 60.0;
+	private static final double CELL_SIZE = 200.0;
+	
+	/**
+	 * Creates a trip pattern that zigzags back and forth so that parts of 
+	 * it are near each other, like a route that goes up and down parallel
+	 * streets. Points are roughly 20m apart. Also used by
+	 * TestSpatialCandidatesCache.
+	 */
+	static List<StopPath> createStopPaths() {
+		List<StopPath> stopPaths = new ArrayList<StopPath>();
+		double lat = 37.75;
+		double lon = -122.45;
+		double latStep = 20.0 / 111000.0;
+		int direction = 1;
+		int pointsInLeg = 0;
+		Location previousLoc = new Location(lat, lon);
+		for (int i = 0; i < NUM_STOP_PATHS; ++i) {
+			StopPath stopPath = new StopPath(0, "path" + i, "stop" + i, i,
+					i == NUM_STOP_PATHS - 1, "route", i == 0, false, false,
+					null);
+			ArrayList<Location> locations = new ArrayList<Location>();
+			locations.add(previousLoc);
+			for (int j = 0; j < POINTS_PER_STOP_PATH; ++j) {
+				// Every 150 points (3km) move over 250m and reverse direction
+				if (++pointsInLeg == 150) {
+					pointsInLeg = 0;
+					direction = -direction;
+					lon += 250.0 / 88000.0;
+				} else {
+					lat += direction * latStep;
+				}
+				previousLoc = new Location(lat, lon);
+				locations.add(previousLoc);
+			}
+			stopPath.setLocations(locations);
+			stopPath.onLoad(null, null);
+			stopPaths.add(stopPath);
+		}
+		return stopPaths;
+	}
+	
+	/**
+	 * Returns the sequential segment numbers of all the segments within the
+	 * allowable distance, determined by looking at every segment.
+	 */
+	private static BitSet linearScan(List<VectorWithHeading> vectors,
+			Location loc) {
+		BitSet matches = new BitSet(vectors.size());
+		for (int i = 0; i < vectors.size(); ++i) {
+			if (Geo.distance(loc, vectors.get(i)) < ALLOWABLE_DISTANCE)
+				matches.set(i);
+		}
+		return matches;
+	}
+	
+	/**
+	 * Same as linearScan() but only looks at the candidate segments from
+	 * the index.
+	 */
+	private static BitSet indexedScan(TripPatternSegmentIndex index,
+			List<VectorWithHeading> vectors, Location loc) {
+		BitSet candidates = 
+				index.getCandidateSegments(loc, ALLOWABLE_DISTANCE);
+		BitSet matches = new BitSet(vectors.size());
+		for (int i = candidates.nextSetBit(0); i >= 0; 
+				i = candidates.nextSetBit(i + 1)) {
+			if (Geo.distance(loc, vectors.get(i)) < ALLOWABLE_DISTANCE)
+				matches.set(i);
+		}
+		return matches;
+	}
+	
+	public void testIndex() {
+		List<StopPath> stopPaths = createStopPaths();
+		TripPatternSegmentIndex index = 
+				new TripPatternSegmentIndex(null, stopPaths, CELL_SIZE);
+		
+		// Flatten the vectors so can access them by segment number
+		List<VectorWithHeading> vectors = new ArrayList<VectorWithHeading>();
+		for (StopPath stopPath : stopPaths)
+			vectors.addAll(stopPath.getSegmentVectors());
+		assertEquals(vectors.size(), index.getNumSegments());
+		for (int i = 0; i < vectors.size(); ++i) {
+			StopPath stopPath = stopPaths.get(index.getStopPathIndex(i));
+			assertSame(vectors.get(i), 
+					stopPath.getSegmentVector(index.getSegmentIndex(i)));
+		}
+		
+		// Random AVL locations near the points of the trip pattern
+		Random random = new Random(42);
+		List<Location> avlLocations = new ArrayList<Location>();
+		for (int i = 0; i < NUM_AVL_REPORTS; ++i) {
+			VectorWithHeading vector = 
+					vectors.get(random.nextInt(vectors.size()));
+			Location l1 = vector.getL1();
+			avlLocations.add(new Location(
+					l1.getLat() + (random.nextDouble() - 0.5) * 0.0015,
+					l1.getLon() + (random.nextDouble() - 0.5) * 0.0015));
+		}
+		
+		// Make sure the index finds everything the linear scan finds, and 
+		// that the index actually reduces the number of segments examined
+		long candidateCount = 0;
+		for (Location loc : avlLocations) {
+			assertEquals(linearScan(vectors, loc), 
+					indexedScan(index, vectors, loc));
+			candidateCount += 
+					index.getCandidateSegments(loc, ALLOWABLE_DISTANCE)
+						.cardinality();
+		}
+		double avgCandidates = (double) candidateCount / NUM_AVL_REPORTS;
+		assertTrue(avgCandidates < vectors.size() / 10);
+	}
+	
+}
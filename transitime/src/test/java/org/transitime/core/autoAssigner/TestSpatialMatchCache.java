@@ -0,0 +1,201 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core.autoAssigner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.transitime.core.SpatialMatch;
+import org.transitime.db.structs.AvlReport;
+import org.transitime.db.structs.Block;
+import org.transitime.db.structs.Location;
+import org.transitime.db.structs.StopPath;
+import org.transitime.db.structs.Trip;
+import org.transitime.db.structs.TripPattern;
+import org.transitime.db.structs.TripTestUtils;
+import org.transitime.utils.Time;
+
+import junit.framework.TestCase;
+
+/**
+ * Makes sure that SpatialMatchCache gives the same spatial matches when the
+ * trips of the blocks are examined in parallel as when they are examined
+ * serially, and that each trip pattern is only spatially matched once.
+ *
+ */
+public class TestSpatialMatchCache extends TestCase {
+
+	private static final long AVL_TIME = 1420113600000L;
+
+	private static final int NUM_TRIP_PATTERNS = 5;
+	private static final int NUM_TRIPS = 60;
+	private static final int NUM_STOP_PATHS = 3;
+
+	private AvlReport avlReport;
+	private Block block;
+
+	/**
+	 * Returns two spatial matches for each trip, like for a trip pattern
+	 * that loops back past the AVL report, and counts how many times trip
+	 * patterns are spatially matched.
+	 */
+	private class CountingSpatialMatchCache extends SpatialMatchCache {
+		private final AtomicInteger numTimesMatched = new AtomicInteger();
+
+		@Override
+		List<SpatialMatch> determineSpatialMatches(AvlReport avlReport,
+				Block block, Trip trip) {
+			numTimesMatched.incrementAndGet();
+
+			// Take a bit of time like real spatial matching does so that
+			// the blocks examined in parallel overlap
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			int tripIndex = block.getTripIndex(trip);
+			double distanceAlongSegment = 10.0 + tripIndex % NUM_TRIP_PATTERNS;
+			return Arrays.asList(
+					new SpatialMatch(AVL_TIME, block, tripIndex, 1, 0, 5.0,
+							distanceAlongSegment),
+					new SpatialMatch(AVL_TIME, block, tripIndex, 2, 0, 5.0,
+							distanceAlongSegment));
+		}
+
+		/**
+		 * The SpatialMatch copy constructor needs the Core to determine the
+		 * block of the trip, so uses the block of the test instead.
+		 */
+		@Override
+		SpatialMatch copyForTrip(SpatialMatch spatialMatch, Trip trip) {
+			return new SpatialMatch(spatialMatch.getAvlTime(), block,
+					block.getTripIndex(trip), spatialMatch.getStopPathIndex(),
+					spatialMatch.getSegmentIndex(),
+					spatialMatch.getDistanceToSegment(),
+					spatialMatch.getDistanceAlongSegment());
+		}
+	}
+
+	private static TripPattern createTripPattern(int patternIndex, Trip trip) {
+		String tripPatternId = "pattern" + patternIndex;
+		List<StopPath> stopPaths = new ArrayList<StopPath>();
+		for (int i = 0; i < NUM_STOP_PATHS; ++i) {
+			StopPath stopPath = new StopPath(0, tripPatternId + "_path" + i,
+					"stop" + i, i + 1, i == NUM_STOP_PATHS - 1, "route1",
+					i == 0, i == 0, false, null);
+			double lat = 37.75 + i * 0.002;
+			double lon = -122.45 + patternIndex * 0.01;
+			ArrayList<Location> locations = new ArrayList<Location>();
+			locations.add(new Location(lat, lon));
+			locations.add(new Location(lat + 0.002, lon));
+			stopPath.setLocations(locations);
+			stopPath.onLoad(null, null);
+			stopPaths.add(stopPath);
+		}
+		return new TripPattern(0, tripPatternId, "shape1", stopPaths, trip,
+				"1");
+	}
+
+	@Override
+	protected void setUp() {
+		avlReport = new AvlReport("vehicle1", AVL_TIME, 37.75, -122.45,
+				"test");
+
+		// The trips take turns using the trip patterns
+		TripPattern[] tripPatterns = new TripPattern[NUM_TRIP_PATTERNS];
+		List<Trip> trips = new ArrayList<Trip>();
+		for (int i = 0; i < NUM_TRIPS; ++i) {
+			Trip trip = TripTestUtils.createTrip("trip" + i);
+			int patternIndex = i % NUM_TRIP_PATTERNS;
+			if (tripPatterns[patternIndex] == null)
+				tripPatterns[patternIndex] =
+						createTripPattern(patternIndex, trip);
+			trip.setTripPattern(tripPatterns[patternIndex]);
+			trips.add(trip);
+		}
+		block = new Block(0, "block1", "service1", 0, Time.SEC_PER_DAY,
+				trips);
+	}
+
+	private static void assertSameMatches(String message,
+			List<SpatialMatch> expected, List<SpatialMatch> actual) {
+		assertEquals(message, expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); ++i) {
+			SpatialMatch e = expected.get(i);
+			SpatialMatch a = actual.get(i);
+			assertEquals(message, e.getTripIndex(), a.getTripIndex());
+			assertEquals(message, e.getStopPathIndex(), a.getStopPathIndex());
+			assertEquals(message, e.getSegmentIndex(), a.getSegmentIndex());
+			assertEquals(message, e.getDistanceAlongSegment(),
+					a.getDistanceAlongSegment(), 0.0);
+		}
+	}
+
+	public void testParallelSameAsSerial() throws Exception {
+		// Examine the trips serially
+		CountingSpatialMatchCache serialCache = new CountingSpatialMatchCache();
+		List<List<SpatialMatch>> serialMatches =
+				new ArrayList<List<SpatialMatch>>();
+		for (Trip trip : block.getTrips())
+			serialMatches.add(
+					serialCache.getSpatialMatches(avlReport, block, trip));
+		assertEquals(NUM_TRIP_PATTERNS, serialCache.numTimesMatched.get());
+
+		// Examine the trips in parallel the way AutoBlockAssigner does
+		final CountingSpatialMatchCache parallelCache =
+				new CountingSpatialMatchCache();
+		List<Callable<List<SpatialMatch>>> tasks =
+				new ArrayList<Callable<List<SpatialMatch>>>();
+		for (final Trip trip : block.getTrips()) {
+			tasks.add(new Callable<List<SpatialMatch>>() {
+				@Override
+				public List<SpatialMatch> call() {
+					return parallelCache.getSpatialMatches(avlReport, block,
+							trip);
+				}
+			});
+		}
+		ForkJoinPool pool = new ForkJoinPool(8);
+		List<List<SpatialMatch>> parallelMatches =
+				new ArrayList<List<SpatialMatch>>();
+		try {
+			for (Future<List<SpatialMatch>> future : pool.invokeAll(tasks))
+				parallelMatches.add(future.get());
+		} finally {
+			pool.shutdown();
+		}
+		assertEquals(NUM_TRIP_PATTERNS, parallelCache.numTimesMatched.get());
+
+		// Every trip gets all the matches of its trip pattern, for the trip
+		for (int i = 0; i < NUM_TRIPS; ++i) {
+			List<SpatialMatch> matches = serialMatches.get(i);
+			assertEquals(2, matches.size());
+			for (SpatialMatch match : matches)
+				assertEquals(i, match.getTripIndex());
+			assertSameMatches("tripIndex " + i, matches,
+					parallelMatches.get(i));
+		}
+	}
+
+}
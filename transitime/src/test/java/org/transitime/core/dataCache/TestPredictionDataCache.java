@@ -0,0 +1,168 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ * 
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core.dataCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.transitime.core.dataCache.PredictionDataCache.PredictionsDiff;
+import org.transitime.db.structs.AvlReport;
+import org.transitime.db.structs.Trip;
+import org.transitime.db.structs.TripTestUtils;
+import org.transitime.ipc.data.IpcPrediction;
+import org.transitime.ipc.data.IpcPrediction.ArrivalOrDeparture;
+import org.transitime.utils.Time;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests how PredictionDataCache determines which route/stop/destinations
+ * need to be updated when the predictions for a vehicle are updated. Only
+ * the ones where the predictions changed for clients are to be updated, and
+ * for the others the predictions already in the cache are kept.
+ * 
+ */
+public class TestPredictionDataCache extends TestCase {
+
+	private static final long AVL_TIME = 1420113600000L;
+	
+	private AvlReport avlReport;
+	private Trip trip;
+	
+	private IpcPrediction createPrediction(int gtfsStopSeq, 
+			long predictionTime, boolean isDelayed) {
+		return new IpcPrediction(avlReport, "stop" + gtfsStopSeq, gtfsStopSeq,
+				trip, AVL_TIME, predictionTime, predictionTime, false, false,
+				isDelayed, false, ArrivalOrDeparture.ARRIVAL);
+	}
+	
+	/**
+	 * Returns predictions for three stops. The times are offset by the
+	 * specified number of msec for the stop with gtfsStopSeq 2.
+	 */
+	private List<IpcPrediction> createPredictions(long stop2OffsetMsec) {
+		return Arrays.asList(
+				createPrediction(1, AVL_TIME + Time.MS_PER_MIN, false),
+				createPrediction(2, AVL_TIME + 3 * Time.MS_PER_MIN 
+						+ stop2OffsetMsec, false),
+				createPrediction(3, AVL_TIME + 5 * Time.MS_PER_MIN, false));
+	}
+	
+	private static void assertSameInstances(List<IpcPrediction> expected,
+			List<IpcPrediction> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); ++i)
+			assertSame("index " + i, expected.get(i), actual.get(i));
+	}
+	
+	@Override
+	protected void setUp() {
+		avlReport = new AvlReport("vehicle1", AVL_TIME, 37.78, -122.41, 
+				"test");
+		avlReport.setTimeProcessed();
+		trip = TripTestUtils.createTrip("trip1");
+	}
+	
+	/**
+	 * MatchProcessor doesn't update the cache at all when the prediction
+	 * generator returns the existing predictions. This makes sure that is
+	 * the same as updating the cache with them.
+	 */
+	public void testSamePredictionsList() {
+		List<IpcPrediction> predictions = createPredictions(0);
+		PredictionsDiff diff = 
+				PredictionDataCache.diffPredictions(predictions, predictions);
+		
+		assertTrue(diff.changedPredictions.isEmpty());
+		assertTrue(diff.removedPredictions.isEmpty());
+		assertSameInstances(predictions, diff.cachedPredictions);
+	}
+	
+	/**
+	 * New prediction objects that are the same for clients as the ones in
+	 * the cache don't cause an update and the ones in the cache are kept.
+	 */
+	public void testEquivalentPredictions() {
+		List<IpcPrediction> oldPredictions = createPredictions(0);
+		List<IpcPrediction> newPredictions = createPredictions(0);
+		PredictionsDiff diff = PredictionDataCache.diffPredictions(
+				oldPredictions, newPredictions);
+		
+		assertTrue(diff.changedPredictions.isEmpty());
+		assertTrue(diff.removedPredictions.isEmpty());
+		assertSameInstances(oldPredictions, diff.cachedPredictions);
+	}
+	
+	public void testOnlyChangedStopUpdated() {
+		List<IpcPrediction> oldPredictions = createPredictions(0);
+		List<IpcPrediction> newPredictions = 
+				createPredictions(20 * Time.MS_PER_SEC);
+		PredictionsDiff diff = PredictionDataCache.diffPredictions(
+				oldPredictions, newPredictions);
+		
+		assertEquals(1, diff.changedPredictions.size());
+		assertSameInstances(newPredictions.subList(1, 2), 
+				diff.changedPredictions.get(0));
+		assertTrue(diff.removedPredictions.isEmpty());
+		assertSameInstances(Arrays.asList(oldPredictions.get(0), 
+				newPredictions.get(1), oldPredictions.get(2)), 
+				diff.cachedPredictions);
+	}
+	
+	public void testStatusChangeUpdated() {
+		List<IpcPrediction> oldPredictions = createPredictions(0);
+		List<IpcPrediction> newPredictions = 
+				new ArrayList<IpcPrediction>(createPredictions(0));
+		newPredictions.set(2, createPrediction(3, 
+				oldPredictions.get(2).getPredictionTime(), true));
+		PredictionsDiff diff = PredictionDataCache.diffPredictions(
+				oldPredictions, newPredictions);
+		
+		assertEquals(1, diff.changedPredictions.size());
+		assertSameInstances(newPredictions.subList(2, 3), 
+				diff.changedPredictions.get(0));
+	}
+	
+	/**
+	 * Old predictions for stops that no longer have a prediction, such as
+	 * once the vehicle has passed the stop, are removed.
+	 */
+	public void testPassedStopRemoved() {
+		List<IpcPrediction> oldPredictions = createPredictions(0);
+		List<IpcPrediction> newPredictions = createPredictions(0).subList(1, 3);
+		PredictionsDiff diff = PredictionDataCache.diffPredictions(
+				oldPredictions, newPredictions);
+		
+		assertTrue(diff.changedPredictions.isEmpty());
+		assertSameInstances(oldPredictions.subList(0, 1), 
+				diff.removedPredictions);
+		assertSameInstances(oldPredictions.subList(1, 3), 
+				diff.cachedPredictions);
+	}
+	
+	public void testNoOldPredictions() {
+		List<IpcPrediction> newPredictions = createPredictions(0);
+		PredictionsDiff diff = 
+				PredictionDataCache.diffPredictions(null, newPredictions);
+		
+		assertEquals(newPredictions.size(), diff.changedPredictions.size());
+		assertTrue(diff.removedPredictions.isEmpty());
+		assertSameInstances(newPredictions, diff.cachedPredictions);
+	}
+	
+}
@@ -0,0 +1,105 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ * 
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.db.hibernate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.hibernate.HibernateException;
+
+import junit.framework.TestCase;
+
+/**
+ * Makes sure that int arrays survive being encoded and decoded by
+ * PackedIntArrayType, that data stored as a Java serialized List of Integers
+ * can still be read, and that the encoding is more compact.
+ * 
+ */
+public class TestPackedIntArrayType extends TestCase {
+
+	private static byte[] serialize(ArrayList<Integer> list) 
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(list);
+		out.close();
+		return bytes.toByteArray();
+	}
+	
+	public void testRoundTrip() {
+		int[][] arrays = {
+				{},
+				{0},
+				{45000},
+				{12000, 12500, 11800, 30000, 0, 64, -64},
+				{Integer.MAX_VALUE, Integer.MIN_VALUE, -1, Integer.MAX_VALUE},
+		};
+		for (int[] values : arrays) {
+			byte[] encoded = PackedIntArrayType.encode(values);
+			assertFalse(PackedIntArrayType.isJavaSerialized(encoded));
+			assertTrue(Arrays.toString(values), Arrays.equals(values, 
+					PackedIntArrayType.decode(encoded)));
+		}
+	}
+	
+	public void testReadsJavaSerializedList() throws IOException {
+		ArrayList<Integer> list = new ArrayList<Integer>();
+		int[] expected = new int[40];
+		for (int i = 0; i < expected.length; ++i) {
+			expected[i] = 20000 + (i % 7) * 150;
+			list.add(expected[i]);
+		}
+		
+		byte[] serialized = serialize(list);
+		assertTrue(PackedIntArrayType.isJavaSerialized(serialized));
+		assertTrue(Arrays.equals(expected, 
+				PackedIntArrayType.decode(serialized)));
+		
+		// Similar travel times should take just a couple of bytes each. 
+		// The first one is a full value and takes 3 bytes, plus there is 
+		// the format version and the count.
+		byte[] encoded = PackedIntArrayType.encode(expected);
+		assertTrue(encoded.length <= 3 + 2 * expected.length);
+		assertTrue(encoded.length * 4 < serialized.length);
+	}
+	
+	public void testRejectsBadData() {
+		byte[][] badData = {
+				{},
+				{9, 1, 2},
+				// Says there are 3 values but only has 1
+				{1, 3, 2},
+				// Count of Integer.MAX_VALUE, which shouldn't be allocated
+				{1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 7, 2},
+				// Count of -1
+				{1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0xF},
+				// Truncated in the middle of a value
+				{1, 1, (byte) 0x80},
+		};
+		for (byte[] bytes : badData) {
+			try {
+				PackedIntArrayType.decode(bytes);
+				fail("Expected exception for " + Arrays.toString(bytes));
+			} catch (HibernateException e) {
+				// Expected
+			}
+		}
+	}
+}
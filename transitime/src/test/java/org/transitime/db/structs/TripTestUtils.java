@@ -0,0 +1,44 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.db.structs;
+
+import org.transitime.gtfs.TitleFormatter;
+import org.transitime.gtfs.gtfsStructs.GtfsTrip;
+
+/**
+ * For creating trips in tests without needing GTFS data or a database. The
+ * trips are all for route1, service1 and block1 and have the headsign
+ * Downtown.
+ *
+ */
+public class TripTestUtils {
+
+	/**
+	 * Creates a trip without a trip pattern, schedule times or travel times.
+	 * Those can be added by the test as needed.
+	 *
+	 * @param tripId
+	 * @return the new trip
+	 */
+	public static Trip createTrip(String tripId) {
+		GtfsTrip gtfsTrip = new GtfsTrip("route1", "service1", tripId,
+				"Downtown", null, "0", "block1", "shape1");
+		return new Trip(0, gtfsTrip, "route1", "1", "Downtown",
+				new TitleFormatter(null, false));
+	}
+
+}
@@ -0,0 +1,154 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ * 
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.gtfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.transitime.db.structs.Calendar;
+import org.transitime.db.structs.CalendarDate;
+import org.transitime.gtfs.gtfsStructs.GtfsCalendar;
+import org.transitime.gtfs.gtfsStructs.GtfsCalendarDate;
+
+import junit.framework.TestCase;
+
+/**
+ * Makes sure that config data written to a snapshot by DbConfigSnapshot is
+ * the same when read back in, and that snapshots for a different format
+ * version, configRev, or travel times rev are not used.
+ * 
+ */
+public class TestDbConfigSnapshot extends TestCase {
+
+	private static final String AGENCY_ID = "testAgency";
+	private static final int CONFIG_REV = 7;
+	private static final int TRAVEL_TIMES_REV = 3;
+	
+	private static final String CALENDAR_TXT = 
+			"service_id,monday,tuesday,wednesday,thursday,friday,saturday,"
+			+ "sunday,start_date,end_date\n"
+			+ "weekday,1,1,1,1,1,0,0,20150101,20150331\n"
+			+ "weekend,0,0,0,0,0,1,1,20150101,20150331\n";
+	
+	private static final String CALENDAR_DATES_TXT = 
+			"service_id,date,exception_type\n"
+			+ "weekday,20150119,2\n"
+			+ "weekend,20150119,1\n";
+	
+	// Offset of the format version in the snapshot file, after the magic
+	// number
+	private static final int FORMAT_VERSION_OFFSET = 4;
+	
+	private File file;
+	private DbConfig dbConfig;
+	
+	private static Iterable<CSVRecord> parse(String csv) throws IOException {
+		return CSVFormat.DEFAULT.withHeader().parse(new StringReader(csv));
+	}
+	
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("configSnapshot", ".ser");
+		
+		DateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
+		ArrayList<Calendar> calendars = new ArrayList<Calendar>();
+		for (CSVRecord record : parse(CALENDAR_TXT))
+			calendars.add(new Calendar(CONFIG_REV, 
+					new GtfsCalendar(record, false, "calendar.txt"), 
+					dateFormat));
+		ArrayList<CalendarDate> calendarDates = new ArrayList<CalendarDate>();
+		for (CSVRecord record : parse(CALENDAR_DATES_TXT))
+			calendarDates.add(new CalendarDate(CONFIG_REV, 
+					new GtfsCalendarDate(record, false, "calendar_dates.txt"),
+					dateFormat));
+		
+		// Populate the DbConfig the same way a snapshot is read, with 
+		// everything other than the calendars being empty
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		for (int i = 0; i < 6; ++i)
+			out.writeObject(new ArrayList<Object>());
+		out.writeObject(calendars);
+		out.writeObject(calendarDates);
+		for (int i = 0; i < 4; ++i)
+			out.writeObject(new ArrayList<Object>());
+		out.close();
+		dbConfig = new DbConfig(AGENCY_ID);
+		dbConfig.readSnapshotData(CONFIG_REV, new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())));
+	}
+	
+	@Override
+	protected void tearDown() {
+		file.delete();
+	}
+	
+	public void testRoundTrip() {
+		DbConfigSnapshot.write(dbConfig, TRAVEL_TIMES_REV, file);
+		
+		DbConfig readConfig = new DbConfig(AGENCY_ID);
+		assertTrue(DbConfigSnapshot.read(readConfig, CONFIG_REV, file, 
+				TRAVEL_TIMES_REV));
+		assertEquals(CONFIG_REV, readConfig.getConfigRev());
+		assertEquals(dbConfig.getCalendars(), readConfig.getCalendars());
+		assertEquals(dbConfig.getCalendarDates(), 
+				readConfig.getCalendarDates());
+		assertTrue(readConfig.getBlocks().isEmpty());
+		assertTrue(readConfig.getRoutes().isEmpty());
+	}
+	
+	public void testFormatVersionMismatch() throws IOException {
+		DbConfigSnapshot.write(dbConfig, TRAVEL_TIMES_REV, file);
+		
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.seek(FORMAT_VERSION_OFFSET);
+			int formatVersion = randomAccessFile.readInt();
+			randomAccessFile.seek(FORMAT_VERSION_OFFSET);
+			randomAccessFile.writeInt(formatVersion + 1);
+		} finally {
+			randomAccessFile.close();
+		}
+		
+		assertFalse(DbConfigSnapshot.read(new DbConfig(AGENCY_ID), CONFIG_REV,
+				file, TRAVEL_TIMES_REV));
+	}
+	
+	public void testRevisionMismatch() {
+		DbConfigSnapshot.write(dbConfig, TRAVEL_TIMES_REV, file);
+		
+		assertFalse(DbConfigSnapshot.read(new DbConfig(AGENCY_ID), 
+				CONFIG_REV + 1, file, TRAVEL_TIMES_REV));
+		assertFalse(DbConfigSnapshot.read(new DbConfig(AGENCY_ID), CONFIG_REV,
+				file, TRAVEL_TIMES_REV + 1));
+		assertFalse(DbConfigSnapshot.read(new DbConfig("otherAgency"), 
+				CONFIG_REV, file, TRAVEL_TIMES_REV));
+	}
+	
+}
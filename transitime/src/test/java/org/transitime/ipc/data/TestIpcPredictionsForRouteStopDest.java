@@ -0,0 +1,279 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.ipc.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.transitime.db.structs.AvlReport;
+import org.transitime.db.structs.Trip;
+import org.transitime.db.structs.TripTestUtils;
+import org.transitime.ipc.data.IpcPrediction.ArrivalOrDeparture;
+import org.transitime.utils.Time;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the copy on write updating of the predictions for a
+ * route/stop/destination that PredictionDataCache publishes to readers, and
+ * the limiting of the predictions returned to clients by getClone().
+ *
+ */
+public class TestIpcPredictionsForRouteStopDest extends TestCase {
+
+	private static final long AVL_TIME = 1420113600000L;
+
+	private Trip trip;
+	private IpcPredictionsForRouteStopDest emptyPreds;
+
+	private IpcPrediction createPrediction(String vehicleId,
+			long predictionTime) {
+		AvlReport avlReport =
+				new AvlReport(vehicleId, AVL_TIME, 37.78, -122.41, "test");
+		avlReport.setTimeProcessed();
+		return new IpcPrediction(avlReport, "stop1", 1, trip, AVL_TIME,
+				predictionTime, predictionTime, false, false, false, false,
+				ArrivalOrDeparture.ARRIVAL);
+	}
+
+	private static long minutes(int mins) {
+		return AVL_TIME + mins * Time.MS_PER_MIN;
+	}
+
+	private static void assertSameInstances(List<IpcPrediction> expected,
+			List<IpcPrediction> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); ++i)
+			assertSame("index " + i, expected.get(i), actual.get(i));
+	}
+
+	@Override
+	protected void setUp() {
+		trip = TripTestUtils.createTrip("trip1");
+		emptyPreds = new IpcPredictionsForRouteStopDest("route1", "1",
+				"Route 1", 0, "stop1", "Stop 1", 1, "Downtown", "0",
+				Double.NaN, Collections.<IpcPrediction> emptyList());
+	}
+
+	public void testOrderedByPredictionTime() {
+		IpcPrediction v1Late = createPrediction("v1", minutes(9));
+		IpcPrediction v1Early = createPrediction("v1", minutes(1));
+		IpcPrediction v2Late = createPrediction("v2", minutes(7));
+		IpcPrediction v2Early = createPrediction("v2", minutes(3));
+
+		IpcPredictionsForRouteStopDest preds = emptyPreds
+				.withPredictionsForVehicle(Arrays.asList(v1Late, v1Early),
+						AVL_TIME)
+				.withPredictionsForVehicle(Arrays.asList(v2Late, v2Early),
+						AVL_TIME);
+
+		assertSameInstances(Arrays.asList(v1Early, v2Early, v2Late, v1Late),
+				preds.getPredictionsForRouteStop());
+	}
+
+	/**
+	 * For predictions with the same time the order they were added in is
+	 * kept, with new predictions coming after the existing ones.
+	 */
+	public void testStableOrderOnTies() {
+		IpcPrediction v1 = createPrediction("v1", minutes(5));
+		IpcPrediction v2 = createPrediction("v2", minutes(5));
+		IpcPrediction v3First = createPrediction("v3", minutes(5));
+		IpcPrediction v3Second = createPrediction("v3", minutes(5));
+
+		IpcPredictionsForRouteStopDest preds = emptyPreds
+				.withPredictionsForVehicle(Arrays.asList(v1), AVL_TIME)
+				.withPredictionsForVehicle(Arrays.asList(v2), AVL_TIME)
+				.withPredictionsForVehicle(Arrays.asList(v3First, v3Second),
+						AVL_TIME);
+		assertSameInstances(Arrays.asList(v1, v2, v3First, v3Second),
+				preds.getPredictionsForRouteStop());
+
+		// Updating v1 moves it after the others with the same time
+		IpcPrediction v1Updated = createPrediction("v1", minutes(5));
+		preds = preds.withPredictionsForVehicle(Arrays.asList(v1Updated),
+				AVL_TIME);
+		assertSameInstances(Arrays.asList(v2, v3First, v3Second, v1Updated),
+				preds.getPredictionsForRouteStop());
+	}
+
+	public void testReplacesOnlyPredictionsForVehicle() {
+		IpcPrediction v1First = createPrediction("v1", minutes(2));
+		IpcPrediction v1Second = createPrediction("v1", minutes(12));
+		IpcPrediction v2 = createPrediction("v2", minutes(6));
+		IpcPredictionsForRouteStopDest preds = emptyPreds
+				.withPredictionsForVehicle(Arrays.asList(v1First, v1Second),
+						AVL_TIME)
+				.withPredictionsForVehicle(Arrays.asList(v2), AVL_TIME);
+
+		IpcPrediction v1Updated = createPrediction("v1", minutes(4));
+		IpcPredictionsForRouteStopDest updatedPreds = preds
+				.withPredictionsForVehicle(Arrays.asList(v1Updated), AVL_TIME);
+
+		assertSameInstances(Arrays.asList(v1Updated, v2),
+				updatedPreds.getPredictionsForRouteStop());
+		// The original object is not modified so readers can keep using it
+		assertSameInstances(Arrays.asList(v1First, v2, v1Second),
+				preds.getPredictionsForRouteStop());
+
+		// No new predictions means nothing to change
+		assertSame(preds, preds.withPredictionsForVehicle(
+				Collections.<IpcPrediction> emptyList(), AVL_TIME));
+	}
+
+	public void testWithoutPrediction() {
+		IpcPrediction v1 = createPrediction("v1", minutes(2));
+		IpcPrediction v2 = createPrediction("v2", minutes(4));
+		IpcPredictionsForRouteStopDest preds = emptyPreds
+				.withPredictionsForVehicle(Arrays.asList(v1), AVL_TIME)
+				.withPredictionsForVehicle(Arrays.asList(v2), AVL_TIME);
+
+		IpcPredictionsForRouteStopDest withoutV1 = preds.withoutPrediction(v1);
+		assertSameInstances(Arrays.asList(v2),
+				withoutV1.getPredictionsForRouteStop());
+		assertSameInstances(Arrays.asList(v1, v2),
+				preds.getPredictionsForRouteStop());
+
+		assertSame(withoutV1, withoutV1.withoutPrediction(v1));
+	}
+
+	public void testExpiredPredictionsDropped() {
+		IpcPrediction expired = createPrediction("v1", minutes(1));
+		IpcPrediction current = createPrediction("v2", minutes(3));
+		IpcPredictionsForRouteStopDest preds = emptyPreds
+				.withPredictionsForVehicle(Arrays.asList(expired), AVL_TIME)
+				.withPredictionsForVehicle(Arrays.asList(current), AVL_TIME);
+
+		IpcPredictionsForRouteStopDest unexpiredPreds =
+				preds.withoutExpiredPredictions(minutes(2));
+		assertSameInstances(Arrays.asList(current),
+				unexpiredPreds.getPredictionsForRouteStop());
+		assertSame(unexpiredPreds,
+				unexpiredPreds.withoutExpiredPredictions(minutes(2)));
+
+		// Updating the predictions for another vehicle also drops them
+		IpcPrediction other = createPrediction("v3", minutes(5));
+		IpcPredictionsForRouteStopDest updatedPreds = preds
+				.withPredictionsForVehicle(Arrays.asList(other), minutes(2));
+		assertSameInstances(Arrays.asList(current, other),
+				updatedPreds.getPredictionsForRouteStop());
+	}
+
+	private IpcPredictionsForRouteStopDest createPreds(int... mins) {
+		IpcPredictionsForRouteStopDest preds = emptyPreds;
+		for (int i = 0; i < mins.length; ++i) {
+			preds = preds.withPredictionsForVehicle(
+					Arrays.asList(createPrediction("v" + i, minutes(mins[i]))),
+					AVL_TIME);
+		}
+		return preds;
+	}
+
+	public void testGetCloneReturnsThisWhenNothingLeftOut() {
+		IpcPredictionsForRouteStopDest preds = createPreds(1, 2, 3);
+
+		assertSame(preds, preds.getClone(3, Double.NaN));
+		assertSame(preds, preds.getClone(Integer.MAX_VALUE, minutes(3),
+				Double.NaN));
+		assertSame(preds, preds.getClone(3, minutes(1), minutes(3),
+				Double.NaN));
+
+		// A different distance needs a new object even with the same
+		// predictions
+		IpcPredictionsForRouteStopDest clone = preds.getClone(3, 100.0);
+		assertNotSame(preds, clone);
+		assertEquals(100.0, clone.getDistanceToStop(), 0.0);
+		assertSameInstances(preds.getPredictionsForRouteStop(),
+				clone.getPredictionsForRouteStop());
+	}
+
+	public void testGetCloneMaxPredictions() {
+		IpcPredictionsForRouteStopDest preds = createPreds(1, 2, 3, 4);
+
+		IpcPredictionsForRouteStopDest clone = preds.getClone(2, Double.NaN);
+		assertSameInstances(preds.getPredictionsForRouteStop().subList(0, 2),
+				clone.getPredictionsForRouteStop());
+
+		assertTrue(preds.getClone(0, Double.NaN)
+				.getPredictionsForRouteStop().isEmpty());
+	}
+
+	public void testGetCloneMaxTime() {
+		IpcPredictionsForRouteStopDest preds = createPreds(1, 2, 3, 4);
+
+		// Predictions right at the max time are included
+		IpcPredictionsForRouteStopDest clone =
+				preds.getClone(10, minutes(3), Double.NaN);
+		assertSameInstances(preds.getPredictionsForRouteStop().subList(0, 3),
+				clone.getPredictionsForRouteStop());
+	}
+
+	public void testGetCloneSkipsExpiredPredictions() {
+		IpcPredictionsForRouteStopDest preds = createPreds(1, 2, 3, 4, 5);
+		List<IpcPrediction> all = preds.getPredictionsForRouteStop();
+
+		// The max count applies after the expired ones are skipped
+		IpcPredictionsForRouteStopDest clone =
+				preds.getClone(2, minutes(2), Long.MAX_VALUE, Double.NaN);
+		assertSameInstances(all.subList(1, 3),
+				clone.getPredictionsForRouteStop());
+
+		clone = preds.getClone(10, minutes(2), minutes(4), Double.NaN);
+		assertSameInstances(all.subList(1, 4),
+				clone.getPredictionsForRouteStop());
+
+		// Skipping doesn't modify the predictions
+		assertEquals(5, preds.getPredictionsForRouteStop().size());
+	}
+
+	/**
+	 * getClone() returns a sublist, which can't be serialized, so the
+	 * serialization proxy needs to copy it.
+	 */
+	public void testSerializeClone() throws IOException,
+			ClassNotFoundException {
+		IpcPredictionsForRouteStopDest preds = createPreds(1, 2, 3, 4);
+		IpcPredictionsForRouteStopDest clone =
+				preds.getClone(2, minutes(2), Long.MAX_VALUE, Double.NaN);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(clone);
+		out.close();
+		ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()));
+		IpcPredictionsForRouteStopDest deserialized =
+				(IpcPredictionsForRouteStopDest) in.readObject();
+
+		assertEquals("route1", deserialized.getRouteId());
+		assertEquals("stop1", deserialized.getStopId());
+		assertEquals(Integer.valueOf(1), deserialized.getStopCode());
+		List<IpcPrediction> deserializedPreds =
+				deserialized.getPredictionsForRouteStop();
+		assertEquals(2, deserializedPreds.size());
+		assertEquals(minutes(2), deserializedPreds.get(0).getPredictionTime());
+		assertEquals("v1", deserializedPreds.get(0).getVehicleId());
+		assertEquals(minutes(3), deserializedPreds.get(1).getPredictionTime());
+		assertEquals("v2", deserializedPreds.get(1).getVehicleId());
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.utils;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that HashedTimerWheel returns keys once their time has passed, but
+ * not before, including keys that are scheduled for a later rotation of
+ * the wheel.
+ * 
+ */
+public class TestHashedTimerWheel extends TestCase {
+
+	private static final long TICK_MSEC = 1000;
+	private static final int NUM_SLOTS = 8;
+	
+	private static final long START_TIME = 1000000000000L;
+	
+	public void testExpiresAfterTime() {
+		HashedTimerWheel<String> wheel = 
+				new HashedTimerWheel<String>(NUM_SLOTS, TICK_MSEC);
+		wheel.expire(START_TIME);
+		
+		wheel.schedule("a", START_TIME + 2500);
+		wheel.schedule("b", START_TIME + 5500);
+		assertEquals(2, wheel.size());
+		
+		assertTrue(wheel.expire(START_TIME + 2000).isEmpty());
+		assertTrue(wheel.expire(START_TIME + 2600).isEmpty());
+		
+		List<String> expired = wheel.expire(START_TIME + 3000);
+		assertEquals(1, expired.size());
+		assertEquals("a", expired.get(0));
+		
+		assertTrue(wheel.expire(START_TIME + 5900).isEmpty());
+		expired = wheel.expire(START_TIME + 6000);
+		assertEquals(1, expired.size());
+		assertEquals("b", expired.get(0));
+		assertEquals(0, wheel.size());
+	}
+	
+	public void testLaterRotation() {
+		HashedTimerWheel<String> wheel = 
+				new HashedTimerWheel<String>(NUM_SLOTS, TICK_MSEC);
+		wheel.expire(START_TIME);
+		
+		// Same slot as a key for the current rotation
+		wheel.schedule("soon", START_TIME + 1500);
+		wheel.schedule("later", START_TIME + 1500 + NUM_SLOTS * TICK_MSEC);
+		
+		List<String> expired = wheel.expire(START_TIME + 3000);
+		assertEquals(1, expired.size());
+		assertEquals("soon", expired.get(0));
+		
+		// Slot of "later" is processed again a rotation later
+		assertTrue(wheel.expire(START_TIME + 1900 
+				+ NUM_SLOTS * TICK_MSEC).isEmpty());
+		expired = wheel.expire(START_TIME + 2000 + NUM_SLOTS * TICK_MSEC);
+		assertEquals(1, expired.size());
+		assertEquals("later", expired.get(0));
+	}
+	
+	public void testEarliestTimeKept() {
+		HashedTimerWheel<String> wheel = 
+				new HashedTimerWheel<String>(NUM_SLOTS, TICK_MSEC);
+		wheel.expire(START_TIME);
+		
+		wheel.schedule("a", START_TIME + 2900);
+		wheel.schedule("a", START_TIME + 2100);
+		assertEquals(1, wheel.size());
+		
+		assertEquals(1, wheel.expire(START_TIME + 4000).size());
+	}
+	
+	public void testScheduledInPast() {
+		HashedTimerWheel<String> wheel = 
+				new HashedTimerWheel<String>(NUM_SLOTS, TICK_MSEC);
+		wheel.expire(START_TIME + 10000);
+		
+		// Tick already processed so should be returned by next tick
+		wheel.schedule("past", START_TIME + 5000);
+		List<String> expired = wheel.expire(START_TIME + 11000);
+		assertEquals(1, expired.size());
+		assertEquals("past", expired.get(0));
+	}
+}
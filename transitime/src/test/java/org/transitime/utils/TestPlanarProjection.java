@@ -0,0 +1,94 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.transitime.db.structs.Location;
+import org.transitime.db.structs.VectorWithHeading;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests determining distances using the planar projection. Makes sure that
+ * the planar distances are very close to the ones from Geo.
+ * 
+ */
+public class TestPlanarProjection extends TestCase {
+
+	private static final int NUM_VECTORS = 1000;
+	private static final int NUM_LOCATIONS = 1000;
+	
+	// Agency spanning about 50km, similar to a large city
+	private static final double MIN_LAT = 37.5;
+	private static final double MAX_LAT = 37.95;
+	private static final double MIN_LON = -122.6;
+	private static final double MAX_LON = -122.05;
+	
+	private List<VectorWithHeading> vectors;
+	private List<Location> locations;
+	
+	@Override
+	protected void setUp() {
+		// Short segments throughout the agency, with locations near them
+		Random random = new Random(42);
+		vectors = new ArrayList<VectorWithHeading>();
+		locations = new ArrayList<Location>();
+		for (int i = 0; i < NUM_VECTORS; ++i) {
+			Location l1 = new Location(
+					MIN_LAT + random.nextDouble() * (MAX_LAT - MIN_LAT),
+					MIN_LON + random.nextDouble() * (MAX_LON - MIN_LON));
+			Location l2 = Geo.offset(l1, (random.nextDouble() - 0.5) * 200.0, 
+					(random.nextDouble() - 0.5) * 200.0);
+			vectors.add(new VectorWithHeading(l1, l2));
+		}
+		for (int i = 0; i < NUM_LOCATIONS; ++i) {
+			Location l1 = vectors.get(i % NUM_VECTORS).getL1();
+			locations.add(Geo.offset(l1, (random.nextDouble() - 0.5) * 300.0, 
+					(random.nextDouble() - 0.5) * 300.0));
+		}
+		
+		PlanarProjection.setCurrent(new PlanarProjection(
+				(MIN_LAT + MAX_LAT) / 2, (MIN_LON + MAX_LON) / 2));
+	}
+	
+	@Override
+	protected void tearDown() {
+		PlanarProjection.setCurrent(null);
+	}
+	
+	public void testAccuracy() {
+		for (int i = 0; i < NUM_LOCATIONS; ++i) {
+			Location loc = locations.get(i);
+			VectorWithHeading vector = vectors.get(i % NUM_VECTORS);
+			
+			double geoDistance = Geo.distance(loc, vector);
+			double planarDistance = vector.distance(loc);
+			assertEquals(geoDistance, planarDistance, 
+					0.01 + geoDistance * 0.005);
+			
+			double geoAlong = Geo.matchDistanceAlongVector(loc, vector);
+			double planarAlong = vector.matchDistanceAlongVector(loc);
+			assertEquals(geoAlong, planarAlong, 
+					0.01 + vector.length() * 0.005);
+			assertTrue(planarAlong >= 0.0 && planarAlong <= vector.length());
+		}
+	}
+	
+}
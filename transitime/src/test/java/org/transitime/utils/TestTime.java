@@ -0,0 +1,135 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.utils;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that Time.getSecondsIntoDay() and Time.getMsecsIntoDay() give the
+ * same results as using a Calendar, including around DST transitions and
+ * when a Time is shared by multiple threads.
+ * 
+ */
+public class TestTime extends TestCase {
+
+	private static final String[] TIMEZONES = {"America/Los_Angeles",
+		"Europe/London", "Australia/Lord_Howe", "Asia/Kolkata", "UTC"};
+	
+	private static final int NUM_THREADS = 4;
+	private static final int CALLS_PER_THREAD = 100000;
+	
+	/**
+	 * The previous implementation, which synchronized on a Calendar, for
+	 * comparison
+	 */
+	private static class CalendarTime {
+		private final Calendar calendar;
+		
+		private CalendarTime(String timeZoneStr) {
+			calendar = new GregorianCalendar(
+					TimeZone.getTimeZone(timeZoneStr));
+		}
+		
+		private int getMsecsIntoDay(long epochTime) {
+			synchronized (calendar) {
+				calendar.setTimeInMillis(epochTime);
+				return calendar.get(Calendar.HOUR_OF_DAY) * 60 * 60 * 1000 +
+						calendar.get(Calendar.MINUTE) * 60 * 1000          +
+						calendar.get(Calendar.SECOND) * 1000               +
+						calendar.get(Calendar.MILLISECOND);
+			}
+		}
+		
+		private int getSecondsIntoDay(long epochTime) {
+			synchronized (calendar) {
+				calendar.setTimeInMillis(epochTime);
+				return calendar.get(Calendar.HOUR_OF_DAY) * 60 * 60 +
+						calendar.get(Calendar.MINUTE) * 60          +
+						calendar.get(Calendar.SECOND);
+			}
+		}
+	}
+	
+	public void testSameAsCalendar() {
+		// Every 7 minutes and 13.5 seconds for two years, which covers 
+		// several DST transitions in each direction. Times are not in order
+		// so that the cached offset period is frequently replaced.
+		long start = 1420070400000L; // Jan 1 2015 UTC
+		long step = 7 * Time.MS_PER_MIN + 13500;
+		long numSteps = 2 * 366 * Time.MS_PER_DAY / step;
+		for (String timeZoneStr : TIMEZONES) {
+			Time time = new Time(timeZoneStr);
+			CalendarTime calendarTime = new CalendarTime(timeZoneStr);
+			for (long i = 0; i < numSteps; ++i) {
+				long epochTime = start + ((i * 7919) % numSteps) * step;
+				assertEquals(timeZoneStr + " " + epochTime,
+						calendarTime.getMsecsIntoDay(epochTime),
+						time.getMsecsIntoDay(epochTime));
+				assertEquals(timeZoneStr + " " + epochTime,
+						calendarTime.getSecondsIntoDay(epochTime),
+						time.getSecondsIntoDay(epochTime));
+				assertEquals(timeZoneStr + " " + epochTime,
+						Instant.ofEpochMilli(epochTime)
+								.atZone(ZoneId.of(timeZoneStr)).toLocalDate()
+								.toEpochDay(),
+						time.getEpochDay(epochTime));
+			}
+		}
+	}
+	
+	/**
+	 * Calls getSecondsIntoDay() on a shared Time from multiple threads, with
+	 * times spread over DST transitions so that the cached offset period is
+	 * replaced while other threads are using it, and makes sure every result
+	 * matches a Calendar used only by that thread.
+	 */
+	public void testConcurrentUse() throws InterruptedException {
+		final Time time = new Time("America/Los_Angeles");
+		final AtomicInteger numMismatches = new AtomicInteger();
+		Thread[] threads = new Thread[NUM_THREADS];
+		for (int t = 0; t < NUM_THREADS; ++t) {
+			final long base = 1420070400000L + t * Time.MS_PER_DAY;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					CalendarTime calendarTime = 
+							new CalendarTime("America/Los_Angeles");
+					for (int i = 0; i < CALLS_PER_THREAD; ++i) {
+						long epochTime = base + (i * 7919L % CALLS_PER_THREAD) 
+								* 17 * Time.MS_PER_MIN;
+						if (time.getSecondsIntoDay(epochTime) != 
+								calendarTime.getSecondsIntoDay(epochTime))
+							numMismatches.incrementAndGet();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		
+		assertEquals(0, numMismatches.get());
+	}
+	
+}
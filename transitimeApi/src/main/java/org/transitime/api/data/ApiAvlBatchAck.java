@@ -0,0 +1,66 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.api.data;
+
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import org.transitime.ipc.data.IpcAvlBatchResult;
+
+/**
+ * Acknowledgment for a batch of AVL reports pushed to the server. Contains
+ * how many of the reports were accepted, rejected due to bad data, or stale
+ * because they were not newer than the last report for the vehicle.
+ *
+ */
+@XmlRootElement(name="acknowledgment")
+public class ApiAvlBatchAck {
+	@XmlAttribute
+	private boolean success;
+	
+	@XmlAttribute
+	private int accepted;
+	
+	@XmlAttribute
+	private int rejected;
+	
+	@XmlAttribute
+	private int stale;
+	
+    /********************** Member Functions **************************/
+
+    /**
+     * Need a no-arg constructor for Jersey. Otherwise get really 
+     * obtuse "MessageBodyWriter not found for media type=application/json"
+     * exception.
+     */
+    public ApiAvlBatchAck() {}
+
+    /**
+     * @param result
+     *            the result from the server
+     * @param rejectedByApi
+     *            number of reports that couldn't even be parsed and were
+     *            therefore never sent to the server
+     */
+    public ApiAvlBatchAck(IpcAvlBatchResult result, int rejectedByApi) {
+    	this.success = true;
+    	this.accepted = result.getAccepted();
+    	this.rejected = result.getRejected() + rejectedByApi;
+    	this.stale = result.getStale();
+    }
+}
@@ -20,6 +20,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
@@ -27,6 +28,7 @@ import java.util.Date;
 import javax.ws.rs.BeanParam;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
@@ -34,10 +36,12 @@ import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.transitime.api.data.ApiAvlBatchAck;
 import org.transitime.api.data.ApiCommandAck;
 import org.transitime.api.utils.StandardParameters;
 import org.transitime.api.utils.WebUtils;
@@ -45,9 +49,13 @@ import org.transitime.db.GenericQuery;
 import org.transitime.db.structs.AvlReport;
 import org.transitime.db.structs.MeasuredArrivalTime;
 import org.transitime.db.structs.AvlReport.AssignmentType;
+import org.transitime.feed.gtfsRt.GtfsRtVehiclePositionsReader;
 import org.transitime.ipc.data.IpcAvl;
+import org.transitime.ipc.data.IpcAvlBatchResult;
 import org.transitime.ipc.interfaces.CommandsInterface;
 
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
 @Path("/key/{key}/agency/{agency}")
 public class CommandsApi {
 
@@ -135,16 +143,14 @@ public class CommandsApi {
 	}
 
 	/**
-	 * Converts the request body input stream into a JSON object
+	 * Reads the request body input stream into a string
 	 * 
 	 * @param requestBody
-	 * @return the corresponding JSON object
+	 * @return the request body as a string
 	 * @throws IOException
-	 * @throws JSONException
 	 */
-	private static JSONObject getJsonObject(InputStream requestBody)
-			throws IOException, JSONException {
-		// Read in the request body to a string
+	private static String getRequestBodyString(InputStream requestBody)
+			throws IOException {
 		BufferedReader reader =
 				new BufferedReader(new InputStreamReader(requestBody));
 		StringBuilder strBuilder = new StringBuilder();
@@ -153,9 +159,68 @@ public class CommandsApi {
 			strBuilder.append(line);
 		}
 		reader.close();
-
-		// Convert string to JSON object
-		return new JSONObject(strBuilder.toString());
+		
+		return strBuilder.toString();
+	}
+	
+	/**
+	 * Converts the request body input stream into a JSON object
+	 * 
+	 * @param requestBody
+	 * @return the corresponding JSON object
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	private static JSONObject getJsonObject(InputStream requestBody)
+			throws IOException, JSONException {
+		// Convert request body string to JSON object
+		return new JSONObject(getRequestBodyString(requestBody));
+	}
+	
+	/**
+	 * Converts a JSON object for a single AVL report into an AvlReport. The
+	 * format is {v: "vehicleId1", t: epochTimeMsec, lat: latitude, 
+	 * lon: longitude, s:speed(optional), h:heading(optional), 
+	 * assignmentId: "4321"(optional), assignmentType: "TRIP_ID"(optional)}
+	 * 
+	 * @param avlJsonObj
+	 * @return the AvlReport
+	 * @throws JSONException
+	 *             If a required member is missing or invalid
+	 */
+	private static AvlReport getAvlReport(JSONObject avlJsonObj)
+			throws JSONException {
+		String vehicleId = avlJsonObj.getString("v");
+		long time = avlJsonObj.getLong("t");
+		double lat = avlJsonObj.getDouble("lat");
+		double lon = avlJsonObj.getDouble("lon");
+		float speed = avlJsonObj.has("s") ? 
+				(float) avlJsonObj.getDouble("s") : Float.NaN;
+		float heading = avlJsonObj.has("h") ? 
+				(float) avlJsonObj.getDouble("h") : Float.NaN;
+				
+		AvlReport avlReport =
+				new AvlReport(vehicleId, time, lat, lon, speed,
+						heading, AVL_SOURCE);
+		
+		// Handle assignment info if there is any
+		if (avlJsonObj.has("assignmentId")) {
+			String assignmentId = avlJsonObj.getString("assignmentId");
+			AssignmentType assignmentType = AssignmentType.BLOCK_ID;
+			if (avlJsonObj.has("assignmentType")) {
+				String assignmentTypeStr =
+						avlJsonObj.getString("assignmentType");
+				if (assignmentTypeStr.equals("ROUTE_ID"))
+					assignmentType = AssignmentType.ROUTE_ID;
+				else if (assignmentTypeStr.equals("TRIP_ID"))
+					assignmentType = AssignmentType.TRIP_ID;
+				else if (assignmentTypeStr.equals("TRIP_SHORT_NAME"))
+					assignmentType = AssignmentType.TRIP_SHORT_NAME;
+			}
+			avlReport.setAssignment(assignmentId, assignmentType);
+		}
+		
+		return avlReport;
 	}
 	
 	/**
@@ -194,37 +259,9 @@ public class CommandsApi {
 			JSONObject jsonObj = getJsonObject(requestBody);
 			JSONArray jsonArray = jsonObj.getJSONArray("avl");
 			for (int i = 0; i < jsonArray.length(); ++i) {
-				JSONObject avlJsonObj = jsonArray.getJSONObject(i);
-				String vehicleId = avlJsonObj.getString("v");
-				long time = avlJsonObj.getLong("t");
-				double lat = avlJsonObj.getDouble("lat");
-				double lon = avlJsonObj.getDouble("lon");
-				float speed = avlJsonObj.has("s") ? 
-						(float) avlJsonObj.getDouble("s") : Float.NaN;
-				float heading = avlJsonObj.has("h") ? 
-						(float) avlJsonObj.getDouble("h") : Float.NaN;
-						
 				// Convert the AVL info into a IpcAvl object to sent to server
-				AvlReport avlReport =
-						new AvlReport(vehicleId, time, lat, lon, speed,
-								heading, AVL_SOURCE);
-				
-				// Handle assignment info if there is any
-				if (avlJsonObj.has("assignmentId")) {
-					String assignmentId = avlJsonObj.getString("assignmentId");
-					AssignmentType assignmentType = AssignmentType.BLOCK_ID;
-					if (avlJsonObj.has("assignmentType")) {
-						String assignmentTypeStr =
-								avlJsonObj.getString("assignmentType");
-						if (assignmentTypeStr.equals("ROUTE_ID"))
-							assignmentType = AssignmentType.ROUTE_ID;
-						else if (assignmentTypeStr.equals("TRIP_ID"))
-							assignmentType = AssignmentType.TRIP_ID;
-						else if (assignmentTypeStr.equals("TRIP_SHORT_NAME"))
-							assignmentType = AssignmentType.TRIP_SHORT_NAME;
-					}
-					avlReport.setAssignment(assignmentId, assignmentType);
-				}
+				AvlReport avlReport = 
+						getAvlReport(jsonArray.getJSONObject(i));
 				
 				// Add new IpcAvl report to array of AVL reports to be handled
 				avlData.add(new IpcAvl(avlReport));
@@ -243,6 +280,93 @@ public class CommandsApi {
 		return stdParameters.createResponse(ack);
 	}
 
+	/**
+	 * Processes a POST http request containing a batch of AVL data in the
+	 * message body and sends the whole batch to the server in a single call.
+	 * Intended for integrators that push data for a large number of vehicles
+	 * every few seconds.
+	 * <p>
+	 * If the content type is application/x-protobuf or
+	 * application/octet-stream then the body is processed as a
+	 * GTFS-realtime VehiclePositions FeedMessage. Otherwise the body is JSON
+	 * and can be either an array of AVL reports or the same {avl: [...]}
+	 * format used by pushAvl.
+	 * <p>
+	 * Individual AVL reports that can't be parsed or that have bad data are
+	 * rejected but don't cause the rest of the batch to fail. The response
+	 * indicates how many reports were accepted, rejected, and stale.
+	 * 
+	 * @param stdParameters
+	 * @param contentType
+	 * @param requestBody
+	 * @return ApiAvlBatchAck response indicating the counts
+	 * @throws WebApplicationException
+	 */
+	@Path("/command/pushAvlBatch")
+	@POST
+	@Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML })
+	public Response pushAvlBatch(@BeanParam StandardParameters stdParameters,
+			@HeaderParam("content-type") String contentType,
+			InputStream requestBody) throws WebApplicationException {
+		// Make sure request is valid
+		stdParameters.validate();
+
+		Collection<IpcAvl> avlData = new ArrayList<IpcAvl>();
+		int rejectedByApi = 0;
+		try {
+			if (contentType != null 
+					&& (contentType.contains("protobuf") 
+							|| contentType.contains("octet-stream"))) {
+				// Body is a GTFS-realtime FeedMessage. Vehicle positions
+				// that can't be converted to an AVL report are rejected.
+				FeedMessage feedMessage = 
+						GtfsRtVehiclePositionsReader.parse(requestBody);
+				Collection<AvlReport> avlReports = GtfsRtVehiclePositionsReader
+						.processMessage(feedMessage);
+				for (AvlReport avlReport : avlReports) {
+					avlData.add(new IpcAvl(avlReport));
+				}
+				rejectedByApi += GtfsRtVehiclePositionsReader
+						.numberOfVehiclePositions(feedMessage) 
+						- avlReports.size();
+			} else {
+				// Body is JSON. Can be an array or an object with an avl 
+				// array member.
+				String body = getRequestBodyString(requestBody).trim();
+				JSONArray jsonArray = body.startsWith("[") ? 
+						new JSONArray(body) : 
+						new JSONObject(body).getJSONArray("avl");
+				for (int i = 0; i < jsonArray.length(); ++i) {
+					try {
+						AvlReport avlReport = 
+								getAvlReport(jsonArray.getJSONObject(i));
+						avlData.add(new IpcAvl(avlReport));
+					} catch (JSONException e) {
+						// Just this AVL report is bad
+						++rejectedByApi;
+					}
+				}
+			}
+			
+			// Get RMI interface and send the AVL data to server in a 
+			// single call
+			CommandsInterface inter = stdParameters.getCommandsInterface();
+			IpcAvlBatchResult result = inter.pushAvlBatch(avlData);
+			
+			// Create the acknowledgment and return it as JSON or XML
+			ApiAvlBatchAck ack = new ApiAvlBatchAck(result, rejectedByApi);
+			return stdParameters.createResponse(ack);
+		} catch (RemoteException e) {
+			// Core couldn't be reached. Not a problem with the request so 
+			// return a server error.
+			throw WebUtils.badRequestException(
+					Status.SERVICE_UNAVAILABLE.getStatusCode(), e.getMessage());
+		} catch (JSONException | IOException e) {
+			// If problem getting data then return a Bad Request
+			throw WebUtils.badRequestException(e.getMessage());
+		}
+	}
+	
 	/**
 	 * Reads in information from request and stores arrival information into db.
 	 * 